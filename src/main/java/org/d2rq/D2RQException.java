@@ -106,6 +106,7 @@ public class D2RQException extends JenaException {
 	public static final int SQL_TABLE_NOT_FOUND = 89;
 	public static final int NOT_YET_IMPLEMENTED = 90;	
 	public static final int SQL_INVALID_IDENTIFIER = 91;
+	public static final int DATABASE_POOL_EXHAUSTED = 92;
 	
 	/**
 	 * Returns the name of one of the D2RQException.XXX error constants
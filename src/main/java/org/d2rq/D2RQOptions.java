@@ -18,12 +18,22 @@ public class D2RQOptions {
 	public final static Symbol TRIM_JOINS = Symbol.create(NS + "trimJoins");
 	public final static Symbol AVOID_SELF_JOINS = Symbol.create(NS + "avoidSelfJoins");
 	public final static Symbol FILTER_TO_SQL = Symbol.create(NS + "filterToSQL");
+	
+	/**
+	 * Number of incoming bindings that are joined with a relation in a
+	 * single SQL query; 1 to send one query per binding. The vendor's
+	 * {@link org.d2rq.db.vendor.Vendor#getMaxInListSize()} caps this.
+	 */
+	public final static Symbol BIND_JOIN_BLOCK_SIZE = Symbol.create(NS + "bindJoinBlockSize");
 
 	public static Context getContext(boolean fastMode) {
 		Context result = ARQ.getContext().copy();
 		String defaultValue = fastMode ? "true" : "false";
 		result.set(D2RQOptions.MULTIPLEX_QUERIES, defaultValue);
 		result.set(D2RQOptions.FILTER_TO_SQL, defaultValue);
+		result.set(D2RQOptions.TRIM_JOINS, defaultValue);
+		result.set(D2RQOptions.AVOID_SELF_JOINS, defaultValue);
+		result.set(D2RQOptions.BIND_JOIN_BLOCK_SIZE, fastMode ? "100" : "1");
 		return result;
 	}
 	
@@ -8,7 +8,9 @@ import org.d2rq.db.SQLConnection;
 import org.d2rq.db.op.AliasOp;
 import org.d2rq.db.op.DatabaseOp;
 import org.d2rq.db.op.EmptyOp;
+import org.d2rq.db.op.GroupOp;
 import org.d2rq.db.op.InnerJoinOp;
+import org.d2rq.db.op.LeftJoinOp;
 import org.d2rq.db.op.LimitOp;
 import org.d2rq.db.op.NamedOp;
 import org.d2rq.db.op.OrderOp;
@@ -16,6 +18,7 @@ import org.d2rq.db.op.OrderOp.OrderSpec;
 import org.d2rq.db.op.SQLOp;
 import org.d2rq.db.op.SelectOp;
 import org.d2rq.db.op.TableOp;
+import org.d2rq.db.op.UnionOp;
 import org.d2rq.db.op.util.OpMutator;
 import org.d2rq.nodes.BindingMaker;
 
@@ -58,6 +61,38 @@ public class NodeRelationOrderer extends OpMutator {
 			Collection<NamedOp> newChildren) {
 		return wrap(original);
 	}
+
+	@Override
+	public boolean visitEnter(LeftJoinOp original) {
+		return false;
+	}
+
+	
+	@Override
+	public DatabaseOp visitLeave(LeftJoinOp original,
+			DatabaseOp left, DatabaseOp right) {
+		return wrap(original);
+	}
+
+	@Override
+	public boolean visitEnter(UnionOp original) {
+		return false;
+	}
+
+	@Override
+	public DatabaseOp visitLeave(UnionOp original, List<DatabaseOp> branches) {
+		return wrap(original);
+	}
+
+	@Override
+	public boolean visitEnter(GroupOp original) {
+		return false;
+	}
+
+	@Override
+	public DatabaseOp visitLeave(GroupOp original, DatabaseOp child) {
+		return wrap(original);
+	}
 	
 	@Override
 	public boolean visitEnter(SelectOp original) {
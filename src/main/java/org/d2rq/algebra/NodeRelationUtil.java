@@ -1,5 +1,7 @@
 package org.d2rq.algebra;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -8,12 +10,17 @@ import java.util.Map;
 import java.util.Set;
 
 import org.d2rq.db.expr.Expression;
+import org.d2rq.db.expr.InList;
 import org.d2rq.db.op.AliasOp;
 import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.op.DistinctOp;
+import org.d2rq.db.op.GroupOp;
 import org.d2rq.db.op.LimitOp;
 import org.d2rq.db.op.OpVisitor;
+import org.d2rq.db.op.OrderOp;
 import org.d2rq.db.op.OrderOp.OrderSpec;
 import org.d2rq.db.op.TableOp;
+import org.d2rq.db.op.UnionOp;
 import org.d2rq.db.op.util.OpProjecter;
 import org.d2rq.db.op.util.OpRenamer;
 import org.d2rq.db.op.util.OpSelecter;
@@ -68,11 +75,54 @@ public class NodeRelationUtil {
 		if (!extraVars.isEmpty()) {
 			extraVars.putAll(result.getBindingMaker().getNodeMakers());
 			result = new NodeRelation(result.getSQLConnection(), result.getBaseTabular(), 
-					new BindingMaker(extraVars, result.getBindingMaker().getConditionColumn()));
+					new BindingMaker(extraVars, result.getBindingMaker().getConditionColumn(),
+							result.getBindingMaker().getGuards()));
 		}
 		return result;
 	}
 
+	/**
+	 * Selects the rows of a NodeRelation that are compatible with any
+	 * of several bindings, in a single query. Unlike
+	 * {@link #extendWith(NodeRelation, Binding)}, the node makers are
+	 * left unchanged, so the bindings produced from the rows still have
+	 * to be joined with the bindings they are compatible with.
+	 * Where all bindings constrain the same single column, the condition
+	 * becomes an <code>IN</code> list.
+	 * 
+	 * @param bindings Bindings to join with this NodeRelation
+	 * @return The selected NodeRelation
+	 */
+	public static NodeRelation selectCompatible(NodeRelation table, Collection<Binding> bindings) {
+		List<Expression> conditions = new ArrayList<Expression>(bindings.size());
+		for (Binding binding: bindings) {
+			Expression condition = Expression.TRUE;
+			for (Iterator<Var> it = binding.vars(); it.hasNext();) {
+				Var var = it.next();
+				if (!table.getBindingMaker().has(var)) continue;
+				condition = condition.and(valueCondition(table, var, binding.get(var)));
+			}
+			if (condition.isTrue()) return table;
+			conditions.add(condition);
+		}
+		return select(table, InList.createFromDisjuncts(conditions));
+	}
+	
+	private static Expression valueCondition(NodeRelation table, Var var, Node value) {
+		NodeMaker nodeMaker = table.nodeMaker(var);
+		if (nodeMaker instanceof FixedNodeMaker) {
+			return ((FixedNodeMaker) nodeMaker).getFixedNode().equals(value) 
+					? Expression.TRUE : Expression.FALSE;
+		}
+		if (!(nodeMaker instanceof TypedNodeMaker)) return Expression.FALSE;
+		TypedNodeMaker typed = (TypedNodeMaker) nodeMaker;
+		if (!typed.getNodeType().matches(value)) return Expression.FALSE;
+		String stringValue = typed.getNodeType().extractValue(value);
+		if (stringValue == null) return Expression.FALSE;
+		return typed.getValueMaker().valueExpression(stringValue, 
+				table.getBaseTabular(), table.getSQLConnection().vendor());
+	}
+
 	// FIXME: This doesn't work correctly if a condition is present on the binding maker. Would need to create a sub-SELECT with the condition, and apply the limit to that.
 	public static NodeRelation limit(NodeRelation table, int limit) {
 		return new NodeRelation(table.getSQLConnection(), 
@@ -80,6 +130,53 @@ public class NodeRelationUtil {
 				table.getBindingMaker());
 	}
 
+	/**
+	 * Skips the first rows of a NodeRelation and limits the number of
+	 * the remaining rows. If the database limits rows by a condition in
+	 * the <code>WHERE</code> clause, then an ordered relation is first
+	 * wrapped into a sub-<code>SELECT</code>, as the condition would
+	 * otherwise be applied before sorting.
+	 * 
+	 * @param offset Number of rows to skip
+	 * @param limit Maximum number of rows, or {@link LimitOp#NO_LIMIT}
+	 */
+	public static NodeRelation slice(NodeRelation table, int offset, int limit) {
+		DatabaseOp op = table.getBaseTabular();
+		BindingMaker bindingMaker = table.getBindingMaker();
+		if (limit != LimitOp.NO_LIMIT && isOrdered(op) && 
+				!table.getSQLConnection().vendor().getRowNumLimitAsExpression(limit).isTrue()) {
+			AliasOp alias = AliasOp.createWithUniqueName(op, "ORDER");
+			op = alias;
+			bindingMaker = bindingMaker.rename(alias.getRenamer());
+		}
+		return new NodeRelation(table.getSQLConnection(), 
+				LimitOp.limit(op, limit, LimitOp.NO_LIMIT, offset), bindingMaker);
+	}
+
+	private static boolean isOrdered(DatabaseOp op) {
+		final boolean[] result = {false};
+		op.accept(new OpVisitor.Default(true) {
+			@Override
+			public boolean visitEnter(OrderOp table) {
+				result[0] = true;
+				return false;
+			}
+			@Override
+			public boolean visitEnter(AliasOp table) {
+				return false;
+			}
+			@Override
+			public boolean visitEnter(GroupOp table) {
+				return false;
+			}
+			@Override
+			public boolean visitEnter(UnionOp table) {
+				return false;
+			}
+		});
+		return result[0];
+	}
+
 	public static NodeRelation order(NodeRelation nodeRelation, 
 			Var orderByVar, boolean ascending) {
 		if (!nodeRelation.getBindingMaker().has(orderByVar)) {
@@ -98,6 +195,13 @@ public class NodeRelationUtil {
 			if (!original.getBindingMaker().has(var)) continue;
 			projections.addAll(original.nodeMaker(var).getRequiredColumns());
 		}
+		if (original.getBindingMaker().getConditionColumn() != null) {
+			projections.add(original.getBindingMaker().getConditionColumn());
+		}
+		for (Var var: vars) {
+			if (!original.getBindingMaker().isGuarded(var)) continue;
+			projections.add(original.getBindingMaker().getGuards().get(var));
+		}
 		Set<ColumnName> originalColumns = new HashSet<ColumnName>(
 				original.getBaseTabular().getColumns().asList());
 		if (originalColumns.equals(projections)) {
@@ -110,6 +214,31 @@ public class NodeRelationUtil {
 				original.getBindingMaker().rename(projecter.getRenamer()));
 	}
 	
+	/**
+	 * Projects a NodeRelation to some of its variables, and removes
+	 * duplicate rows by adding <code>DISTINCT</code> to the SQL query.
+	 * Unlike {@link #project(NodeRelation, Set)}, the other variables
+	 * are also removed from the binding maker.
+	 */
+	public static NodeRelation distinct(NodeRelation original, Set<Var> vars) {
+		Map<Var,NodeMaker> nodeMakers = new HashMap<Var,NodeMaker>();
+		Map<Var,ColumnName> guards = new HashMap<Var,ColumnName>();
+		for (Var var: vars) {
+			if (!original.getBindingMaker().has(var)) continue;
+			nodeMakers.put(var, original.nodeMaker(var));
+			if (original.getBindingMaker().isGuarded(var)) {
+				guards.put(var, original.getBindingMaker().getGuards().get(var));
+			}
+		}
+		NodeRelation projected = project(new NodeRelation(
+				original.getSQLConnection(), original.getBaseTabular(), 
+				new BindingMaker(nodeMakers, original.getBindingMaker().getConditionColumn(), guards)), 
+				vars);
+		return new NodeRelation(projected.getSQLConnection(), 
+				new DistinctOp(projected.getBaseTabular()), 
+				projected.getBindingMaker());
+	}
+	
 	public static NodeRelation renameWithPrefix(NodeRelation table, final int index) {
 		final Map<TableName,TableName> oldToNew = new HashMap<TableName,TableName>();
 		table.getBaseTabular().accept(new OpVisitor.Default(true) {
@@ -198,10 +327,14 @@ public class NodeRelationUtil {
 				Map<Var,NodeMaker> nodeMakers = new HashMap<Var,NodeMaker>(
 						original.getBindingMaker().getNodeMakers());
 				nodeMakers.put(var, new FixedNodeMaker(value));
+				// The condition fails where the variable would be unbound
+				Map<Var,ColumnName> guards = new HashMap<Var,ColumnName>(
+						original.getBindingMaker().getGuards());
+				guards.remove(var);
 				result = new NodeRelation(
 						result.getSQLConnection(),
 						new OpSelecter(original.getBaseTabular(), expr).getResult(), 
-						new BindingMaker(nodeMakers, original.getBindingMaker().getConditionColumn()));
+						new BindingMaker(nodeMakers, original.getBindingMaker().getConditionColumn(), guards));
 			}
 		}.getResult();
 	}
@@ -16,12 +16,18 @@ import org.d2rq.CompiledMapping;
 import org.d2rq.D2RQException;
 import org.d2rq.SystemLoader;
 import org.d2rq.db.SQLConnection;
+import org.d2rq.find.ParallelDump;
+import org.d2rq.jena.GraphD2RQ;
 import org.d2rq.lang.D2RQReader;
 import org.d2rq.mapgen.MappingGenerator;
+import org.d2rq.writer.NTriplesWriter;
 
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.RDFWriter;
 import com.hp.hpl.jena.shared.NoWriterForLangException;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
 
 
 /**
@@ -51,6 +57,7 @@ public class dump_rdf extends CommandLineTool {
 		System.err.println("    -b baseURI      Base URI for RDF output (default: " + SystemLoader.DEFAULT_BASE_URI + ")");
 		System.err.println("    -f format       One of N-TRIPLE (default), RDF/XML, RDF/XML-ABBREV, TURTLE");
 		System.err.println("    -o outfile      Output file name (default: stdout)");
+		System.err.println("    --threads n     Run n queries in parallel; N-TRIPLE only, unordered output");
 		System.err.println("    --verbose       Print debug information");
 		System.err.println();
 		System.err.println("  Database connection options (only with jdbcURL):");
@@ -62,11 +69,18 @@ public class dump_rdf extends CommandLineTool {
 	private ArgDecl baseArg = new ArgDecl(true, "b", "base");
 	private ArgDecl formatArg = new ArgDecl(true, "f", "format");
 	private ArgDecl outfileArg = new ArgDecl(true, "o", "out", "outfile");
+	private ArgDecl threadsArg = new ArgDecl(true, "threads");
 
 	public void initArgs(CommandLine cmd) {
 		cmd.add(baseArg);
 		cmd.add(formatArg);
 		cmd.add(outfileArg);
+		cmd.add(threadsArg);
+	}
+	
+	private static boolean isNTriples(String format) {
+		return "N-TRIPLE".equalsIgnoreCase(format) || "N-TRIPLES".equalsIgnoreCase(format) 
+				|| "NT".equalsIgnoreCase(format);
 	}
 	
 	public void run(CommandLine cmd, SystemLoader loader) throws IOException {
@@ -78,6 +92,22 @@ public class dump_rdf extends CommandLineTool {
 		if (cmd.hasArg(formatArg)) {
 			format = cmd.getArg(formatArg).getValue();
 		}
+		int threads = 1;
+		if (cmd.hasArg(threadsArg)) {
+			try {
+				threads = Integer.parseInt(cmd.getArg(threadsArg).getValue());
+			} catch (NumberFormatException ex) {
+				threads = 0;
+			}
+			if (threads < 1) {
+				throw new D2RQException("Value of --threads must be a positive number", 
+						D2RQException.MUST_BE_NUMERIC);
+			}
+			if (!isNTriples(format)) {
+				log.warn("--threads is only supported for N-TRIPLE output; ignoring");
+				threads = 1;
+			}
+		}
 		PrintStream out;
 		if (cmd.hasArg(outfileArg)) {
 			File f = new File(cmd.getArg(outfileArg).getValue());
@@ -100,6 +130,24 @@ public class dump_rdf extends CommandLineTool {
 				db.setDefaultFetchSize(DUMP_DEFAULT_FETCH_SIZE);
 			}	
 
+			if (isNTriples(format) && threads > 1) {
+				long count = new ParallelDump(
+						(GraphD2RQ) loader.getGraphD2RQ(), threads).writeNTriples(out);
+				log.info("Wrote " + count + " triples");
+				return;
+			}
+			if (isNTriples(format)) {
+				// Stream directly from the graph, bypassing the Model API
+				ExtendedIterator<Triple> it = loader.getGraphD2RQ().find(Node.ANY, Node.ANY, Node.ANY);
+				try {
+					long count = new NTriplesWriter(out).write(it);
+					log.info("Wrote " + count + " triples");
+				} finally {
+					it.close();
+				}
+				return;
+			}
+
 			Model d2rqModel = loader.getModelD2RQ();
 
 			try {
@@ -0,0 +1,23 @@
+package org.d2rq.db;
+
+import java.util.Collection;
+
+import org.d2rq.db.schema.TableName;
+
+/**
+ * Finds out which tables of a database have changed, so that caches
+ * can drop just the results that were computed from those tables.
+ * 
+ * Implementations may poll the database, for example for row counts
+ * or timestamp watermarks ({@link WatermarkChangeDetector}) or for new
+ * entries in a change log table, or may simply pass on notifications
+ * from the application ({@link ChangeNotifier}).
+ */
+public interface ChangeDetector {
+
+	/**
+	 * @return The tables that have changed since the previous call,
+	 * 		or <code>null</code> if any table may have changed
+	 */
+	Collection<TableName> getChangedTables();
+}
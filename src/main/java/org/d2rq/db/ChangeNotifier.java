@@ -0,0 +1,31 @@
+package org.d2rq.db;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.d2rq.db.schema.TableName;
+
+/**
+ * A {@link ChangeDetector} that is told about changes by the
+ * application, for example after it has written to the database.
+ */
+public class ChangeNotifier implements ChangeDetector {
+	private Set<TableName> changed = new HashSet<TableName>();
+	private boolean allChanged = false;
+
+	public synchronized void tableChanged(TableName table) {
+		changed.add(table);
+	}
+
+	public synchronized void allTablesChanged() {
+		allChanged = true;
+	}
+
+	public synchronized Collection<TableName> getChangedTables() {
+		Collection<TableName> result = allChanged ? null : changed;
+		changed = new HashSet<TableName>();
+		allChanged = false;
+		return result;
+	}
+}
@@ -0,0 +1,501 @@
+package org.d2rq.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.d2rq.D2RQException;
+
+
+/**
+ * A bounded pool of JDBC connections to a single database. Connections
+ * are handed out as leases via {@link #borrow()} and must be handed back
+ * via {@link #release(Connection)} once the caller is done with them,
+ * typically when a {@link SQLIterator} is closed or exhausted.
+ *
+ * Idle connections are validated before they are leased out again.
+ * A maintenance thread periodically closes connections that have been
+ * idle for too long (down to the minimum pool size), and optionally runs
+ * a no-op query on the remaining idle connections to keep them alive.
+ *
+ * New connections are created by a {@link ConnectionFactory}, which
+ * is responsible for any database-specific initialization.
+ * 
+ * Optionally, each pooled connection has a {@link StatementCache}
+ * that keeps prepared statements open across leases.
+ *
+ * A connection is never leased to more than one caller at a time.
+ * A thread that keeps one open query per nesting level of a query plan
+ * could exhaust the pool and then wait for itself. To avoid this,
+ * connections can be leased with a {@link Holder} via
+ * {@link #borrow(Holder)}. When the pool is exhausted, the most
+ * recent such lease of the calling thread is reclaimed from its
+ * holder, which reads the rest of its result into memory and hands
+ * the connection back, instead of waiting.
+ */
+public class ConnectionPool {
+	private static final Log log = LogFactory.getLog(ConnectionPool.class);
+
+	/**
+	 * Idle connections that were last used more recently than this
+	 * are assumed to be still valid and are not checked on borrow.
+	 */
+	public static final long VALIDATION_GRACE_MILLIS = 1000;
+
+	/**
+	 * Timeout, in seconds, for {@link Connection#isValid(int)}.
+	 */
+	public static final int VALIDATION_TIMEOUT = 5;
+
+	public interface ConnectionFactory {
+
+		/**
+		 * @return A new, initialized JDBC connection
+		 * @throws D2RQException if the connection cannot be established
+		 */
+		Connection open();
+
+		/**
+		 * Runs a no-op query on an idle connection to keep it alive.
+		 * @throws SQLException if the connection is broken
+		 */
+		void keepAlive(Connection connection) throws SQLException;
+	}
+
+	/**
+	 * Holds a leased connection, and can hand it back to the pool
+	 * before it is done with it.
+	 */
+	public interface Holder {
+
+		/**
+		 * Finishes all use of the connection, e.g., by reading the rest
+		 * of a query result into memory, and hands it back to the pool.
+		 * Called on the thread that leased the connection.
+		 */
+		void reclaim();
+	}
+
+	private class PooledConnection {
+		final Connection connection;
+		long lastUsed = System.currentTimeMillis();
+		StatementCache statements = null;
+		Thread owner = null;
+		Holder holder = null;
+		long leaseNumber = 0;
+		boolean reclaiming = false;
+		PooledConnection(Connection connection) {
+			this.connection = connection;
+		}
+	}
+
+	private final ConnectionFactory factory;
+	private final int minSize;
+	private final int maxSize;
+	private final long maxWaitMillis;
+	private final long idleTimeoutMillis;
+	private final boolean keepAlive;
+	private final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+	private final Map<Connection,PooledConnection> leased =
+		new IdentityHashMap<Connection,PooledConnection>();
+	private int size = 0;
+	private long leaseCount = 0;
+	private int statementCacheSize = 0;
+	private boolean closed = false;
+	private MaintenanceAgent maintenanceAgent = null;
+
+	/**
+	 * @param factory Creates new connections on demand
+	 * @param minSize Number of idle connections that are never evicted
+	 * @param maxSize Maximum number of connections leased out at the same time
+	 * @param maxWaitMillis How long {@link #borrow()} waits for a connection
+	 * 		to become available before giving up
+	 * @param idleTimeoutMillis Idle connections beyond <tt>minSize</tt> are
+	 * 		closed after this time; 0 to disable idle eviction
+	 * @param keepAlive Keep idle connections alive during maintenance?
+	 */
+	public ConnectionPool(ConnectionFactory factory, int minSize, int maxSize,
+			long maxWaitMillis, long idleTimeoutMillis, boolean keepAlive) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Pool size must be at least 1: " + maxSize);
+		}
+		this.factory = factory;
+		this.maxSize = maxSize;
+		this.minSize = Math.max(0, Math.min(minSize, maxSize));
+		this.maxWaitMillis = maxWaitMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * @param size Number of prepared statements to cache per connection; 0 to disable
+	 */
+	public synchronized void setStatementCacheSize(int size) {
+		statementCacheSize = Math.max(0, size);
+	}
+
+	public synchronized int getStatementCacheSize() {
+		return statementCacheSize;
+	}
+
+	/**
+	 * @param connection A connection currently leased from this pool
+	 * @return The connection's statement cache, or <code>null</code> if
+	 * 		statement caching is disabled
+	 */
+	public synchronized StatementCache getStatementCache(Connection connection) {
+		if (statementCacheSize == 0) return null;
+		PooledConnection pooled = leased.get(connection);
+		if (pooled == null) return null;
+		if (pooled.statements == null) {
+			pooled.statements = new StatementCache(statementCacheSize);
+		}
+		return pooled.statements;
+	}
+
+	/**
+	 * Starts the maintenance thread that evicts idle connections and
+	 * runs the keep-alive query.
+	 *
+	 * @param interval Time between maintenance runs, in seconds
+	 */
+	public synchronized void startMaintenance(int interval) {
+		if (maintenanceAgent != null || closed) return;
+		maintenanceAgent = new MaintenanceAgent(interval);
+		maintenanceAgent.start();
+		log.debug("Connection pool maintenance is enabled (interval: " +
+				interval + " seconds, keep-alive: " + keepAlive + ").");
+	}
+
+	/**
+	 * Leases a connection from the pool. Blocks if all connections
+	 * are currently leased out.
+	 *
+	 * @return A valid connection, which must be handed back using {@link #release(Connection)}
+	 * @throws D2RQException if no connection becomes available in time
+	 */
+	public Connection borrow() {
+		return borrow(null);
+	}
+
+	/**
+	 * Leases a connection from the pool. If all connections are leased
+	 * out, and the calling thread holds other connections leased with
+	 * a holder, then the most recently leased of them is reclaimed
+	 * from its holder instead of waiting.
+	 *
+	 * @param holder Can hand the new lease back early if the same thread
+	 * 		needs another connection; <code>null</code> if it can't
+	 * @return A valid connection, which must be handed back using {@link #release(Connection)}
+	 * @throws D2RQException if no connection becomes available in time
+	 */
+	public Connection borrow(Holder holder) {
+		long deadline = System.currentTimeMillis() + maxWaitMillis;
+		while (true) {
+			PooledConnection candidate = null;
+			PooledConnection reclaim = null;
+			synchronized (this) {
+				while (true) {
+					if (closed) {
+						throw new D2RQException("Connection pool is closed",
+								D2RQException.D2RQ_DB_CONNECTION_FAILED);
+					}
+					if (!idle.isEmpty()) {
+						candidate = idle.pop();
+						break;
+					}
+					if (size < maxSize) {
+						size++;
+						break;
+					}
+					if (holder != null) {
+						reclaim = findReclaimable(Thread.currentThread());
+						if (reclaim != null) {
+							reclaim.reclaiming = true;
+							break;
+						}
+					}
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						throw new D2RQException("No database connection available after " +
+								maxWaitMillis + "ms (pool size: " + maxSize + ")",
+								D2RQException.DATABASE_POOL_EXHAUSTED);
+					}
+					try {
+						wait(remaining);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						throw new D2RQException("Interrupted while waiting for database connection",
+								D2RQException.DATABASE_POOL_EXHAUSTED);
+					}
+				}
+			}
+			if (reclaim != null) {
+				// The holder hands the connection back, so we'll find it idle
+				log.debug("Connection pool exhausted; reclaiming a connection held by the same thread");
+				reclaim.holder.reclaim();
+				continue;
+			}
+			if (candidate == null) {
+				// We have reserved a slot for a new connection
+				try {
+					candidate = new PooledConnection(factory.open());
+				} catch (RuntimeException ex) {
+					synchronized (this) {
+						size--;
+						notifyAll();
+					}
+					throw ex;
+				}
+			} else if (!isValid(candidate)) {
+				discard(candidate);
+				continue;
+			}
+			synchronized (this) {
+				candidate.owner = Thread.currentThread();
+				candidate.holder = holder;
+				candidate.leaseNumber = ++leaseCount;
+				candidate.reclaiming = false;
+				leased.put(candidate.connection, candidate);
+			}
+			return candidate.connection;
+		}
+	}
+
+	/**
+	 * Hands a leased connection back to the pool.
+	 */
+	public void release(Connection connection) {
+		PooledConnection pooled;
+		synchronized (this) {
+			pooled = leased.remove(connection);
+			if (pooled == null) {
+				log.warn("Attempt to release a connection that is not leased from this pool");
+				return;
+			}
+			pooled.owner = null;
+			pooled.holder = null;
+			if (!closed) {
+				pooled.lastUsed = System.currentTimeMillis();
+				idle.push(pooled);
+				notifyAll();
+				return;
+			}
+		}
+		discard(pooled);
+	}
+
+	/**
+	 * Hands a leased connection back to the pool and closes it, e.g.,
+	 * because it has caused an error and is suspected to be broken.
+	 */
+	public void invalidate(Connection connection) {
+		PooledConnection pooled;
+		synchronized (this) {
+			pooled = leased.remove(connection);
+			if (pooled == null) return;
+			pooled.owner = null;
+			pooled.holder = null;
+		}
+		discard(pooled);
+	}
+
+	/**
+	 * @return Maximum number of connections leased out at the same time
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return Number of open connections, leased or idle
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return The most recent connection leased with a holder by the
+	 * 		thread and not yet being reclaimed, or <code>null</code>
+	 */
+	private PooledConnection findReclaimable(Thread thread) {
+		PooledConnection result = null;
+		for (PooledConnection pooled: leased.values()) {
+			if (pooled.owner != thread || pooled.holder == null || pooled.reclaiming) continue;
+			if (result == null || pooled.leaseNumber > result.leaseNumber) {
+				result = pooled;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return Number of connections currently leased out
+	 */
+	public synchronized int leasedCount() {
+		return leased.size();
+	}
+
+	/**
+	 * @return Number of open connections not currently leased out
+	 */
+	public synchronized int idleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * Closes all idle connections and stops the maintenance thread.
+	 * Connections currently leased out are closed when they are released.
+	 */
+	public void close() {
+		List<PooledConnection> toClose;
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			if (maintenanceAgent != null) {
+				maintenanceAgent.shutdown();
+			}
+			toClose = new ArrayList<PooledConnection>(idle);
+			idle.clear();
+			notifyAll();
+		}
+		for (PooledConnection pooled: toClose) {
+			discard(pooled);
+		}
+	}
+
+	/**
+	 * Closes idle connections that have exceeded the idle timeout, and
+	 * runs the keep-alive query on the others. Called periodically by
+	 * the maintenance thread.
+	 */
+	protected void maintain() {
+		List<PooledConnection> evict = new ArrayList<PooledConnection>();
+		List<PooledConnection> ping = new ArrayList<PooledConnection>();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			if (closed) return;
+			// Oldest connections are at the end of the deque
+			int keep = idle.size();
+			Iterator<PooledConnection> it = idle.descendingIterator();
+			while (it.hasNext()) {
+				PooledConnection pooled = it.next();
+				if (idleTimeoutMillis > 0 && keep > minSize &&
+						now - pooled.lastUsed > idleTimeoutMillis) {
+					it.remove();
+					evict.add(pooled);
+					keep--;
+				} else if (keepAlive) {
+					ping.add(pooled);
+				}
+			}
+		}
+		for (PooledConnection pooled: evict) {
+			log.debug("Closing idle connection");
+			discard(pooled);
+		}
+		for (PooledConnection pooled: ping) {
+			synchronized (this) {
+				// Take it out of circulation while we ping it, one at a
+				// time so that the others remain available; skip it if
+				// it has been leased out in the meantime
+				if (closed || !idle.remove(pooled)) continue;
+			}
+			if (keepAlive(pooled)) {
+				synchronized (this) {
+					if (!closed) {
+						idle.addLast(pooled);
+						notifyAll();
+						continue;
+					}
+				}
+			}
+			discard(pooled);
+		}
+	}
+
+	private boolean isValid(PooledConnection pooled) {
+		try {
+			if (pooled.connection.isClosed()) return false;
+			if (System.currentTimeMillis() - pooled.lastUsed < VALIDATION_GRACE_MILLIS) {
+				return true;
+			}
+			return pooled.connection.isValid(VALIDATION_TIMEOUT);
+		} catch (SQLException ex) {
+			log.debug("Connection validation failed: " + ex.getMessage());
+			return false;
+		} catch (AbstractMethodError err) {
+			// Pre-JDBC 4 driver without isValid(); assume the best
+			return true;
+		}
+	}
+
+	private boolean keepAlive(PooledConnection pooled) {
+		try {
+			factory.keepAlive(pooled.connection);
+			return true;
+		} catch (SQLException ex) {
+			log.error("Keep alive connection test failed: " + ex.getMessage());
+			return false;
+		} catch (RuntimeException ex) {
+			log.error("Keep alive connection test failed: " + ex.getMessage());
+			return false;
+		}
+	}
+
+	private void discard(PooledConnection pooled) {
+		try {
+			if (pooled.statements != null) {
+				pooled.statements.clear();
+			}
+			pooled.connection.close();
+		} catch (SQLException ex) {
+			log.debug("Error while closing pooled connection: " + ex.getMessage());
+		} finally {
+			synchronized (this) {
+				size--;
+				notifyAll();
+			}
+		}
+	}
+
+	private class MaintenanceAgent extends Thread {
+		private final int interval;
+		private volatile boolean shutdown = false;
+
+		/**
+		 * @param interval in seconds
+		 */
+		MaintenanceAgent(int interval) {
+			super("d2rq-connection-pool");
+			this.interval = interval;
+			setDaemon(true);
+		}
+
+		public void run() {
+			while (!shutdown) {
+				try { Thread.sleep(interval * 1000L); }
+				catch (InterruptedException e) { if (shutdown) break; }
+				try {
+					maintain();
+				} catch (Throwable t) {
+					log.error("Connection pool maintenance failed: " + t.getMessage());
+				}
+			}
+			log.debug("Connection pool maintenance terminated.");
+		}
+
+		void shutdown() {
+			shutdown = true;
+			interrupt();
+		}
+	}
+}
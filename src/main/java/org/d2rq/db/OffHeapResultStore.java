@@ -0,0 +1,509 @@
+package org.d2rq.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.d2rq.D2RQException;
+import org.d2rq.db.schema.TableName;
+
+
+/**
+ * Second cache tier of a {@link ResultCache}, holding query results
+ * outside of the Java heap, either in direct {@link ByteBuffer}s or in
+ * memory-mapped temporary files. Results that are evicted from the heap
+ * tier, or are too large for it, end up here, so that they can be
+ * served again without a database round-trip and without adding to
+ * garbage collection pressure.
+ *
+ * Results are stored as a sequence of row batches. Each batch has its
+ * own dictionary of the distinct values in the batch, and the rows
+ * refer to values by their dictionary index. This keeps repetitive
+ * results, such as the class and type columns of inventory listings,
+ * small. Batches are decoded one at a time while a result is read.
+ * They are also encoded one at a time, straight into direct buffers
+ * or the temporary file, so only the current batch is held on the heap.
+ *
+ * Access is synchronized. The store is bounded by the encoded size of
+ * the results, and the least recently used results are dropped first.
+ * Memory of direct buffers is only returned once the buffers have been
+ * garbage collected; files are deleted when their result is dropped.
+ */
+public class OffHeapResultStore {
+	private final static Log log = LogFactory.getLog(OffHeapResultStore.class);
+
+	private final static int BATCH_SIZE = 1024;
+	private final static int NULL_VALUE = -1;
+
+	/**
+	 * Sizes of the direct buffers that hold a result, in bytes. Chunks
+	 * grow up to the maximum, so that small results stay small.
+	 */
+	private final static int MIN_CHUNK_SIZE = 4 * 1024;
+	private final static int MAX_CHUNK_SIZE = 1024 * 1024;
+
+	/**
+	 * A file is mapped in regions of at most this many bytes, because
+	 * a {@link MappedByteBuffer} is indexed by <code>int</code>.
+	 */
+	private final static long MAX_REGION_SIZE = Integer.MAX_VALUE;
+
+	private final long maxBytes;
+	private final long maxEntryBytes;
+	private final File directory;
+	private final long maxRegionBytes;
+	private final LinkedHashMap<String,Block> blocks =
+			new LinkedHashMap<String,Block>(16, 0.75f, true);
+	private long bytes = 0;
+
+	/**
+	 * @param maxBytes Maximum size of all encoded results, in bytes
+	 * @param maxEntryBytes Maximum size of a single encoded result, in bytes
+	 * @param directory Directory for memory-mapped files, or <code>null</code>
+	 * 		to use direct buffers
+	 */
+	public OffHeapResultStore(long maxBytes, long maxEntryBytes, File directory) {
+		this(maxBytes, maxEntryBytes, directory, MAX_REGION_SIZE);
+	}
+
+	/**
+	 * @param maxRegionBytes Maximum size of a mapped region of a file, in bytes
+	 */
+	OffHeapResultStore(long maxBytes, long maxEntryBytes, File directory, long maxRegionBytes) {
+		this.maxBytes = maxBytes;
+		this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+		this.directory = directory;
+		this.maxRegionBytes = maxRegionBytes;
+	}
+
+	/**
+	 * @return Maximum size of a single encoded result, in bytes
+	 */
+	public long getMaxEntryBytes() {
+		return maxEntryBytes;
+	}
+
+	/**
+	 * @return The rows of the result, decoded as they are read, or
+	 * 		<code>null</code> if the result is not in the store
+	 */
+	public synchronized Iterator<String[]> get(String key) {
+		Block block = blocks.get(key);
+		if (block == null) return null;
+		ByteBuffer[] buffers = new ByteBuffer[block.buffers.length];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = block.buffers[i].duplicate();
+		}
+		return new BatchIterator(buffers);
+	}
+
+	/**
+	 * @return An encoder that writes into a temporary file or direct
+	 * 		buffers for this store
+	 */
+	public Encoder encoder() {
+		return new Encoder(directory, maxRegionBytes);
+	}
+
+	/**
+	 * @return The time the result was first read from the database,
+	 * 		or 0 if it is not in the store
+	 */
+	public synchronized long getCreated(String key) {
+		Block block = blocks.get(key);
+		return block == null ? 0 : block.created;
+	}
+
+	/**
+	 * Stores an encoded result, replacing any previous result for the key.
+	 * Results larger than the per-entry limit are discarded.
+	 *
+	 * @param encoded An encoder from {@link #encoder()}; not to be used afterwards
+	 * @param tables The tables read by the query, or <code>null</code> if unknown
+	 * @param created The time the result was read from the database
+	 */
+	public synchronized void put(String key, Encoder encoded,
+			Set<TableName> tables, long created) {
+		ByteBuffer[] buffers = encoded.finish();
+		if (buffers == null) return;
+		if (encoded.size() > maxEntryBytes) {
+			encoded.discard();
+			return;
+		}
+		remove(key);
+		long size = encoded.size();
+		blocks.put(key, new Block(buffers, size, encoded.file, tables, created));
+		bytes += size;
+		Iterator<Block> it = blocks.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			Block eldest = it.next();
+			it.remove();
+			drop(eldest);
+		}
+	}
+
+	/**
+	 * Removes the results whose queries read any of the tables.
+	 *
+	 * @param tables Changed tables, or <code>null</code> to remove all results
+	 */
+	public synchronized void invalidate(Collection<TableName> tables) {
+		if (tables != null && tables.isEmpty()) return;
+		Iterator<Block> it = blocks.values().iterator();
+		while (it.hasNext()) {
+			Block block = it.next();
+			if (tables == null || block.tables == null
+					|| !Collections.disjoint(block.tables, tables)) {
+				it.remove();
+				drop(block);
+			}
+		}
+	}
+
+	public synchronized void remove(String key) {
+		Block block = blocks.remove(key);
+		if (block != null) {
+			drop(block);
+		}
+	}
+
+	/**
+	 * Removes all results and deletes their files.
+	 */
+	public synchronized void clear() {
+		invalidate(null);
+	}
+
+	public synchronized int size() {
+		return blocks.size();
+	}
+
+	/**
+	 * @return Encoded size of all stored results, in bytes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "OffHeapResultStore(entries=" + blocks.size() + ", bytes=" + bytes +
+				(directory == null ? "" : ", directory=" + directory) + ")";
+	}
+
+	private void drop(Block block) {
+		bytes -= block.size;
+		if (block.file != null && !block.file.delete()) {
+			block.file.deleteOnExit();
+		}
+	}
+
+	private static class Block {
+		private final ByteBuffer[] buffers;
+		private final long size;
+		private final File file;
+		private final Set<TableName> tables;
+		private final long created;
+		Block(ByteBuffer[] buffers, long size, File file, Set<TableName> tables, long created) {
+			this.buffers = buffers;
+			this.size = size;
+			this.file = file;
+			this.tables = tables;
+			this.created = created;
+		}
+	}
+
+	/**
+	 * Encodes rows into dictionary-encoded batches, which are appended
+	 * to a temporary file or to a list of direct buffers as soon as they
+	 * are complete. Rows can be added one at a time while a result is
+	 * read. An encoder that is not handed to
+	 * {@link OffHeapResultStore#put(String, Encoder, Set, long)} must be
+	 * discarded, so that its file is deleted.
+	 *
+	 * A file is mapped in several regions if it is too large for one.
+	 * Like chunks, regions end at batch boundaries.
+	 */
+	public static class Encoder {
+		private final File directory;
+		private final long maxRegionBytes;
+		private final List<String[]> batch = new ArrayList<String[]>(BATCH_SIZE);
+		private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+		private final List<Long> regionStarts = new ArrayList<Long>();
+		private File file = null;
+		private RandomAccessFile raf = null;
+		private ByteBuffer scratch = null;
+		private int columns = -1;
+		private long size = 0;
+		private boolean failed = false;
+
+		private Encoder(File directory, long maxRegionBytes) {
+			this.directory = directory;
+			this.maxRegionBytes = maxRegionBytes;
+		}
+
+		/**
+		 * @return <code>false</code> if the rows could not be written,
+		 * 		in which case the encoder is discarded
+		 */
+		public boolean add(String[] row) {
+			if (failed) return false;
+			if (columns == -1) {
+				columns = row.length;
+			} else if (columns != row.length) {
+				throw new IllegalArgumentException("Expected " + columns + " values, got " + row.length);
+			}
+			batch.add(row);
+			if (batch.size() == BATCH_SIZE) {
+				flush();
+			}
+			return !failed;
+		}
+
+		/**
+		 * @return Size of the rows encoded so far, in bytes, not
+		 * 		counting the current batch
+		 */
+		public long size() {
+			return size;
+		}
+
+		/**
+		 * Releases the buffers and deletes the file.
+		 */
+		public void discard() {
+			failed = true;
+			batch.clear();
+			chunks.clear();
+			scratch = null;
+			closeFile();
+			if (file != null && !file.delete()) {
+				file.deleteOnExit();
+			}
+			file = null;
+		}
+
+		/**
+		 * Writes the last batch and makes the encoded rows readable.
+		 *
+		 * @return Read-only buffers holding the batches, or
+		 * 		<code>null</code> if the rows could not be written
+		 */
+		ByteBuffer[] finish() {
+			flush();
+			if (failed) return null;
+			if (raf == null) {
+				ByteBuffer[] result = new ByteBuffer[chunks.size()];
+				for (int i = 0; i < result.length; i++) {
+					ByteBuffer chunk = chunks.get(i);
+					chunk.flip();
+					result[i] = chunk.asReadOnlyBuffer();
+				}
+				chunks.clear();
+				return result;
+			}
+			try {
+				// The mappings stay valid after the file is closed
+				ByteBuffer[] result = new ByteBuffer[regionStarts.size()];
+				for (int i = 0; i < result.length; i++) {
+					long start = regionStarts.get(i);
+					long end = i + 1 < result.length ? regionStarts.get(i + 1) : size;
+					result[i] = raf.getChannel().map(
+							FileChannel.MapMode.READ_ONLY, start, end - start);
+				}
+				closeFile();
+				return result;
+			} catch (IOException ex) {
+				log.warn("Failed to spill query result: " + ex.getMessage());
+				discard();
+				return null;
+			} catch (RuntimeException ex) {
+				log.warn("Failed to spill query result: " + ex);
+				discard();
+				return null;
+			}
+		}
+
+		/**
+		 * Writes a batch: row count, column count, dictionary size,
+		 * the dictionary's values, and the dictionary indexes of the rows.
+		 */
+		private void flush() {
+			if (batch.isEmpty() || failed) return;
+			Map<String,Integer> dictionary = new HashMap<String,Integer>();
+			List<byte[]> values = new ArrayList<byte[]>();
+			int[] indexes = new int[batch.size() * columns];
+			int batchBytes = 12 + 4 * indexes.length;
+			int i = 0;
+			try {
+				for (String[] row: batch) {
+					for (String value: row) {
+						if (value == null) {
+							indexes[i++] = NULL_VALUE;
+							continue;
+						}
+						Integer index = dictionary.get(value);
+						if (index == null) {
+							index = values.size();
+							dictionary.put(value, index);
+							byte[] utf8 = value.getBytes("UTF-8");
+							values.add(utf8);
+							batchBytes += 4 + utf8.length;
+						}
+						indexes[i++] = index;
+					}
+				}
+			} catch (IOException ex) {
+				// UTF-8 is always supported
+				throw new D2RQException(ex);
+			}
+			try {
+				if (directory != null && (regionStarts.isEmpty() || size + batchBytes
+						- regionStarts.get(regionStarts.size() - 1) > maxRegionBytes)) {
+					regionStarts.add(size);
+				}
+				ByteBuffer out = reserve(batchBytes);
+				out.putInt(batch.size());
+				out.putInt(columns);
+				out.putInt(values.size());
+				for (byte[] utf8: values) {
+					out.putInt(utf8.length);
+					out.put(utf8);
+				}
+				for (int index: indexes) {
+					out.putInt(index);
+				}
+				if (raf != null) {
+					out.flip();
+					while (out.hasRemaining()) {
+						raf.getChannel().write(out);
+					}
+				}
+				size += batchBytes;
+				batch.clear();
+			} catch (IOException ex) {
+				log.warn("Failed to spill query result: " + ex.getMessage());
+				discard();
+			} catch (RuntimeException ex) {
+				log.warn("Failed to spill query result: " + ex);
+				discard();
+			} catch (OutOfMemoryError err) {
+				// Direct memory is exhausted; the result stays uncached
+				log.warn("Failed to spill query result: " + err.getMessage());
+				discard();
+			}
+		}
+
+		/**
+		 * @return A buffer with room for the bytes: the current chunk,
+		 * 		a new chunk, or a scratch buffer for the file
+		 */
+		private ByteBuffer reserve(int bytes) throws IOException {
+			if (directory != null) {
+				if (raf == null) {
+					file = File.createTempFile("d2rq-result", ".bin", directory);
+					raf = new RandomAccessFile(file, "rw");
+				}
+				if (scratch == null || scratch.capacity() < bytes) {
+					scratch = ByteBuffer.allocateDirect(Math.max(bytes, MIN_CHUNK_SIZE));
+				}
+				scratch.clear();
+				return scratch;
+			}
+			ByteBuffer last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+			if (last != null && last.remaining() >= bytes) return last;
+			// Batches don't span chunks, so each chunk can be decoded by itself
+			int chunkSize = last == null ? MIN_CHUNK_SIZE : Math.min(2 * last.capacity(), MAX_CHUNK_SIZE);
+			ByteBuffer chunk = ByteBuffer.allocateDirect(Math.max(bytes, chunkSize));
+			chunks.add(chunk);
+			return chunk;
+		}
+
+		private void closeFile() {
+			if (raf == null) return;
+			try {
+				raf.close();
+			} catch (IOException ex) {
+				log.warn("Failed to close " + file + ": " + ex.getMessage());
+			}
+			raf = null;
+		}
+	}
+
+	/**
+	 * Decodes one batch at a time from a sequence of buffers.
+	 */
+	private static class BatchIterator implements Iterator<String[]> {
+		private final ByteBuffer[] buffers;
+		private int current = 0;
+		private String[][] rows = new String[0][];
+		private int position = 0;
+
+		BatchIterator(ByteBuffer[] buffers) {
+			this.buffers = buffers;
+		}
+
+		public boolean hasNext() {
+			while (position == rows.length) {
+				while (current < buffers.length && !buffers[current].hasRemaining()) {
+					current++;
+				}
+				if (current == buffers.length) return false;
+				readBatch(buffers[current]);
+			}
+			return true;
+		}
+
+		public String[] next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return rows[position++];
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void readBatch(ByteBuffer buffer) {
+			int rowCount = buffer.getInt();
+			int columns = buffer.getInt();
+			String[] dictionary = new String[buffer.getInt()];
+			try {
+				for (int i = 0; i < dictionary.length; i++) {
+					byte[] utf8 = new byte[buffer.getInt()];
+					buffer.get(utf8);
+					dictionary[i] = new String(utf8, "UTF-8");
+				}
+			} catch (IOException ex) {
+				// UTF-8 is always supported
+				throw new D2RQException(ex);
+			}
+			rows = new String[rowCount][];
+			for (int r = 0; r < rowCount; r++) {
+				String[] row = new String[columns];
+				for (int c = 0; c < columns; c++) {
+					int index = buffer.getInt();
+					row[c] = index == NULL_VALUE ? null : dictionary[index];
+				}
+				rows[r] = row;
+			}
+			position = 0;
+		}
+	}
+}
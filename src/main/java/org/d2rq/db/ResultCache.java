@@ -0,0 +1,453 @@
+package org.d2rq.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.d2rq.db.SelectStatementBuilder.Parameter;
+import org.d2rq.db.schema.TableName;
+
+
+/**
+ * A thread-safe cache of SQL query results, keyed by the text of the
+ * query and the values of its bind parameters. Rows are stored as
+ * plain arrays of column values. Different code paths that generate
+ * the same SQL, for example for relations that only differ in their
+ * node makers, share the cached result.
+ *
+ * The cache is bounded by the estimated memory size of the cached
+ * values; the least recently used results are evicted first. Results
+ * larger than the per-entry limit are not cached. Entries can have a
+ * time to live.
+ *
+ * Entries record the tables their query reads, so that changes to
+ * some tables, reported by a {@link ChangeDetector} or through
+ * {@link #invalidate(Collection)}, drop just the affected entries.
+ * Results that are still being recorded when the cache is cleared or
+ * invalidated are not added afterwards.
+ *
+ * An {@link OffHeapResultStore} can be added as a second tier. Entries
+ * evicted from the heap for lack of space are moved there, and so are
+ * results that are too large for the heap but fit into the store.
+ * Results found in the store are decoded while they are read and are
+ * not moved back to the heap.
+ */
+public class ResultCache {
+	private final static Log log = LogFactory.getLog(ResultCache.class);
+
+	public final static long NO_TTL = 0;
+
+	/**
+	 * Rough per-object overheads, in bytes, for estimating the
+	 * memory used by rows
+	 */
+	private final static int ROW_OVERHEAD = 16;
+	private final static int VALUE_OVERHEAD = 40;
+
+	private final long maxWeight;
+	private final long maxEntryWeight;
+	private final long ttlMillis;
+	private final LinkedHashMap<String,Entry> entries =
+			new LinkedHashMap<String,Entry>(16, 0.75f, true);
+	private ChangeDetector changeDetector = null;
+	private OffHeapResultStore spillStore = null;
+	private long weight = 0;
+	private long generation = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+	private long abandoned = 0;
+	private long spillHits = 0;
+	private long spilled = 0;
+
+	/**
+	 * @param maxWeight Estimated maximum size of all cached rows, in bytes
+	 * @param maxEntryWeight Estimated maximum size of a single result, in bytes
+	 * @param ttlMillis Time to live of an entry, or {@link #NO_TTL}
+	 */
+	public ResultCache(long maxWeight, long maxEntryWeight, long ttlMillis) {
+		this.maxWeight = maxWeight;
+		this.maxEntryWeight = Math.min(maxEntryWeight, maxWeight);
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * @param detector Is asked for changed tables before each lookup,
+	 * 		or <code>null</code>
+	 */
+	public void setChangeDetector(ChangeDetector detector) {
+		this.changeDetector = detector;
+	}
+
+	/**
+	 * @param store Second tier for results that don't fit into the heap,
+	 * 		or <code>null</code>
+	 */
+	public synchronized void setSpillStore(OffHeapResultStore store) {
+		this.spillStore = store;
+	}
+
+	public synchronized OffHeapResultStore getSpillStore() {
+		return spillStore;
+	}
+
+	/**
+	 * @return The cache key for a query
+	 */
+	public static String key(String sql, List<Parameter> parameters) {
+		if (parameters.isEmpty()) return sql;
+		return sql + " -- " + parameters;
+	}
+
+	/**
+	 * @return The cached rows for the key, or <code>null</code>
+	 */
+	public Iterator<String[]> get(String key) {
+		ChangeDetector detector = changeDetector;
+		if (detector != null) {
+			invalidate(detector.getChangedTables());
+		}
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && isExpired(entry.created)) {
+				remove(key);
+				evictions++;
+				entry = null;
+			}
+			if (entry != null) {
+				hits++;
+				return entry.rows.iterator();
+			}
+			if (spillStore != null) {
+				if (isExpired(spillStore.getCreated(key))) {
+					spillStore.remove(key);
+				}
+				Iterator<String[]> result = spillStore.get(key);
+				if (result != null) {
+					hits++;
+					spillHits++;
+					return result;
+				}
+			}
+			misses++;
+			return null;
+		}
+	}
+
+	/**
+	 * Starts recording the result of a query that was not found in the cache.
+	 *
+	 * @param tables The tables read by the query, or <code>null</code> if unknown
+	 */
+	public Recording record(String key, Set<TableName> tables) {
+		return new Recording(key, tables, currentGeneration());
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0;
+		generation++;
+		if (spillStore != null) {
+			spillStore.clear();
+		}
+	}
+
+	/**
+	 * Removes the entries whose queries read any of the tables.
+	 *
+	 * @param tables Changed tables, or <code>null</code> to remove all entries
+	 */
+	public synchronized void invalidate(Collection<TableName> tables) {
+		if (tables == null) {
+			clear();
+			return;
+		}
+		if (tables.isEmpty()) return;
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.tables == null || !Collections.disjoint(entry.tables, tables)) {
+				weight -= entry.weight;
+				it.remove();
+				invalidations++;
+			}
+		}
+		generation++;
+		if (spillStore != null) {
+			spillStore.invalidate(tables);
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return Estimated size of all cached rows, in bytes
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * @return Number of entries removed because of size limits or their age
+	 */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * @return Number of entries removed because their tables changed
+	 */
+	public synchronized long getInvalidationCount() {
+		return invalidations;
+	}
+
+	/**
+	 * @return Number of hits answered from the spill store
+	 */
+	public synchronized long getSpillHitCount() {
+		return spillHits;
+	}
+
+	/**
+	 * @return Number of results moved to or stored in the spill store
+	 */
+	public synchronized long getSpilledCount() {
+		return spilled;
+	}
+
+	/**
+	 * @return Number of results not cached because they were too large
+	 */
+	public synchronized long getAbandonedCount() {
+		return abandoned;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ResultCache(entries=" + entries.size() + ", weight=" + weight +
+				", hits=" + hits + ", misses=" + misses +
+				", evictions=" + evictions + ", invalidations=" + invalidations +
+				", abandoned=" + abandoned + ", spillHits=" + spillHits +
+				", spilled=" + spilled + ")";
+	}
+
+	private synchronized long currentGeneration() {
+		return generation;
+	}
+
+	private void put(String key, List<String[]> rows,
+			long entryWeight, Set<TableName> tables, long entryGeneration) {
+		Map<String,Entry> evicted = new LinkedHashMap<String,Entry>();
+		synchronized (this) {
+			if (entryGeneration != generation) return;
+			remove(key);
+			if (spillStore != null) {
+				spillStore.remove(key);
+			}
+			entries.put(key, new Entry(Collections.unmodifiableList(rows),
+					entryWeight, tables, System.currentTimeMillis()));
+			weight += entryWeight;
+			Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator();
+			while (weight > maxWeight && it.hasNext()) {
+				Map.Entry<String,Entry> eldest = it.next();
+				weight -= eldest.getValue().weight;
+				it.remove();
+				evictions++;
+				if (spillStore != null) {
+					evicted.put(eldest.getKey(), eldest.getValue());
+				}
+			}
+		}
+		// Encoding can take a while, so it's done outside of the lock
+		OffHeapResultStore store = currentSpillStore();
+		for (String evictedKey: evicted.keySet()) {
+			Entry entry = evicted.get(evictedKey);
+			OffHeapResultStore.Encoder encoder = encode(store, entry.rows);
+			if (encoder == null) continue;
+			spill(evictedKey, encoder, entry.tables, entry.created, entryGeneration);
+		}
+	}
+
+	/**
+	 * @return The encoded rows, or <code>null</code> if they could not be written
+	 */
+	private OffHeapResultStore.Encoder encode(OffHeapResultStore store, List<String[]> rows) {
+		if (store == null) return null;
+		OffHeapResultStore.Encoder result = store.encoder();
+		for (String[] row: rows) {
+			if (!result.add(row)) return null;
+		}
+		return result;
+	}
+
+	private synchronized void spill(String key, OffHeapResultStore.Encoder encoded,
+			Set<TableName> tables, long created, long entryGeneration) {
+		if (spillStore == null || entryGeneration != generation) {
+			encoded.discard();
+			return;
+		}
+		spillStore.put(key, encoded, tables, created);
+		spilled++;
+	}
+
+	private synchronized OffHeapResultStore currentSpillStore() {
+		return spillStore;
+	}
+
+	private synchronized void abandon(String key) {
+		abandoned++;
+		log.debug("Result too large to cache: " + key);
+	}
+
+	private void remove(String key) {
+		Entry old = entries.remove(key);
+		if (old != null) {
+			weight -= old.weight;
+		}
+	}
+
+	private boolean isExpired(long created) {
+		return ttlMillis != NO_TTL &&
+				System.currentTimeMillis() - created > ttlMillis;
+	}
+
+	/**
+	 * @return Estimated memory size of a row, in bytes
+	 */
+	public static long estimateWeight(String[] row) {
+		long result = ROW_OVERHEAD + 8 * row.length;
+		for (String value: row) {
+			if (value != null) {
+				result += VALUE_OVERHEAD + 2 * value.length();
+			}
+		}
+		return result;
+	}
+
+	private static class Entry {
+		private final List<String[]> rows;
+		private final long weight;
+		private final Set<TableName> tables;
+		private final long created;
+		Entry(List<String[]> rows, long weight, Set<TableName> tables, long created) {
+			this.rows = rows;
+			this.weight = weight;
+			this.tables = tables;
+			this.created = created;
+		}
+	}
+
+	/**
+	 * Collects the rows of a query result as they are read, until the
+	 * result is complete or too large. Results that become too large
+	 * for the heap are encoded for the spill store from then on.
+	 */
+	public class Recording {
+		private final String key;
+		private final Set<TableName> tables;
+		private final long entryGeneration;
+		private final long created = System.currentTimeMillis();
+		private List<String[]> rows = new ArrayList<String[]>();
+		private long rowsWeight = 0;
+		private OffHeapResultStore.Encoder encoder = null;
+		private long maxEncodedBytes = 0;
+
+		private Recording(String key, Set<TableName> tables, long entryGeneration) {
+			this.key = key;
+			this.tables = tables;
+			this.entryGeneration = entryGeneration;
+		}
+
+		/**
+		 * @param row Column values; must not be modified afterwards
+		 * @return <code>false</code> if the result has become too large,
+		 * 		or could not be cached, and recording has stopped
+		 */
+		public boolean add(String[] row) {
+			try {
+				return record(row);
+			} catch (RuntimeException ex) {
+				// A failure to cache must not fail the query
+				log.warn("Failed to cache query result: " + ex);
+				discard();
+				return false;
+			}
+		}
+
+		private boolean record(String[] row) {
+			if (encoder != null) {
+				if (encoder.add(row) && encoder.size() <= maxEncodedBytes) return true;
+				encoder.discard();
+				encoder = null;
+				abandon(key);
+				return false;
+			}
+			if (rows == null) return false;
+			rowsWeight += estimateWeight(row);
+			if (rowsWeight <= maxEntryWeight) {
+				rows.add(row);
+				return true;
+			}
+			OffHeapResultStore store = currentSpillStore();
+			encoder = encode(store, rows);
+			rows = null;
+			if (encoder != null) {
+				maxEncodedBytes = store.getMaxEntryBytes();
+				return record(row);
+			}
+			abandon(key);
+			return false;
+		}
+
+		/**
+		 * Adds the recorded result to the cache. To be called once
+		 * all rows have been read.
+		 */
+		public void complete() {
+			try {
+				if (encoder != null) {
+					spill(key, encoder, tables, created, entryGeneration);
+					encoder = null;
+				}
+				if (rows == null) return;
+				put(key, rows, rowsWeight, tables, entryGeneration);
+				rows = null;
+			} catch (RuntimeException ex) {
+				log.warn("Failed to cache query result: " + ex);
+				discard();
+			}
+		}
+
+		/**
+		 * Drops the recorded rows, for a result that was not read to the end.
+		 */
+		public void discard() {
+			if (encoder != null) {
+				encoder.discard();
+				encoder = null;
+			}
+			rows = null;
+		}
+	}
+}
@@ -12,12 +12,16 @@ import java.util.Map;
 
 import org.d2rq.db.schema.ColumnList;
 import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.types.DataType;
 
 
 /**
  * A result row returned by a database query, presented as a
  * map from SELECT clause entries to string values.
  * 
+ * Values are stored in a flat array. The mapping from columns to
+ * array positions is shared among all rows of a result set.
+ *
  * @author Richard Cyganiak (richard@cyganiak.de)
  */
 public class ResultRow {
@@ -28,32 +32,56 @@ public class ResultRow {
 		return new ResultRow(Collections.singletonMap(column, value));
 	}
 	
+	/**
+	 * Reads a single row. When reading many rows from the same result set,
+	 * use a {@link Reader} instead.
+	 */
 	public static ResultRow fromResultSet(ResultSet resultSet, 
 			ColumnList columns, SQLConnection database) 
 	throws SQLException {
-		Map<ColumnName,String> result = new HashMap<ColumnName,String>();
-		ResultSetMetaData metaData = resultSet.getMetaData();
-		for (int i = 0; i < columns.size(); i++) {
-			ColumnName key = columns.get(i);
-			int jdbcType = metaData == null ? Integer.MIN_VALUE : metaData.getColumnType(i + 1);
-			String name = metaData == null ? "UNKNOWN" : metaData.getColumnTypeName(i + 1);
-			result.put(key, database.vendor().getDataType(jdbcType, name.toUpperCase(), -1).value(resultSet, i + 1));
-		}
-		return new ResultRow(result);
+		return new Reader(columns, database).read(resultSet);
 	}
 	
-	private final Map<ColumnName,String> columnsToValues;
+	private final Map<ColumnName,Integer> slots;
+	private final String[] values;
 	
 	public ResultRow(Map<ColumnName,String> columnsToValues) {
-		this.columnsToValues = columnsToValues;
+		if (columnsToValues == null) {
+			columnsToValues = Collections.emptyMap();
+		}
+		slots = new HashMap<ColumnName,Integer>();
+		values = new String[columnsToValues.size()];
+		int i = 0;
+		for (Map.Entry<ColumnName,String> entry: columnsToValues.entrySet()) {
+			slots.put(entry.getKey(), i);
+			values[i] = entry.getValue();
+			i++;
+		}
 	}
 	
+	/**
+	 * @param slots Maps columns to positions in the value array; not copied
+	 * @param values Column values; not copied
+	 */
+	ResultRow(Map<ColumnName,Integer> slots, String[] values) {
+		this.slots = slots;
+		this.values = values;
+	}
+
 	public String get(ColumnName column) {
-		return (String) this.columnsToValues.get(column);
+		Integer slot = slots.get(column);
+		return slot == null ? null : values[slot];
+	}
+
+	/**
+	 * @return The values, in the order of the slots; not copied
+	 */
+	String[] getValues() {
+		return values;
 	}
 
 	public String toString() {
-		List<ColumnName> columns = new ArrayList<ColumnName>(this.columnsToValues.keySet());
+		List<ColumnName> columns = new ArrayList<ColumnName>(this.slots.keySet());
 		Collections.sort(columns);
 		StringBuffer result = new StringBuffer("{");
 		Iterator<ColumnName> it = columns.iterator();
@@ -61,7 +89,7 @@ public class ResultRow {
 			ColumnName column = (ColumnName) it.next();
 			result.append(column.toString());
 			result.append(" => '");
-			result.append(this.columnsToValues.get(column));
+			result.append(get(column));
 			result.append("'");
 			if (it.hasNext()) {
 				result.append(", ");
@@ -70,4 +98,57 @@ public class ResultRow {
 		result.append("}");
 		return result.toString();
 	}
+
+	/**
+	 * Turns the rows of a JDBC result set into {@link ResultRow}s.
+	 * Column positions and the {@link DataType}s used for retrieving
+	 * values are determined once, from the metadata of the first
+	 * result set passed to {@link #read(ResultSet)}.
+	 */
+	public static class Reader {
+		private final ColumnList columns;
+		private final SQLConnection database;
+		private final Map<ColumnName,Integer> slots = new HashMap<ColumnName,Integer>();
+		private DataType[] dataTypes = null;
+
+		public Reader(ColumnList columns, SQLConnection database) {
+			this.columns = columns;
+			this.database = database;
+			for (int i = 0; i < columns.size(); i++) {
+				slots.put(columns.get(i), i);
+			}
+		}
+
+		/**
+		 * Reads the current row of the result set.
+		 */
+		public ResultRow read(ResultSet resultSet) throws SQLException {
+			if (dataTypes == null) {
+				dataTypes = resolveDataTypes(resultSet.getMetaData());
+			}
+			String[] values = new String[dataTypes.length];
+			for (int i = 0; i < dataTypes.length; i++) {
+				values[i] = dataTypes[i].value(resultSet, i + 1);
+			}
+			return new ResultRow(slots, values);
+		}
+
+		/**
+		 * Turns previously read values back into a row.
+		 */
+		ResultRow wrap(String[] values) {
+			return new ResultRow(slots, values);
+		}
+
+		private DataType[] resolveDataTypes(ResultSetMetaData metaData)
+		throws SQLException {
+			DataType[] result = new DataType[columns.size()];
+			for (int i = 0; i < columns.size(); i++) {
+				int jdbcType = metaData == null ? Integer.MIN_VALUE : metaData.getColumnType(i + 1);
+				String name = metaData == null ? "UNKNOWN" : metaData.getColumnTypeName(i + 1);
+				result[i] = database.vendor().getDataType(jdbcType, name.toUpperCase(), -1);
+			}
+			return result;
+		}
+	}
 }
@@ -1,5 +1,6 @@
 package org.d2rq.db;
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
@@ -21,13 +22,19 @@ import org.d2rq.db.schema.ColumnName;
 import org.d2rq.db.schema.Inspector;
 import org.d2rq.db.schema.TableDef;
 import org.d2rq.db.schema.TableName;
+import org.d2rq.db.schema.TableStatistics;
 import org.d2rq.db.vendor.Vendor;
 import org.d2rq.lang.Database;
 
  
 /**
+ * A connection to a database. Maintains one primary JDBC connection,
+ * used for schema inspection and similar housekeeping tasks, and a
+ * {@link ConnectionPool} from which query execution code leases
+ * connections via {@link #borrowConnection()}. This allows several
+ * queries to be in progress at the same time.
+ * 
  * TODO: Move all engine-specific code from here to {@link Vendor} and its implementations
- * TODO: Move keepalive agent into a separate class
  * 
  * @author Richard Cyganiak (richard@cyganiak.de)
  * @author kurtjx (http://github.com/kurtjx)
@@ -45,6 +52,29 @@ public class SQLConnection {
 	public static final int DEFAULT_KEEP_ALIVE_INTERVAL = 60*60; // hourly
 	public static final String KEEP_ALIVE_QUERY_PROPERTY = "keepAliveQuery"; // override default keep alive query
 	public static final String DEFAULT_KEEP_ALIVE_QUERY = "SELECT 1"; // may not work for some DBMS
+	public static final String POOL_MIN_SIZE_PROPERTY = "poolMinSize"; // idle connections kept open
+	public static final int DEFAULT_POOL_MIN_SIZE = 1;
+	public static final String POOL_MAX_SIZE_PROPERTY = "poolMaxSize"; // max concurrently leased connections
+	public static final int DEFAULT_POOL_MAX_SIZE = 8;
+	public static final String POOL_MAX_WAIT_PROPERTY = "poolMaxWait"; // value in seconds
+	public static final int DEFAULT_POOL_MAX_WAIT = 60;
+	public static final String POOL_IDLE_TIMEOUT_PROPERTY = "poolIdleTimeout"; // value in seconds, 0 disables
+	public static final int DEFAULT_POOL_IDLE_TIMEOUT = 10*60;
+	public static final String STATEMENT_CACHE_SIZE_PROPERTY = "statementCacheSize"; // per connection, 0 disables
+	public static final int DEFAULT_STATEMENT_CACHE_SIZE = 0;
+	public static final String PREFETCH_BATCH_SIZE_PROPERTY = "prefetchBatchSize"; // rows per batch, 0 disables
+	public static final int DEFAULT_PREFETCH_BATCH_SIZE = 0;
+	public static final String PREFETCH_QUEUE_SIZE_PROPERTY = "prefetchQueueSize"; // batches buffered ahead
+	public static final int DEFAULT_PREFETCH_QUEUE_SIZE = 4;
+	public static final String RESULT_CACHE_SIZE_PROPERTY = "resultCacheSize"; // value in kilobytes, 0 disables
+	public static final int DEFAULT_RESULT_CACHE_SIZE = 0;
+	public static final String RESULT_CACHE_TTL_PROPERTY = "resultCacheTTL"; // value in seconds, 0 for no expiry
+	public static final int DEFAULT_RESULT_CACHE_TTL = 0;
+	public static final String RESULT_CACHE_SPILL_SIZE_PROPERTY = "resultCacheSpillSize"; // value in kilobytes, 0 disables
+	public static final int DEFAULT_RESULT_CACHE_SPILL_SIZE = 0;
+	public static final String RESULT_CACHE_SPILL_DIRECTORY_PROPERTY = "resultCacheSpillDirectory"; // memory-mapped files instead of direct buffers
+	public static final String COUNT_ROWS_PROPERTY = "countRows"; // 1 counts rows of tables without index statistics, 0 disables
+	public static final int DEFAULT_COUNT_ROWS = 0;
 	
 	private final String jdbcURL;
 	private final String jdbcDriverClass;
@@ -56,68 +86,16 @@ public class SQLConnection {
 	private int defaultFetchSize = Database.NO_FETCH_SIZE;
 
 	private Connection connection = null;
+	private ConnectionPool pool = null;
+	private ResultCache resultCache = null;
+	private final int keepAliveInterval;
+	private final String keepAliveQuery;
 	private Inspector schemaInspector = null;
 	// Lazy initialization -- use vendor() for access!
 	private Vendor vendor = null;
 	private Map<ColumnName,Boolean> zerofillCache = 
 		new HashMap<ColumnName,Boolean>();
 
-	private class KeepAliveAgent extends Thread {
-		private final int interval;
-		private final String query;
-		volatile boolean shutdown = false;
-		
-		/**
-		 * @param interval in seconds
-		 * @param query the noop query to execute
-		 */
-		public KeepAliveAgent(int interval, String query) {
-			super("keepalive");
-			this.interval = interval;
-			this.query = query;
-		}
-		
-		public void run() {
-			Connection c;
-			Statement s = null;
-			Vendor v = null;
-			while (!shutdown) {
-				try { Thread.sleep(interval*1000); }
-				catch (InterruptedException e) { if (shutdown) break; }
-				
-				try {
-					if (log.isDebugEnabled())
-						log.debug("Keep alive agent is executing noop query '" + query + "'...");
-					c = connection();
-					v = vendor();
-					s = c.createStatement();
-
-					v.beforeExecute(c);
-					s.execute(query);
-					v.afterExecute(c);
-
-					v.beforeClose(c);
-					s.close();
-					v.afterClose(c);
-
-				} catch (Throwable e) { // may throw D2RQException at runtime
-					log.error("Keep alive connection test failed: " + e.getMessage());
-				} finally {
-					if (s != null) try { s.close(); } catch (Exception ignore) {}
-				}
-			}
-			
-			log.debug("Keep alive agent terminated.");
-		}
-		
-		public void shutdown() {
-			log.debug("shutting down");
-			shutdown = true;
-			this.interrupt();
-		}
-	};
-	
-	private final KeepAliveAgent keepAliveAgent;
 
 	public SQLConnection(String jdbcURL, String jdbcDriver, String username, String password) {
 		this(jdbcURL, jdbcDriver, username, password, null);
@@ -129,23 +107,29 @@ public class SQLConnection {
 		this.username = username;
 		this.password = password;
 		this.connectionProperties = connectionProperties;
-	
-		// create keep alive agent if enabled
 		if (connectionProperties != null && connectionProperties.containsKey(KEEP_ALIVE_PROPERTY)) {
-			int interval = DEFAULT_KEEP_ALIVE_INTERVAL;
-			String query = DEFAULT_KEEP_ALIVE_QUERY;
-			try {
-				interval = new Integer((String) connectionProperties.get(KEEP_ALIVE_PROPERTY)).intValue();
-				if (interval <= 0) interval = DEFAULT_KEEP_ALIVE_INTERVAL;
-			} catch (NumberFormatException ignore) {	} // use default
-			if (connectionProperties.containsKey(KEEP_ALIVE_QUERY_PROPERTY))
-				query = connectionProperties.getProperty(KEEP_ALIVE_QUERY_PROPERTY);
-			
-			this.keepAliveAgent = new KeepAliveAgent(interval, query);
-			this.keepAliveAgent.start();
-			log.debug("Keep alive agent is enabled (interval: " + interval + " seconds, noop query: '" + query + "').");
-		} else
-			this.keepAliveAgent = null;
+			int interval = getIntProperty(KEEP_ALIVE_PROPERTY, DEFAULT_KEEP_ALIVE_INTERVAL);
+			this.keepAliveInterval = interval <= 0 ? DEFAULT_KEEP_ALIVE_INTERVAL : interval;
+			this.keepAliveQuery = connectionProperties.containsKey(KEEP_ALIVE_QUERY_PROPERTY)
+					? connectionProperties.getProperty(KEEP_ALIVE_QUERY_PROPERTY)
+					: DEFAULT_KEEP_ALIVE_QUERY;
+		} else {
+			this.keepAliveInterval = 0;
+			this.keepAliveQuery = null;
+		}
+		long resultCacheSize = getIntProperty(RESULT_CACHE_SIZE_PROPERTY, DEFAULT_RESULT_CACHE_SIZE) * 1024L;
+		if (resultCacheSize > 0) {
+			// A single result may take up to an eighth of the cache
+			this.resultCache = new ResultCache(resultCacheSize, resultCacheSize / 8,
+					getIntProperty(RESULT_CACHE_TTL_PROPERTY, DEFAULT_RESULT_CACHE_TTL) * 1000L);
+			long spillSize = getIntProperty(RESULT_CACHE_SPILL_SIZE_PROPERTY, DEFAULT_RESULT_CACHE_SPILL_SIZE) * 1024L;
+			if (spillSize > 0) {
+				String directory = connectionProperties.getProperty(RESULT_CACHE_SPILL_DIRECTORY_PROPERTY);
+				// A single result may take up to a quarter of the spill store
+				resultCache.setSpillStore(new OffHeapResultStore(spillSize, spillSize / 4,
+						directory == null ? null : new File(directory)));
+			}
+		}
 	}
 
 	public String getJdbcURL() {
@@ -164,6 +148,10 @@ public class SQLConnection {
 		return password;
 	}
 	
+	/**
+	 * @return The primary JDBC connection. Use {@link #borrowConnection()}
+	 * 		instead for executing queries.
+	 */
 	public Connection connection() {
 		if (this.connection == null) {
 			connect();
@@ -171,6 +159,173 @@ public class SQLConnection {
 		return this.connection;
 	}
 	
+	/**
+	 * Leases a JDBC connection from the connection pool. The caller has
+	 * exclusive use of the connection until it is handed back using
+	 * {@link #releaseConnection(Connection)}. 
+	 * 
+	 * @return A JDBC connection
+	 * @throws D2RQException if no connection becomes available
+	 */
+	public Connection borrowConnection() {
+		return pool().borrow();
+	}
+	
+	/**
+	 * Like {@link #borrowConnection()}, but if the pool is exhausted,
+	 * a connection that the calling thread leased with a holder is
+	 * reclaimed from that holder. Used for queries that may be nested
+	 * more deeply than the pool is large.
+	 * 
+	 * @param holder Can hand the connection back early
+	 * @return A JDBC connection
+	 * @throws D2RQException if no connection becomes available
+	 * @see ConnectionPool#borrow(ConnectionPool.Holder)
+	 */
+	public Connection borrowConnection(ConnectionPool.Holder holder) {
+		return pool().borrow(holder);
+	}
+	
+	/**
+	 * Hands a connection obtained from {@link #borrowConnection()} back
+	 * to the pool.
+	 */
+	public void releaseConnection(Connection connection) {
+		pool().release(connection);
+	}
+	
+	/**
+	 * Hands a connection obtained from {@link #borrowConnection()} back
+	 * to the pool and closes it because it is suspected to be broken.
+	 */
+	public void invalidateConnection(Connection connection) {
+		pool().invalidate(connection);
+	}
+	
+	/**
+	 * @return <code>true</code> if queries should be generated with
+	 * 		bind parameters and executed as cached prepared statements
+	 */
+	public boolean usePreparedStatements() {
+		return jdbcURL != null && 
+				getIntProperty(STATEMENT_CACHE_SIZE_PROPERTY, DEFAULT_STATEMENT_CACHE_SIZE) > 0;
+	}
+	
+	/**
+	 * @return Number of rows per batch read ahead by a background thread
+	 * 		in {@link SQLIterator}; 0 if prefetching is disabled
+	 */
+	public int prefetchBatchSize() {
+		if (jdbcURL == null) return 0;
+		return Math.max(0, getIntProperty(PREFETCH_BATCH_SIZE_PROPERTY, DEFAULT_PREFETCH_BATCH_SIZE));
+	}
+	
+	/**
+	 * @return Maximum number of prefetched batches waiting to be consumed
+	 */
+	public int prefetchQueueSize() {
+		return Math.max(1, getIntProperty(PREFETCH_QUEUE_SIZE_PROPERTY, DEFAULT_PREFETCH_QUEUE_SIZE));
+	}
+	
+	/**
+	 * @return The cache of query results shared by all {@link SQLIterator}s
+	 * 		on this connection, or <code>null</code> if results are not cached
+	 */
+	public synchronized ResultCache getResultCache() {
+		return resultCache;
+	}
+	
+	/**
+	 * @param cache A cache of query results, or <code>null</code> to disable caching
+	 */
+	public synchronized void setResultCache(ResultCache cache) {
+		this.resultCache = cache;
+	}
+	
+	/**
+	 * @param connection A connection obtained from {@link #borrowConnection()}
+	 * @return The connection's prepared statement cache, or <code>null</code>
+	 * 		if prepared statements are not cached 
+	 */
+	public StatementCache getStatementCache(Connection connection) {
+		return pool().getStatementCache(connection);
+	}
+	
+	/**
+	 * @return The pool of JDBC connections used for query execution
+	 */
+	public synchronized ConnectionPool pool() {
+		if (pool == null) {
+			int idleTimeout = getIntProperty(POOL_IDLE_TIMEOUT_PROPERTY, DEFAULT_POOL_IDLE_TIMEOUT);
+			pool = new ConnectionPool(new ConnectionPool.ConnectionFactory() {
+				public Connection open() {
+					return createConnection();
+				}
+				public void keepAlive(Connection c) throws SQLException {
+					executeKeepAliveQuery(c);
+				}
+			}, getIntProperty(POOL_MIN_SIZE_PROPERTY, DEFAULT_POOL_MIN_SIZE),
+					getIntProperty(POOL_MAX_SIZE_PROPERTY, DEFAULT_POOL_MAX_SIZE),
+					getIntProperty(POOL_MAX_WAIT_PROPERTY, DEFAULT_POOL_MAX_WAIT) * 1000L,
+					idleTimeout * 1000L, keepAliveQuery != null) {
+				@Override
+				protected void maintain() {
+					super.maintain();
+					keepPrimaryConnectionAlive();
+				}
+			};
+			pool.setStatementCacheSize(getIntProperty(
+					STATEMENT_CACHE_SIZE_PROPERTY, DEFAULT_STATEMENT_CACHE_SIZE));
+			// Run often enough for both keep-alive and idle eviction
+			if (keepAliveQuery != null) {
+				pool.startMaintenance(idleTimeout > 0
+						? Math.min(keepAliveInterval, idleTimeout) : keepAliveInterval);
+			} else if (idleTimeout > 0) {
+				pool.startMaintenance(idleTimeout);
+			}
+		}
+		return pool;
+	}
+	
+	private int getIntProperty(String key, int defaultValue) {
+		if (connectionProperties == null || !connectionProperties.containsKey(key)) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(connectionProperties.getProperty(key).trim());
+		} catch (NumberFormatException ignore) {
+			return defaultValue;
+		}
+	}
+	
+	private void keepPrimaryConnectionAlive() {
+		Connection c;
+		synchronized (this) {
+			c = connection;
+		}
+		if (keepAliveQuery == null || c == null) return;
+		try {
+			executeKeepAliveQuery(c);
+		} catch (Throwable e) { // may throw D2RQException at runtime
+			log.error("Keep alive connection test failed: " + e.getMessage());
+		}
+	}
+	
+	private void executeKeepAliveQuery(Connection c) throws SQLException {
+		if (log.isDebugEnabled())
+			log.debug("Executing keep-alive query '" + keepAliveQuery + "'...");
+		Statement s = c.createStatement();
+		try {
+			vendor().beforeExecute(c);
+			s.execute(keepAliveQuery);
+			vendor().afterExecute(c);
+			vendor().beforeClose(c);
+		} finally {
+			s.close();
+		}
+		vendor().afterClose(c);
+	}
+	
 	private final Map<String,SQLOp> selectStatementCache =
 		new HashMap<String,SQLOp>();
 	private final Map<String,String> errorCache =
@@ -181,6 +336,8 @@ public class SQLConnection {
 		new HashMap<String,Collection<TableName>>();
 	private final Map<TableName,Boolean> isReferencedCache =
 		new HashMap<TableName,Boolean>();
+	private final Map<TableName,TableStatistics> statisticsCache =
+		new HashMap<TableName,TableStatistics>();
 	
 	private void cacheSelectStatement(String sql) {
 		if (selectStatementCache.containsKey(sql) || errorCache.containsKey(sql)) return;
@@ -253,6 +410,21 @@ public class SQLConnection {
 		return isReferencedCache.get(table);
 	}
 	
+	/**
+	 * Estimates the size of a table. Caches results, so changes to
+	 * the table are not reflected. Safe to call from concurrent
+	 * query planning.
+	 * 
+	 * @param table A table name
+	 * @return Size estimates for the table
+	 */
+	public synchronized TableStatistics getTableStatistics(TableName table) {
+		if (!statisticsCache.containsKey(table)) {
+			statisticsCache.put(table, metadata().getTableStatistics(table));
+		}
+		return statisticsCache.get(table);
+	}
+	
 	public int limit() {
 		return this.limit;
 	}
@@ -286,6 +458,30 @@ public class SQLConnection {
 	}
 
 	private void connect() {
+		this.connection = openConnection();
+		// Database-dependent initialization
+		initializeConnection(connection);
+		// Starts the maintenance thread, which also keeps this connection alive
+		if (keepAliveQuery != null) {
+			pool();
+		}
+	}
+
+	/**
+	 * Opens and initializes a new connection for the pool.
+	 */
+	private Connection createConnection() {
+		Connection result = openConnection();
+		try {
+			initializeConnection(result);
+		} catch (D2RQException ex) {
+			try { result.close(); } catch (SQLException ignore) {}
+			throw ex;
+		}
+		return result;
+	}
+	
+	private Connection openConnection() {
 		if (jdbcURL != null && !jdbcURL.toLowerCase().startsWith("jdbc:")) {
 			throw new D2RQException("Not a JDBC URL: " + jdbcURL, D2RQException.D2RQ_DB_CONNECTION_FAILED);
 		}
@@ -299,16 +495,18 @@ public class SQLConnection {
 							D2RQException.DATABASE_JDBCDRIVER_CLASS_NOT_FOUND);
 				}
 			}
-			this.connection = DriverManager.getConnection(this.jdbcURL, getConnectionProperties());
+			return DriverManager.getConnection(this.jdbcURL, getConnectionProperties());
 		} catch (SQLException ex) {
 			throw new D2RQException(
 					"Database connection to " + jdbcURL + " failed " +
 					"(user: " + username + "): " + ex.getMessage(), 
 					D2RQException.D2RQ_DB_CONNECTION_FAILED);
 		}
-		// Database-dependent initialization
+	}
+	
+	private void initializeConnection(Connection c) {
 		try {
-			vendor().initializeConnection(connection);
+			vendor().initializeConnection(c);
 		} catch (SQLException ex) {
 			throw new D2RQException(
 					"Database initialization failed: " + ex.getMessage(), 
@@ -344,6 +542,7 @@ public class SQLConnection {
 	private Inspector metadata() {
 		if (schemaInspector == null && jdbcURL != null) {
 			schemaInspector = new Inspector(connection(), vendor());
+			schemaInspector.setCountRows(getIntProperty(COUNT_ROWS_PROPERTY, DEFAULT_COUNT_ROWS) > 0);
 		}
 		return this.schemaInspector;
 	}
@@ -450,11 +649,15 @@ public class SQLConnection {
 	}
 	
 	/**
-	 * Closes the database connection and shuts down the keep alive agent.
+	 * Closes the primary database connection and the connection pool,
+	 * and empties the result cache. Pooled connections that are still
+	 * leased out are closed when they are released.
 	 */
 	public void close() {
-		if (keepAliveAgent != null)
-			keepAliveAgent.shutdown();
+		synchronized (this) {
+			if (pool != null) pool.close();
+			if (resultCache != null) resultCache.clear();
+		}
 		
 		if (connection != null) try {
 			log.info("Closing connection to " + jdbcURL);
@@ -1,15 +1,26 @@
 package org.d2rq.db;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.d2rq.D2RQException;
+import org.d2rq.db.SelectStatementBuilder.Parameter;
 import org.d2rq.db.schema.ColumnList;
+import org.d2rq.db.schema.TableName;
 import org.d2rq.lang.Database;
 
 import com.hp.hpl.jena.query.QueryCancelledException;
@@ -19,6 +30,25 @@ import com.hp.hpl.jena.util.iterator.ClosableIterator;
 /**
  * Executes an SQL query and delivers result rows as an iterator over {@link ResultRow}s.
  * The query is executed lazily. This class logs all executed SQL queries.
+ * 
+ * A JDBC connection is leased from the {@link SQLConnection}'s pool when
+ * the query is executed, and returned when the iterator is closed or
+ * exhausted. If the pool is exhausted, the most recent iterator of the
+ * same thread that still holds a connection reads the rest of its result
+ * into memory and hands its connection over, so that nested queries
+ * can't wait for themselves.
+ * 
+ * If the query has bind parameters, or if the connection has a
+ * {@link StatementCache}, then it is executed as a prepared statement.
+ * Cached statements are kept open for re-use when the iterator is closed.
+ * 
+ * If prefetching is enabled on the {@link SQLConnection}, a background
+ * thread reads rows from the result set into a bounded queue of batches
+ * while the consumer processes earlier rows.
+ * 
+ * If the {@link SQLConnection} has a {@link ResultCache}, a query
+ * whose result is cached is not sent to the database, and the rows
+ * of a result that is read to the end are added to the cache.
  *
  * @author Chris Bizer chris@bizer.de
  * @author Richard Cyganiak (richard@cyganiak.de)
@@ -26,20 +56,49 @@ import com.hp.hpl.jena.util.iterator.ClosableIterator;
 public class SQLIterator implements ClosableIterator<ResultRow> {
 	private final static Log log = LogFactory.getLog(SQLIterator.class);
 	private String sql;
-	private ColumnList columns;
+	private List<Parameter> parameters;
+	private ResultRow.Reader rowReader;
 	private SQLConnection database;
+	private Connection connection = null;
 	private Statement statement = null;
+	private StatementCache statementCache = null;
 	private ResultSet resultSet = null;
 	private ResultRow prefetchedRow = null;
 	private boolean queryExecuted = false;
 	private boolean explicitlyClosed = false;
-	private boolean cancelled = false;
+	private volatile boolean cancelled = false;
+	private Prefetcher prefetcher = null;
+	private Set<TableName> tables;
+	private Iterator<String[]> cachedRows = null;
+	private ResultCache.Recording recording = null;
 
 	public SQLIterator(String sql, ColumnList columns, SQLConnection db) {
+		this(sql, Collections.<Parameter>emptyList(), columns, db);
+    }
+
+	/**
+	 * @param sql A SQL query, possibly with <tt>?</tt> placeholders
+	 * @param parameters Values for the placeholders, in order
+	 */
+	public SQLIterator(String sql, List<Parameter> parameters, 
+			ColumnList columns, SQLConnection db) {
+		this(sql, parameters, columns, db, null);
+	}
+
+	/**
+	 * @param sql A SQL query, possibly with <tt>?</tt> placeholders
+	 * @param parameters Values for the placeholders, in order
+	 * @param tables The tables read by the query, for invalidating its
+	 * 		cached result; <code>null</code> if unknown
+	 */
+	public SQLIterator(String sql, List<Parameter> parameters, 
+			ColumnList columns, SQLConnection db, Set<TableName> tables) {
 		this.sql = sql;
-		this.columns = columns;
+		this.parameters = parameters;
 		this.database = db;
-    }
+		this.rowReader = new ResultRow.Reader(columns, db);
+		this.tables = tables;
+	}
 
 	public boolean hasNext() {
 		if (cancelled) {
@@ -74,23 +133,76 @@ public class SQLIterator implements ClosableIterator<ResultRow> {
 		return next();
 	}
 
-	private synchronized void tryFetchNextRow() {
+	private void tryFetchNextRow() {
+		if (cachedRows != null) {
+			prefetchedRow = cachedRows.hasNext() ? rowReader.wrap(cachedRows.next()) : null;
+			if (prefetchedRow == null) {
+				close();
+			}
+			return;
+		}
+		prefetchedRow = fetchNextRow();
+		if (prefetchedRow == null) {
+			close();
+		}
+	}
+
+	/**
+	 * Reads the next row from the database, and adds it to the
+	 * recording for the result cache.
+	 * @return The next row, or <code>null</code> at the end of the result set
+	 */
+	private ResultRow fetchNextRow() {
+		ResultRow row;
+		if (prefetcher != null) {
+			// Not synchronized, so that cancel() isn't blocked while we wait
+			row = prefetcher.take();
+		} else {
+			row = fetchNextRowFromResultSet();
+		}
+		if (recording != null) {
+			if (row == null) {
+				recording.complete();
+				recording = null;
+			} else if (!recording.add(row.getValues())) {
+				recording = null;
+			}
+		}
+		return row;
+	}
+
+	private synchronized ResultRow fetchNextRowFromResultSet() {
 	    if (this.resultSet == null) {
-	    	this.prefetchedRow = null;
-	    	return;
+	    	return null;
 	    }
 		try {
 			if (!this.resultSet.next()) {
 				this.resultSet.close();
 				this.resultSet = null;
-		    	this.prefetchedRow = null;
-		    	return;
+		    	return null;
 			}
-			prefetchedRow = ResultRow.fromResultSet(resultSet, columns, database);
+			return rowReader.read(resultSet);
 		} catch (SQLException ex) {
 			throw new D2RQException(ex);
 		}
 	}
+
+	/**
+	 * Reads the rest of the result into memory and hands the connection
+	 * back to the pool, so that a query nested inside this one can use it.
+	 * The iterator then delivers the remaining rows from memory.
+	 */
+	private void reclaimConnection() {
+		if (explicitlyClosed || this.connection == null) return;
+		log.debug("Reading rest of result into memory to free its connection");
+		List<String[]> rest = new ArrayList<String[]>();
+		ResultRow row;
+		while ((row = fetchNextRow()) != null) {
+			rest.add(row.getValues());
+		}
+		closeStatement();
+		cachedRows = rest.iterator();
+	}
 	
 	/**
 	 * Make sure the SQL result set is closed and freed. Will auto-close when the
@@ -100,47 +212,68 @@ public class SQLIterator implements ClosableIterator<ResultRow> {
 		if (explicitlyClosed) return;
 		log.debug("Closing SQLIterator");
 	    explicitlyClosed = true;
-	    
-	    /* JDBC 4+ requires manual closing of result sets and statements */
-	    if (this.resultSet != null) {
-			try {
-				this.resultSet.close();
-			} catch (SQLException ex) {
-				throw new D2RQException(ex.getMessage() + "; query was: " + this.sql);
-			}
+	    cachedRows = null;
+	    if (recording != null) {
+	    	// Only complete results are cached
+	    	recording.discard();
+	    	recording = null;
 	    }
-	    
-	    if (this.database != null) {
-			try {
-				this.database.vendor().beforeClose(this.database.connection());
-			} catch (SQLException ex) {
-				throw new D2RQException(ex.getMessage() + "; query was: " + this.sql);
-			}
-	    }
-	    if (this.statement != null) {
-			try {
-				this.statement.close();
-			} catch (SQLException ex) {
-				throw new D2RQException(ex.getMessage() + "; query was: " + this.sql);
-			}
+	    if (prefetcher != null) {
+	    	prefetcher.shutdown();
 	    }
+	    closeStatement();
+	}
 
-	    if (this.database != null) {
-			try {
-				this.database.vendor().afterClose(this.database.connection());
-			} catch (SQLException ex) {
-				throw new D2RQException(ex.getMessage() + "; query was: " + this.sql);
-			}
+	/**
+	 * Closes the result set, puts the statement back into the
+	 * statement cache or closes it, and releases the connection.
+	 */
+	private void closeStatement() {
+	    if (this.connection == null) return;
+	    
+	    try {
+	    	/* JDBC 4+ requires manual closing of result sets and statements */
+	    	if (this.resultSet != null) {
+	    		this.resultSet.close();
+	    		this.resultSet = null;
+	    	}
+	    	this.database.vendor().beforeClose(this.connection);
+	    	if (this.statement != null && this.statementCache != null) {
+	    		this.statementCache.put(sql, (PreparedStatement) this.statement);
+	    	} else if (this.statement != null) {
+	    		this.statement.close();
+	    	}
+	    	this.database.vendor().afterClose(this.connection);
+	    } catch (SQLException ex) {
+	    	releaseConnection(false);
+	    	throw new D2RQException(ex.getMessage() + "; query was: " + this.sql);
 	    }
+	    releaseConnection(true);
+	}
+
+	/**
+	 * Hands the leased connection back to the pool.
+	 * @param reusable If <code>false</code>, the connection is closed
+	 */
+	private synchronized void releaseConnection(boolean reusable) {
+		if (this.connection == null) return;
+		if (reusable) {
+			this.database.releaseConnection(this.connection);
+		} else {
+			this.database.invalidateConnection(this.connection);
+		}
+		this.connection = null;
+		this.statement = null;
+		this.statementCache = null;
 	}
 
 	public synchronized void cancel() {
 		cancelled = true;
 		if (statement != null) {
 			try {
-				database.vendor().beforeCancel(database.connection());
+				database.vendor().beforeCancel(connection);
 				statement.cancel();
-				database.vendor().afterCancel(database.connection());
+				database.vendor().afterCancel(connection);
 			} catch (SQLException ex) {
 				throw new RuntimeException(ex);
 			}
@@ -156,10 +289,46 @@ public class SQLIterator implements ClosableIterator<ResultRow> {
 	    	return;
 	    }
     	this.queryExecuted = true;
-    	log.info(sql);
+    	ResultCache resultCache = database.getResultCache();
+    	if (resultCache != null) {
+    		String key = ResultCache.key(sql, parameters);
+    		Iterator<String[]> rows = resultCache.get(key);
+    		if (rows != null) {
+    			log.debug("Result from cache: " + key);
+    			cachedRows = rows;
+    			return;
+    		}
+    		recording = resultCache.record(key, tables);
+    	}
+    	if (parameters.isEmpty()) {
+    		log.info(sql);
+    	} else {
+    		log.info(sql + " -- " + parameters);
+    	}
+    	Connection con = this.database.borrowConnection(new ConnectionPool.Holder() {
+    		public void reclaim() {
+    			reclaimConnection();
+    		}
+    	});
+    	StatementCache cache = this.database.getStatementCache(con);
+    	synchronized (this) {
+    		this.connection = con;
+    	}
         try {
-			Connection con = this.database.connection();
-			this.statement = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        	PreparedStatement prepared = null;
+        	if (cache != null || !parameters.isEmpty()) {
+        		prepared = (cache == null) ? null : cache.take(sql);
+        		if (prepared == null) {
+        			prepared = con.prepareStatement(sql, 
+        					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        		}
+        		synchronized (this) {
+        			this.statement = prepared;
+        			this.statementCache = cache;
+        		}
+        	} else {
+        		this.statement = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        	}
 			if (database.fetchSize() != Database.NO_FETCH_SIZE) {
 				try {
 					this.statement.setFetchSize(database.fetchSize());
@@ -168,11 +337,24 @@ public class SQLIterator implements ClosableIterator<ResultRow> {
 			}
 
 			database.vendor().beforeExecuteQuery(con);
-			this.resultSet = this.statement.executeQuery(this.sql);
+			if (prepared == null) {
+				this.resultSet = this.statement.executeQuery(this.sql);
+			} else {
+				for (int i = 0; i < parameters.size(); i++) {
+					parameters.get(i).bind(prepared, i + 1);
+				}
+				this.resultSet = prepared.executeQuery();
+			}
 			database.vendor().afterExecuteQuery(con);
 
 			log.debug("SQL result set created");
+			int batchSize = database.prefetchBatchSize();
+			if (batchSize > 0) {
+				prefetcher = new Prefetcher(batchSize, database.prefetchQueueSize());
+				prefetcher.start();
+			}
         } catch (SQLException ex) {
+        	closeQuietly();
         	if (cancelled) {
         		log.debug("SQL query execution cancelled", ex);
         		throw new QueryCancelledException();
@@ -180,4 +362,139 @@ public class SQLIterator implements ClosableIterator<ResultRow> {
         	throw new D2RQException(ex.getMessage() + ": " + this.sql);
         }
     }
+
+	/**
+	 * Cleans up after a failed query execution. The connection is
+	 * returned to the pool only if it still appears to be usable.
+	 */
+	private void closeQuietly() {
+		explicitlyClosed = true;
+		boolean reusable = true;
+		try {
+			if (this.resultSet != null) {
+				this.resultSet.close();
+				this.resultSet = null;
+			}
+			this.database.vendor().beforeClose(this.connection);
+			// Don't put a statement back into the cache that might be broken
+			this.statementCache = null;
+			if (this.statement != null) {
+				this.statement.close();
+			}
+			this.database.vendor().afterClose(this.connection);
+		} catch (SQLException ignore) {
+			reusable = false;
+		}
+		releaseConnection(reusable);
+    }
+
+	private final static List<ResultRow> END_OF_RESULTS = new ArrayList<ResultRow>();
+
+	/**
+	 * Drains the result set into a bounded queue of row batches on a
+	 * background thread. The end of the result set, and any error while
+	 * reading it, are signalled with an {@link #END_OF_RESULTS} marker.
+	 * The result set is only touched by this thread until it has finished.
+	 */
+	private class Prefetcher extends Thread {
+		private final int batchSize;
+		private final BlockingQueue<List<ResultRow>> queue;
+		private volatile boolean stopped = false;
+		private volatile RuntimeException error = null;
+		private List<ResultRow> current = Collections.emptyList();
+		private int position = 0;
+		private boolean exhausted = false;
+
+		Prefetcher(int batchSize, int queueSize) {
+			super("d2rq-prefetch");
+			this.batchSize = batchSize;
+			this.queue = new ArrayBlockingQueue<List<ResultRow>>(queueSize);
+			setDaemon(true);
+		}
+
+		public void run() {
+			try {
+				List<ResultRow> batch = new ArrayList<ResultRow>(batchSize);
+				while (!stopped && resultSet.next()) {
+					batch.add(rowReader.read(resultSet));
+					if (batch.size() == batchSize) {
+						if (!put(batch)) return;
+						batch = new ArrayList<ResultRow>(batchSize);
+					}
+				}
+				if (!batch.isEmpty()) {
+					put(batch);
+				}
+			} catch (SQLException ex) {
+				error = new D2RQException(ex.getMessage() + "; query was: " + sql);
+			} catch (RuntimeException ex) {
+				error = ex;
+			} catch (Error err) {
+				error = new D2RQException(err);
+				throw err;
+			} finally {
+				put(END_OF_RESULTS);
+			}
+		}
+
+		/**
+		 * @return <code>false</code> if the consumer has gone away
+		 */
+		private boolean put(List<ResultRow> batch) {
+			try {
+				while (!stopped) {
+					if (queue.offer(batch, 100, TimeUnit.MILLISECONDS)) return true;
+				}
+			} catch (InterruptedException ex) {
+				// Fall through
+			}
+			return false;
+		}
+
+		/**
+		 * Called on the consuming thread.
+		 * @return The next row, or <code>null</code> at the end of the result set
+		 */
+		ResultRow take() {
+			while (position == current.size()) {
+				if (exhausted) return null;
+				List<ResultRow> batch;
+				try {
+					batch = queue.take();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new QueryCancelledException();
+				}
+				if (batch == END_OF_RESULTS) {
+					exhausted = true;
+					if (error != null) {
+						shutdown();
+						closeQuietly();
+						if (cancelled) {
+							log.debug("SQL query execution cancelled", error);
+							throw new QueryCancelledException();
+						}
+						throw error;
+					}
+					return null;
+				}
+				current = batch;
+				position = 0;
+			}
+			return current.get(position++);
+		}
+
+		/**
+		 * Stops reading ahead and waits for the thread to finish.
+		 */
+		void shutdown() {
+			stopped = true;
+			queue.clear();
+			try {
+				join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
 }
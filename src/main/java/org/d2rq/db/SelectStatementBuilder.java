@@ -1,22 +1,31 @@
 package org.d2rq.db;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 import java.util.TreeMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.d2rq.D2RQException;
 import org.d2rq.db.expr.ColumnListEquality;
+import org.d2rq.db.expr.Constant;
 import org.d2rq.db.expr.Expression;
+import org.d2rq.db.expr.Expression.ConstantReplacer;
 import org.d2rq.db.op.AliasOp;
 import org.d2rq.db.op.DatabaseOp;
 import org.d2rq.db.op.DistinctOp;
 import org.d2rq.db.op.EmptyOp;
 import org.d2rq.db.op.ExtendOp;
+import org.d2rq.db.op.GroupOp;
 import org.d2rq.db.op.InnerJoinOp;
+import org.d2rq.db.op.LeftJoinOp;
 import org.d2rq.db.op.LimitOp;
 import org.d2rq.db.op.OpVisitor;
 import org.d2rq.db.op.OrderOp;
@@ -24,9 +33,14 @@ import org.d2rq.db.op.OrderOp.OrderSpec;
 import org.d2rq.db.op.SQLOp;
 import org.d2rq.db.op.SelectOp;
 import org.d2rq.db.op.TableOp;
+import org.d2rq.db.op.UnionOp;
+import org.d2rq.db.op.util.OpUtil;
+import org.d2rq.db.renamer.Renamer;
 import org.d2rq.db.schema.ColumnList;
 import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.schema.Identifier;
 import org.d2rq.db.schema.TableName;
+import org.d2rq.db.types.DataType;
 import org.d2rq.db.vendor.Vendor;
 
 
@@ -45,20 +59,54 @@ import org.d2rq.db.vendor.Vendor;
  * The list of SELECT clauses is not built while working the tree, but
  * computed in the end from the {@link DatabaseOp}'s column list.
  * 
+ * <code>DISTINCT</code> is left out where the rows are unique anyway,
+ * see {@link OpUtil#removeRedundantDistincts(DatabaseOp)}.
+ * 
+ * If bind parameters are enabled, then constants in WHERE clauses are
+ * replaced with <tt>?</tt> placeholders, and their values are available
+ * from {@link #getParameters()}. This way, queries that differ only in
+ * constant values result in identical SQL strings, which can be
+ * prepared once and re-executed. Constants whose datatype doesn't
+ * support binding are still inlined as literals.
+ * 
  * @author Richard Cyganiak (richard@cyganiak.de)
  */
 public class SelectStatementBuilder extends OpVisitor.Default {
 	private final static Log log = LogFactory.getLog(SelectStatementBuilder.class);
 	
+	/**
+	 * Delimits placeholders for bind parameters while the SQL string
+	 * is under construction. Sub-queries are built before the enclosing
+	 * query, so parameters are numbered in their final textual order
+	 * only once the whole string is done.
+	 */
+	private final static char PARAMETER_MARKER = '\u0000';
+	
+	private final static TableName UNION_TABLE = 
+			TableName.create(null, null, Identifier.createUndelimited("UNION_ALL"));
+	
 	private final DatabaseOp input;
 	private final Vendor vendor;
+	private final boolean useBindParameters;
 	private final Stack<SimpleQuery> queryStack = new Stack<SimpleQuery>();
+	private final List<Parameter> markedParameters = new ArrayList<Parameter>();
+	private List<Parameter> parameters = Collections.emptyList();
+	private String sql = null;
 	private boolean done = false;
 	
 	public SelectStatementBuilder(DatabaseOp input, Vendor vendor) {
+		this(input, vendor, false);
+	}
+	
+	/**
+	 * @param useBindParameters Replace constants with bind parameters?
+	 */
+	public SelectStatementBuilder(DatabaseOp input, Vendor vendor, 
+			boolean useBindParameters) {
 		super(true);
-		this.input = input;
+		this.input = OpUtil.removeRedundantDistincts(input);
 		this.vendor = vendor;
+		this.useBindParameters = useBindParameters;
 	}
 
 	private void run() {
@@ -70,8 +118,50 @@ public class SelectStatementBuilder extends OpVisitor.Default {
 	}
 	
 	public String getSQL() {
+		if (sql != null) return sql;
 		run();
-		return queryStack.peek().getSQL(input, vendor, input.getColumns());
+		String rawSQL = queryStack.peek().getSQL(input, vendor, input.getColumns());
+		if (markedParameters.isEmpty()) {
+			sql = rawSQL;
+		} else {
+			replaceParameterMarkers(rawSQL);
+		}
+		return sql;
+	}
+
+	/**
+	 * @return Values for the <tt>?</tt> placeholders in {@link #getSQL()},
+	 * 		in order; empty if bind parameters are not used
+	 */
+	public List<Parameter> getParameters() {
+		getSQL();
+		return parameters;
+	}
+	
+	private void replaceParameterMarkers(String rawSQL) {
+		StringBuilder result = new StringBuilder(rawSQL.length());
+		List<Parameter> ordered = new ArrayList<Parameter>(markedParameters.size());
+		int pos = 0;
+		try {
+			while (true) {
+				int start = rawSQL.indexOf(PARAMETER_MARKER, pos);
+				if (start == -1) break;
+				int end = rawSQL.indexOf(PARAMETER_MARKER, start + 1);
+				result.append(rawSQL, pos, start);
+				result.append('?');
+				ordered.add(markedParameters.get(
+						Integer.parseInt(rawSQL.substring(start + 1, end))));
+				pos = end + 1;
+			}
+		} catch (RuntimeException ex) {
+			// Marker character in some raw SQL fragment; play it safe
+			log.warn("Cannot use bind parameters, falling back to literals: " + ex.getMessage());
+			sql = new SelectStatementBuilder(input, vendor, false).getSQL();
+			return;
+		}
+		result.append(rawSQL, pos, rawSQL.length());
+		sql = result.toString();
+		parameters = ordered;
 	}
 
 	public ColumnList getColumns() {
@@ -97,8 +187,13 @@ public class SelectStatementBuilder extends OpVisitor.Default {
 
 	@Override
 	public void visitLeave(ExtendOp table) {
-		queryStack.peek().extensions.put(
-				ColumnName.create(table.getNewColumn()), table.getExpression());
+		// Aliases can't be referenced in the same SELECT clause
+		Expression expression = table.getExpression();
+		Map<ColumnName,Expression> extensions = queryStack.peek().extensions;
+		for (ColumnName col: extensions.keySet()) {
+			expression = expression.substitute(col, extensions.get(col));
+		}
+		extensions.put(ColumnName.create(table.getNewColumn()), expression);
 	}
 	
 	@Override
@@ -108,6 +203,7 @@ public class SelectStatementBuilder extends OpVisitor.Default {
 		} else {
 			queryStack.peek().limit = LimitOp.combineLimits(queryStack.peek().limit, table.getLimit());
 		}
+		queryStack.peek().offset += table.getOffset();
 	}
 	
 	@Override
@@ -117,7 +213,13 @@ public class SelectStatementBuilder extends OpVisitor.Default {
 
 	@Override
 	public void visitLeave(SelectOp table) {
-		queryStack.peek().whereClause = queryStack.peek().whereClause.and(table.getCondition());
+		if (queryStack.peek().groupBy != null) {
+			queryStack.peek().havingClause = queryStack.peek().havingClause.and(
+					bindConstants(table.getCondition()));
+			return;
+		}
+		queryStack.peek().whereClause = queryStack.peek().whereClause.and(
+				bindConstants(table.getCondition()));
 	}
 	
 	@Override
@@ -130,6 +232,22 @@ public class SelectStatementBuilder extends OpVisitor.Default {
 		queryStack.peek().orderByClauses = newOrder;
 	}
 
+	@Override
+	public void visitLeave(GroupOp table) {
+		SimpleQuery query = queryStack.peek();
+		if (query.distinct || query.limit != LimitOp.NO_LIMIT || query.offset > 0 
+				|| query.groupBy != null) {
+			throw new D2RQException("Cannot group in the same query: " + table.getWrapped());
+		}
+		// Ordering before grouping has no effect
+		query.orderByClauses = new ArrayList<OrderSpec>();
+		query.groupBy = table.getGroupBy().asList();
+		for (Identifier column: table.getAggregates().keySet()) {
+			query.extensions.put(ColumnName.create(column), 
+					table.getAggregates().get(column));
+		}
+	}
+
 	@Override
 	public void visitLeave(EmptyOp table) {
 		queryStack.peek().whereClause = Expression.FALSE;
@@ -162,6 +280,146 @@ public class SelectStatementBuilder extends OpVisitor.Default {
 		}
 	}
 	
+	/**
+	 * Both sides of a left join are collected in a temporary
+	 * <code>SimpleQuery</code>, and then combined into a single
+	 * FROM clause of the form "L LEFT OUTER JOIN R ON ...".
+	 */
+	@Override
+	public boolean visitEnter(LeftJoinOp table) {
+		queryStack.push(new SimpleQuery());
+		return true;
+	}
+	
+	@Override
+	public void visitLeave(LeftJoinOp table) {
+		SimpleQuery sides = queryStack.pop();
+		TableName rightName = table.getRight().getTableName();
+		StringBuilder result = new StringBuilder();
+		if (sides.rawFromClauses.isEmpty()) {
+			for (TableName t: sides.fromClauses.keySet()) {
+				if (t.equals(rightName)) continue;
+				result.append(toFromClause(t, sides.fromClauses.get(t)));
+			}
+		} else {
+			result.append(sides.rawFromClauses.get(0));
+		}
+		result.append(" LEFT OUTER JOIN ");
+		result.append(toFromClause(rightName, sides.fromClauses.get(rightName)));
+		result.append(" ON ");
+		Expression condition = table.getCondition();
+		if (condition.isTrue()) {
+			result.append("1=1");
+		} else {
+			result.append(bindConstants(condition).toSQL(table, vendor));
+		}
+		queryStack.peek().rawFromClauses.add(result.toString());
+	}
+	
+	/**
+	 * Each branch is built as a separate query, and the branches are
+	 * combined into a single derived table of the form
+	 * "(SELECT ... UNION ALL SELECT ...) AS UNION_ALL".
+	 */
+	@Override
+	public boolean visitEnter(UnionOp table) {
+		return false;
+	}
+	
+	@Override
+	public void visitLeave(UnionOp table) {
+		StringBuilder result = new StringBuilder("(");
+		for (int i = 0; i < table.getBranches().size(); i++) {
+			DatabaseOp branch = table.getRenamedBranch(i);
+			queryStack.push(new SimpleQuery());
+			branch.accept(this);
+			if (i > 0) {
+				result.append(" UNION ALL ");
+			}
+			result.append(queryStack.pop().getSQL(branch, vendor, branch.getColumns()));
+		}
+		result.append(")");
+		queryStack.peek().fromClauses.put(UNION_TABLE, result.toString());
+	}
+	
+	private String toFromClause(TableName table, String sql) {
+		if (sql == null) return vendor.toString(table);
+		return sql + vendor.getAliasOperator() + vendor.toString(table);
+	}
+	
+	private Expression bindConstants(Expression expression) {
+		if (!useBindParameters) return expression;
+		return expression.replaceConstants(new ConstantReplacer() {
+			public Expression replace(Constant constant) {
+				return new BindParameter(constant);
+			}
+		});
+	}
+	
+	/**
+	 * The value of a bind parameter in a generated SQL statement.
+	 */
+	public static class Parameter {
+		private final String value;
+		private final DataType dataType;
+		
+		public Parameter(String value, DataType dataType) {
+			this.value = value;
+			this.dataType = dataType;
+		}
+		
+		public String getValue() {
+			return value;
+		}
+		
+		public DataType getDataType() {
+			return dataType;
+		}
+		
+		/**
+		 * @param index The parameter index; leftmost parameter is 1
+		 */
+		public void bind(PreparedStatement statement, int index) throws SQLException {
+			dataType.bindParameter(statement, index, value);
+		}
+		
+		public String toString() {
+			return "'" + value + "'@" + dataType;
+		}
+	}
+	
+	/**
+	 * Stands in for a {@link Constant} in a WHERE clause. When turned
+	 * into SQL, it registers the constant's value as a parameter and
+	 * produces a marker that is later replaced with <tt>?</tt>.
+	 */
+	private class BindParameter extends Expression {
+		private final Constant constant;
+		BindParameter(Constant constant) {
+			this.constant = constant;
+		}
+		public boolean isTrue() { return false; }
+		public boolean isFalse() { return false; }
+		public boolean isConstant() { return true; }
+		public boolean isConstantColumn(ColumnName column, boolean constIfTrue, 
+				boolean constIfFalse, boolean constIfConstantValue) { return false; }
+		public Set<ColumnName> getColumns() { return Collections.<ColumnName>emptySet(); }
+		public Expression rename(Renamer columnRenamer) { return this; }
+		public Expression substitute(ColumnName column, Expression substitution) { return this; }
+		public DataType getDataType(DatabaseOp table, Vendor vendor) {
+			return constant.getDataType(table, vendor);
+		}
+		public String toSQL(DatabaseOp table, Vendor vendor) {
+			DataType dataType = constant.getDataType(table, vendor);
+			if (!dataType.isBindable(constant.value())) {
+				return constant.toSQL(table, vendor);
+			}
+			markedParameters.add(new Parameter(constant.value(), dataType));
+			return PARAMETER_MARKER + Integer.toString(markedParameters.size() - 1) + PARAMETER_MARKER;
+		}
+		public String toString() { return "?" + constant; }
+	}
+	
 	/**
 	 * A SQL query without nesting. FROM clauses are represented as simple
 	 * SQL strings, so subqueries can be represented as a string of the
@@ -171,7 +429,11 @@ public class SelectStatementBuilder extends OpVisitor.Default {
 		String rawSQL;
 		Map<ColumnName,Expression> extensions;
 		Map<TableName,String> fromClauses;
+		List<String> rawFromClauses;
+		List<ColumnName> groupBy;
+		Expression havingClause;
 		int limit;
+		int offset;
 		Expression whereClause;
 		boolean distinct;
 		List<OrderSpec> orderByClauses;
@@ -184,7 +446,11 @@ public class SelectStatementBuilder extends OpVisitor.Default {
 			rawSQL = null;
 			extensions = new TreeMap<ColumnName,Expression>();
 			fromClauses = new TreeMap<TableName,String>();
+			rawFromClauses = new ArrayList<String>();
+			groupBy = null;
+			havingClause = Expression.TRUE;
 			limit = LimitOp.NO_LIMIT;
+			offset = 0;
 			whereClause = Expression.TRUE;
 			distinct = false;
 			orderByClauses = new ArrayList<OrderSpec>();
@@ -192,7 +458,8 @@ public class SelectStatementBuilder extends OpVisitor.Default {
 		
 		boolean isSimpleTable() {
 			return rawSQL == null && extensions.isEmpty() && limit == LimitOp.NO_LIMIT
-					&& whereClause.isTrue() && !distinct && orderByClauses.isEmpty()
+					&& offset == 0 && whereClause.isTrue() && !distinct && orderByClauses.isEmpty()
+					&& rawFromClauses.isEmpty() && groupBy == null
 					&& fromClauses.size() == 1 && fromClauses.entrySet().iterator().next().getValue() == null;
 		}
 		
@@ -204,6 +471,32 @@ public class SelectStatementBuilder extends OpVisitor.Default {
 		
 		String getSQL(DatabaseOp table, Vendor vendor, ColumnList columns) {
 			if (rawSQL != null) return rawSQL;
+			Expression rowNumLimit = vendor.getRowNumLimitAsExpression(limit);
+			if (!rowNumLimit.isTrue() && !orderByClauses.isEmpty()) {
+				// ROWNUM is assigned before sorting, so sort in a subquery
+				limit = LimitOp.NO_LIMIT;
+				StringBuffer result = new StringBuffer("SELECT ");
+				if (columns.isEmpty()) {
+					result.append("1");
+				}
+				for (int i = 1; i <= columns.size(); i++) {
+					result.append(i == 1 ? "C1" : ", C" + i);
+				}
+				result.append(" FROM (");
+				result.append(getSQL(table, vendor, columns, true));
+				result.append(") WHERE ");
+				result.append(rowNumLimit.toSQL(table, vendor));
+				return result.toString();
+			}
+			return getSQL(table, vendor, columns, false);
+		}
+
+		/**
+		 * @param numberColumns Name the selected columns C1, C2, ..., so
+		 * 		that an enclosing query can refer to them
+		 */
+		private String getSQL(DatabaseOp table, Vendor vendor, ColumnList columns,
+				boolean numberColumns) {
 			StringBuffer result = new StringBuffer("SELECT ");
 			if (distinct) {
 				result.append("DISTINCT ");
@@ -219,33 +512,38 @@ public class SelectStatementBuilder extends OpVisitor.Default {
 				result.append("1");
 			} else {
 				Iterator<ColumnName> columnsIt = columns.iterator();
+				int number = 0;
 				while (columnsIt.hasNext()) {
 					ColumnName col = columnsIt.next();
+					number++;
 					if (extensions.containsKey(col)) {
 						result.append(extensions.get(col).toSQL(table, vendor));
 						result.append(vendor.getAliasOperator());
+					} else if (numberColumns) {
+						result.append(vendor.toString(col));
+						result.append(vendor.getAliasOperator());
 					}
-					result.append(vendor.toString(col));
+					result.append(numberColumns ? "C" + number : vendor.toString(col));
 					if (columnsIt.hasNext()) {
 						result.append(", ");
 					}
 				}
 			}
-			Iterator<TableName> tablesIt = fromClauses.keySet().iterator();
-			if (!tablesIt.hasNext()) {
+			List<String> fromItems = new ArrayList<String>();
+			for (TableName t: fromClauses.keySet()) {
+				fromItems.add(toFromClause(t, fromClauses.get(t)));
+			}
+			fromItems.addAll(rawFromClauses);
+			Iterator<String> fromIt = fromItems.iterator();
+			if (!fromIt.hasNext()) {
 				if (vendor.getTrueTable() != null) {
 					result.append(" FROM " + vendor.getTrueTable());
 				}
 			} else {
 				result.append(" FROM ");
-				while (tablesIt.hasNext()) {
-					TableName t = tablesIt.next();
-					if (fromClauses.get(t) != null) {
-						result.append(fromClauses.get(t));
-						result.append(vendor.getAliasOperator());
-					}
-					result.append(vendor.toString(t));
-					if (tablesIt.hasNext()) {
+				while (fromIt.hasNext()) {
+					result.append(fromIt.next());
+					if (fromIt.hasNext()) {
 						result.append(", ");
 					}
 				}
@@ -262,6 +560,26 @@ public class SelectStatementBuilder extends OpVisitor.Default {
 				result.append(" WHERE ");
 				result.append(expr.toSQL(table, vendor));
 			}
+			if (groupBy != null && !groupBy.isEmpty()) {
+				result.append(" GROUP BY ");
+				Iterator<ColumnName> groupIt = groupBy.iterator();
+				while (groupIt.hasNext()) {
+					ColumnName col = groupIt.next();
+					result.append(extensions.containsKey(col)
+							? extensions.get(col).toSQL(table, vendor) : vendor.toString(col));
+					if (groupIt.hasNext()) {
+						result.append(", ");
+					}
+				}
+			}
+			if (!havingClause.isTrue()) {
+				Expression expr = havingClause;
+				for (ColumnName col: extensions.keySet()) {
+					expr = expr.substitute(col, extensions.get(col));
+				}
+				result.append(" HAVING ");
+				result.append(expr.toSQL(table, vendor));
+			}
 			Iterator<OrderSpec> orderIt = orderByClauses.iterator();
 			if (orderIt.hasNext()) {
 				result.append(" ORDER BY ");
@@ -271,9 +589,8 @@ public class SelectStatementBuilder extends OpVisitor.Default {
 				if (o.isAscending()) {
 					result.append(o.getExpression().toSQL(table, vendor));
 				} else {
-					result.append("DESC(");
 					result.append(o.getExpression().toSQL(table, vendor));
-					result.append(")");
+					result.append(" DESC");
 				}
 				if (orderIt.hasNext()) {
 					result.append(", ");
@@ -286,6 +603,14 @@ public class SelectStatementBuilder extends OpVisitor.Default {
 					result.append(suffix);
 				}
 			}
+			if (offset > 0) {
+				String suffix = vendor.getOffsetAsQueryAppendage(offset);
+				if (suffix == null) {
+					throw new D2RQException("OFFSET is not supported by " + vendor);
+				}
+				result.append(" ");
+				result.append(suffix);
+			}
 			return result.toString();
 		}
 	}
@@ -0,0 +1,111 @@
+package org.d2rq.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A least-recently-used cache of {@link PreparedStatement}s for a single
+ * JDBC connection, keyed by SQL text. Statements evicted from the cache
+ * are closed.
+ *
+ * A statement is taken out of the cache while it is executing, and put
+ * back once its results have been read, so that queries sharing a
+ * connection never execute the same statement at the same time.
+ */
+public class StatementCache {
+	private static final Log log = LogFactory.getLog(StatementCache.class);
+
+	private final int maxSize;
+	private final Map<String,PreparedStatement> statements;
+	private int hits = 0;
+	private int misses = 0;
+
+	/**
+	 * @param maxSize Maximum number of statements to keep open
+	 */
+	public StatementCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.statements = new LinkedHashMap<String,PreparedStatement>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest) {
+				if (size() <= StatementCache.this.maxSize) return false;
+				closeStatement(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Removes a statement from the cache, for exclusive use until it
+	 * is handed back with {@link #put(String, PreparedStatement)}.
+	 * 
+	 * @return A previously cached statement for the SQL text, or <code>null</code>
+	 */
+	public synchronized PreparedStatement take(String sql) {
+		PreparedStatement result = statements.remove(sql);
+		if (result == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return result;
+	}
+
+	/**
+	 * Adds a statement to the cache, possibly evicting and closing
+	 * the least recently used one.
+	 */
+	public synchronized void put(String sql, PreparedStatement statement) {
+		PreparedStatement old = statements.put(sql, statement);
+		if (old != null && old != statement) {
+			closeStatement(old);
+		}
+	}
+
+	/**
+	 * Removes a statement from the cache and closes it, e.g., because
+	 * it caused an error.
+	 */
+	public synchronized void remove(String sql) {
+		PreparedStatement statement = statements.remove(sql);
+		if (statement != null) {
+			closeStatement(statement);
+		}
+	}
+
+	public synchronized int size() {
+		return statements.size();
+	}
+
+	public synchronized int hits() {
+		return hits;
+	}
+
+	public synchronized int misses() {
+		return misses;
+	}
+
+	/**
+	 * Closes all cached statements.
+	 */
+	public synchronized void clear() {
+		for (PreparedStatement statement: statements.values()) {
+			closeStatement(statement);
+		}
+		statements.clear();
+	}
+
+	private void closeStatement(PreparedStatement statement) {
+		try {
+			statement.close();
+		} catch (SQLException ex) {
+			log.debug("Error while closing cached statement: " + ex.getMessage());
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package org.d2rq.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.d2rq.db.schema.Identifier;
+import org.d2rq.db.schema.TableName;
+
+/**
+ * A {@link ChangeDetector} that polls watched tables for their row
+ * count and, optionally, the maximum value of a column such as a
+ * last-modified timestamp or an increasing version number. A table
+ * has changed if either value has changed since the previous poll.
+ * 
+ * Changes that keep both values the same, such as an update of a
+ * table without a watermark column, go unnoticed. Tables that are
+ * not watched are never reported as changed.
+ * 
+ * The database is polled at most once per poll interval. The first
+ * poll only records the current values.
+ */
+public class WatermarkChangeDetector implements ChangeDetector {
+	private final static Log log = LogFactory.getLog(WatermarkChangeDetector.class);
+	
+	private final SQLConnection sqlConnection;
+	private final long pollIntervalMillis;
+	private final Map<TableName,Identifier> watermarkColumns = 
+			new LinkedHashMap<TableName,Identifier>();
+	private final Map<TableName,String> watermarks = new HashMap<TableName,String>();
+	private long lastPoll = 0;
+	
+	/**
+	 * @param pollIntervalMillis Minimum time between polls of the database
+	 */
+	public WatermarkChangeDetector(SQLConnection sqlConnection, long pollIntervalMillis) {
+		this.sqlConnection = sqlConnection;
+		this.pollIntervalMillis = pollIntervalMillis;
+	}
+	
+	/**
+	 * Watches a table for changes to its row count.
+	 */
+	public void watch(TableName table) {
+		watch(table, null);
+	}
+	
+	/**
+	 * Watches a table for changes to its row count and the maximum
+	 * value of a column.
+	 * 
+	 * @param watermarkColumn A column whose maximum value changes when
+	 * 		the table is modified, or <code>null</code>
+	 */
+	public synchronized void watch(TableName table, Identifier watermarkColumn) {
+		watermarkColumns.put(table, watermarkColumn);
+	}
+	
+	public synchronized Collection<TableName> getChangedTables() {
+		List<TableName> result = new ArrayList<TableName>();
+		long now = System.currentTimeMillis();
+		if (now - lastPoll < pollIntervalMillis) return result;
+		lastPoll = now;
+		Connection connection = sqlConnection.borrowConnection();
+		try {
+			for (TableName table: watermarkColumns.keySet()) {
+				String watermark = readWatermark(connection, table, watermarkColumns.get(table));
+				String previous = watermarks.put(table, watermark);
+				if (previous != null && !previous.equals(watermark)) {
+					result.add(table);
+				}
+			}
+		} finally {
+			sqlConnection.releaseConnection(connection);
+		}
+		if (!result.isEmpty()) {
+			log.debug("Changed tables: " + result);
+		}
+		return result;
+	}
+	
+	private String readWatermark(Connection connection, TableName table, Identifier column) {
+		String sql = "SELECT COUNT(*)" + 
+				(column == null ? "" : ", MAX(" + sqlConnection.vendor().toString(column) + ")") +
+				" FROM " + sqlConnection.vendor().toString(table);
+		try {
+			Statement stmt = connection.createStatement();
+			try {
+				ResultSet rs = stmt.executeQuery(sql);
+				try {
+					if (!rs.next()) return "";
+					return rs.getLong(1) + (column == null ? "" : " " + rs.getString(2));
+				} finally {
+					rs.close();
+				}
+			} finally {
+				stmt.close();
+			}
+		} catch (SQLException ex) {
+			// Treat as changed, so nothing stale is served while it fails
+			log.warn("Failed to poll " + table + " for changes: " + ex.getMessage());
+			return "error@" + System.currentTimeMillis();
+		}
+	}
+}
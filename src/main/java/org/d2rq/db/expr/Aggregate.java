@@ -0,0 +1,137 @@
+package org.d2rq.db.expr;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.op.GroupOp;
+import org.d2rq.db.renamer.Renamer;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.types.DataType;
+import org.d2rq.db.types.DataType.GenericType;
+import org.d2rq.db.vendor.Vendor;
+
+
+/**
+ * A SQL aggregate function such as <code>COUNT(*)</code> or
+ * <code>SUM(col)</code>. Only meaningful as the definition of
+ * a column in a {@link GroupOp}.
+ */
+public class Aggregate extends Expression {
+	
+	public enum Function { COUNT, SUM, MIN, MAX }
+	
+	/**
+	 * @return <code>COUNT(*)</code>
+	 */
+	public static Aggregate countRows() {
+		return new Aggregate(Function.COUNT, null, false);
+	}
+	
+	public static Aggregate create(Function function, Expression operand, boolean distinct) {
+		return new Aggregate(function, operand, distinct);
+	}
+	
+	private final Function function;
+	private final Expression operand;
+	private final boolean distinct;
+	
+	private Aggregate(Function function, Expression operand, boolean distinct) {
+		this.function = function;
+		this.operand = operand;
+		this.distinct = distinct;
+	}
+	
+	public Function getFunction() {
+		return function;
+	}
+	
+	/**
+	 * @return The aggregated expression, or <code>null</code> for <code>COUNT(*)</code>
+	 */
+	public Expression getOperand() {
+		return operand;
+	}
+	
+	public boolean isDistinct() {
+		return distinct;
+	}
+	
+	@Override
+	public boolean isTrue() {
+		return false;
+	}
+
+	@Override
+	public boolean isFalse() {
+		return false;
+	}
+
+	@Override
+	public boolean isConstant() {
+		return false;
+	}
+
+	@Override
+	public boolean isConstantColumn(ColumnName column, boolean constIfTrue,
+			boolean constIfFalse, boolean constIfConstantValue) {
+		return false;
+	}
+
+	@Override
+	public Set<ColumnName> getColumns() {
+		return operand == null ? Collections.<ColumnName>emptySet() : operand.getColumns();
+	}
+
+	@Override
+	public Expression rename(Renamer columnRenamer) {
+		return operand == null ? this : 
+				new Aggregate(function, operand.rename(columnRenamer), distinct);
+	}
+
+	@Override
+	public Expression substitute(ColumnName column, Expression substitution) {
+		return operand == null ? this : 
+				new Aggregate(function, operand.substitute(column, substitution), distinct);
+	}
+
+	@Override
+	public Expression replaceConstants(ConstantReplacer replacer) {
+		return operand == null ? this : 
+				new Aggregate(function, operand.replaceConstants(replacer), distinct);
+	}
+
+	@Override
+	public DataType getDataType(DatabaseOp table, Vendor vendor) {
+		if (function == Function.COUNT) {
+			return GenericType.NUMERIC.dataTypeFor(vendor);
+		}
+		return operand.getDataType(table, vendor);
+	}
+
+	@Override
+	public String toSQL(DatabaseOp table, Vendor vendor) {
+		return function + "(" + (distinct ? "DISTINCT " : "") + 
+				(operand == null ? "*" : operand.toSQL(table, vendor)) + ")";
+	}
+
+	@Override
+	public String toString() {
+		return function + "(" + (distinct ? "DISTINCT " : "") + 
+				(operand == null ? "*" : operand.toString()) + ")";
+	}
+	
+	@Override
+	public int hashCode() {
+		return function.hashCode() ^ (operand == null ? 0 : operand.hashCode()) ^ 
+				(distinct ? 1 : 0) ^ 8876;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Aggregate)) return false;
+		Aggregate other = (Aggregate) o;
+		return function == other.function && distinct == other.distinct &&
+				(operand == null ? other.operand == null : operand.equals(other.operand));
+	}
+}
@@ -0,0 +1,55 @@
+package org.d2rq.db.expr;
+
+import org.d2rq.D2RQException;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.types.DataType.GenericType;
+import org.d2rq.db.vendor.Vendor;
+
+
+/**
+ * Wraps a character expression so that it sorts by Unicode code point
+ * rather than by the database's default collation. Only meaningful in
+ * <code>ORDER BY</code> clauses. Not all databases support this; see
+ * {@link Vendor#getBinaryCollationExpression(String)}.
+ */
+public class BinaryCollation extends UnaryExpression {
+
+	public BinaryCollation(Expression operand) {
+		super("BinaryCollation", operand, GenericType.CHARACTER);
+	}
+
+	@Override
+	public Expression clone(Expression newOperand) {
+		return new BinaryCollation(newOperand);
+	}
+
+	@Override
+	public String toSQL(String operandSQL, Vendor vendor) {
+		String result = vendor.getBinaryCollationExpression(operandSQL);
+		if (result == null) {
+			throw new D2RQException("Binary collation is not supported by " + vendor);
+		}
+		return result;
+	}
+
+	@Override
+	public boolean isFalse() {
+		return false;
+	}
+
+	@Override
+	public boolean isTrue() {
+		return false;
+	}
+
+	@Override
+	public boolean isConstantColumn(ColumnName column, boolean constIfTrue,
+			boolean constIfFalse, boolean constIfConstantValue) {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "BinaryCollation(" + getOperand() + ")";
+	}
+}
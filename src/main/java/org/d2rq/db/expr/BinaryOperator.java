@@ -70,6 +70,11 @@ public abstract class BinaryOperator extends Expression {
 		return clone(expr1.substitute(column, substitution), expr2.substitute(column, substitution));
 	}
 	
+	@Override
+	public Expression replaceConstants(ConstantReplacer replacer) {
+		return clone(expr1.replaceConstants(replacer), expr2.replaceConstants(replacer));
+	}
+	
 	public DataType getDataType(DatabaseOp table, Vendor vendor) {
 		return dataType.dataTypeFor(vendor);
 	}
@@ -115,6 +115,11 @@ public class Constant extends Expression {
 		return this;
 	}
 
+	@Override
+	public Expression replaceConstants(ConstantReplacer replacer) {
+		return replacer.replace(this);
+	}
+
 	public String toSQL(DatabaseOp table, Vendor vendor) {
 		return getDataType(table, vendor).toSQLLiteral(value, vendor);
 	}
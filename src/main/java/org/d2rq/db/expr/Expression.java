@@ -81,6 +81,19 @@ public abstract class Expression implements Comparable<Expression> {
 	 */
 	public abstract Expression substitute(ColumnName column, Expression substitution);
 	
+	/**
+	 * Returns an expression where all {@link Constant}s have been replaced
+	 * with another expression, as computed by a {@link ConstantReplacer}.
+	 * Expressions that cannot contain constants return themselves.
+	 */
+	public Expression replaceConstants(ConstantReplacer replacer) {
+		return this;
+	}
+	
+	public interface ConstantReplacer {
+		Expression replace(Constant constant);
+	}
+	
 	public abstract DataType getDataType(DatabaseOp table, Vendor vendor);
 
 	public abstract String toSQL(DatabaseOp table, Vendor vendor);
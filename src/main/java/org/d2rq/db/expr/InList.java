@@ -0,0 +1,100 @@
+package org.d2rq.db.expr;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.types.DataType.GenericType;
+import org.d2rq.db.vendor.Vendor;
+
+
+/**
+ * An expression that is TRUE iff its first operand is equal to
+ * any of the other operands, as in SQL <code>x IN (a, b, c)</code>.
+ */
+public class InList extends NAryExpression {
+
+	public static Expression create(Expression expression, Collection<Expression> values) {
+		Set<Expression> distinct = new LinkedHashSet<Expression>(values);
+		if (distinct.isEmpty()) {
+			return Expression.FALSE;
+		}
+		if (distinct.size() == 1) {
+			return Equality.create(expression, distinct.iterator().next());
+		}
+		Expression[] operands = new Expression[distinct.size() + 1];
+		operands[0] = expression;
+		int i = 1;
+		for (Expression value: distinct) {
+			operands[i++] = value;
+		}
+		return new InList(operands);
+	}
+
+	/**
+	 * Creates the disjunction of some expressions. If all of them
+	 * compare the same expression to a constant, then the result is an
+	 * <code>IN</code> list instead of a chain of <code>OR</code>s.
+	 */
+	public static Expression createFromDisjuncts(Collection<Expression> disjuncts) {
+		Expression expression = null;
+		List<Expression> values = new ArrayList<Expression>(disjuncts.size());
+		for (Expression disjunct: disjuncts) {
+			if (disjunct.isFalse()) continue;
+			if (!(disjunct instanceof Equality)) {
+				return Disjunction.create(disjuncts);
+			}
+			Equality equality = (Equality) disjunct;
+			Expression other;
+			Expression value;
+			if (equality.expr2.isConstant()) {
+				other = equality.expr1;
+				value = equality.expr2;
+			} else if (equality.expr1.isConstant()) {
+				other = equality.expr2;
+				value = equality.expr1;
+			} else {
+				return Disjunction.create(disjuncts);
+			}
+			if (expression != null && !expression.equals(other)) {
+				return Disjunction.create(disjuncts);
+			}
+			expression = other;
+			values.add(value);
+		}
+		if (expression == null) return Expression.FALSE;
+		return create(expression, values);
+	}
+
+	private InList(Expression[] operands) {
+		super("InList", operands, false, GenericType.BOOLEAN);
+	}
+
+	@Override
+	protected Expression clone(Expression[] newParts) {
+		return new InList(newParts);
+	}
+
+	@Override
+	protected String toSQL(String[] sqlFragments, Vendor vendor) {
+		StringBuffer result = new StringBuffer("(");
+		result.append(sqlFragments[0]);
+		result.append(" IN (");
+		for (int i = 1; i < sqlFragments.length; i++) {
+			if (i > 1) {
+				result.append(", ");
+			}
+			result.append(sqlFragments[i]);
+		}
+		result.append("))");
+		return result.toString();
+	}
+
+	public boolean isConstantColumn(ColumnName column, boolean constIfTrue,
+			boolean constIfFalse, boolean constIfConstantValue) {
+		return false;
+	}
+}
@@ -0,0 +1,93 @@
+package org.d2rq.db.expr;
+
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.types.DataType.GenericType;
+import org.d2rq.db.vendor.Vendor;
+
+
+/**
+ * A SQL <code>LIKE</code> match of a character expression against
+ * a constant pattern. Wildcards in the search strings are escaped,
+ * so the factory methods match the strings literally.
+ */
+public class Like extends UnaryExpression {
+	private final static char ESCAPE = '!';
+
+	public static Like startsWith(Expression expression, String prefix) {
+		return new Like(expression, escape(prefix) + "%");
+	}
+
+	public static Like endsWith(Expression expression, String suffix) {
+		return new Like(expression, "%" + escape(suffix));
+	}
+
+	public static Like contains(Expression expression, String substring) {
+		return new Like(expression, "%" + escape(substring) + "%");
+	}
+
+	private static String escape(String s) {
+		StringBuffer result = new StringBuffer(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '%' || c == '_' || c == ESCAPE) {
+				result.append(ESCAPE);
+			}
+			result.append(c);
+		}
+		return result.toString();
+	}
+
+	private final String pattern;
+
+	private Like(Expression operand, String pattern) {
+		super("Like", operand, GenericType.BOOLEAN);
+		this.pattern = pattern;
+	}
+
+	public String getPattern() {
+		return pattern;
+	}
+
+	@Override
+	public Expression clone(Expression newOperand) {
+		return new Like(newOperand, pattern);
+	}
+
+	@Override
+	public String toSQL(String operandSQL, Vendor vendor) {
+		return operandSQL + " LIKE " + vendor.quoteStringLiteral(pattern) +
+				" ESCAPE " + vendor.quoteStringLiteral(Character.toString(ESCAPE));
+	}
+
+	@Override
+	public boolean isFalse() {
+		return false;
+	}
+
+	@Override
+	public boolean isTrue() {
+		return false;
+	}
+
+	@Override
+	public boolean isConstantColumn(ColumnName column, boolean constIfTrue,
+			boolean constIfFalse, boolean constIfConstantValue) {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "Like(" + getOperand() + ", '" + pattern + "')";
+	}
+
+	@Override
+	public int hashCode() {
+		return super.hashCode() ^ pattern.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Like)) return false;
+		return super.equals(o) && ((Like) o).pattern.equals(pattern);
+	}
+}
@@ -83,6 +83,15 @@ public abstract class NAryExpression extends Expression {
 		return clone(substituted);
 	}
 
+	@Override
+	public Expression replaceConstants(ConstantReplacer replacer) {
+		Expression[] replaced = new Expression[operands.length];
+		for (int i = 0; i < operands.length; i++) {
+			replaced[i] = operands[i].replaceConstants(replacer);
+		}
+		return clone(replaced);
+	}
+
 	@Override
 	public DataType getDataType(DatabaseOp table, Vendor vendor) {
 		return dataType.dataTypeFor(vendor);
@@ -0,0 +1,72 @@
+package org.d2rq.db.expr;
+
+import org.d2rq.D2RQException;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.types.DataType.GenericType;
+import org.d2rq.db.vendor.Vendor;
+
+
+/**
+ * Matches a character expression against a regular expression. Not
+ * all databases support this; see
+ * {@link Vendor#getRegexExpression(String, String, boolean)}.
+ */
+public class RegexMatch extends UnaryExpression {
+	private final String pattern;
+	private final boolean caseInsensitive;
+
+	public RegexMatch(Expression operand, String pattern, boolean caseInsensitive) {
+		super("RegexMatch", operand, GenericType.BOOLEAN);
+		this.pattern = pattern;
+		this.caseInsensitive = caseInsensitive;
+	}
+
+	@Override
+	public Expression clone(Expression newOperand) {
+		return new RegexMatch(newOperand, pattern, caseInsensitive);
+	}
+
+	@Override
+	public String toSQL(String operandSQL, Vendor vendor) {
+		String result = vendor.getRegexExpression(operandSQL, pattern, caseInsensitive);
+		if (result == null) {
+			throw new D2RQException("Regular expressions are not supported by " + vendor);
+		}
+		return result;
+	}
+
+	@Override
+	public boolean isFalse() {
+		return false;
+	}
+
+	@Override
+	public boolean isTrue() {
+		return false;
+	}
+
+	@Override
+	public boolean isConstantColumn(ColumnName column, boolean constIfTrue,
+			boolean constIfFalse, boolean constIfConstantValue) {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "RegexMatch(" + getOperand() + ", '" + pattern + "'" +
+				(caseInsensitive ? ", i)" : ")");
+	}
+
+	@Override
+	public int hashCode() {
+		return super.hashCode() ^ pattern.hashCode() ^ (caseInsensitive ? 1 : 0);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof RegexMatch)) return false;
+		RegexMatch other = (RegexMatch) o;
+		return super.equals(o) && other.pattern.equals(pattern)
+				&& other.caseInsensitive == caseInsensitive;
+	}
+}
@@ -67,6 +67,12 @@ public abstract class UnaryExpression extends Expression {
 		return operand.equals(substituted) ? this : clone(substituted);
 	}
 	
+	@Override
+	public Expression replaceConstants(ConstantReplacer replacer) {
+		Expression replaced = operand.replaceConstants(replacer);
+		return operand.equals(replaced) ? this : clone(replaced);
+	}
+	
 	@Override
 	public String toSQL(DatabaseOp table, Vendor vendor) {
 		return toSQL(operand.toSQL(table, vendor), vendor);
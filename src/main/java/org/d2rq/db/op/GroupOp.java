@@ -0,0 +1,130 @@
+package org.d2rq.db.op;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.d2rq.db.expr.Aggregate;
+import org.d2rq.db.schema.ColumnList;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.schema.Identifier;
+import org.d2rq.db.types.DataType;
+import org.d2rq.db.vendor.Vendor;
+
+
+/**
+ * Groups the rows of the wrapped {@link DatabaseOp} by some of its
+ * columns, and computes {@link Aggregate}s over each group. The result
+ * has the grouping columns and one new column per aggregate. Without
+ * grouping columns, the result is a single row of aggregates over
+ * all rows.
+ * 
+ * The wrapped op must not be sliced, made distinct, or grouped itself,
+ * as this can't be expressed in the same SQL query; such ops need
+ * to be wrapped into an {@link AliasOp} first.
+ */
+public class GroupOp extends DatabaseOp.Wrapper {
+
+	public static GroupOp group(DatabaseOp wrapped, List<ColumnName> groupBy,
+			Map<Identifier,Aggregate> aggregates, Vendor vendor) {
+		return new GroupOp(wrapped, groupBy, aggregates, vendor);
+	}
+	
+	private final ColumnList groupBy;
+	private final Map<Identifier,Aggregate> aggregates;
+	private final ColumnList columns;
+	private final Vendor vendor;
+	
+	private GroupOp(DatabaseOp wrapped, List<ColumnName> groupBy,
+			Map<Identifier,Aggregate> aggregates, Vendor vendor) {
+		super(wrapped);
+		this.groupBy = ColumnList.create(groupBy);
+		this.aggregates = new LinkedHashMap<Identifier,Aggregate>(aggregates);
+		this.vendor = vendor;
+		List<ColumnName> columns = new ArrayList<ColumnName>(groupBy);
+		for (Identifier column: aggregates.keySet()) {
+			columns.add(ColumnName.create(column));
+		}
+		this.columns = ColumnList.create(columns);
+	}
+	
+	public ColumnList getGroupBy() {
+		return groupBy;
+	}
+	
+	public Map<Identifier,Aggregate> getAggregates() {
+		return aggregates;
+	}
+	
+	public Vendor getVendor() {
+		return vendor;
+	}
+	
+	@Override
+	public boolean hasColumn(ColumnName column) {
+		if (columns.isAmbiguous(column)) return false;
+		return columns.contains(column);
+	}
+	
+	@Override
+	public ColumnList getColumns() {
+		return columns;
+	}
+
+	@Override
+	public boolean isNullable(ColumnName column) {
+		Aggregate aggregate = getAggregate(column);
+		if (aggregate == null) return getWrapped().isNullable(column);
+		// Other aggregates are NULL for empty or all-NULL groups
+		return aggregate.getFunction() != Aggregate.Function.COUNT;
+	}
+
+	@Override
+	public DataType getColumnType(ColumnName column) {
+		Aggregate aggregate = getAggregate(column);
+		if (aggregate == null) return getWrapped().getColumnType(column);
+		return aggregate.getDataType(getWrapped(), vendor);
+	}
+
+	private Aggregate getAggregate(ColumnName column) {
+		if (column.isQualified()) return null;
+		return aggregates.get(column.getColumn());
+	}
+	
+	/**
+	 * The grouping columns are a unique key.
+	 */
+	@Override
+	public Collection<ColumnList> getUniqueKeys() {
+		if (groupBy.isEmpty()) return Collections.emptySet();
+		return Collections.singleton(groupBy);
+	}
+
+	public void accept(OpVisitor visitor) {
+		if (visitor.visitEnter(this)) {
+			getWrapped().accept(visitor);
+		}
+		visitor.visitLeave(this);
+	}
+	
+	@Override
+	public String toString() {
+		return "Group(" + groupBy + ", " + aggregates + ", " + getWrapped() + ")";
+	}
+	
+	@Override
+	public int hashCode() {
+		return getWrapped().hashCode() ^ groupBy.hashCode() ^ aggregates.hashCode() ^ 4471;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof GroupOp)) return false;
+		GroupOp other = (GroupOp) o;
+		return groupBy.equals(other.groupBy) && aggregates.equals(other.aggregates) &&
+				getWrapped().equals(other.getWrapped());
+	}
+}
@@ -63,6 +63,7 @@ public class InnerJoinOp implements DatabaseOp {
 		new HashMap<ColumnName,NamedOp>();
 	private final ColumnList columns;
 	private final Set<ColumnListEquality> joins;
+	private Collection<ColumnList> uniqueKeys = null;
 
 	private InnerJoinOp(Collection<NamedOp> tables, Set<ColumnListEquality> joins) {
 		this.joins = joins;
@@ -111,19 +112,77 @@ public class InnerJoinOp implements DatabaseOp {
 	}
 
 	public boolean isNullable(ColumnName column) {
-		return byColumn.containsKey(column) ? byColumn.get(column).isNullable(column) : false;
+		return hasColumn(column) ? byColumn.get(column).isNullable(column) : false;
 	}
 
 	public DataType getColumnType(ColumnName column) {
-		return byColumn.containsKey(column) ? byColumn.get(column).getColumnType(column) : null;
+		return hasColumn(column) ? byColumn.get(column).getColumnType(column) : null;
 	}
 
+	/**
+	 * A unique key of a table is a unique key of the join if every
+	 * other table is joined to it, directly or through others, on a
+	 * unique key of the other table, so that no row of the table is
+	 * repeated. The combination of a unique key from each table is
+	 * always a unique key of the join.
+	 */
 	public Collection<ColumnList> getUniqueKeys() {
 		if (tablesByName.size() == 1) {
 			return tablesByName.values().iterator().next().getUniqueKeys();
 		}
-		// FIXME: If all joins have a unique key over their local side, then we can keep the unique keys
-		return Collections.emptySet();
+		if (uniqueKeys != null) return uniqueKeys;
+		uniqueKeys = new ArrayList<ColumnList>();
+		List<ColumnName> combined = new ArrayList<ColumnName>();
+		for (NamedOp table: tablesByName.values()) {
+			if (table.getUniqueKeys().isEmpty()) {
+				combined = null;
+			} else if (combined != null) {
+				combined.addAll(table.getUniqueKeys().iterator().next().asList());
+			}
+			if (determinesAllTables(table)) {
+				uniqueKeys.addAll(table.getUniqueKeys());
+			}
+		}
+		if (combined != null && uniqueKeys.isEmpty()) {
+			uniqueKeys.add(ColumnList.create(combined));
+		}
+		return uniqueKeys;
+	}
+
+	private boolean determinesAllTables(NamedOp table) {
+		Set<TableName> reached = new HashSet<TableName>();
+		reached.add(table.getTableName());
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (ColumnListEquality join: joins) {
+				if (reached.contains(join.getTableName1()) 
+						&& !reached.contains(join.getTableName2())
+						&& isUniqueKey(join.getTableName2(), join.getColumns2())) {
+					reached.add(join.getTableName2());
+					changed = true;
+				} else if (reached.contains(join.getTableName2()) 
+						&& !reached.contains(join.getTableName1())
+						&& isUniqueKey(join.getTableName1(), join.getColumns1())) {
+					reached.add(join.getTableName1());
+					changed = true;
+				}
+			}
+		}
+		return reached.size() == tablesByName.size();
+	}
+
+	/**
+	 * @return <code>true</code> if the columns include a unique key of the table
+	 */
+	private boolean isUniqueKey(TableName tableName, IdentifierList columns) {
+		NamedOp table = tablesByName.get(tableName);
+		if (table == null) return false;
+		ColumnList qualified = ColumnList.create(tableName, columns);
+		for (ColumnList key: table.getUniqueKeys()) {
+			if (qualified.containsAll(key)) return true;
+		}
+		return false;
 	}
 
 	public void accept(OpVisitor visitor) {
@@ -0,0 +1,180 @@
+package org.d2rq.db.op;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.d2rq.db.expr.Conjunction;
+import org.d2rq.db.expr.Equality;
+import org.d2rq.db.expr.Expression;
+import org.d2rq.db.schema.ColumnList;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.schema.TableName;
+import org.d2rq.db.types.DataType;
+
+
+/**
+ * A left outer join of a {@link NamedOp} to another {@link NamedOp}
+ * or left join. All rows of the left side are kept; where no row of
+ * the right side satisfies the join condition, the right side's columns
+ * are <code>NULL</code>.
+ * 
+ * Like {@link InnerJoinOp}, only {@link NamedOp}s are allowed as
+ * children, so that no artificial table names need to be invented
+ * during conversion to SQL. A chain of left joins is rendered as a
+ * single <code>FROM</code> item.
+ */
+public class LeftJoinOp implements DatabaseOp {
+
+	public static LeftJoinOp join(DatabaseOp left, NamedOp right, Expression condition) {
+		if (!(left instanceof NamedOp || left instanceof LeftJoinOp)) {
+			throw new IllegalArgumentException(
+					"Only NamedOp or LeftJoinOp allowed on left side of LeftJoin; offending child: " + left);
+		}
+		return new LeftJoinOp(left, right, condition);
+	}
+	
+	private final DatabaseOp left;
+	private final NamedOp right;
+	private final Expression condition;
+	private final ColumnList columns;
+	
+	private LeftJoinOp(DatabaseOp left, NamedOp right, Expression condition) {
+		this.left = left;
+		this.right = right;
+		this.condition = condition;
+		List<ColumnName> columns = new ArrayList<ColumnName>();
+		for (ColumnName column: left.getColumns()) {
+			columns.add(column);
+		}
+		for (ColumnName column: right.getColumns()) {
+			columns.add(column);
+		}
+		this.columns = ColumnList.create(columns);
+	}
+	
+	public DatabaseOp getLeft() {
+		return left;
+	}
+	
+	public NamedOp getRight() {
+		return right;
+	}
+	
+	public Expression getCondition() {
+		return condition;
+	}
+	
+	/**
+	 * @return The names of all tables in this chain of left joins
+	 */
+	public Collection<TableName> getTableNames() {
+		List<TableName> result = new ArrayList<TableName>();
+		if (left instanceof LeftJoinOp) {
+			result.addAll(((LeftJoinOp) left).getTableNames());
+		} else {
+			result.add(left.getTableName());
+		}
+		result.add(right.getTableName());
+		return result;
+	}
+	
+	public TableName getTableName() {
+		return null;
+	}
+
+	public boolean hasColumn(ColumnName column) {
+		return left.hasColumn(column) != right.hasColumn(column);
+	}
+
+	public ColumnList getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Columns of the right side are always nullable.
+	 */
+	public boolean isNullable(ColumnName column) {
+		if (left.hasColumn(column)) return left.isNullable(column);
+		return right.hasColumn(column);
+	}
+
+	public DataType getColumnType(ColumnName column) {
+		if (left.hasColumn(column)) return left.getColumnType(column);
+		return right.getColumnType(column);
+	}
+
+	/**
+	 * If the join condition fixes a unique key of the right side for
+	 * each row of the left side, then each left row is joined to at
+	 * most one right row, and the left side's unique keys are kept.
+	 */
+	public Collection<ColumnList> getUniqueKeys() {
+		Set<ColumnName> fixed = getRightColumnsFixedByLeft();
+		for (ColumnList key: right.getUniqueKeys()) {
+			if (fixed.containsAll(key.asList())) return left.getUniqueKeys();
+		}
+		return Collections.emptySet();
+	}
+
+	/**
+	 * @return Columns of the right side that the join condition equates
+	 * 		to a column of the left side or to a constant
+	 */
+	private Set<ColumnName> getRightColumnsFixedByLeft() {
+		Set<ColumnName> result = new HashSet<ColumnName>();
+		List<Expression> conjuncts = condition instanceof Conjunction
+				? Arrays.asList(((Conjunction) condition).getOperands())
+				: Collections.singletonList(condition);
+		for (Expression conjunct: conjuncts) {
+			if (!(conjunct instanceof Equality)) continue;
+			Set<ColumnName> columns = conjunct.getColumns();
+			if (columns.size() == 1) {
+				ColumnName column = columns.iterator().next();
+				if (isRightColumn(column) && conjunct.isConstantColumn(column, true, false, true)) {
+					result.add(column);
+				}
+			} else if (columns.size() == 2) {
+				ColumnName[] pair = columns.toArray(new ColumnName[2]);
+				if (!Equality.createColumnEquality(pair[0], pair[1]).equals(conjunct)) continue;
+				if (isRightColumn(pair[0]) && left.getColumns().contains(pair[1])) result.add(pair[0]);
+				if (isRightColumn(pair[1]) && left.getColumns().contains(pair[0])) result.add(pair[1]);
+			}
+		}
+		return result;
+	}
+
+	private boolean isRightColumn(ColumnName column) {
+		return right.getColumns().contains(column) && !left.getColumns().contains(column);
+	}
+
+	public void accept(OpVisitor visitor) {
+		if (visitor.visitEnter(this)) {
+			left.accept(visitor);
+			right.accept(visitor);
+		}
+		visitor.visitLeave(this);
+	}
+	
+	@Override
+	public String toString() {
+		return "LeftJoin(" + left + "," + right + "," + condition + ")";
+	}
+	
+	@Override
+	public int hashCode() {
+		return left.hashCode() ^ right.hashCode() ^ condition.hashCode() ^ 632;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof LeftJoinOp)) return false;
+		LeftJoinOp other = (LeftJoinOp) o;
+		return left.equals(other.left) && right.equals(other.right) && 
+				condition.equals(other.condition);
+	}
+}
@@ -1,6 +1,7 @@
 package org.d2rq.db.op;
 
 import java.util.Collection;
+import java.util.List;
 
 import org.d2rq.db.op.util.OpMutator;
 
@@ -8,14 +9,24 @@ import org.d2rq.db.op.util.OpMutator;
 public class LimitOp extends DatabaseOp.Wrapper {
 	public static final int NO_LIMIT = -1;
 	
-	public static DatabaseOp limit(DatabaseOp tabular, final int limit, final int limitInverse) {
-		if (limit == NO_LIMIT && limitInverse == NO_LIMIT) {
+	public static DatabaseOp limit(DatabaseOp tabular, int limit, int limitInverse) {
+		return limit(tabular, limit, limitInverse, 0);
+	}
+	
+	/**
+	 * Like {@link #limit(DatabaseOp, int, int)}, but also skips the
+	 * first <code>offset</code> rows. The offset is applied before
+	 * the limit, as in SQL's <code>LIMIT n OFFSET m</code>.
+	 */
+	public static DatabaseOp limit(DatabaseOp tabular, final int limit, 
+			final int limitInverse, final int offset) {
+		if (limit == NO_LIMIT && limitInverse == NO_LIMIT && offset == 0) {
 			return tabular;
 		}
 		// Rule: recurse over Distinct; merge Limit; wrap all others
 		return new OpMutator(tabular) {
 			private DatabaseOp wrap(DatabaseOp child) {
-				return new LimitOp(limit, limitInverse, child);
+				return new LimitOp(limit, limitInverse, offset, child);
 			}
 			@Override
 			public boolean visitEnter(InnerJoinOp original) {
@@ -27,6 +38,31 @@ public class LimitOp extends DatabaseOp.Wrapper {
 				return wrap(original);
 			}
 			@Override
+			public boolean visitEnter(LeftJoinOp original) {
+				return false;
+			}
+			@Override
+			public DatabaseOp visitLeave(LeftJoinOp original,
+					DatabaseOp left, DatabaseOp right) {
+				return wrap(original);
+			}
+			@Override
+			public boolean visitEnter(UnionOp original) {
+				return false;
+			}
+			@Override
+			public DatabaseOp visitLeave(UnionOp original, List<DatabaseOp> branches) {
+				return wrap(original);
+			}
+			@Override
+			public boolean visitEnter(GroupOp original) {
+				return false;
+			}
+			@Override
+			public DatabaseOp visitLeave(GroupOp original, DatabaseOp child) {
+				return wrap(original);
+			}
+			@Override
 			public boolean visitEnter(SelectOp original) {
 				return false;
 			}
@@ -64,9 +100,13 @@ public class LimitOp extends DatabaseOp.Wrapper {
 			}
 			@Override
 			public DatabaseOp visitLeave(LimitOp original, DatabaseOp child) {
+				// Our offset skips rows of the already limited original
+				int remaining = original.getLimit() == NO_LIMIT 
+						? NO_LIMIT : Math.max(0, original.getLimit() - offset);
 				return new LimitOp(
-						combineLimits(limit, original.getLimit()), 
+						combineLimits(limit, remaining), 
 						combineLimits(limitInverse, original.getLimitInverse()), 
+						original.getOffset() + offset,
 						child);
 			}
 			@Override
@@ -105,7 +145,8 @@ public class LimitOp extends DatabaseOp.Wrapper {
 				return false;
 			}
 			public DatabaseOp visitLeave(LimitOp limited, DatabaseOp child) {
-				return new LimitOp(limited.getLimitInverse(), limited.getLimit(), limited.getWrapped());
+				return new LimitOp(limited.getLimitInverse(), limited.getLimit(), 
+						limited.getOffset(), limited.getWrapped());
 			}
 		}.getResult();
 	}
@@ -121,11 +162,13 @@ public class LimitOp extends DatabaseOp.Wrapper {
 
 	private final int limit;
 	private final int limitInverse;
+	private final int offset;
 
-	private LimitOp(int limit, int limitInverse, DatabaseOp wrapped) {
+	private LimitOp(int limit, int limitInverse, int offset, DatabaseOp wrapped) {
 		super(wrapped);
 		this.limit = limit;
 		this.limitInverse = limitInverse;
+		this.offset = offset;
 	}
 
 	public int getLimit() { 
@@ -136,6 +179,13 @@ public class LimitOp extends DatabaseOp.Wrapper {
 		return limitInverse;
 	}
 	
+	/**
+	 * @return Number of rows to skip; 0 if none
+	 */
+	public int getOffset() {
+		return offset;
+	}
+	
 	public void accept(OpVisitor visitor) {
 		if (visitor.visitEnter(this)) {
 			getWrapped().accept(visitor);
@@ -145,12 +195,13 @@ public class LimitOp extends DatabaseOp.Wrapper {
 	
 	@Override
 	public String toString() {
-		return "Limit(" + getWrapped() + "," + limit + "," + limitInverse + ")";
+		return "Limit(" + getWrapped() + "," + limit + "," + limitInverse + 
+				(offset == 0 ? "" : "," + offset) + ")";
 	}
 	
 	@Override
 	public int hashCode() {
-		return getWrapped().hashCode() ^ limit ^ limitInverse ^ 68;
+		return getWrapped().hashCode() ^ limit ^ limitInverse ^ (offset << 8) ^ 68;
 	}
 	
 	@Override
@@ -158,6 +209,7 @@ public class LimitOp extends DatabaseOp.Wrapper {
 		if (!(o instanceof LimitOp)) return false;
 		LimitOp other = (LimitOp) o;
 		if (!getWrapped().equals(other.getWrapped())) return false;
-		return limit == other.limit && limitInverse == other.limitInverse;
+		return limit == other.limit && limitInverse == other.limitInverse 
+				&& offset == other.offset;
 	}
 }
@@ -18,6 +18,9 @@ public interface OpVisitor {
 	boolean visitEnter(InnerJoinOp table);
 	void visitLeave(InnerJoinOp table);
 
+	boolean visitEnter(LeftJoinOp table);
+	void visitLeave(LeftJoinOp table);
+
 	boolean visitEnter(SelectOp table);
 	void visitLeave(SelectOp table);
 
@@ -39,6 +42,12 @@ public interface OpVisitor {
 	boolean visitEnter(DistinctOp table);
 	void visitLeave(DistinctOp table);
 	
+	boolean visitEnter(GroupOp table);
+	void visitLeave(GroupOp table);
+	
+	boolean visitEnter(UnionOp table);
+	void visitLeave(UnionOp table);
+	
 	boolean visitEnter(AssertUniqueKeyOp table);
 	void visitLeave(AssertUniqueKeyOp table);
 	
@@ -54,6 +63,8 @@ public interface OpVisitor {
 		public Default(boolean recurse) { this.recurse = recurse; }
 		public boolean visitEnter(InnerJoinOp table) { return recurse; }
 		public void visitLeave(InnerJoinOp table) {}
+		public boolean visitEnter(LeftJoinOp table) { return recurse; }
+		public void visitLeave(LeftJoinOp table) {}
 		public boolean visitEnter(SelectOp table) { return recurse; }
 		public void visitLeave(SelectOp table) {}
 		public boolean visitEnter(ProjectOp table) { return recurse; }
@@ -68,6 +79,10 @@ public interface OpVisitor {
 		public void visitLeave(LimitOp table) {}
 		public boolean visitEnter(DistinctOp table) { return recurse; }
 		public void visitLeave(DistinctOp table) {}
+		public boolean visitEnter(GroupOp table) { return recurse; }
+		public void visitLeave(GroupOp table) {}
+		public boolean visitEnter(UnionOp table) { return recurse; }
+		public void visitLeave(UnionOp table) {}
 		public boolean visitEnter(AssertUniqueKeyOp table) { return recurse; }
 		public void visitLeave(AssertUniqueKeyOp table) {}
 		public boolean visitEnter(EmptyOp table) { return recurse; }
@@ -1,6 +1,12 @@
 package org.d2rq.db.op;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 import org.d2rq.db.expr.Expression;
+import org.d2rq.db.schema.ColumnList;
+import org.d2rq.db.schema.ColumnName;
 
 
 public class SelectOp extends DatabaseOp.Wrapper {
@@ -16,6 +22,7 @@ public class SelectOp extends DatabaseOp.Wrapper {
 	}
 	
 	private final Expression condition;
+	private Collection<ColumnList> uniqueKeys = null;
 	
 	private SelectOp(Expression condition, DatabaseOp wrapped) {
 		super(wrapped);
@@ -25,6 +32,26 @@ public class SelectOp extends DatabaseOp.Wrapper {
 	public Expression getCondition() {
 		return condition;
 	}
+
+	/**
+	 * Columns that the condition forces to a constant value can be
+	 * dropped from the unique keys of the wrapped table.
+	 */
+	@Override
+	public Collection<ColumnList> getUniqueKeys() {
+		if (uniqueKeys != null) return uniqueKeys;
+		uniqueKeys = new ArrayList<ColumnList>(getWrapped().getUniqueKeys());
+		for (ColumnList key: getWrapped().getUniqueKeys()) {
+			List<ColumnName> reduced = new ArrayList<ColumnName>();
+			for (ColumnName column: key) {
+				if (condition.isConstantColumn(column, true, false, false)) continue;
+				reduced.add(column);
+			}
+			if (reduced.isEmpty() || reduced.size() == key.size()) continue;
+			uniqueKeys.add(ColumnList.create(reduced));
+		}
+		return uniqueKeys;
+	}
 	
 	public void accept(OpVisitor visitor) {
 		if (visitor.visitEnter(this)) {
@@ -0,0 +1,191 @@
+package org.d2rq.db.op;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.d2rq.db.expr.ColumnExpr;
+import org.d2rq.db.expr.Constant;
+import org.d2rq.db.expr.Expression;
+import org.d2rq.db.expr.SQLExpression;
+import org.d2rq.db.schema.ColumnList;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.schema.Identifier;
+import org.d2rq.db.schema.TableName;
+import org.d2rq.db.types.DataType;
+import org.d2rq.db.types.DataType.GenericType;
+import org.d2rq.db.vendor.Vendor;
+
+
+/**
+ * The concatenation of the rows of several {@link DatabaseOp}s,
+ * as in SQL <code>UNION ALL</code>.
+ *
+ * The branches don't need to have the same columns. Instead, each
+ * branch specifies which of its columns become the union's columns,
+ * in order, and the columns are renamed to the union's column names.
+ * Where a branch has no column for a position, it is filled with
+ * <code>NULL</code>. The columns in one position must be of the same
+ * {@link DataType} in all branches. An additional column records the
+ * number of the branch that a row comes from, starting at 1.
+ *
+ * The branches must not be ordered or sliced, as this can't be
+ * expressed in a branch of a SQL <code>UNION</code>.
+ */
+public class UnionOp implements DatabaseOp {
+	public final static ColumnName BRANCH_COLUMN =
+			ColumnName.create(Identifier.createUndelimited("BRANCH"));
+
+	/**
+	 * @param branches The ops to be concatenated
+	 * @param columns For each branch, the columns that become the union's
+	 * 		columns; all of the same length; <code>null</code> entries
+	 * 		are filled with <code>NULL</code>
+	 */
+	public static UnionOp union(List<DatabaseOp> branches,
+			List<List<ColumnName>> columns, Vendor vendor) {
+		if (branches.size() != columns.size()) {
+			throw new IllegalArgumentException("Need one column list per branch");
+		}
+		return new UnionOp(branches, columns, vendor);
+	}
+
+	private final List<DatabaseOp> branches;
+	private final List<List<ColumnName>> branchColumns;
+	private final Vendor vendor;
+	private final ColumnList columns;
+	private final List<DataType> columnTypes = new ArrayList<DataType>();
+	private final List<Boolean> nullable = new ArrayList<Boolean>();
+
+	private UnionOp(List<DatabaseOp> branches, List<List<ColumnName>> branchColumns,
+			Vendor vendor) {
+		this.branches = branches;
+		this.branchColumns = branchColumns;
+		this.vendor = vendor;
+		int width = branchColumns.get(0).size();
+		List<ColumnName> columns = new ArrayList<ColumnName>();
+		columns.add(BRANCH_COLUMN);
+		columnTypes.add(GenericType.NUMERIC.dataTypeFor(vendor));
+		nullable.add(false);
+		for (int i = 0; i < width; i++) {
+			columns.add(ColumnName.create(Identifier.createUndelimited("U" + (i + 1))));
+			DataType type = null;
+			boolean isNullable = false;
+			for (int j = 0; j < branches.size(); j++) {
+				if (branchColumns.get(j).size() != width) {
+					throw new IllegalArgumentException("Branches have different widths: " +
+							branchColumns);
+				}
+				ColumnName column = branchColumns.get(j).get(i);
+				if (column == null) {
+					isNullable = true;
+					continue;
+				}
+				isNullable |= branches.get(j).isNullable(column);
+				if (type == null) {
+					type = branches.get(j).getColumnType(column);
+				}
+			}
+			columnTypes.add(type);
+			nullable.add(isNullable);
+		}
+		this.columns = ColumnList.create(columns);
+	}
+
+	public List<DatabaseOp> getBranches() {
+		return branches;
+	}
+
+	/**
+	 * @return For each branch, the columns that become the union's columns,
+	 * 		excluding {@link #BRANCH_COLUMN}
+	 */
+	public List<List<ColumnName>> getBranchColumns() {
+		return branchColumns;
+	}
+
+	public Vendor getVendor() {
+		return vendor;
+	}
+
+	/**
+	 * @return The union's column in the position of the given column
+	 * 		of a branch, or <code>null</code> if it is not used
+	 */
+	public ColumnName getColumn(int branch, ColumnName branchColumn) {
+		int index = branchColumns.get(branch).indexOf(branchColumn);
+		return index == -1 ? null : columns.get(index + 1);
+	}
+
+	/**
+	 * @return The branch, with its columns renamed to the union's
+	 * 		column names, and <code>NULL</code>s added where needed
+	 */
+	public DatabaseOp getRenamedBranch(int branch) {
+		DatabaseOp result = branches.get(branch);
+		result = ExtendOp.extend(result, BRANCH_COLUMN.getColumn(),
+				Constant.create(Integer.toString(branch + 1), GenericType.NUMERIC), vendor);
+		List<ColumnName> columns = branchColumns.get(branch);
+		for (int i = 0; i < columns.size(); i++) {
+			Expression value = columns.get(i) == null
+					? SQLExpression.create("NULL", GenericType.CHARACTER)
+					: new ColumnExpr(columns.get(i));
+			result = ExtendOp.extend(result, this.columns.get(i + 1).getColumn(),
+					value, vendor);
+		}
+		return ProjectOp.project(result, this.columns);
+	}
+
+	public TableName getTableName() {
+		return null;
+	}
+
+	public boolean hasColumn(ColumnName column) {
+		return columns.contains(column);
+	}
+
+	public ColumnList getColumns() {
+		return columns;
+	}
+
+	public boolean isNullable(ColumnName column) {
+		int index = columns.indexOf(column);
+		return index == -1 ? false : nullable.get(index);
+	}
+
+	public DataType getColumnType(ColumnName column) {
+		int index = columns.indexOf(column);
+		return index == -1 ? null : columnTypes.get(index);
+	}
+
+	public Collection<ColumnList> getUniqueKeys() {
+		return Collections.emptySet();
+	}
+
+	public void accept(OpVisitor visitor) {
+		if (visitor.visitEnter(this)) {
+			for (DatabaseOp branch: branches) {
+				branch.accept(visitor);
+			}
+		}
+		visitor.visitLeave(this);
+	}
+
+	@Override
+	public String toString() {
+		return "Union(" + branchColumns + ", " + branches + ")";
+	}
+
+	@Override
+	public int hashCode() {
+		return branches.hashCode() ^ branchColumns.hashCode() ^ 6673;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof UnionOp)) return false;
+		UnionOp other = (UnionOp) o;
+		return branches.equals(other.branches) && branchColumns.equals(other.branchColumns);
+	}
+}
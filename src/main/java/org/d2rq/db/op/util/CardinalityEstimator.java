@@ -0,0 +1,218 @@
+package org.d2rq.db.op.util;
+
+import java.util.Set;
+
+import org.d2rq.db.SQLConnection;
+import org.d2rq.db.expr.ColumnListEquality;
+import org.d2rq.db.expr.Conjunction;
+import org.d2rq.db.expr.Disjunction;
+import org.d2rq.db.expr.Equality;
+import org.d2rq.db.expr.Expression;
+import org.d2rq.db.expr.InList;
+import org.d2rq.db.expr.NotNull;
+import org.d2rq.db.op.AliasOp;
+import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.op.EmptyOp;
+import org.d2rq.db.op.GroupOp;
+import org.d2rq.db.op.InnerJoinOp;
+import org.d2rq.db.op.LeftJoinOp;
+import org.d2rq.db.op.LimitOp;
+import org.d2rq.db.op.NamedOp;
+import org.d2rq.db.op.SelectOp;
+import org.d2rq.db.op.TableOp;
+import org.d2rq.db.op.UnionOp;
+import org.d2rq.db.schema.ColumnList;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.schema.IdentifierList;
+import org.d2rq.db.schema.TableName;
+import org.d2rq.db.schema.TableStatistics;
+
+/**
+ * Estimates the number of rows of a {@link DatabaseOp}, and the number
+ * of distinct values of its columns, from the {@link TableStatistics}
+ * of its tables.
+ *
+ * Selection conditions are assumed to be independent. An equality with
+ * a constant selects one of the column's distinct values, and a join
+ * condition the matches of the side with more distinct values, as in
+ * a classic System R style cost model. Conditions that can't be
+ * analyzed select a third of the rows.
+ */
+public class CardinalityEstimator {
+	public final static double DEFAULT_ROW_COUNT = 1000;
+	private final static double DEFAULT_SELECTIVITY = 1.0 / 3;
+	private final static double NOT_NULL_SELECTIVITY = 0.9;
+	private final static double DISTINCT_RATIO = 0.1;
+
+	private final SQLConnection sqlConnection;
+
+	public CardinalityEstimator(SQLConnection sqlConnection) {
+		this.sqlConnection = sqlConnection;
+	}
+
+	public double getRowCount(DatabaseOp op) {
+		if (op == DatabaseOp.TRUE) return 1;
+		if (op instanceof EmptyOp) return 0;
+		if (op instanceof TableOp) {
+			long result = statistics((TableOp) op).getRowCount();
+			return result == TableStatistics.UNKNOWN ? DEFAULT_ROW_COUNT : result;
+		}
+		if (op instanceof AliasOp) {
+			return getRowCount(((AliasOp) op).getOriginal());
+		}
+		if (op instanceof SelectOp) {
+			SelectOp select = (SelectOp) op;
+			return getRowCount(select.getWrapped()) *
+					getSelectivity(select.getCondition(), select.getWrapped());
+		}
+		if (op instanceof LimitOp) {
+			LimitOp limit = (LimitOp) op;
+			double result = Math.max(0, getRowCount(limit.getWrapped()) - limit.getOffset());
+			return limit.getLimit() == LimitOp.NO_LIMIT ? result : Math.min(result, limit.getLimit());
+		}
+		if (op instanceof GroupOp) {
+			GroupOp group = (GroupOp) op;
+			if (group.getGroupBy().isEmpty()) return 1;
+			double result = 1;
+			for (ColumnName column: group.getGroupBy()) {
+				result *= getDistinctValues(group.getWrapped(), column);
+			}
+			return Math.min(result, getRowCount(group.getWrapped()));
+		}
+		if (op instanceof DatabaseOp.Wrapper) {
+			return getRowCount(((DatabaseOp.Wrapper) op).getWrapped());
+		}
+		if (op instanceof InnerJoinOp) {
+			InnerJoinOp join = (InnerJoinOp) op;
+			double result = 1;
+			for (NamedOp table: join.getTables()) {
+				result *= getRowCount(table);
+			}
+			for (ColumnListEquality condition: join.getJoinConditions()) {
+				result *= getSelectivity(condition, join);
+			}
+			return result;
+		}
+		if (op instanceof LeftJoinOp) {
+			LeftJoinOp join = (LeftJoinOp) op;
+			double left = getRowCount(join.getLeft());
+			double joined = left * getRowCount(join.getRight()) *
+					getSelectivity(join.getCondition(), join);
+			return Math.max(left, joined);
+		}
+		if (op instanceof UnionOp) {
+			double result = 0;
+			for (DatabaseOp branch: ((UnionOp) op).getBranches()) {
+				result += getRowCount(branch);
+			}
+			return result;
+		}
+		return DEFAULT_ROW_COUNT;
+	}
+
+	/**
+	 * @return Estimated number of distinct non-null values of the column
+	 */
+	public double getDistinctValues(DatabaseOp op, ColumnName column) {
+		// Joins don't cap the result by their own row count, as that
+		// is computed from the distinct values of the join columns
+		if (op instanceof InnerJoinOp) {
+			for (NamedOp table: ((InnerJoinOp) op).getTables()) {
+				if (table.hasColumn(column)) return getDistinctValues(table, column);
+			}
+			return DEFAULT_ROW_COUNT;
+		}
+		if (op instanceof LeftJoinOp) {
+			LeftJoinOp join = (LeftJoinOp) op;
+			return getDistinctValues(join.getLeft().hasColumn(column) 
+					? join.getLeft() : join.getRight(), column);
+		}
+		if (op instanceof AliasOp) {
+			AliasOp alias = (AliasOp) op;
+			if (!alias.hasColumn(column)) return getRowCount(op);
+			return getDistinctValues(alias.getOriginal(),
+					alias.getOriginalColumnName(column));
+		}
+		double rows = getRowCount(op);
+		if (!op.hasColumn(column)) return rows;
+		if (op instanceof TableOp) {
+			long result = statistics((TableOp) op).getDistinctValues(column.getColumn());
+			if (result != TableStatistics.UNKNOWN) return Math.min(result, rows);
+			for (ColumnList key: op.getUniqueKeys()) {
+				if (key.size() == 1 && key.contains(column)) return rows;
+			}
+			return Math.max(1, rows * DISTINCT_RATIO);
+		}
+		if (op instanceof DatabaseOp.Wrapper) {
+			DatabaseOp wrapped = ((DatabaseOp.Wrapper) op).getWrapped();
+			if (!wrapped.hasColumn(column)) return rows;
+			return Math.min(rows, getDistinctValues(wrapped, column));
+		}
+		return rows;
+	}
+
+	/**
+	 * @return Estimated fraction of the rows of the op that satisfy
+	 * 		the condition
+	 */
+	public double getSelectivity(Expression condition, DatabaseOp op) {
+		if (condition.isTrue()) return 1;
+		if (condition.isFalse()) return 0;
+		Set<ColumnName> columns = condition.getColumns();
+		if (condition instanceof Conjunction) {
+			double result = 1;
+			for (Expression operand: ((Conjunction) condition).getOperands()) {
+				result *= getSelectivity(operand, op);
+			}
+			return result;
+		}
+		if (condition instanceof Disjunction) {
+			double result = 0;
+			for (Expression operand: ((Disjunction) condition).getOperands()) {
+				result += getSelectivity(operand, op);
+			}
+			return Math.min(1, result);
+		}
+		if (condition instanceof Equality && columns.size() == 1) {
+			return 1 / Math.max(1, getDistinctValues(op, columns.iterator().next()));
+		}
+		if (condition instanceof Equality && columns.size() == 2) {
+			double max = 1;
+			for (ColumnName column: columns) {
+				max = Math.max(max, getDistinctValues(op, column));
+			}
+			return 1 / max;
+		}
+		if (condition instanceof InList) {
+			Expression[] operands = ((InList) condition).getOperands();
+			if (operands[0].getColumns().size() == 1) {
+				return Math.min(1, (operands.length - 1) / Math.max(1,
+						getDistinctValues(op, operands[0].getColumns().iterator().next())));
+			}
+		}
+		if (condition instanceof ColumnListEquality) {
+			ColumnListEquality equality = (ColumnListEquality) condition;
+			return 1 / Math.max(
+					getDistinctValues(op, equality.getTableName1(), equality.getColumns1()),
+					getDistinctValues(op, equality.getTableName2(), equality.getColumns2()));
+		}
+		if (condition instanceof NotNull) {
+			return NOT_NULL_SELECTIVITY;
+		}
+		return DEFAULT_SELECTIVITY;
+	}
+
+	private double getDistinctValues(DatabaseOp op,
+			TableName table, IdentifierList columns) {
+		double result = 1;
+		for (int i = 0; i < columns.size(); i++) {
+			result = Math.max(result, getDistinctValues(op,
+					ColumnName.create(table, columns.get(i))));
+		}
+		return result;
+	}
+
+	private TableStatistics statistics(TableOp table) {
+		return sqlConnection.getTableStatistics(table.getTableName());
+	}
+}
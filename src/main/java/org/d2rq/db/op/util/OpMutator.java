@@ -11,7 +11,9 @@ import org.d2rq.db.op.DatabaseOp;
 import org.d2rq.db.op.DistinctOp;
 import org.d2rq.db.op.EmptyOp;
 import org.d2rq.db.op.ExtendOp;
+import org.d2rq.db.op.GroupOp;
 import org.d2rq.db.op.InnerJoinOp;
+import org.d2rq.db.op.LeftJoinOp;
 import org.d2rq.db.op.LimitOp;
 import org.d2rq.db.op.NamedOp;
 import org.d2rq.db.op.OpVisitor;
@@ -20,6 +22,7 @@ import org.d2rq.db.op.ProjectOp;
 import org.d2rq.db.op.SQLOp;
 import org.d2rq.db.op.SelectOp;
 import org.d2rq.db.op.TableOp;
+import org.d2rq.db.op.UnionOp;
 
 
 public abstract class OpMutator {
@@ -44,17 +47,35 @@ public abstract class OpMutator {
 			}
 			public void visitLeave(InnerJoinOp table) {
 				List<NamedOp> newChildren = new ArrayList<NamedOp>();
-				for (DatabaseOp newChild: resultStack) {
+				// Only pop our own children; a left join sibling may be on the stack
+				List<DatabaseOp> popped = new ArrayList<DatabaseOp>();
+				for (int i = 0; i < table.getTables().size(); i++) {
+					popped.add(0, resultStack.pop());
+				}
+				for (DatabaseOp newChild: popped) {
 					if (newChild instanceof NamedOp) {
 						newChildren.add((NamedOp) newChild);
 					} else {
 						throw new IllegalArgumentException("Only NamedTable allowed in InnerJoin; offending child: " + newChild);
 					}
 				}
-				resultStack.clear();
 				resultStack.push(OpMutator.this.visitLeave(
 						table, newChildren));
 			}
+			public boolean visitEnter(LeftJoinOp table) { 
+				if (OpMutator.this.visitEnter(table)) {
+					return true;
+				} else {
+					resultStack.push(table.getLeft());
+					resultStack.push(table.getRight());
+					return false;
+				}
+			}
+			public void visitLeave(LeftJoinOp table) {
+				DatabaseOp right = resultStack.pop();
+				DatabaseOp left = resultStack.pop();
+				resultStack.push(OpMutator.this.visitLeave(table, left, right));
+			}
 			public boolean visitEnter(SelectOp table) {
 				if (OpMutator.this.visitEnter(table)) {
 					return true;
@@ -139,6 +160,35 @@ public abstract class OpMutator {
 				resultStack.push(OpMutator.this.visitLeave(
 						table, resultStack.pop()));
 			}
+			public boolean visitEnter(GroupOp table) {
+				if (OpMutator.this.visitEnter(table)) {
+					return true;
+				} else {
+					resultStack.push(table.getWrapped());
+					return false;
+				}
+			}
+			public void visitLeave(GroupOp table) {
+				resultStack.push(OpMutator.this.visitLeave(
+						table, resultStack.pop()));
+			}
+			public boolean visitEnter(UnionOp table) {
+				if (OpMutator.this.visitEnter(table)) {
+					return true;
+				} else {
+					for (DatabaseOp branch: table.getBranches()) {
+						resultStack.push(branch);
+					}
+					return false;
+				}
+			}
+			public void visitLeave(UnionOp table) {
+				List<DatabaseOp> newBranches = new ArrayList<DatabaseOp>();
+				for (int i = 0; i < table.getBranches().size(); i++) {
+					newBranches.add(0, resultStack.pop());
+				}
+				resultStack.push(OpMutator.this.visitLeave(table, newBranches));
+			}
 			public boolean visitEnter(AssertUniqueKeyOp table) {
 				if (OpMutator.this.visitEnter(table)) {
 					return true;
@@ -185,6 +235,17 @@ public abstract class OpMutator {
 				original.getJoinConditions());
 	}
 
+	public boolean visitEnter(LeftJoinOp original) {
+		return true;
+	}
+	
+	public DatabaseOp visitLeave(LeftJoinOp original, DatabaseOp left, DatabaseOp right) {
+		if (!(right instanceof NamedOp)) {
+			throw new IllegalArgumentException("Only NamedTable allowed on right side of LeftJoin; offending child: " + right);
+		}
+		return LeftJoinOp.join(left, (NamedOp) right, original.getCondition());
+	}
+
 	public boolean visitEnter(SelectOp original) {
 		return true;
 	}
@@ -231,8 +292,8 @@ public abstract class OpMutator {
 	}
 
 	public DatabaseOp visitLeave(LimitOp original, DatabaseOp child) {
-		return LimitOp.limit(child, 
-				original.getLimit(), original.getLimitInverse());
+		return LimitOp.limit(child, original.getLimit(), 
+				original.getLimitInverse(), original.getOffset());
 	}
 	
 	public boolean visitEnter(DistinctOp original) {
@@ -243,6 +304,24 @@ public abstract class OpMutator {
 		return new DistinctOp(child);
 	}
 	
+	public boolean visitEnter(GroupOp original) {
+		return true;
+	}
+
+	public DatabaseOp visitLeave(GroupOp original, DatabaseOp child) {
+		return GroupOp.group(child, original.getGroupBy().asList(), 
+				original.getAggregates(), original.getVendor());
+	}
+	
+	public boolean visitEnter(UnionOp original) {
+		return true;
+	}
+
+	public DatabaseOp visitLeave(UnionOp original, List<DatabaseOp> newBranches) {
+		return UnionOp.union(newBranches, original.getBranchColumns(), 
+				original.getVendor());
+	}
+	
 	public boolean visitEnter(AssertUniqueKeyOp original) {
 		return true;
 	}
@@ -11,7 +11,9 @@ import org.d2rq.db.op.DatabaseOp;
 import org.d2rq.db.op.DistinctOp;
 import org.d2rq.db.op.EmptyOp;
 import org.d2rq.db.op.ExtendOp;
+import org.d2rq.db.op.GroupOp;
 import org.d2rq.db.op.InnerJoinOp;
+import org.d2rq.db.op.LeftJoinOp;
 import org.d2rq.db.op.LimitOp;
 import org.d2rq.db.op.NamedOp;
 import org.d2rq.db.op.OrderOp;
@@ -19,6 +21,7 @@ import org.d2rq.db.op.ProjectOp;
 import org.d2rq.db.op.SQLOp;
 import org.d2rq.db.op.SelectOp;
 import org.d2rq.db.op.TableOp;
+import org.d2rq.db.op.UnionOp;
 import org.d2rq.db.renamer.Renamer;
 import org.d2rq.db.schema.ColumnName;
 
@@ -71,6 +74,37 @@ public class OpProjecter extends OpMutator {
 		return wrap(original);
 	}
 
+	@Override
+	public boolean visitEnter(LeftJoinOp original) {
+		return false;
+	}
+
+	@Override
+	public DatabaseOp visitLeave(LeftJoinOp original,
+			DatabaseOp left, DatabaseOp right) {
+		return wrap(original);
+	}
+
+	@Override
+	public boolean visitEnter(UnionOp original) {
+		return false;
+	}
+
+	@Override
+	public DatabaseOp visitLeave(UnionOp original, List<DatabaseOp> branches) {
+		return wrap(original);
+	}
+
+	@Override
+	public boolean visitEnter(GroupOp original) {
+		return false;
+	}
+
+	@Override
+	public DatabaseOp visitLeave(GroupOp original, DatabaseOp child) {
+		return wrap(original);
+	}
+
 	@Override
 	public boolean visitEnter(SelectOp original) {
 		return false;
@@ -1,16 +1,25 @@
 package org.d2rq.db.op.util;
 
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.d2rq.db.expr.Aggregate;
 import org.d2rq.db.op.AliasOp;
+import org.d2rq.db.op.AssertUniqueKeyOp;
 import org.d2rq.db.op.DatabaseOp;
 import org.d2rq.db.op.ExtendOp;
+import org.d2rq.db.op.GroupOp;
 import org.d2rq.db.op.InnerJoinOp;
+import org.d2rq.db.op.LeftJoinOp;
 import org.d2rq.db.op.NamedOp;
 import org.d2rq.db.op.OrderOp;
 import org.d2rq.db.op.ProjectOp;
 import org.d2rq.db.op.SelectOp;
+import org.d2rq.db.op.UnionOp;
 import org.d2rq.db.renamer.Renamer;
+import org.d2rq.db.schema.Identifier;
 
 
 /**
@@ -35,6 +44,12 @@ public class OpRenamer extends OpMutator {
 				renamer.applyToJoinConditions(table.getJoinConditions()));
 	}
 
+	@Override
+	public DatabaseOp visitLeave(LeftJoinOp table, DatabaseOp left, DatabaseOp right) {
+		return LeftJoinOp.join(left, (NamedOp) right, 
+				renamer.applyTo(table.getCondition()));
+	}
+
 	@Override
 	public DatabaseOp visitLeave(SelectOp table, DatabaseOp child) {
 		return SelectOp.select(child, renamer.applyTo(table.getCondition()));
@@ -53,6 +68,31 @@ public class OpRenamer extends OpMutator {
 				table.getVendor());
 	}
 
+	@Override
+	public DatabaseOp visitLeave(GroupOp table, DatabaseOp child) {
+		Map<Identifier,Aggregate> aggregates = new LinkedHashMap<Identifier,Aggregate>();
+		for (Identifier column: table.getAggregates().keySet()) {
+			aggregates.put(column, 
+					(Aggregate) renamer.applyTo(table.getAggregates().get(column)));
+		}
+		return GroupOp.group(child, renamer.applyToColumns(table.getGroupBy().asList()),
+				aggregates, table.getVendor());
+	}
+
+	/**
+	 * The columns of a union are its own, and the mapping to the
+	 * columns of its branches can't be renamed.
+	 */
+	@Override
+	public boolean visitEnter(UnionOp table) {
+		return false;
+	}
+
+	@Override
+	public DatabaseOp visitLeave(UnionOp table, List<DatabaseOp> branches) {
+		return table;
+	}
+
 	@Override
 	public boolean visitEnter(AliasOp table) {
 		return false;
@@ -68,4 +108,9 @@ public class OpRenamer extends OpMutator {
 	public DatabaseOp visitLeave(OrderOp table, DatabaseOp child) {
 		return new OrderOp(renamer.applyTo(table.getOrderBy()), child);
 	}
+
+	@Override
+	public DatabaseOp visitLeave(AssertUniqueKeyOp table, DatabaseOp child) {
+		return new AssertUniqueKeyOp(child, renamer.applyTo(table.getKey()));
+	}
 }
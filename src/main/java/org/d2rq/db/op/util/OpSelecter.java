@@ -1,17 +1,21 @@
 package org.d2rq.db.op.util;
 
 import java.util.Collection;
+import java.util.List;
 
 import org.d2rq.db.expr.Expression;
 import org.d2rq.db.op.AliasOp;
 import org.d2rq.db.op.DatabaseOp;
 import org.d2rq.db.op.EmptyOp;
 import org.d2rq.db.op.ExtendOp;
+import org.d2rq.db.op.GroupOp;
 import org.d2rq.db.op.InnerJoinOp;
+import org.d2rq.db.op.LeftJoinOp;
 import org.d2rq.db.op.NamedOp;
 import org.d2rq.db.op.SQLOp;
 import org.d2rq.db.op.SelectOp;
 import org.d2rq.db.op.TableOp;
+import org.d2rq.db.op.UnionOp;
 import org.d2rq.db.schema.ColumnName;
 
 
@@ -47,6 +51,37 @@ public class OpSelecter extends OpMutator {
 		return wrap(original);
 	}
 
+	@Override
+	public boolean visitEnter(LeftJoinOp original) {
+		return false;
+	}
+
+	@Override
+	public DatabaseOp visitLeave(LeftJoinOp original,
+			DatabaseOp left, DatabaseOp right) {
+		return wrap(original);
+	}
+
+	@Override
+	public boolean visitEnter(UnionOp original) {
+		return false;
+	}
+
+	@Override
+	public DatabaseOp visitLeave(UnionOp original, List<DatabaseOp> branches) {
+		return wrap(original);
+	}
+
+	@Override
+	public boolean visitEnter(GroupOp original) {
+		return false;
+	}
+
+	@Override
+	public DatabaseOp visitLeave(GroupOp original, DatabaseOp child) {
+		return wrap(original);
+	}
+
 	@Override
 	public boolean visitEnter(SelectOp original) {
 		return false;
@@ -54,7 +89,7 @@ public class OpSelecter extends OpMutator {
 
 	@Override
 	public DatabaseOp visitLeave(SelectOp original, DatabaseOp child) {
-		return SelectOp.select(original, expression.and(original.getCondition()));
+		return SelectOp.select(original.getWrapped(), expression.and(original.getCondition()));
 	}
 
 	/**
@@ -1,19 +1,27 @@
 package org.d2rq.db.op.util;
 
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Stack;
 
 import org.d2rq.db.expr.Expression;
 import org.d2rq.db.op.AliasOp;
 import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.op.DistinctOp;
 import org.d2rq.db.op.EmptyOp;
 import org.d2rq.db.op.ExtendOp;
+import org.d2rq.db.op.GroupOp;
 import org.d2rq.db.op.InnerJoinOp;
+import org.d2rq.db.op.LeftJoinOp;
 import org.d2rq.db.op.LimitOp;
 import org.d2rq.db.op.OpVisitor;
 import org.d2rq.db.op.SQLOp;
 import org.d2rq.db.op.SelectOp;
 import org.d2rq.db.op.TableOp;
+import org.d2rq.db.op.UnionOp;
+import org.d2rq.db.schema.ColumnList;
 import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.schema.TableName;
 
 /**
  * Various utility functions for working with {@link DatabaseOp} instances.
@@ -48,6 +56,20 @@ public class OpUtil {
 				result = true;
 				return false;
 			}
+			@Override
+			public boolean visitEnter(UnionOp table) {
+				boolean allEmpty = true;
+				for (DatabaseOp branch: table.getBranches()) {
+					allEmpty &= isEmpty(branch);
+				}
+				if (allEmpty) result = true;
+				return false;
+			}
+			@Override
+			public boolean visitEnter(GroupOp table) {
+				// Aggregates over no rows still give one row
+				return !table.getGroupBy().isEmpty();
+			}
 		}.getResult();
 	}
 	
@@ -71,6 +93,27 @@ public class OpUtil {
 				resultStack.push(result);
 			}
 			@Override
+			public boolean visitEnter(LeftJoinOp table) {
+				return false;
+			}
+			@Override
+			public void visitLeave(LeftJoinOp table) {
+				resultStack.push(false);
+			}
+			@Override
+			public void visitLeave(GroupOp table) {
+				resultStack.pop();
+				resultStack.push(false);
+			}
+			@Override
+			public boolean visitEnter(UnionOp table) {
+				return false;
+			}
+			@Override
+			public void visitLeave(UnionOp table) {
+				resultStack.push(false);
+			}
+			@Override
 			public void visitLeave(SelectOp table) {
 				resultStack.push(resultStack.pop() && table.getCondition().isTrue());
 			}
@@ -177,6 +220,84 @@ public class OpUtil {
 		}.getResult();
 	}
 	
+	/**
+	 * @return <code>true</code> if the table is known to have no duplicate
+	 * 		rows, because its columns contain a unique key that cannot
+	 * 		be <code>NULL</code>
+	 */
+	public static boolean isDuplicateFree(DatabaseOp op) {
+		for (ColumnList key: op.getUniqueKeys()) {
+			if (!op.getColumns().containsAll(key)) continue;
+			boolean nullable = false;
+			for (ColumnName column: key) {
+				nullable |= op.isNullable(column);
+			}
+			if (!nullable) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes {@link DistinctOp}s whose input is duplicate-free anyway,
+	 * sparing the database the sort or hash for <code>DISTINCT</code>.
+	 */
+	public static DatabaseOp removeRedundantDistincts(DatabaseOp op) {
+		final boolean[] hasDistinct = {false};
+		op.accept(new OpVisitor.Default(true) {
+			@Override
+			public boolean visitEnter(DistinctOp table) {
+				hasDistinct[0] = true;
+				return false;
+			}
+		});
+		if (!hasDistinct[0]) return op;
+		return new OpMutator(op) {
+			@Override
+			public DatabaseOp visitLeave(DistinctOp original, DatabaseOp child) {
+				if (isDuplicateFree(child)) return child;
+				return super.visitLeave(original, child);
+			}
+		}.getResult();
+	}
+
+	/**
+	 * @return The names of the base tables read by the op, or
+	 * 		<code>null</code> if it contains SQL queries that could
+	 * 		read any table
+	 */
+	public static Set<TableName> getTableNames(DatabaseOp op) {
+		final Set<TableName> result = new HashSet<TableName>();
+		final boolean[] unknown = {false};
+		op.accept(new OpVisitor.Default(true) {
+			@Override
+			public void visit(TableOp table) {
+				result.add(table.getTableName());
+			}
+			@Override
+			public void visit(SQLOp table) {
+				unknown[0] = true;
+			}
+		});
+		return unknown[0] ? null : result;
+	}
+
+	/**
+	 * @return <code>true</code> if the op contains a {@link LimitOp}.
+	 * 		Conditions can't be added to such an op, because
+	 * 		{@link OpSelecter} would apply them before the limit.
+	 */
+	public static boolean hasLimit(DatabaseOp op) {
+		final boolean[] result = {false};
+		op.accept(new OpVisitor.Default(true) {
+			@Override
+			public boolean visitEnter(LimitOp table) {
+				result[0] = true;
+				return false;
+			}
+		});
+		return result[0];
+	}
+
 	/**
 	 * Cannot be instantiated, just static methods.
 	 */
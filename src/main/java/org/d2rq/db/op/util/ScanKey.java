@@ -0,0 +1,67 @@
+package org.d2rq.db.op.util;
+
+import java.util.Collection;
+
+import org.d2rq.db.SQLConnection;
+import org.d2rq.db.op.AssertUniqueKeyOp;
+import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.op.ProjectOp;
+import org.d2rq.db.schema.ColumnName;
+
+/**
+ * Identifies the rows that a relation reads from a database, regardless
+ * of the columns it projects: the connection, and the {@link DatabaseOp}
+ * below its projection. Relations with equal keys can be answered by
+ * one query that projects the union of their columns.
+ */
+public class ScanKey {
+
+	/**
+	 * @return The op below any projections and unique key assertions
+	 */
+	public static DatabaseOp stripProjections(DatabaseOp op) {
+		while (op instanceof ProjectOp || op instanceof AssertUniqueKeyOp) {
+			op = ((DatabaseOp.Wrapper) op).getWrapped();
+		}
+		return op;
+	}
+
+	/**
+	 * @return Projected columns of the op, or <code>null</code>
+	 * 		if it isn't projected, that is, all columns are required
+	 */
+	public static Collection<ColumnName> getProjection(DatabaseOp op) {
+		while (op instanceof AssertUniqueKeyOp) {
+			op = ((AssertUniqueKeyOp) op).getWrapped();
+		}
+		return (op instanceof ProjectOp) ? op.getColumns().asList() : null;
+	}
+
+	private final SQLConnection sqlConnection;
+	private final DatabaseOp core;
+
+	/**
+	 * @param core An op without projection, see {@link #stripProjections(DatabaseOp)}
+	 */
+	public ScanKey(SQLConnection sqlConnection, DatabaseOp core) {
+		this.sqlConnection = sqlConnection;
+		this.core = core;
+	}
+
+	@Override
+	public int hashCode() {
+		return sqlConnection.hashCode() ^ core.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ScanKey)) return false;
+		ScanKey other = (ScanKey) o;
+		return sqlConnection.equals(other.sqlConnection) && core.equals(other.core);
+	}
+
+	@Override
+	public String toString() {
+		return "ScanKey(" + core + ")";
+	}
+}
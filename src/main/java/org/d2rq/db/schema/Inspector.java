@@ -36,6 +36,7 @@ public class Inspector {
 	private final Connection connection;
 	private final Vendor vendor;
 	private final DatabaseMetaData metadata;
+	private boolean countRows = false;
  
 	public Inspector(Connection connection, Vendor vendor) {
 		this.connection = connection;
@@ -47,6 +48,15 @@ public class Inspector {
 		}
 	}
 
+	/**
+	 * @param countRows Count the rows of tables whose size isn't known
+	 * 		from index statistics? This runs a <code>COUNT(*)</code>
+	 * 		query, which can take long on large tables.
+	 */
+	public void setCountRows(boolean countRows) {
+		this.countRows = countRows;
+	}
+
 	private String name(Identifier identifier) {
 		if (identifier == null) return null;
 		return identifier.getCanonicalName();
@@ -247,6 +257,95 @@ public class Inspector {
 		}
 	}
 	
+	/**
+	 * Estimates the size of a table from the index statistics reported
+	 * by the JDBC driver. Single-column indexes give the number of
+	 * distinct values of their column. If the driver doesn't report
+	 * the row count, then the largest cardinality of a unique index
+	 * is used instead. Failing that, the rows are counted if enabled
+	 * through {@link #setCountRows(boolean)}, and the row count is
+	 * unknown otherwise. Errors are logged, and leave the estimates
+	 * unknown, as statistics are optional.
+	 */
+	public TableStatistics getTableStatistics(TableName table) {
+		long rowCount = TableStatistics.UNKNOWN;
+		long largestUniqueIndex = TableStatistics.UNKNOWN;
+		Map<String,Identifier> firstColumns = new HashMap<String,Identifier>();
+		Map<String,Integer> columnCounts = new HashMap<String,Integer>();
+		Map<String,Long> cardinalities = new HashMap<String,Long>();
+		Set<String> uniqueIndexes = new HashSet<String>();
+		try {
+			// Approximate, so that Oracle doesn't invoke ANALYZE; see getUniqueKeys()
+			ResultSet rs = metadata.getIndexInfo(
+					name(table.getCatalog()),
+					name(table.getSchema()),
+					name(table.getTable()), false, true);
+			try {
+				while (rs.next()) {
+					long cardinality = rs.getLong("CARDINALITY");
+					if (rs.wasNull() || cardinality <= 0) cardinality = TableStatistics.UNKNOWN;
+					if (rs.getShort("TYPE") == DatabaseMetaData.tableIndexStatistic) {
+						rowCount = cardinality;
+						continue;
+					}
+					String indexName = rs.getString("INDEX_NAME");
+					String column = rs.getString("COLUMN_NAME");
+					if (indexName == null || column == null) continue;
+					Integer count = columnCounts.get(indexName);
+					columnCounts.put(indexName, count == null ? 1 : count + 1);
+					if (rs.getShort("ORDINAL_POSITION") == 1) {
+						firstColumns.put(indexName, Identifier.createDelimited(column));
+					}
+					cardinalities.put(indexName, cardinality);
+					if (!rs.getBoolean("NON_UNIQUE")) {
+						uniqueIndexes.add(indexName);
+						largestUniqueIndex = Math.max(largestUniqueIndex, cardinality);
+					}
+				}
+			} finally {
+				rs.close();
+			}
+		} catch (SQLException ex) {
+			log.warn("Failed to read index statistics of " + table + ": " + ex.getMessage());
+		}
+		if (rowCount == TableStatistics.UNKNOWN) {
+			// A unique index has as many entries as the table has rows
+			rowCount = largestUniqueIndex;
+		}
+		if (rowCount == TableStatistics.UNKNOWN && countRows) {
+			rowCount = countRows(table);
+		}
+		Map<Identifier,Long> distinctValues = new HashMap<Identifier,Long>();
+		for (String indexName: firstColumns.keySet()) {
+			if (columnCounts.get(indexName) != 1) continue;
+			long distinct = uniqueIndexes.contains(indexName) 
+					? rowCount : cardinalities.get(indexName);
+			if (distinct == TableStatistics.UNKNOWN) continue;
+			distinctValues.put(firstColumns.get(indexName), distinct);
+		}
+		return new TableStatistics(table, rowCount, distinctValues, 
+				new HashSet<Identifier>(firstColumns.values()));
+	}
+	
+	private long countRows(TableName table) {
+		try {
+			Statement stmt = connection.createStatement();
+			try {
+				ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + vendor.toString(table));
+				try {
+					return rs.next() ? rs.getLong(1) : TableStatistics.UNKNOWN;
+				} finally {
+					rs.close();
+				}
+			} finally {
+				stmt.close();
+			}
+		} catch (SQLException ex) {
+			log.warn("Failed to count rows of " + table + ": " + ex.getMessage());
+			return TableStatistics.UNKNOWN;
+		}
+	}
+	
 	/**
 	 * Returns a list of foreign keys for a table.
 	 * 
@@ -0,0 +1,60 @@
+package org.d2rq.db.schema;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Size estimates for a table, as reported by the database's index
+ * statistics, or counted. Estimates that are not available are
+ * reported as {@link #UNKNOWN}.
+ */
+public class TableStatistics {
+	public final static long UNKNOWN = -1;
+
+	private final TableName name;
+	private final long rowCount;
+	private final Map<Identifier,Long> distinctValues;
+	private final Set<Identifier> indexedColumns;
+
+	/**
+	 * @param rowCount Number of rows, or {@link #UNKNOWN}
+	 * @param distinctValues Number of distinct values of some columns
+	 * @param indexedColumns Columns that are the first column of some index
+	 */
+	public TableStatistics(TableName name, long rowCount,
+			Map<Identifier,Long> distinctValues, Set<Identifier> indexedColumns) {
+		this.name = name;
+		this.rowCount = rowCount;
+		this.distinctValues = distinctValues;
+		this.indexedColumns = indexedColumns;
+	}
+
+	public TableName getName() {
+		return name;
+	}
+
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * @return Estimated number of distinct values, or {@link #UNKNOWN}
+	 */
+	public long getDistinctValues(Identifier column) {
+		Long result = distinctValues.get(column);
+		return result == null ? UNKNOWN : result;
+	}
+
+	/**
+	 * @return <code>true</code> if lookups by the column can use an index
+	 */
+	public boolean isIndexed(Identifier column) {
+		return indexedColumns.contains(column);
+	}
+
+	@Override
+	public String toString() {
+		return "TableStatistics(" + name + ", rows=" + rowCount +
+				", distinct=" + distinctValues + ", indexed=" + indexedColumns + ")";
+	}
+}
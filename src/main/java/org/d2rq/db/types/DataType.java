@@ -1,5 +1,6 @@
 package org.d2rq.db.types;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
@@ -91,6 +92,34 @@ public abstract class DataType {
 		return vendor.quoteStringLiteral(value);
 	}
 
+	/**
+	 * Checks whether a value can be passed to the database as a parameter
+	 * of a prepared statement, using {@link #bindParameter}, instead of
+	 * being inlined using {@link #toSQLLiteral(String, Vendor)}. The bound
+	 * parameter must compare to columns of this type exactly like the
+	 * literal would.
+	 * 
+	 * @param value A value
+	 * @return <code>true</code> if the value can be bound as a parameter
+	 */
+	public boolean isBindable(String value) {
+		return false;
+	}
+	
+	/**
+	 * Binds a value to a parameter of a prepared statement. Only
+	 * called if {@link #isBindable(String)} is <code>true</code>.
+	 * 
+	 * @param statement A prepared statement
+	 * @param index The parameter index; leftmost parameter is 1
+	 * @param value A value
+	 * @throws SQLException
+	 */
+	public void bindParameter(PreparedStatement statement, int index, String value) 
+	throws SQLException {
+		statement.setString(index, value);
+	}
+
 	/**
 	 * Retrieves a string value in preferred format (canonical form
 	 * of the closest XSD type) from a SQL ResultSet.
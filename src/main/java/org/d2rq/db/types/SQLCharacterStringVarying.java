@@ -14,4 +14,9 @@ public class SQLCharacterStringVarying extends DataType {
 	public boolean supportsDistinct() {
 		return supportsDistinct;
 	}
+	
+	@Override
+	public boolean isBindable(String value) {
+		return true;
+	}
 }
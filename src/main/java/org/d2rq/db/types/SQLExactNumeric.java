@@ -1,6 +1,7 @@
 package org.d2rq.db.types;
 
 import java.math.BigDecimal;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
@@ -12,6 +13,7 @@ import com.hp.hpl.jena.vocabulary.XSD;
 
 public class SQLExactNumeric extends DataType {
 	private final String rdfType;
+	private final boolean isInteger;
 	
 	/**
 	 * @param jdbcType Constant from {@link java.sql.Types}
@@ -32,6 +34,7 @@ public class SQLExactNumeric extends DataType {
 		case Types.BIGINT:   rdfType = XSD.integer.getURI(); break;
 		default: rdfType = XSD.decimal.getURI();
 		}
+		isInteger = XSD.integer.getURI().equals(rdfType);
 	}
 	@Override
 	public boolean isIRISafe() {
@@ -52,6 +55,30 @@ public class SQLExactNumeric extends DataType {
 		return num;
 	}
 	@Override
+	public boolean isBindable(String value) {
+		try {
+			BigDecimal number = new BigDecimal(value);
+			// Binding a decimal to an integer column could defeat indexes
+			if (isInteger) {
+				number.longValueExact();
+			}
+			return true;
+		} catch (NumberFormatException ex) {
+			return false;
+		} catch (ArithmeticException ex) {
+			return false;
+		}
+	}
+	@Override
+	public void bindParameter(PreparedStatement statement, int index,
+			String value) throws SQLException {
+		if (isInteger) {
+			statement.setLong(index, new BigDecimal(value).longValueExact());
+		} else {
+			statement.setBigDecimal(index, new BigDecimal(value));
+		}
+	}
+	@Override
 	public String toSQLLiteral(String value, Vendor vendor) {
 		try {
 			return new BigDecimal(value).toString();
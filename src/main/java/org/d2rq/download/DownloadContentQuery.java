@@ -45,6 +45,7 @@ public class DownloadContentQuery {
 	private InputStream resultStream = null;
 	private String mediaType = null;
 	private SQLConnection db = null;
+	private Connection connection = null;
 	
 	/**
 	 * @param downloadRelation The download map to be queried
@@ -77,24 +78,25 @@ public class DownloadContentQuery {
 	}
 	
 	public void close() {
+		if (this.connection == null) return;
 		try {
-			if (this.db != null) {
-				this.db.vendor().beforeClose(db.connection());
-			}
+			this.db.vendor().beforeClose(connection);
 			if (this.statement != null) {
 				this.statement.close();
 				this.statement = null;
 			}
-			if (this.db != null) {
-				this.db.vendor().afterClose(db.connection());
-			}
+			this.db.vendor().afterClose(connection);
 			if (this.resultSet != null) {
 				this.resultSet.close();
 				this.resultSet = null;
 			}
 		} catch (SQLException ex) {
+			db.invalidateConnection(connection);
+			connection = null;
 			throw new D2RQException(ex);
 		}
+		db.releaseConnection(connection);
+		connection = null;
 	}
 	
 	private void execute() {
@@ -108,7 +110,8 @@ public class DownloadContentQuery {
 		SelectStatementBuilder builder = new SelectStatementBuilder(r.getBaseTabular(), db.vendor());
 		String sql = builder.getSQL();
 		int contentColumn = builder.getColumns().indexOf(downloadRelation.getContentDownloadColumn()) + 1;
-		Connection conn = db.connection();
+		Connection conn = db.borrowConnection();
+		connection = conn;
 		try {
 			statement = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
 			log.debug(sql);
@@ -138,6 +141,8 @@ public class DownloadContentQuery {
 				mediaType = row.get(DownloadRelation.MEDIA_TYPE).getLiteralLexicalForm();
 			}
 		} catch (SQLException ex) {
+			db.invalidateConnection(conn);
+			connection = null;
 			throw new D2RQException(ex);
 		}
 	}
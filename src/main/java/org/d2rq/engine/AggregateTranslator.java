@@ -0,0 +1,320 @@
+package org.d2rq.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.algebra.NodeRelationUtil;
+import org.d2rq.db.expr.Aggregate;
+import org.d2rq.db.expr.BinaryCollation;
+import org.d2rq.db.expr.ColumnExpr;
+import org.d2rq.db.expr.Expression;
+import org.d2rq.db.op.AliasOp;
+import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.op.DistinctOp;
+import org.d2rq.db.op.ExtendOp;
+import org.d2rq.db.op.GroupOp;
+import org.d2rq.db.op.LimitOp;
+import org.d2rq.db.op.OpVisitor;
+import org.d2rq.db.renamer.ColumnRenamer;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.schema.Identifier;
+import org.d2rq.db.types.DataType;
+import org.d2rq.db.types.SQLApproximateNumeric;
+import org.d2rq.db.types.SQLCharacterString;
+import org.d2rq.db.types.SQLCharacterStringVarying;
+import org.d2rq.db.types.SQLDate;
+import org.d2rq.db.types.SQLExactNumeric;
+import org.d2rq.db.types.SQLTimestamp;
+import org.d2rq.db.vendor.Vendor;
+import org.d2rq.nodes.BindingMaker;
+import org.d2rq.nodes.FixedNodeMaker;
+import org.d2rq.nodes.NodeMaker;
+import org.d2rq.nodes.TypedNodeMaker;
+import org.d2rq.values.BlankNodeIDValueMaker;
+import org.d2rq.values.ColumnValueMaker;
+import org.d2rq.values.TemplateValueMaker;
+import org.d2rq.values.TemplateValueMaker.ColumnFunction;
+import org.d2rq.values.ValueMaker;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.core.VarExprList;
+import com.hp.hpl.jena.sparql.expr.Expr;
+import com.hp.hpl.jena.sparql.expr.ExprAggregator;
+import com.hp.hpl.jena.sparql.expr.aggregate.AggCount;
+import com.hp.hpl.jena.sparql.expr.aggregate.AggCountVar;
+import com.hp.hpl.jena.sparql.expr.aggregate.AggCountVarDistinct;
+import com.hp.hpl.jena.sparql.expr.aggregate.AggMax;
+import com.hp.hpl.jena.sparql.expr.aggregate.AggMin;
+import com.hp.hpl.jena.sparql.expr.aggregate.AggSum;
+import com.hp.hpl.jena.sparql.expr.aggregate.Aggregator;
+
+/**
+ * Translates a SPARQL <code>GROUP BY</code> with aggregates on a single
+ * {@link NodeRelation} into a {@link GroupOp}, evaluated as a SQL
+ * <code>GROUP BY</code> query.
+ *
+ * Two rows must be in the same SQL group exactly if they produce the
+ * same nodes for the grouping variables. This is the case if the
+ * value makers of these variables are injective: plain column values,
+ * single-column blank node IDs, and URI templates whose columns are
+ * encoded and separated by characters that can't occur in the encoded
+ * values. Character columns are compared in binary collation, because
+ * a case- or accent-insensitive database collation would put different
+ * strings into the same group; if the database has no binary collation,
+ * they are not grouped in SQL.
+ *
+ * Supported are <code>COUNT(*)</code>, <code>COUNT(?x)</code> and
+ * <code>COUNT(DISTINCT ?x)</code>, <code>SUM</code> over
+ * <code>xsd:integer</code> columns, and <code>MIN</code> and
+ * <code>MAX</code> over columns whose SQL order agrees with SPARQL's
+ * order. For anything else, <code>null</code> is returned.
+ */
+public class AggregateTranslator {
+	private final NodeRelation relation;
+
+	public AggregateTranslator(NodeRelation relation) {
+		this.relation = relation;
+	}
+
+	/**
+	 * @param groupVars The grouping variables, without expressions
+	 * @param aggregators The aggregates; each is bound to its own variable
+	 * @return The grouped relation, with bindings for the grouping
+	 * 		variables and the aggregate variables only
+	 */
+	public NodeRelation group(VarExprList groupVars, List<ExprAggregator> aggregators) {
+		if (!groupVars.getExprs().isEmpty()) return null;
+		// Each row must be one solution, or COUNT(*) counts wrong
+		NodeRelation input = new SolutionModifierTranslator(relation).nonNullRows();
+		if (input == null) return null;
+		if (needsAlias(input.getBaseTabular())) {
+			input = alias(input);
+			if (input == null) return null;
+		}
+		DatabaseOp op = input.getBaseTabular();
+		BindingMaker bindingMaker = input.getBindingMaker();
+
+		Map<Var,NodeMaker> nodeMakers = new HashMap<Var,NodeMaker>();
+		Set<ColumnName> groupBy = new TreeSet<ColumnName>();
+		Map<Identifier,Expression> binaryColumns = new LinkedHashMap<Identifier,Expression>();
+		for (Var var: groupVars.getVars()) {
+			// Unbound in all solutions
+			if (!bindingMaker.has(var)) continue;
+			if (bindingMaker.isGuarded(var)) return null;
+			NodeMaker nodeMaker = bindingMaker.get(var);
+			nodeMakers.put(var, nodeMaker);
+			if (nodeMaker instanceof FixedNodeMaker) continue;
+			if (!isInjective(nodeMaker, op)) return null;
+			for (ColumnName column: nodeMaker.getRequiredColumns()) {
+				Expression comparable = comparableExpression(column, op);
+				if (comparable == null) return null;
+				groupBy.add(column);
+				if (comparable instanceof ColumnExpr) continue;
+				// Grouped by the binary value too, and selected but not used
+				Identifier id = Identifier.createUndelimited("BIN" + binaryColumns.size());
+				binaryColumns.put(id, comparable);
+				groupBy.add(ColumnName.create(id));
+			}
+		}
+		// Without GROUP BY, SQL returns a row even if there are no rows
+		if (!groupVars.isEmpty() && groupBy.isEmpty()) return null;
+
+		Map<Identifier,Aggregate> aggregates = new LinkedHashMap<Identifier,Aggregate>();
+		Map<Var,ColumnName> guards = new HashMap<Var,ColumnName>();
+		for (ExprAggregator expr: aggregators) {
+			Identifier id = Identifier.createUndelimited("AGG" + aggregates.size());
+			ColumnName column = ColumnName.create(id);
+			Aggregator aggregator = expr.getAggregator();
+			Aggregate aggregate;
+			NodeMaker nodeMaker;
+			if (aggregator instanceof AggCount) {
+				aggregate = Aggregate.countRows();
+				nodeMaker = integer(column);
+			} else if (aggregator instanceof AggCountVar) {
+				// Bound in every row
+				if (aggregatedNodeMaker(aggregator, bindingMaker) == null) return null;
+				aggregate = Aggregate.countRows();
+				nodeMaker = integer(column);
+			} else if (aggregator instanceof AggCountVarDistinct) {
+				NodeMaker aggregated = aggregatedNodeMaker(aggregator, bindingMaker);
+				if (aggregated == null || !isInjective(aggregated, op)) return null;
+				if (aggregated.getRequiredColumns().size() != 1) return null;
+				Expression comparable = comparableExpression(
+						aggregated.getRequiredColumns().iterator().next(), op);
+				if (comparable == null) return null;
+				aggregate = Aggregate.create(Aggregate.Function.COUNT, comparable, true);
+				nodeMaker = integer(column);
+			} else if (aggregator instanceof AggSum) {
+				// An empty group would sum to 0 in SPARQL, but to NULL in SQL
+				if (groupVars.isEmpty()) return null;
+				NodeMaker aggregated = aggregatedNodeMaker(aggregator, bindingMaker);
+				if (!(aggregated instanceof TypedNodeMaker)) return null;
+				TypedNodeMaker typed = (TypedNodeMaker) aggregated;
+				if (!TermType.of(typed).is(XSDDatatype.XSDinteger)) return null;
+				ColumnName value = TermType.valueColumn(typed, op, SQLExactNumeric.class);
+				if (value == null) return null;
+				aggregate = Aggregate.create(Aggregate.Function.SUM, new ColumnExpr(value), false);
+				nodeMaker = integer(column);
+			} else if (aggregator instanceof AggMin || aggregator instanceof AggMax) {
+				NodeMaker aggregated = aggregatedNodeMaker(aggregator, bindingMaker);
+				if (!(aggregated instanceof TypedNodeMaker)) return null;
+				ColumnName value = orderedColumn((TypedNodeMaker) aggregated, op);
+				if (value == null) return null;
+				aggregate = Aggregate.create(aggregator instanceof AggMin
+						? Aggregate.Function.MIN : Aggregate.Function.MAX,
+						new ColumnExpr(value), false);
+				nodeMaker = new ColumnRenamer(Collections.singletonMap(value, column)).applyTo(aggregated);
+				// No value if there are no rows at all
+				if (groupVars.isEmpty()) {
+					guards.put(expr.getVar(), column);
+				}
+			} else {
+				return null;
+			}
+			aggregates.put(id, aggregate);
+			nodeMakers.put(expr.getVar(), nodeMaker);
+		}
+		Vendor vendor = relation.getSQLConnection().vendor();
+		op = ExtendOp.extend(op, binaryColumns, vendor);
+		return new NodeRelation(relation.getSQLConnection(),
+				GroupOp.group(op, new ArrayList<ColumnName>(groupBy), aggregates, vendor),
+				new BindingMaker(nodeMakers, null, guards));
+	}
+
+	/**
+	 * @return The node maker of the aggregated variable, or <code>null</code>
+	 * 		if the aggregate is not over a variable that is bound in every row
+	 */
+	private NodeMaker aggregatedNodeMaker(Aggregator aggregator, BindingMaker bindingMaker) {
+		Expr expr = aggregator.getExpr();
+		if (expr == null || !expr.isVariable()) return null;
+		Var var = expr.asVar();
+		if (!bindingMaker.has(var) || bindingMaker.isGuarded(var)) return null;
+		return bindingMaker.get(var);
+	}
+
+	private NodeMaker integer(ColumnName column) {
+		return new TypedNodeMaker(TypedNodeMaker.typedLiteral(XSDDatatype.XSDinteger),
+				new ColumnValueMaker(column));
+	}
+
+	/**
+	 * @return The column whose SQL order is the SPARQL order of the
+	 * 		node maker's nodes, or <code>null</code>
+	 */
+	private ColumnName orderedColumn(TypedNodeMaker nodeMaker, DatabaseOp op) {
+		TermType type = TermType.of(nodeMaker);
+		if (type.isNumeric()) {
+			return TermType.valueColumn(nodeMaker, op,
+					SQLExactNumeric.class, SQLApproximateNumeric.class);
+		}
+		if (type.is(XSDDatatype.XSDdate)) {
+			return TermType.valueColumn(nodeMaker, op, SQLDate.class);
+		}
+		if (type.is(XSDDatatype.XSDdateTime)) {
+			return TermType.valueColumn(nodeMaker, op, SQLTimestamp.class);
+		}
+		return null;
+	}
+
+	/**
+	 * Different values of the node maker's columns must produce
+	 * different nodes, and the columns must be comparable in SQL.
+	 */
+	private boolean isInjective(NodeMaker nodeMaker, DatabaseOp op) {
+		if (!(nodeMaker instanceof TypedNodeMaker)) return false;
+		for (ColumnName column: nodeMaker.getRequiredColumns()) {
+			DataType type = op.getColumnType(column);
+			if (type == null || type.isUnsupported() || !type.supportsDistinct()) return false;
+		}
+		ValueMaker valueMaker = TermType.baseValueMaker((TypedNodeMaker) nodeMaker);
+		if (valueMaker instanceof ColumnValueMaker) return true;
+		if (valueMaker instanceof BlankNodeIDValueMaker) {
+			return ((BlankNodeIDValueMaker) valueMaker).getColumns().size() == 1;
+		}
+		if (!(valueMaker instanceof TemplateValueMaker)) return false;
+		TemplateValueMaker template = (TemplateValueMaker) valueMaker;
+		if (template.columns().length == 1) return true;
+		for (ColumnFunction function: template.functions()) {
+			if (function != TemplateValueMaker.URLENCODE
+					&& function != TemplateValueMaker.URLIFY) {
+				return false;
+			}
+		}
+		// The separators between columns must not occur in encoded values
+		String[] literalParts = template.literalParts();
+		for (int i = 1; i < literalParts.length - 1; i++) {
+			if (!literalParts[i].matches(".*[^A-Za-z0-9.*_+%-].*")) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return An expression whose SQL equality is equality of the column's
+	 * 		values, which for character columns means binary collation;
+	 * 		<code>null</code> if the database has no binary collation
+	 */
+	private Expression comparableExpression(ColumnName column, DatabaseOp op) {
+		DataType type = op.getColumnType(column);
+		if (!(type instanceof SQLCharacterString || type instanceof SQLCharacterStringVarying)) {
+			return new ColumnExpr(column);
+		}
+		if (relation.getSQLConnection().vendor().getBinaryCollationExpression("") == null) {
+			return null;
+		}
+		return new BinaryCollation(new ColumnExpr(column));
+	}
+
+	/**
+	 * Ops that can't be grouped in the same SQL query
+	 */
+	private boolean needsAlias(DatabaseOp op) {
+		final boolean[] result = {false};
+		op.accept(new OpVisitor.Default(true) {
+			@Override
+			public boolean visitEnter(DistinctOp table) {
+				result[0] = true;
+				return false;
+			}
+			@Override
+			public boolean visitEnter(LimitOp table) {
+				result[0] = true;
+				return false;
+			}
+			@Override
+			public boolean visitEnter(GroupOp table) {
+				result[0] = true;
+				return false;
+			}
+			@Override
+			public boolean visitEnter(AliasOp table) {
+				return false;
+			}
+		});
+		return result[0];
+	}
+
+	/**
+	 * @return <code>null</code> if the columns would not have unique names
+	 */
+	private NodeRelation alias(NodeRelation relation) {
+		relation = NodeRelationUtil.project(relation,
+				relation.getBindingMaker().variableNames());
+		Set<Identifier> names = new HashSet<Identifier>();
+		for (ColumnName column: relation.getBaseTabular().getColumns()) {
+			if (!names.add(column.getColumn())) return null;
+		}
+		AliasOp alias = AliasOp.createWithUniqueName(relation.getBaseTabular(), "GROUPED");
+		return new NodeRelation(relation.getSQLConnection(), alias,
+				relation.getBindingMaker().rename(alias.getRenamer()));
+	}
+}
@@ -0,0 +1,418 @@
+package org.d2rq.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.d2rq.D2RQOptions;
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.algebra.NodeRelationUtil;
+import org.d2rq.algebra.TripleRelation;
+import org.d2rq.db.SQLConnection;
+import org.d2rq.db.expr.ColumnListEquality;
+import org.d2rq.db.expr.Conjunction;
+import org.d2rq.db.expr.Equality;
+import org.d2rq.db.expr.Expression;
+import org.d2rq.db.op.AliasOp;
+import org.d2rq.db.op.AssertUniqueKeyOp;
+import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.op.ExtendOp;
+import org.d2rq.db.op.InnerJoinOp;
+import org.d2rq.db.op.NamedOp;
+import org.d2rq.db.op.OrderOp;
+import org.d2rq.db.op.ProjectOp;
+import org.d2rq.db.op.SelectOp;
+import org.d2rq.db.op.util.OpUtil;
+import org.d2rq.db.renamer.ColumnRenamer;
+import org.d2rq.db.renamer.Renamer;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.schema.Identifier;
+import org.d2rq.nodes.BindingMaker;
+import org.d2rq.nodes.FixedNodeMaker;
+import org.d2rq.nodes.NodeMaker;
+import org.d2rq.nodes.TypedNodeMaker;
+import org.d2rq.tmp.JoinOptimizer;
+import org.d2rq.tmp.SelfJoinEliminator;
+import org.d2rq.values.BaseIRIValueMaker;
+import org.d2rq.values.BlankNodeIDValueMaker;
+import org.d2rq.values.ColumnValueMaker;
+import org.d2rq.values.DecoratingValueMaker;
+import org.d2rq.values.TemplateValueMaker;
+import org.d2rq.values.ValueMaker;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.util.Context;
+
+/**
+ * Translates a basic graph pattern into {@link NodeRelation}s whose
+ * union is the result of the pattern. There is one relation for each
+ * combination of {@link TripleRelation}s that can match the triple
+ * patterns. It joins the tables of all these triple relations in a
+ * single SQL query, with variables shared between triple patterns
+ * turned into join conditions.
+ *
+ * If {@link D2RQOptions#AVOID_SELF_JOINS} is set, then tables joined
+ * with themselves on a unique key, as in star-shaped patterns, are
+ * merged by a {@link SelfJoinEliminator}.
+ *
+ * If a shared variable cannot be turned into a join condition, or
+ * if there are too many combinations, then the pattern cannot be
+ * translated and has to be matched triple by triple.
+ */
+public class BGPTranslator {
+	private final static Log log = LogFactory.getLog(BGPTranslator.class);
+
+	/**
+	 * Maximum number of SQL queries for a single basic graph pattern
+	 */
+	public final static int MAX_COMBINATIONS = 256;
+
+	private final static Var[] POSITIONS =
+		{TripleRelation.SUBJECT, TripleRelation.PREDICATE, TripleRelation.OBJECT};
+
+	private final List<Triple> triplePatterns;
+	private final Collection<TripleRelation> tripleRelations;
+	private final boolean trimJoins;
+	private final boolean avoidSelfJoins;
+
+	public BGPTranslator(List<Triple> triplePatterns,
+			Collection<TripleRelation> tripleRelations, Context options) {
+		this.triplePatterns = triplePatterns;
+		this.tripleRelations = tripleRelations;
+		this.trimJoins = "true".equals(options.getAsString(D2RQOptions.TRIM_JOINS, "false"));
+		this.avoidSelfJoins = "true".equals(
+				options.getAsString(D2RQOptions.AVOID_SELF_JOINS, "false"));
+	}
+
+	/**
+	 * @return Relations whose union is the result of the pattern, or
+	 * 		<code>null</code> if the pattern cannot be translated
+	 */
+	public List<NodeRelation> translate() {
+		List<Combination> combinations = Collections.singletonList(new Combination());
+		for (int i = 0; i < triplePatterns.size(); i++) {
+			Triple pattern = triplePatterns.get(i);
+			List<Combination> extended = new ArrayList<Combination>();
+			for (Part candidate: candidates(pattern, i)) {
+				if (candidate.bindingMaker.getConditionColumn() != null) return null;
+				for (Combination combination: combinations) {
+					Combination next = combination.add(pattern, candidate);
+					if (next == null) {
+						log.debug("Cannot join " + pattern + " in SQL");
+						return null;
+					}
+					if (next.isEmpty()) continue;
+					extended.add(next);
+					if (extended.size() > MAX_COMBINATIONS) {
+						log.debug("More than " + MAX_COMBINATIONS + " combinations at " + pattern);
+						return null;
+					}
+				}
+			}
+			if (extended.isEmpty()) return Collections.emptyList();
+			combinations = extended;
+		}
+		List<NodeRelation> result = new ArrayList<NodeRelation>();
+		for (Combination combination: combinations) {
+			NodeRelation relation = combination.toNodeRelation();
+			if (avoidSelfJoins) {
+				relation = SelfJoinEliminator.optimize(relation);
+			}
+			result.add(relation);
+		}
+		return result;
+	}
+
+	private List<Part> candidates(Triple pattern, int index) {
+		List<Part> result = new ArrayList<Part>();
+		for (TripleRelation relation: tripleRelations) {
+			NodeRelation selected = relation.selectTriple(pattern);
+			if (selected == null || OpUtil.isEmpty(selected.getBaseTabular())) continue;
+			if (trimJoins) {
+				selected = JoinOptimizer.optimize(selected);
+			}
+			result.add(new Part(NodeRelationUtil.renameWithPrefix(selected, index), index));
+		}
+		return result;
+	}
+
+	/**
+	 * A triple relation taken apart into tables, join conditions,
+	 * selection conditions and computed columns, ready to be joined
+	 * with others. Tables and computed columns have names unique to
+	 * the triple pattern.
+	 */
+	private static class Part {
+		private final SQLConnection sqlConnection;
+		private final Collection<NamedOp> tables = new ArrayList<NamedOp>();
+		private final Set<ColumnListEquality> joinConditions = new HashSet<ColumnListEquality>();
+		private final Map<Identifier,Expression> extensions = new LinkedHashMap<Identifier,Expression>();
+		private final List<Expression> conditions = new ArrayList<Expression>();
+		private final BindingMaker bindingMaker;
+		/**
+		 * The part on its own, for looking up column types
+		 */
+		private final DatabaseOp op;
+
+		Part(NodeRelation relation, int index) {
+			sqlConnection = relation.getSQLConnection();
+			BindingMaker bindingMaker = relation.getBindingMaker();
+			List<ExtendOp> extensionOps = new ArrayList<ExtendOp>();
+			List<Expression> conditions = new ArrayList<Expression>();
+			DatabaseOp op = relation.getBaseTabular();
+			while (true) {
+				if (op instanceof AssertUniqueKeyOp || op instanceof ProjectOp
+						|| op instanceof OrderOp) {
+					op = ((DatabaseOp.Wrapper) op).getWrapped();
+				} else if (op instanceof ExtendOp) {
+					extensionOps.add(0, (ExtendOp) op);
+					op = ((ExtendOp) op).getWrapped();
+				} else if (op instanceof SelectOp) {
+					conditions.add(((SelectOp) op).getCondition());
+					op = ((SelectOp) op).getWrapped();
+				} else {
+					break;
+				}
+			}
+			if (op instanceof NamedOp) {
+				tables.add((NamedOp) op);
+			} else if (op instanceof InnerJoinOp) {
+				tables.addAll(((InnerJoinOp) op).getTables());
+				joinConditions.addAll(((InnerJoinOp) op).getJoinConditions());
+			} else if (!OpUtil.isTrivial(op)) {
+				// Limits and DISTINCT have to stay in a subquery
+				AliasOp alias = AliasOp.createWithUniqueName(
+						relation.getBaseTabular(), "T" + index + "_SUB");
+				tables.add(alias);
+				extensionOps.clear();
+				conditions.clear();
+				bindingMaker = bindingMaker.rename(alias.getRenamer());
+			}
+			Map<ColumnName,ColumnName> renames = new HashMap<ColumnName,ColumnName>();
+			for (ExtendOp extend: extensionOps) {
+				Identifier column = extend.getNewColumn();
+				renames.put(ColumnName.create(column), ColumnName.create(Identifier.create(
+						column.isDelimited(), "T" + index + "_" + column.getName())));
+			}
+			Renamer renamer = new ColumnRenamer(renames);
+			for (ExtendOp extend: extensionOps) {
+				extensions.put(renames.get(ColumnName.create(extend.getNewColumn())).getColumn(),
+						renamer.applyTo(extend.getExpression()));
+			}
+			for (Expression condition: conditions) {
+				this.conditions.add(renamer.applyTo(condition));
+			}
+			this.bindingMaker = bindingMaker.rename(renamer);
+			this.op = SelectOp.select(
+					ExtendOp.extend(InnerJoinOp.join(tables, joinConditions),
+							extensions, sqlConnection.vendor()),
+					Conjunction.create(this.conditions));
+		}
+	}
+
+	/**
+	 * One part for each of the triple patterns seen so far, with
+	 * the node makers for the variables and the join conditions.
+	 */
+	private static class Combination {
+		private final List<Part> parts;
+		private final Map<Var,NodeMaker> nodeMakers;
+		private final Map<Var,Part> owners;
+		private final List<Expression> conditions;
+
+		Combination() {
+			this(Collections.<Part>emptyList(), Collections.<Var,NodeMaker>emptyMap(),
+					Collections.<Var,Part>emptyMap(), Collections.<Expression>emptyList());
+		}
+
+		private Combination(List<Part> parts, Map<Var,NodeMaker> nodeMakers,
+				Map<Var,Part> owners, List<Expression> conditions) {
+			this.parts = new ArrayList<Part>(parts);
+			this.nodeMakers = new HashMap<Var,NodeMaker>(nodeMakers);
+			this.owners = new HashMap<Var,Part>(owners);
+			this.conditions = new ArrayList<Expression>(conditions);
+		}
+
+		boolean isEmpty() {
+			for (Expression condition: conditions) {
+				if (condition.isFalse()) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @return The extended combination, or <code>null</code> if the
+		 * 		part cannot be joined in SQL
+		 */
+		Combination add(Triple pattern, Part part) {
+			if (!parts.isEmpty() && !parts.get(0).sqlConnection.equals(part.sqlConnection)) {
+				return null;
+			}
+			Combination result = new Combination(parts, nodeMakers, owners, conditions);
+			result.parts.add(part);
+			Node[] nodes = {pattern.getSubject(), pattern.getPredicate(), pattern.getObject()};
+			for (int i = 0; i < 3; i++) {
+				if (!nodes[i].isVariable()) continue;
+				Var var = Var.alloc(nodes[i]);
+				NodeMaker nodeMaker = part.bindingMaker.get(POSITIONS[i]);
+				NodeMaker existing = result.nodeMakers.get(var);
+				if (existing != null) {
+					Expression condition = joinCondition(
+							existing, result.owners.get(var).op, nodeMaker, part.op,
+							part.sqlConnection);
+					if (condition == null) return null;
+					result.conditions.add(condition);
+					if (!(nodeMaker instanceof FixedNodeMaker)) continue;
+				}
+				result.nodeMakers.put(var, nodeMaker);
+				result.owners.put(var, part);
+			}
+			return result;
+		}
+
+		NodeRelation toNodeRelation() {
+			SQLConnection sqlConnection = parts.get(0).sqlConnection;
+			Collection<NamedOp> tables = new ArrayList<NamedOp>();
+			Set<ColumnListEquality> joinConditions = new HashSet<ColumnListEquality>();
+			Map<Identifier,Expression> extensions = new LinkedHashMap<Identifier,Expression>();
+			List<Expression> conditions = new ArrayList<Expression>();
+			for (Part part: parts) {
+				tables.addAll(part.tables);
+				joinConditions.addAll(part.joinConditions);
+				extensions.putAll(part.extensions);
+				conditions.addAll(part.conditions);
+			}
+			conditions.addAll(this.conditions);
+			DatabaseOp op = InnerJoinOp.join(tables, joinConditions);
+			op = ExtendOp.extend(op, extensions, sqlConnection.vendor());
+			op = SelectOp.select(op, Conjunction.create(conditions));
+			Set<ColumnName> columns = new LinkedHashSet<ColumnName>();
+			for (NodeMaker nodeMaker: nodeMakers.values()) {
+				columns.addAll(nodeMaker.getRequiredColumns());
+			}
+			op = ProjectOp.project(op, new ArrayList<ColumnName>(columns));
+			return new NodeRelation(sqlConnection, op, new BindingMaker(nodeMakers));
+		}
+	}
+
+	/**
+	 * @return A condition that holds where both node makers produce
+	 * 		the same node, or <code>null</code> if no such condition
+	 * 		can be expressed in SQL
+	 */
+	static Expression joinCondition(NodeMaker nodeMaker1, DatabaseOp op1,
+			NodeMaker nodeMaker2, DatabaseOp op2, SQLConnection sqlConnection) {
+		if (nodeMaker1 == NodeMaker.EMPTY || nodeMaker2 == NodeMaker.EMPTY) {
+			return Expression.FALSE;
+		}
+		if (nodeMaker1 instanceof FixedNodeMaker) {
+			return valueCondition(nodeMaker2, op2,
+					((FixedNodeMaker) nodeMaker1).getFixedNode(), sqlConnection);
+		}
+		if (nodeMaker2 instanceof FixedNodeMaker) {
+			return valueCondition(nodeMaker1, op1,
+					((FixedNodeMaker) nodeMaker2).getFixedNode(), sqlConnection);
+		}
+		if (!(nodeMaker1 instanceof TypedNodeMaker) || !(nodeMaker2 instanceof TypedNodeMaker)) {
+			return null;
+		}
+		TypedNodeMaker typed1 = (TypedNodeMaker) nodeMaker1;
+		TypedNodeMaker typed2 = (TypedNodeMaker) nodeMaker2;
+		if (!typed1.getNodeType().toString().equals(typed2.getNodeType().toString())) {
+			return Expression.FALSE;
+		}
+		return valueJoinCondition(typed1.getValueMaker(), op1,
+				typed2.getValueMaker(), op2, sqlConnection);
+	}
+
+	/**
+	 * @return A condition that holds where the node maker produces the
+	 * 		given node, or <code>null</code> if no such condition can be
+	 * 		expressed in SQL
+	 */
+	static Expression valueCondition(NodeMaker nodeMaker, DatabaseOp op,
+			Node node, SQLConnection sqlConnection) {
+		if (nodeMaker instanceof FixedNodeMaker) {
+			return ((FixedNodeMaker) nodeMaker).getFixedNode().equals(node)
+					? Expression.TRUE : Expression.FALSE;
+		}
+		if (!(nodeMaker instanceof TypedNodeMaker)) return null;
+		TypedNodeMaker typed = (TypedNodeMaker) nodeMaker;
+		if (!typed.getNodeType().matches(node)) return Expression.FALSE;
+		String value = typed.getNodeType().extractValue(node);
+		if (value == null || !typed.getValueMaker().matches(value)) return Expression.FALSE;
+		return typed.getValueMaker().valueExpression(value, op, sqlConnection.vendor());
+	}
+
+	private static Expression valueJoinCondition(ValueMaker valueMaker1, DatabaseOp op1,
+			ValueMaker valueMaker2, DatabaseOp op2, SQLConnection sqlConnection) {
+		if (valueMaker1 instanceof DecoratingValueMaker && valueMaker2 instanceof DecoratingValueMaker) {
+			DecoratingValueMaker decorating1 = (DecoratingValueMaker) valueMaker1;
+			DecoratingValueMaker decorating2 = (DecoratingValueMaker) valueMaker2;
+			if (!decorating1.getTranslator().equals(decorating2.getTranslator())) return null;
+			return valueJoinCondition(decorating1.getBaseValueMaker(), op1,
+					decorating2.getBaseValueMaker(), op2, sqlConnection);
+		}
+		if (valueMaker1 instanceof BaseIRIValueMaker && valueMaker2 instanceof BaseIRIValueMaker) {
+			BaseIRIValueMaker base1 = (BaseIRIValueMaker) valueMaker1;
+			BaseIRIValueMaker base2 = (BaseIRIValueMaker) valueMaker2;
+			if (!base1.getBaseIRI().equals(base2.getBaseIRI())) return null;
+			return valueJoinCondition(base1.getWrapped(), op1,
+					base2.getWrapped(), op2, sqlConnection);
+		}
+		if (valueMaker1 instanceof ColumnValueMaker && valueMaker2 instanceof ColumnValueMaker) {
+			return columnEquality(
+					Collections.singletonList(((ColumnValueMaker) valueMaker1).getColumn()), op1,
+					Collections.singletonList(((ColumnValueMaker) valueMaker2).getColumn()), op2,
+					sqlConnection);
+		}
+		if (valueMaker1 instanceof BlankNodeIDValueMaker && valueMaker2 instanceof BlankNodeIDValueMaker) {
+			BlankNodeIDValueMaker blank1 = (BlankNodeIDValueMaker) valueMaker1;
+			BlankNodeIDValueMaker blank2 = (BlankNodeIDValueMaker) valueMaker2;
+			if (!blank1.getID().equals(blank2.getID())) return Expression.FALSE;
+			return columnEquality(blank1.getColumns(), op1, blank2.getColumns(), op2, sqlConnection);
+		}
+		if (valueMaker1 instanceof TemplateValueMaker && valueMaker2 instanceof TemplateValueMaker) {
+			TemplateValueMaker template1 = (TemplateValueMaker) valueMaker1;
+			TemplateValueMaker template2 = (TemplateValueMaker) valueMaker2;
+			if (template1.isEquivalentTo(template2)) {
+				return columnEquality(
+						Arrays.asList(template1.columns()), op1,
+						Arrays.asList(template2.columns()), op2, sqlConnection);
+			}
+			String first1 = template1.firstLiteralPart();
+			String first2 = template2.firstLiteralPart();
+			String last1 = template1.lastLiteralPart();
+			String last2 = template2.lastLiteralPart();
+			if (!first1.startsWith(first2) && !first2.startsWith(first1)) return Expression.FALSE;
+			if (!last1.endsWith(last2) && !last2.endsWith(last1)) return Expression.FALSE;
+			if (template1.usesColumnFunctions() || template2.usesColumnFunctions()) return null;
+			return Equality.create(template1.toExpression(), template2.toExpression());
+		}
+		return null;
+	}
+
+	private static Expression columnEquality(List<ColumnName> columns1, DatabaseOp op1,
+			List<ColumnName> columns2, DatabaseOp op2, SQLConnection sqlConnection) {
+		if (columns1.size() != columns2.size()) return Expression.FALSE;
+		List<Expression> equalities = new ArrayList<Expression>();
+		for (int i = 0; i < columns1.size(); i++) {
+			if (!sqlConnection.areCompatibleFormats(
+					op1, columns1.get(i), op2, columns2.get(i))) return null;
+			equalities.add(Equality.createColumnEquality(columns1.get(i), columns2.get(i)));
+		}
+		return Conjunction.create(equalities);
+	}
+}
@@ -0,0 +1,444 @@
+package org.d2rq.engine;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import javax.xml.datatype.DatatypeConstants;
+
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.db.expr.ColumnExpr;
+import org.d2rq.db.expr.Conjunction;
+import org.d2rq.db.expr.Constant;
+import org.d2rq.db.expr.Disjunction;
+import org.d2rq.db.expr.Equality;
+import org.d2rq.db.expr.Expression;
+import org.d2rq.db.expr.GreaterThan;
+import org.d2rq.db.expr.GreaterThanOrEqual;
+import org.d2rq.db.expr.LessThan;
+import org.d2rq.db.expr.LessThanOrEqual;
+import org.d2rq.db.expr.Like;
+import org.d2rq.db.expr.Negation;
+import org.d2rq.db.expr.NotNull;
+import org.d2rq.db.expr.RegexMatch;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.types.DataType.GenericType;
+import org.d2rq.db.types.SQLApproximateNumeric;
+import org.d2rq.db.types.SQLCharacterStringVarying;
+import org.d2rq.db.types.SQLDate;
+import org.d2rq.db.types.SQLExactNumeric;
+import org.d2rq.db.types.SQLTimestamp;
+import org.d2rq.nodes.FixedNodeMaker;
+import org.d2rq.nodes.NodeMaker;
+import org.d2rq.nodes.TypedNodeMaker;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.expr.E_Bound;
+import com.hp.hpl.jena.sparql.expr.E_Datatype;
+import com.hp.hpl.jena.sparql.expr.E_Equals;
+import com.hp.hpl.jena.sparql.expr.E_GreaterThan;
+import com.hp.hpl.jena.sparql.expr.E_GreaterThanOrEqual;
+import com.hp.hpl.jena.sparql.expr.E_IsBlank;
+import com.hp.hpl.jena.sparql.expr.E_IsIRI;
+import com.hp.hpl.jena.sparql.expr.E_IsLiteral;
+import com.hp.hpl.jena.sparql.expr.E_Lang;
+import com.hp.hpl.jena.sparql.expr.E_LangMatches;
+import com.hp.hpl.jena.sparql.expr.E_LessThan;
+import com.hp.hpl.jena.sparql.expr.E_LessThanOrEqual;
+import com.hp.hpl.jena.sparql.expr.E_LogicalAnd;
+import com.hp.hpl.jena.sparql.expr.E_LogicalNot;
+import com.hp.hpl.jena.sparql.expr.E_LogicalOr;
+import com.hp.hpl.jena.sparql.expr.E_NotEquals;
+import com.hp.hpl.jena.sparql.expr.E_Regex;
+import com.hp.hpl.jena.sparql.expr.E_SameTerm;
+import com.hp.hpl.jena.sparql.expr.E_Str;
+import com.hp.hpl.jena.sparql.expr.E_StrContains;
+import com.hp.hpl.jena.sparql.expr.E_StrEndsWith;
+import com.hp.hpl.jena.sparql.expr.E_StrStartsWith;
+import com.hp.hpl.jena.sparql.expr.Expr;
+import com.hp.hpl.jena.sparql.expr.ExprEvalException;
+import com.hp.hpl.jena.sparql.expr.ExprFunction1;
+import com.hp.hpl.jena.sparql.expr.ExprFunction2;
+import com.hp.hpl.jena.sparql.expr.NodeValue;
+import com.hp.hpl.jena.sparql.expr.nodevalue.XSDFuncOp;
+
+/**
+ * Translates a SPARQL filter expression into a SQL {@link Expression}
+ * over the columns of a {@link NodeRelation}. The translation goes
+ * through the node makers and value makers of the relation's variables,
+ * so that a filter like <code>?price &lt; 10</code> becomes a
+ * condition on the underlying column.
+ *
+ * Comparisons, <code>&amp;&amp;</code>, <code>||</code>, <code>!</code>,
+ * <code>bound</code>, <code>str</code>, <code>lang</code>,
+ * <code>datatype</code>, <code>STRSTARTS</code>, <code>CONTAINS</code>,
+ * <code>STRENDS</code> and <code>regex</code> are supported as far
+ * as the SQL result is guaranteed to agree with SPARQL semantics.
+ * Anything else is not translated and must be evaluated by ARQ.
+ *
+ * String matching is only approximated in SQL because collations
+ * and regular expression dialects differ between databases. Such
+ * translations never remove a row that matches the filter, but may
+ * keep some that don't, so ARQ must evaluate the filter as well;
+ * see {@link #isExact()}.
+ */
+public class FilterTranslator {
+
+	/**
+	 * Regular expressions without these characters mean the same in
+	 * all supported databases
+	 */
+	private final static Pattern PORTABLE_REGEX = Pattern.compile("[^\\\\{}\\[\\]]*");
+
+	private final static Pattern LITERAL_REGEX = Pattern.compile("[^\\\\.\\[\\]{}()*+?^$|]*");
+	private final NodeRelation relation;
+	private boolean exact;
+
+	public FilterTranslator(NodeRelation relation) {
+		this.relation = relation;
+	}
+
+	/**
+	 * @param expr A SPARQL filter expression
+	 * @return An equivalent SQL expression over the relation's columns,
+	 * 		or <code>null</code> if the filter cannot be translated
+	 */
+	public Expression translate(Expr expr) {
+		exact = true;
+		return translateBoolean(expr);
+	}
+
+	/**
+	 * @return <code>true</code> if the last translated expression is
+	 * 		exactly equivalent to the filter; <code>false</code> if it
+	 * 		may keep rows that the filter would reject
+	 */
+	public boolean isExact() {
+		return exact;
+	}
+
+	private Expression translateBoolean(Expr expr) {
+		NodeValue constant = constant(expr);
+		if (constant != null) {
+			try {
+				return XSDFuncOp.booleanEffectiveValue(constant)
+						? Expression.TRUE : Expression.FALSE;
+			} catch (ExprEvalException ex) {
+				return null;
+			}
+		}
+		if (expr instanceof E_LogicalAnd || expr instanceof E_LogicalOr) {
+			ExprFunction2 f = (ExprFunction2) expr;
+			Expression left = translateBoolean(f.getArg1());
+			if (left == null) return null;
+			Expression right = translateBoolean(f.getArg2());
+			if (right == null) return null;
+			return expr instanceof E_LogicalAnd
+					? Conjunction.create(Arrays.asList(left, right))
+					: Disjunction.create(Arrays.asList(left, right));
+		}
+		if (expr instanceof E_LogicalNot) {
+			// An approximation must not be negated
+			boolean wasExact = exact;
+			exact = true;
+			Expression operand = translateBoolean(((E_LogicalNot) expr).getArg());
+			boolean operandExact = exact;
+			exact = wasExact;
+			if (operand == null || !operandExact) return null;
+			return negate(operand);
+		}
+		if (expr instanceof E_Bound) {
+			// Rows where a variable is unbound are not produced at all,
+			// unless the variable is guarded by a column
+			Expr arg = ((E_Bound) expr).getArg();
+			if (!arg.isVariable()) return null;
+			if (relation.getBindingMaker().isGuarded(arg.asVar())) {
+				return NotNull.create(new ColumnExpr(
+						relation.getBindingMaker().getGuards().get(arg.asVar())));
+			}
+			return relation.getBindingMaker().has(arg.asVar()) ? Expression.TRUE : null;
+		}
+		if (expr instanceof E_Equals || expr instanceof E_NotEquals
+				|| expr instanceof E_SameTerm || isOrdering(expr)) {
+			return translateComparison((ExprFunction2) expr);
+		}
+		if (expr instanceof E_StrStartsWith || expr instanceof E_StrContains
+				|| expr instanceof E_StrEndsWith) {
+			return translateStringMatch((ExprFunction2) expr);
+		}
+		if (expr instanceof E_Regex) {
+			return translateRegex((E_Regex) expr);
+		}
+		return null;
+	}
+
+	private Expression translateComparison(ExprFunction2 f) {
+		NodeValue left = constant(f.getArg1());
+		NodeValue right = constant(f.getArg2());
+		if (right != null) {
+			return compareToConstant(f, f.getArg1(), right, false);
+		}
+		if (left != null) {
+			return compareToConstant(f, f.getArg2(), left, true);
+		}
+		if (f.getArg1().isVariable() && f.getArg2().isVariable()) {
+			return compareVariables(f, f.getArg1(), f.getArg2());
+		}
+		return null;
+	}
+
+	private Expression compareToConstant(ExprFunction2 f, Expr term, NodeValue value, boolean flipped) {
+		if (term instanceof E_Str) {
+			Expression string = stringExpression(((E_Str) term).getArg(), true);
+			if (string == null || !value.isString()) return null;
+			if (!(f instanceof E_Equals || f instanceof E_NotEquals)) return null;
+			Expression equality = Equality.create(string,
+					Constant.create(value.getString(), GenericType.CHARACTER));
+			return f instanceof E_Equals ? equality : negate(equality);
+		}
+		TypedNodeMaker nodeMaker = typedNodeMaker(term);
+		if (nodeMaker == null) return null;
+		TermType type = TermType.of(nodeMaker);
+		if (type.isNumeric() && value.isNumber()) {
+			if (f instanceof E_SameTerm) return null;
+			ColumnName column = columnOfType(nodeMaker, SQLExactNumeric.class, SQLApproximateNumeric.class);
+			String lexical = numericLexicalForm(value);
+			if (column == null || lexical == null) return null;
+			return compare(f, column, lexical, flipped);
+		}
+		if ((type.is(XSDDatatype.XSDdate) && value.isDate())
+				|| (type.is(XSDDatatype.XSDdateTime) && value.isDateTime())) {
+			if (f instanceof E_SameTerm) return null;
+			if (value.getDateTime().getTimezone() != DatatypeConstants.FIELD_UNDEFINED) return null;
+			ColumnName column = columnOfType(nodeMaker,
+					value.isDate() ? SQLDate.class : SQLTimestamp.class);
+			if (column == null) return null;
+			return compare(f, column, value.asNode().getLiteralLexicalForm(), flipped);
+		}
+		if (isOrdering(f)) return null;
+		Node node = value.asNode();
+		if (!type.isResource() && !type.isStringLike()) return null;
+		if (type.isResource() == node.isLiteral()) {
+			// Resources and literals are never equal
+			return f instanceof E_NotEquals ? Expression.TRUE : Expression.FALSE;
+		}
+		if (type.isStringLike() && !nodeMaker.getNodeType().matches(node)) return null;
+		return equalsOrNot(f, valueCondition(nodeMaker, node));
+	}
+
+	private Expression compareVariables(ExprFunction2 f, Expr var1, Expr var2) {
+		TypedNodeMaker nodeMaker1 = typedNodeMaker(var1);
+		TypedNodeMaker nodeMaker2 = typedNodeMaker(var2);
+		if (nodeMaker1 == null || nodeMaker2 == null) return null;
+		TermType type1 = TermType.of(nodeMaker1);
+		TermType type2 = TermType.of(nodeMaker2);
+		if (!(f instanceof E_SameTerm)) {
+			if (type1.isNumeric() && type2.isNumeric()) {
+				return compare(f,
+						columnOfType(nodeMaker1, SQLExactNumeric.class, SQLApproximateNumeric.class),
+						columnOfType(nodeMaker2, SQLExactNumeric.class, SQLApproximateNumeric.class));
+			}
+			if (type1.is(XSDDatatype.XSDdate) && type2.is(XSDDatatype.XSDdate)) {
+				return compare(f, columnOfType(nodeMaker1, SQLDate.class),
+						columnOfType(nodeMaker2, SQLDate.class));
+			}
+			if (type1.is(XSDDatatype.XSDdateTime) && type2.is(XSDDatatype.XSDdateTime)) {
+				return compare(f, columnOfType(nodeMaker1, SQLTimestamp.class),
+						columnOfType(nodeMaker2, SQLTimestamp.class));
+			}
+		}
+		if (isOrdering(f)) return null;
+		boolean sameType = nodeMaker1.getNodeType().toString().equals(
+				nodeMaker2.getNodeType().toString());
+		if (type1.isResource() || type2.isResource()) {
+			if (!sameType) {
+				return f instanceof E_NotEquals ? Expression.TRUE : Expression.FALSE;
+			}
+		} else if (!sameType || !type1.isStringLike()) {
+			return null;
+		}
+		return equalsOrNot(f, BGPTranslator.joinCondition(
+				nodeMaker1, relation.getBaseTabular(),
+				nodeMaker2, relation.getBaseTabular(), relation.getSQLConnection()));
+	}
+
+	private Expression translateStringMatch(ExprFunction2 f) {
+		Expression string = literalStringExpression(f.getArg1());
+		NodeValue value = constant(f.getArg2());
+		if (string == null || value == null || !value.isString()) return null;
+		exact = false;
+		if (f instanceof E_StrStartsWith) {
+			return Like.startsWith(string, value.getString());
+		}
+		if (f instanceof E_StrEndsWith) {
+			return Like.endsWith(string, value.getString());
+		}
+		return Like.contains(string, value.getString());
+	}
+
+	private Expression translateRegex(E_Regex regex) {
+		Expression string = literalStringExpression(regex.getArg(1));
+		NodeValue pattern = constant(regex.getArg(2));
+		NodeValue flags = regex.numArgs() > 2 ? constant(regex.getArg(3)) : NodeValue.makeString("");
+		if (string == null || pattern == null || flags == null
+				|| !pattern.isString() || !flags.isString()) return null;
+		boolean caseInsensitive = "i".equals(flags.getString());
+		if (!caseInsensitive && !"".equals(flags.getString())) return null;
+		String p = pattern.getString();
+		exact = false;
+		if (!caseInsensitive) {
+			boolean anchoredStart = p.startsWith("^");
+			boolean anchoredEnd = p.endsWith("$") && p.length() > (anchoredStart ? 1 : 0);
+			String literal = p.substring(anchoredStart ? 1 : 0,
+					anchoredEnd ? p.length() - 1 : p.length());
+			if (LITERAL_REGEX.matcher(literal).matches() && !(anchoredStart && anchoredEnd)) {
+				if (anchoredStart) return Like.startsWith(string, literal);
+				if (anchoredEnd) return Like.endsWith(string, literal);
+				return Like.contains(string, literal);
+			}
+		}
+		if (!PORTABLE_REGEX.matcher(p).matches()) return null;
+		if (relation.getSQLConnection().vendor().getRegexExpression(
+				"x", p, caseInsensitive) == null) return null;
+		return new RegexMatch(string, p, caseInsensitive);
+	}
+
+	/**
+	 * @return The expression as a constant, evaluating functions
+	 * 		that depend only on constants or on the node type of a
+	 * 		variable; <code>null</code> if it is not constant or
+	 * 		evaluates to an error
+	 */
+	private NodeValue constant(Expr expr) {
+		if (expr.isConstant()) {
+			return expr.getConstant();
+		}
+		if (expr.isVariable()) {
+			Var var = expr.asVar();
+			if (!relation.getBindingMaker().has(var)) return null;
+			if (relation.getBindingMaker().isGuarded(var)) return null;
+			NodeMaker nodeMaker = relation.nodeMaker(var);
+			if (!(nodeMaker instanceof FixedNodeMaker)) return null;
+			return NodeValue.makeNode(((FixedNodeMaker) nodeMaker).getFixedNode());
+		}
+		try {
+			if (expr instanceof E_Lang || expr instanceof E_Datatype
+					|| expr instanceof E_IsIRI || expr instanceof E_IsBlank
+					|| expr instanceof E_IsLiteral) {
+				ExprFunction1 f = (ExprFunction1) expr;
+				NodeValue arg = constant(f.getArg());
+				if (arg != null) return f.eval(arg);
+				TypedNodeMaker nodeMaker = typedNodeMaker(f.getArg());
+				return nodeMaker == null ? null : TermType.of(nodeMaker).eval(f);
+			}
+			if (expr instanceof E_Str) {
+				NodeValue arg = constant(((E_Str) expr).getArg());
+				return arg == null ? null : ((E_Str) expr).eval(arg);
+			}
+			if (expr instanceof E_Equals || expr instanceof E_NotEquals
+					|| expr instanceof E_SameTerm || isOrdering(expr)
+					|| expr instanceof E_LangMatches || expr instanceof E_StrStartsWith
+					|| expr instanceof E_StrContains || expr instanceof E_StrEndsWith) {
+				ExprFunction2 f = (ExprFunction2) expr;
+				NodeValue arg1 = constant(f.getArg1());
+				NodeValue arg2 = constant(f.getArg2());
+				return arg1 == null || arg2 == null ? null : f.eval(arg1, arg2);
+			}
+		} catch (ExprEvalException ex) {
+			// Errors are left to ARQ
+		}
+		return null;
+	}
+
+	private Expression compare(ExprFunction2 f, ColumnName column, String value, boolean flipped) {
+		Constant constant = Constant.create(value,
+				relation.getBaseTabular().getColumnType(column));
+		return flipped
+				? compare(f, constant, new ColumnExpr(column))
+				: compare(f, new ColumnExpr(column), constant);
+	}
+
+	private Expression compare(ExprFunction2 f, ColumnName column1, ColumnName column2) {
+		if (column1 == null || column2 == null) return null;
+		return compare(f, new ColumnExpr(column1), new ColumnExpr(column2));
+	}
+
+	private Expression compare(ExprFunction2 f, Expression left, Expression right) {
+		if (f instanceof E_Equals) return Equality.create(left, right);
+		if (f instanceof E_NotEquals) return negate(Equality.create(left, right));
+		if (f instanceof E_LessThan) return new LessThan(left, right);
+		if (f instanceof E_LessThanOrEqual) return new LessThanOrEqual(left, right);
+		if (f instanceof E_GreaterThan) return new GreaterThan(left, right);
+		if (f instanceof E_GreaterThanOrEqual) return new GreaterThanOrEqual(left, right);
+		return null;
+	}
+
+	private Expression equalsOrNot(ExprFunction2 f, Expression equality) {
+		if (equality == null) return null;
+		return f instanceof E_NotEquals ? negate(equality) : equality;
+	}
+
+	private Expression negate(Expression expression) {
+		if (expression.isTrue()) return Expression.FALSE;
+		if (expression.isFalse()) return Expression.TRUE;
+		return new Negation(expression);
+	}
+
+	private Expression valueCondition(NodeMaker nodeMaker, Node node) {
+		return BGPTranslator.valueCondition(nodeMaker, relation.getBaseTabular(),
+				node, relation.getSQLConnection());
+	}
+
+	/**
+	 * A SQL expression for the string value of a literal variable,
+	 * or of the result of <code>str()</code>
+	 */
+	private Expression literalStringExpression(Expr expr) {
+		if (expr instanceof E_Str) {
+			return stringExpression(((E_Str) expr).getArg(), true);
+		}
+		return stringExpression(expr, false);
+	}
+
+	private Expression stringExpression(Expr expr, boolean allowURIs) {
+		TypedNodeMaker nodeMaker = typedNodeMaker(expr);
+		if (nodeMaker == null) return null;
+		TermType type = TermType.of(nodeMaker);
+		if (!type.isStringLike() && !(allowURIs && type.isURI())) return null;
+		ColumnName column = columnOfType(nodeMaker, SQLCharacterStringVarying.class);
+		return column == null ? null : new ColumnExpr(column);
+	}
+
+	private TypedNodeMaker typedNodeMaker(Expr expr) {
+		if (!expr.isVariable()) return null;
+		Var var = expr.asVar();
+		if (!relation.getBindingMaker().has(var)) return null;
+		// Unbound values would need SPARQL's error semantics
+		if (relation.getBindingMaker().isGuarded(var)) return null;
+		NodeMaker nodeMaker = relation.nodeMaker(var);
+		return nodeMaker instanceof TypedNodeMaker ? (TypedNodeMaker) nodeMaker : null;
+	}
+
+	private ColumnName columnOfType(TypedNodeMaker nodeMaker, Class<?>... types) {
+		return TermType.valueColumn(nodeMaker, relation.getBaseTabular(), types);
+	}
+
+	private static String numericLexicalForm(NodeValue value) {
+		if (value.isInteger()) {
+			return value.getInteger().toString();
+		}
+		if (value.isDecimal()) {
+			return value.getDecimal().toPlainString();
+		}
+		double d = value.isFloat() ? value.getFloat() : value.getDouble();
+		if (Double.isNaN(d) || Double.isInfinite(d)) return null;
+		return BigDecimal.valueOf(d).toPlainString();
+	}
+
+	private static boolean isOrdering(Expr expr) {
+		return expr instanceof E_LessThan || expr instanceof E_LessThanOrEqual
+				|| expr instanceof E_GreaterThan || expr instanceof E_GreaterThanOrEqual;
+	}
+}
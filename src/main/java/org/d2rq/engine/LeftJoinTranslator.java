@@ -0,0 +1,265 @@
+package org.d2rq.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.algebra.NodeRelationUtil;
+import org.d2rq.db.SQLConnection;
+import org.d2rq.db.expr.Expression;
+import org.d2rq.db.op.AliasOp;
+import org.d2rq.db.op.AssertUniqueKeyOp;
+import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.op.LeftJoinOp;
+import org.d2rq.db.op.NamedOp;
+import org.d2rq.db.op.ProjectOp;
+import org.d2rq.db.op.SelectOp;
+import org.d2rq.db.op.util.OpUtil;
+import org.d2rq.db.renamer.Renamer;
+import org.d2rq.db.renamer.TableRenamer;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.schema.Identifier;
+import org.d2rq.db.schema.TableName;
+import org.d2rq.nodes.BindingMaker;
+import org.d2rq.nodes.FixedNodeMaker;
+import org.d2rq.nodes.NodeMaker;
+
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.expr.Expr;
+import com.hp.hpl.jena.sparql.expr.ExprList;
+
+/**
+ * Translates a SPARQL <code>OPTIONAL</code> between two
+ * {@link NodeRelation}s on the same database into a SQL
+ * <code>LEFT OUTER JOIN</code>, represented by a {@link LeftJoinOp}.
+ *
+ * Variables that occur only on the optional side are guarded by a
+ * column of that side (see {@link BindingMaker}), so they are unbound
+ * where no row of the optional side matches. Where possible, this is
+ * one of the variable's own columns, so that projecting the variable
+ * doesn't add a column that could keep <code>DISTINCT</code> from
+ * removing duplicates.
+ *
+ * The translation is only done where it gives exactly the same
+ * solutions as ARQ's left join. This requires that every row of the
+ * optional side produces a binding, that shared variables are always
+ * bound on the required side, and that any filter of the
+ * <code>OPTIONAL</code> can be translated exactly by a
+ * {@link FilterTranslator}. Otherwise, <code>null</code> is returned.
+ */
+public class LeftJoinTranslator {
+	private final NodeRelation left;
+	private final SQLConnection sqlConnection;
+
+	/**
+	 * @param left The required side of the left join
+	 */
+	public LeftJoinTranslator(NodeRelation left) {
+		this.left = left;
+		this.sqlConnection = left.getSQLConnection();
+	}
+
+	/**
+	 * @param right The optional side of the left join
+	 * @param exprs Filter of the <code>OPTIONAL</code>; may be <code>null</code>
+	 * @return The left join, or <code>null</code> if it cannot be
+	 * 		evaluated in the database
+	 */
+	public NodeRelation leftJoin(NodeRelation right, ExprList exprs) {
+		if (!sqlConnection.equals(right.getSQLConnection())) return null;
+		if (left.getBindingMaker().getConditionColumn() != null) return null;
+		if (!right.getBindingMaker().getGuards().isEmpty()) return null;
+		if (OpUtil.isEmpty(left.getBaseTabular())) return left;
+		right = new SolutionModifierTranslator(right).nonNullRows();
+		if (right == null) return null;
+		if (OpUtil.isEmpty(right.getBaseTabular())) return left;
+		for (Var var: right.getBindingMaker().variableNames()) {
+			if (left.getBindingMaker().isGuarded(var)) return null;
+		}
+
+		// Bring both sides into a form that is allowed in a LeftJoinOp
+		Set<TableName> usedNames = new HashSet<TableName>();
+		Expression leftCondition = peelConditions(left.getBaseTabular());
+		NodeRelation l = left;
+		DatabaseOp leftOp = peel(left.getBaseTabular());
+		if (leftOp instanceof LeftJoinOp) {
+			usedNames.addAll(((LeftJoinOp) leftOp).getTableNames());
+		} else if (leftOp instanceof NamedOp) {
+			usedNames.add(leftOp.getTableName());
+		} else {
+			l = alias(left, uniqueName(usedNames, right.getBaseTabular()));
+			if (l == null) return null;
+			leftOp = l.getBaseTabular();
+			leftCondition = Expression.TRUE;
+			usedNames.add(leftOp.getTableName());
+		}
+		Expression rightCondition = peelConditions(right.getBaseTabular());
+		NodeRelation r = right;
+		DatabaseOp rightOp = peel(right.getBaseTabular());
+		if (rightOp instanceof NamedOp && usedNames.contains(rightOp.getTableName())) {
+			TableName name = uniqueName(usedNames, rightOp);
+			Renamer renamer = TableRenamer.create(rightOp.getTableName(), name);
+			rightOp = AliasOp.create(rightOp, name);
+			rightCondition = renamer.applyTo(rightCondition);
+			r = new NodeRelation(sqlConnection, rightOp,
+					right.getBindingMaker().rename(renamer));
+		} else if (!(rightOp instanceof NamedOp)) {
+			r = alias(right, uniqueName(usedNames, leftOp));
+			if (r == null) return null;
+			rightOp = r.getBaseTabular();
+			rightCondition = Expression.TRUE;
+		}
+		NamedOp namedRight = (NamedOp) rightOp;
+
+		// Shared variables must produce the same node on both sides
+		Expression condition = rightCondition;
+		Map<Var,NodeMaker> nodeMakers = new HashMap<Var,NodeMaker>(
+				l.getBindingMaker().getNodeMakers());
+		List<Var> rightOnly = new ArrayList<Var>();
+		for (Var var: r.getBindingMaker().variableNames()) {
+			if (!l.getBindingMaker().has(var)) {
+				nodeMakers.put(var, r.nodeMaker(var));
+				rightOnly.add(var);
+				continue;
+			}
+			Expression join = BGPTranslator.joinCondition(
+					l.nodeMaker(var), leftOp, r.nodeMaker(var), namedRight, sqlConnection);
+			if (join == null) return null;
+			condition = condition.and(join);
+		}
+		if (condition.isFalse()) return left;
+
+		// The filter of the OPTIONAL sees the variables of both sides
+		if (exprs != null && !exprs.isEmpty()) {
+			NodeRelation both = new NodeRelation(sqlConnection,
+					LeftJoinOp.join(leftOp, namedRight, Expression.TRUE),
+					new BindingMaker(nodeMakers, null, l.getBindingMaker().getGuards()));
+			for (Expr expr: ExprList.splitConjunction(exprs)) {
+				FilterTranslator translator = new FilterTranslator(both);
+				Expression translated = translator.translate(expr);
+				if (translated == null || !translator.isExact()) return null;
+				condition = condition.and(translated);
+			}
+			if (condition.isFalse()) return left;
+		}
+
+		Map<Var,ColumnName> guards = new HashMap<Var,ColumnName>(
+				l.getBindingMaker().getGuards());
+		for (Var var: rightOnly) {
+			ColumnName guard = guardColumn(r.nodeMaker(var), namedRight);
+			if (guard == null) {
+				guard = guardColumn(r, namedRight);
+			}
+			if (guard == null) return null;
+			guards.put(var, guard);
+		}
+		NodeRelation result = new NodeRelation(sqlConnection,
+				SelectOp.select(LeftJoinOp.join(leftOp, namedRight, condition), leftCondition),
+				new BindingMaker(nodeMakers, null, guards));
+		return NodeRelationUtil.project(result, result.getBindingMaker().variableNames());
+	}
+
+	/**
+	 * @return One of the node maker's columns, which are never
+	 * 		<code>NULL</code> in the rows of the optional side,
+	 * 		or <code>null</code> if it has none
+	 */
+	private ColumnName guardColumn(NodeMaker nodeMaker, NamedOp op) {
+		// Made non-null by SolutionModifierTranslator.nonNullRows()
+		for (ColumnName column: nodeMaker.getRequiredColumns()) {
+			if (op.hasColumn(column)) return column;
+		}
+		return null;
+	}
+
+	/**
+	 * @return A column that is never <code>NULL</code> in the rows of
+	 * 		the optional side, or <code>null</code> if none is known
+	 */
+	private ColumnName guardColumn(NodeRelation right, NamedOp op) {
+		for (NodeMaker nodeMaker: right.getBindingMaker().getNodeMakers().values()) {
+			if (nodeMaker instanceof FixedNodeMaker) continue;
+			// Made non-null by SolutionModifierTranslator.nonNullRows()
+			for (ColumnName column: nodeMaker.getRequiredColumns()) {
+				if (op.hasColumn(column)) return column;
+			}
+		}
+		for (ColumnName column: op.getColumns()) {
+			if (!op.isNullable(column)) return column;
+		}
+		return null;
+	}
+
+	/**
+	 * Wraps the relation into an alias, which becomes a sub-query in SQL.
+	 *
+	 * @return <code>null</code> if the columns would not have unique names
+	 */
+	private NodeRelation alias(NodeRelation relation, TableName name) {
+		relation = NodeRelationUtil.project(relation,
+				relation.getBindingMaker().variableNames());
+		Set<Identifier> names = new HashSet<Identifier>();
+		for (ColumnName column: relation.getBaseTabular().getColumns()) {
+			if (!names.add(column.getColumn())) return null;
+		}
+		AliasOp alias = AliasOp.create(relation.getBaseTabular(), name);
+		return new NodeRelation(sqlConnection, alias,
+				relation.getBindingMaker().rename(alias.getRenamer()));
+	}
+
+	/**
+	 * @param other Names in this op are avoided as well
+	 */
+	private TableName uniqueName(Collection<TableName> usedNames, DatabaseOp other) {
+		Set<TableName> avoid = new HashSet<TableName>(usedNames);
+		if (other instanceof LeftJoinOp) {
+			avoid.addAll(((LeftJoinOp) other).getTableNames());
+		} else if (peel(other).getTableName() != null) {
+			avoid.add(peel(other).getTableName());
+		}
+		int i = 1;
+		TableName result;
+		do {
+			result = TableName.create(null, null, Identifier.createUndelimited("OPT" + i++));
+		} while (avoid.contains(result));
+		usedNames.add(result);
+		return result;
+	}
+
+	/**
+	 * Removes selections, projections and unique key assertions, which
+	 * don't have to be applied before the join.
+	 */
+	private static DatabaseOp peel(DatabaseOp op) {
+		while (true) {
+			if (op instanceof SelectOp) {
+				op = ((SelectOp) op).getWrapped();
+			} else if (op instanceof ProjectOp) {
+				op = ((ProjectOp) op).getWrapped();
+			} else if (op instanceof AssertUniqueKeyOp) {
+				op = ((AssertUniqueKeyOp) op).getWrapped();
+			} else {
+				return op;
+			}
+		}
+	}
+
+	/**
+	 * @return The conjunction of the selections removed by {@link #peel(DatabaseOp)}
+	 */
+	private static Expression peelConditions(DatabaseOp op) {
+		Expression result = Expression.TRUE;
+		while (op != peel(op)) {
+			if (op instanceof SelectOp) {
+				result = result.and(((SelectOp) op).getCondition());
+			}
+			op = ((DatabaseOp.Wrapper) op).getWrapped();
+		}
+		return result;
+	}
+}
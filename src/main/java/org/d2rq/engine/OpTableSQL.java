@@ -0,0 +1,362 @@
+package org.d2rq.engine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.d2rq.D2RQOptions;
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.algebra.NodeRelationUtil;
+import org.d2rq.tmp.CompatibleRelationGroup;
+import org.openjena.atlas.io.IndentedWriter;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.op.OpExt;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingRoot;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIter1;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterConcat;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterProcessBinding;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterRepeatApply;
+import com.hp.hpl.jena.sparql.engine.main.QC;
+import com.hp.hpl.jena.sparql.serializer.SerializationContext;
+import com.hp.hpl.jena.sparql.util.Context;
+import com.hp.hpl.jena.sparql.util.NodeIsomorphismMap;
+
+/**
+ * An ARQ operator that evaluates a basic graph pattern, and possibly
+ * filters on it, in the database. The pattern has been translated
+ * into {@link NodeRelation}s by a {@link BGPTranslator}, filters
+ * by a {@link FilterTranslator}, and the results of all the relations
+ * are concatenated.
+ *
+ * Solution modifiers (ordering, slicing, duplicate removal) may also
+ * have been added to the relations by a {@link SolutionModifierTranslator}.
+ *
+ * Bindings coming in from previous operators are joined with each
+ * relation using {@link NodeRelationUtil#extendWith(NodeRelation, Binding)}.
+ * If {@link D2RQOptions#BIND_JOIN_BLOCK_SIZE} is greater than 1, then
+ * blocks of incoming bindings are instead joined with each relation
+ * in a single query, using
+ * {@link NodeRelationUtil#selectCompatible(NodeRelation, java.util.Collection)},
+ * and the results are routed back to their bindings in memory.
+ * If the relations have solution modifiers, then these must apply to
+ * the entire relations, so incoming bindings are instead joined with
+ * the results of the unmodified relations. The same is done for
+ * bindings of variables that are optional in a relation, as an unbound
+ * variable is compatible with any value.
+ */
+public class OpTableSQL extends OpExt {
+	private final Op original;
+	private final Graph graph;
+	private final List<NodeRelation> tables;
+	private final Context options;
+	private final boolean modified;
+
+	/**
+	 * @param original The equivalent ARQ operator, a basic graph pattern
+	 * 		possibly with filters and optional parts
+	 * @param graph The graph that the relations are taken from
+	 * @param tables Relations whose union is the result of the pattern
+	 * @param options D2RQ options, see {@link D2RQOptions}
+	 */
+	public OpTableSQL(Op original, Graph graph, List<NodeRelation> tables, Context options) {
+		this(original, graph, tables, options, false);
+	}
+
+	/**
+	 * @param modified Do the relations have solution modifiers?
+	 */
+	public OpTableSQL(Op original, Graph graph, List<NodeRelation> tables, 
+			Context options, boolean modified) {
+		super("d2rq");
+		this.original = original;
+		this.graph = graph;
+		this.tables = tables;
+		this.options = options;
+		this.modified = modified;
+	}
+
+	public List<NodeRelation> getTables() {
+		return tables;
+	}
+
+	public Graph getGraph() {
+		return graph;
+	}
+
+	public Context getOptions() {
+		return options;
+	}
+
+	public boolean isModified() {
+		return modified;
+	}
+
+	@Override
+	public Op effectiveOp() {
+		return original;
+	}
+
+	@Override
+	public QueryIterator eval(QueryIterator input, final ExecutionContext execCxt) {
+		if (execCxt.getActiveGraph() != graph) {
+			// Inside GRAPH; the relations are not for the active graph
+			return QC.execute(original, input, execCxt);
+		}
+		int blockSize = blockSize();
+		if (blockSize > 1) {
+			return new QueryIterBlockJoin(input, blockSize, execCxt);
+		}
+		return new QueryIterRepeatApply(input, execCxt) {
+			@Override
+			protected QueryIterator nextStage(Binding binding) {
+				return evalJoin(binding, execCxt);
+			}
+		};
+	}
+
+	private QueryIterator evalJoin(final Binding binding, ExecutionContext execCxt) {
+		if (!joinsInMemory(binding)) {
+			return evalWith(binding, execCxt);
+		}
+		return new QueryIterProcessBinding(
+				evalWith(BindingRoot.create(), execCxt), execCxt) {
+			@Override
+			public Binding accept(Binding result) {
+				if (!Algebra.compatible(binding, result)) return null;
+				return Algebra.merge(binding, result);
+			}
+		};
+	}
+
+	private int blockSize() {
+		int result = Integer.parseInt(options.getAsString(D2RQOptions.BIND_JOIN_BLOCK_SIZE, "1"));
+		for (NodeRelation table: tables) {
+			result = Math.min(result, table.getSQLConnection().vendor().getMaxInListSize());
+		}
+		return result;
+	}
+
+	/**
+	 * Bindings can't be joined in SQL with relations that have solution
+	 * modifiers, or on variables that may be unbound in the relations.
+	 */
+	private boolean joinsInMemory(Binding binding) {
+		if (binding.isEmpty()) return false;
+		if (modified) return true;
+		for (NodeRelation table: tables) {
+			for (Iterator<Var> it = binding.vars(); it.hasNext();) {
+				if (table.getBindingMaker().isGuarded(it.next())) return true;
+			}
+		}
+		return false;
+	}
+
+	private QueryIterator evalWith(Binding binding, ExecutionContext execCxt) {
+		List<NodeRelation> relations = new ArrayList<NodeRelation>(tables.size());
+		for (NodeRelation table: tables) {
+			relations.add(NodeRelationUtil.extendWith(table, binding));
+		}
+		return evalRelations(relations, execCxt);
+	}
+
+	/**
+	 * Joins several bindings that bind the same variables with the
+	 * relations, using one query per relation for all of them, and
+	 * adds each result to the list of the binding it is compatible with.
+	 */
+	private void evalWith(List<Binding> bindings, List<List<Binding>> results,
+			ExecutionContext execCxt) {
+		List<NodeRelation> relations = new ArrayList<NodeRelation>(tables.size());
+		for (NodeRelation table: tables) {
+			relations.add(NodeRelationUtil.selectCompatible(table, bindings));
+		}
+		// Index the bindings by their values of the variables that
+		// occur in a result, as different relations bind different variables
+		Map<Set<Var>,Map<Map<Var,Node>,List<Integer>>> indexes = 
+				new HashMap<Set<Var>,Map<Map<Var,Node>,List<Integer>>>();
+		Set<Var> vars = new HashSet<Var>();
+		for (Iterator<Var> it = bindings.get(0).vars(); it.hasNext();) {
+			vars.add(it.next());
+		}
+		QueryIterator it = evalRelations(relations, execCxt);
+		try {
+			while (it.hasNext()) {
+				Binding result = it.nextBinding();
+				Set<Var> shared = new HashSet<Var>();
+				for (Var var: vars) {
+					if (result.contains(var)) shared.add(var);
+				}
+				Map<Map<Var,Node>,List<Integer>> index = indexes.get(shared);
+				if (index == null) {
+					index = new HashMap<Map<Var,Node>,List<Integer>>();
+					for (int i = 0; i < bindings.size(); i++) {
+						Map<Var,Node> key = values(bindings.get(i), shared);
+						if (!index.containsKey(key)) {
+							index.put(key, new ArrayList<Integer>());
+						}
+						index.get(key).add(i);
+					}
+					indexes.put(shared, index);
+				}
+				List<Integer> matches = index.get(values(result, shared));
+				if (matches == null) continue;
+				for (int i: matches) {
+					results.get(i).add(Algebra.merge(bindings.get(i), result));
+				}
+			}
+		} finally {
+			it.close();
+		}
+	}
+
+	private Map<Var,Node> values(Binding binding, Set<Var> vars) {
+		Map<Var,Node> result = new HashMap<Var,Node>();
+		for (Var var: vars) {
+			result.put(var, binding.get(var));
+		}
+		return result;
+	}
+
+	private QueryIterator evalRelations(List<NodeRelation> relations, ExecutionContext execCxt) {
+		QueryIterConcat result = new QueryIterConcat(execCxt);
+		if ("true".equals(options.getAsString(D2RQOptions.MULTIPLEX_QUERIES, "false"))) {
+			for (CompatibleRelationGroup group:
+				CompatibleRelationGroup.unionGroups(
+						CompatibleRelationGroup.groupNodeRelations(relations))) {
+				result.add(QueryIterTableSQL.create(group.getSQLConnection(),
+						group.baseRelation(), group.bindingMakers(), execCxt));
+			}
+		} else {
+			for (NodeRelation relation: relations) {
+				result.add(QueryIterTableSQL.create(relation, execCxt));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Reads incoming bindings in blocks, and joins the bindings of a
+	 * block that bind the same variables with the relations in a
+	 * single query per relation, instead of one query per binding.
+	 * The results of a block are returned in the order of the
+	 * incoming bindings.
+	 */
+	private class QueryIterBlockJoin extends QueryIter1 {
+		private final int blockSize;
+		private final LinkedList<Binding> output = new LinkedList<Binding>();
+
+		QueryIterBlockJoin(QueryIterator input, int blockSize, ExecutionContext execCxt) {
+			super(input, execCxt);
+			this.blockSize = blockSize;
+		}
+
+		@Override
+		protected boolean hasNextBinding() {
+			while (output.isEmpty() && getInput().hasNext()) {
+				List<Binding> block = new ArrayList<Binding>(blockSize);
+				while (block.size() < blockSize && getInput().hasNext()) {
+					block.add(getInput().nextBinding());
+				}
+				evalBlock(block);
+			}
+			return !output.isEmpty();
+		}
+
+		@Override
+		protected Binding moveToNextBinding() {
+			return output.removeFirst();
+		}
+
+		private void evalBlock(List<Binding> block) {
+			List<List<Binding>> results = new ArrayList<List<Binding>>(block.size());
+			Map<Set<Var>,List<Integer>> runs = new LinkedHashMap<Set<Var>,List<Integer>>();
+			for (int i = 0; i < block.size(); i++) {
+				results.add(new ArrayList<Binding>());
+				Binding binding = block.get(i);
+				if (binding.isEmpty() || joinsInMemory(binding)) {
+					drain(evalJoin(binding, getExecContext()), results.get(i));
+					continue;
+				}
+				Set<Var> vars = new HashSet<Var>();
+				for (Iterator<Var> it = binding.vars(); it.hasNext();) {
+					vars.add(it.next());
+				}
+				if (!runs.containsKey(vars)) {
+					runs.put(vars, new ArrayList<Integer>());
+				}
+				runs.get(vars).add(i);
+			}
+			for (List<Integer> run: runs.values()) {
+				if (run.size() == 1) {
+					drain(evalJoin(block.get(run.get(0)), getExecContext()), 
+							results.get(run.get(0)));
+					continue;
+				}
+				List<Binding> bindings = new ArrayList<Binding>(run.size());
+				List<List<Binding>> runResults = new ArrayList<List<Binding>>(run.size());
+				for (int i: run) {
+					bindings.add(block.get(i));
+					runResults.add(results.get(i));
+				}
+				evalWith(bindings, runResults, getExecContext());
+			}
+			for (List<Binding> result: results) {
+				output.addAll(result);
+			}
+		}
+
+		private void drain(QueryIterator it, List<Binding> result) {
+			try {
+				while (it.hasNext()) {
+					result.add(it.nextBinding());
+				}
+			} finally {
+				it.close();
+			}
+		}
+
+		@Override
+		protected void requestSubCancel() {}
+
+		@Override
+		protected void closeSubIterator() {
+			output.clear();
+		}
+	}
+
+	@Override
+	public void outputArgs(IndentedWriter out, SerializationContext sCxt) {
+		out.println(tables.size() + " relations for" + (modified ? " (modified)" : ""));
+		original.output(out, sCxt);
+		for (NodeRelation table: tables) {
+			out.println();
+			out.print(table.toString());
+		}
+	}
+
+	@Override
+	public int hashCode() {
+		return original.hashCode() ^ tables.hashCode();
+	}
+
+	@Override
+	public boolean equalTo(Op other, NodeIsomorphismMap labelMap) {
+		if (!(other instanceof OpTableSQL)) return false;
+		OpTableSQL otherOp = (OpTableSQL) other;
+		return original.equalTo(otherOp.original, labelMap) && tables.equals(otherOp.tables);
+	}
+}
@@ -83,9 +83,10 @@ public class QueryIterTableSQL extends QueryIter {
 			Collection<BindingMaker> bindingMakers, ExecutionContext execCxt) {
 		super(execCxt);
 		this.bindingMakers = bindingMakers;
-		SelectStatementBuilder builder = new SelectStatementBuilder(table, sqlConnection.vendor());
-		wrapped = new SQLIterator(
-				builder.getSQL(), builder.getColumns(), sqlConnection);
+		SelectStatementBuilder builder = new SelectStatementBuilder(table, 
+				sqlConnection.vendor(), sqlConnection.usePreparedStatements());
+		wrapped = new SQLIterator(builder.getSQL(), builder.getParameters(), 
+				builder.getColumns(), sqlConnection, OpUtil.getTableNames(table));
 	}
 	
 	@Override
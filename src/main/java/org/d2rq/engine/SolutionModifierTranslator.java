@@ -0,0 +1,275 @@
+package org.d2rq.engine;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.algebra.NodeRelationOrderer;
+import org.d2rq.algebra.NodeRelationUtil;
+import org.d2rq.db.expr.BinaryCollation;
+import org.d2rq.db.expr.ColumnExpr;
+import org.d2rq.db.expr.Expression;
+import org.d2rq.db.expr.NotNull;
+import org.d2rq.db.op.AliasOp;
+import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.op.DistinctOp;
+import org.d2rq.db.op.GroupOp;
+import org.d2rq.db.op.LimitOp;
+import org.d2rq.db.op.OpVisitor;
+import org.d2rq.db.op.OrderOp;
+import org.d2rq.db.op.OrderOp.OrderSpec;
+import org.d2rq.db.op.UnionOp;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.types.DataType;
+import org.d2rq.db.types.SQLApproximateNumeric;
+import org.d2rq.db.types.SQLCharacterString;
+import org.d2rq.db.types.SQLCharacterStringVarying;
+import org.d2rq.db.types.SQLDate;
+import org.d2rq.db.types.SQLExactNumeric;
+import org.d2rq.db.types.SQLTime;
+import org.d2rq.db.types.SQLTimestamp;
+import org.d2rq.db.vendor.Vendor;
+import org.d2rq.nodes.FixedNodeMaker;
+import org.d2rq.nodes.NodeMaker;
+import org.d2rq.nodes.TypedNodeMaker;
+import org.d2rq.values.BlankNodeIDValueMaker;
+import org.d2rq.values.ColumnValueMaker;
+import org.d2rq.values.TemplateValueMaker;
+import org.d2rq.values.ValueMaker;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.SortCondition;
+import com.hp.hpl.jena.sparql.core.Var;
+
+/**
+ * Translates SPARQL solution modifiers on a single {@link NodeRelation}
+ * into its SQL query: <code>ORDER BY</code> into an {@link OrderOp},
+ * <code>LIMIT</code> and <code>OFFSET</code> into a {@link LimitOp},
+ * and <code>DISTINCT</code> into a {@link DistinctOp}.
+ *
+ * Each method returns <code>null</code> if the modifier cannot be
+ * evaluated in the database with the same result as in ARQ.
+ * Ordering requires variables whose values are the values of single
+ * columns, in a type whose SQL order agrees with SPARQL's order.
+ * Slicing requires that every row returned from the database produces
+ * a binding, so that the database counts the same rows as ARQ.
+ */
+public class SolutionModifierTranslator {
+	private final NodeRelation relation;
+	private final Vendor vendor;
+	private boolean exact = true;
+
+	public SolutionModifierTranslator(NodeRelation relation) {
+		this.relation = relation;
+		this.vendor = relation.getSQLConnection().vendor();
+	}
+
+	/**
+	 * @return <code>false</code> if the last call to {@link #distinct(Set)}
+	 * 		may have left duplicate solutions, because different rows
+	 * 		can produce the same nodes
+	 */
+	public boolean isExact() {
+		return exact;
+	}
+
+	public NodeRelation order(List<SortCondition> conditions) {
+		List<OrderSpec> orderSpecs = new ArrayList<OrderSpec>();
+		for (SortCondition condition: conditions) {
+			if (!condition.getExpression().isVariable()) return null;
+			Var var = condition.getExpression().asVar();
+			// Unbound in all solutions, or the same node in all solutions
+			if (!relation.getBindingMaker().has(var)) continue;
+			// SQL and SPARQL disagree on where unbound values sort
+			if (relation.getBindingMaker().isGuarded(var)) return null;
+			NodeMaker nodeMaker = relation.nodeMaker(var);
+			if (nodeMaker instanceof FixedNodeMaker) continue;
+			Expression expression = orderExpression(nodeMaker);
+			if (expression == null) return null;
+			orderSpecs.add(new OrderSpec(expression,
+					condition.getDirection() != Query.ORDER_DESCENDING));
+		}
+		if (orderSpecs.isEmpty()) return relation;
+		// SELECT DISTINCT can only be sorted by selected columns
+		if (isDistinct(relation.getBaseTabular())) {
+			for (OrderSpec orderSpec: orderSpecs) {
+				if (!(orderSpec.getExpression() instanceof ColumnExpr)) return null;
+			}
+		}
+		return new NodeRelationOrderer(relation, orderSpecs).getNodeRelation();
+	}
+
+	/**
+	 * @param offset Number of solutions to skip
+	 * @param limit Maximum number of solutions, or {@link LimitOp#NO_LIMIT}
+	 */
+	public NodeRelation slice(int offset, int limit) {
+		NodeRelation nonNull = nonNullRows();
+		if (nonNull == null) return null;
+		if (offset > 0 && vendor.getOffsetAsQueryAppendage(offset) == null) return null;
+		NodeRelation result = NodeRelationUtil.slice(nonNull, offset, limit);
+		// Some databases only allow OFFSET together with LIMIT
+		if (offset > 0 && !(result.getBaseTabular() instanceof LimitOp
+				&& ((LimitOp) result.getBaseTabular()).getLimit() != LimitOp.NO_LIMIT)) {
+			return null;
+		}
+		return result;
+	}
+
+	public NodeRelation distinct(Set<Var> vars) {
+		NodeRelation nonNull = nonNullRows();
+		if (nonNull == null) return null;
+		Set<ColumnName> columns = new HashSet<ColumnName>();
+		exact = true;
+		for (Var var: vars) {
+			if (!relation.getBindingMaker().has(var)) continue;
+			NodeMaker nodeMaker = relation.nodeMaker(var);
+			for (ColumnName column: nodeMaker.getRequiredColumns()) {
+				DataType type = relation.getBaseTabular().getColumnType(column);
+				if (type == null || type.isUnsupported() || !type.supportsDistinct()) return null;
+				columns.add(column);
+			}
+			exact &= nodeMaker instanceof FixedNodeMaker ||
+					(nodeMaker instanceof TypedNodeMaker && TermType.baseValueMaker(
+							(TypedNodeMaker) nodeMaker) instanceof ColumnValueMaker);
+		}
+		// Guard columns are selected too, and rows that only differ in
+		// a guard column would give duplicate solutions
+		for (Var var: vars) {
+			if (!relation.getBindingMaker().isGuarded(var)) continue;
+			exact &= columns.contains(relation.getBindingMaker().getGuards().get(var));
+		}
+		// SELECT DISTINCT can only be sorted by selected columns
+		for (OrderSpec orderSpec: orderSpecs(nonNull.getBaseTabular())) {
+			if (!(orderSpec.getExpression() instanceof ColumnExpr)) return null;
+			if (!columns.containsAll(orderSpec.getExpression().getColumns())) return null;
+		}
+		return NodeRelationUtil.distinct(nonNull, vars);
+	}
+
+	private Expression orderExpression(NodeMaker nodeMaker) {
+		if (!(nodeMaker instanceof TypedNodeMaker)) return null;
+		TypedNodeMaker typed = (TypedNodeMaker) nodeMaker;
+		TermType type = TermType.of(typed);
+		DatabaseOp op = relation.getBaseTabular();
+		ColumnName column;
+		if (type.isNumeric()) {
+			column = TermType.valueColumn(typed, op,
+					SQLExactNumeric.class, SQLApproximateNumeric.class);
+		} else if (type.is(XSDDatatype.XSDdate)) {
+			column = TermType.valueColumn(typed, op, SQLDate.class);
+		} else if (type.is(XSDDatatype.XSDdateTime)) {
+			column = TermType.valueColumn(typed, op, SQLTimestamp.class);
+		} else if (type.isURI() || type.isStringLike()) {
+			// SPARQL compares strings by code point, not by collation
+			column = TermType.valueColumn(typed, op,
+					SQLCharacterString.class, SQLCharacterStringVarying.class);
+			if (column == null || vendor.getBinaryCollationExpression("") == null) return null;
+			return new BinaryCollation(new ColumnExpr(column));
+		} else {
+			return null;
+		}
+		return column == null ? null : new ColumnExpr(column);
+	}
+
+	/**
+	 * Adds <code>IS NOT NULL</code> conditions so that every row
+	 * returned from the database produces a binding. Columns of
+	 * guarded variables may be <code>NULL</code>, as the variable
+	 * is then unbound.
+	 *
+	 * @return <code>null</code> if some node maker can fail to produce
+	 * 		a node even though its columns are not null
+	 */
+	NodeRelation nonNullRows() {
+		if (relation.getBindingMaker().getConditionColumn() != null) return null;
+		Set<ColumnName> columns = new HashSet<ColumnName>();
+		for (Var var: relation.getBindingMaker().variableNames()) {
+			NodeMaker nodeMaker = relation.nodeMaker(var);
+			if (nodeMaker instanceof FixedNodeMaker) continue;
+			if (!(nodeMaker instanceof TypedNodeMaker)) return null;
+			if (!isTotal((TypedNodeMaker) nodeMaker)) return null;
+			if (relation.getBindingMaker().isGuarded(var)) continue;
+			columns.addAll(nodeMaker.getRequiredColumns());
+		}
+		Expression condition = Expression.TRUE;
+		for (ColumnName column: columns) {
+			if (!relation.getBaseTabular().isNullable(column)) continue;
+			condition = condition.and(NotNull.create(new ColumnExpr(column)));
+		}
+		return NodeRelationUtil.select(relation, condition);
+	}
+
+	private boolean isTotal(TypedNodeMaker nodeMaker) {
+		ValueMaker valueMaker = TermType.baseValueMaker(nodeMaker);
+		if (!(valueMaker instanceof ColumnValueMaker
+				|| valueMaker instanceof TemplateValueMaker
+				|| valueMaker instanceof BlankNodeIDValueMaker)) {
+			return false;
+		}
+		// These node types reject values that are not valid lexical forms
+		TermType type = TermType.of(nodeMaker);
+		DatabaseOp op = relation.getBaseTabular();
+		if (type.is(XSDDatatype.XSDdate)) {
+			return TermType.valueColumn(nodeMaker, op, SQLDate.class) != null;
+		}
+		if (type.is(XSDDatatype.XSDtime)) {
+			return TermType.valueColumn(nodeMaker, op, SQLTime.class) != null;
+		}
+		if (type.is(XSDDatatype.XSDdateTime)) {
+			return TermType.valueColumn(nodeMaker, op, SQLTimestamp.class) != null;
+		}
+		return !type.is(XSDDatatype.XSDboolean);
+	}
+
+	private boolean isDistinct(DatabaseOp op) {
+		final boolean[] result = {false};
+		op.accept(new OpVisitor.Default(true) {
+			@Override
+			public boolean visitEnter(DistinctOp table) {
+				result[0] = true;
+				return false;
+			}
+			@Override
+			public boolean visitEnter(AliasOp table) {
+				return false;
+			}
+			@Override
+			public boolean visitEnter(GroupOp table) {
+				return false;
+			}
+			@Override
+			public boolean visitEnter(UnionOp table) {
+				return false;
+			}
+		});
+		return result[0];
+	}
+
+	private List<OrderSpec> orderSpecs(DatabaseOp op) {
+		final List<OrderSpec> result = new ArrayList<OrderSpec>();
+		op.accept(new OpVisitor.Default(true) {
+			@Override
+			public boolean visitEnter(OrderOp table) {
+				result.addAll(table.getOrderBy());
+				return true;
+			}
+			@Override
+			public boolean visitEnter(AliasOp table) {
+				return false;
+			}
+			@Override
+			public boolean visitEnter(GroupOp table) {
+				return false;
+			}
+			@Override
+			public boolean visitEnter(UnionOp table) {
+				return false;
+			}
+		});
+		return result;
+	}
+}
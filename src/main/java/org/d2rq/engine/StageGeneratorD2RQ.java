@@ -0,0 +1,92 @@
+package org.d2rq.engine;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.d2rq.jena.D2RQStatisticsHandler;
+import org.d2rq.jena.GraphD2RQ;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.BasicPattern;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterBlockTriples;
+import com.hp.hpl.jena.sparql.engine.main.StageGenerator;
+
+
+/**
+ * Evaluates basic graph patterns that are left to ARQ, one triple
+ * pattern at a time, in the order of their estimated number of matches.
+ * ARQ's own generator only consults the graph's statistics for
+ * in-memory graphs, and otherwise keeps the order of the query.
+ *
+ * The next pattern is always the one with the fewest estimated matches
+ * for the variables bound by the previous ones, as computed by the
+ * {@link D2RQStatisticsHandler}. Patterns that share a variable with
+ * the previous ones come before those that don't, to avoid cross
+ * products. Patterns on other graphs are passed to another generator.
+ */
+public class StageGeneratorD2RQ implements StageGenerator {
+	private final StageGenerator other;
+
+	public StageGeneratorD2RQ(StageGenerator other) {
+		this.other = other;
+	}
+
+	public QueryIterator execute(BasicPattern pattern, QueryIterator input,
+			ExecutionContext execCxt) {
+		Graph graph = execCxt.getActiveGraph();
+		if (!(graph instanceof GraphD2RQ) || pattern.size() < 2) {
+			return other.execute(pattern, input, execCxt);
+		}
+		D2RQStatisticsHandler statistics = 
+			(D2RQStatisticsHandler) graph.getStatisticsHandler();
+		return QueryIterBlockTriples.create(input, reorder(pattern, statistics), execCxt);
+	}
+
+	public static BasicPattern reorder(BasicPattern pattern, 
+			D2RQStatisticsHandler statistics) {
+		List<Triple> remaining = new ArrayList<Triple>(pattern.getList());
+		Set<Var> bound = new HashSet<Var>();
+		BasicPattern result = new BasicPattern();
+		while (!remaining.isEmpty()) {
+			Triple best = null;
+			boolean bestConnected = false;
+			long bestCount = 0;
+			for (Triple t: remaining) {
+				boolean connected = bound.isEmpty() || isConnected(t, bound);
+				if (best != null && bestConnected && !connected) continue;
+				long count = statistics.getStatistic(t, bound);
+				if (best == null || (connected && !bestConnected) || count < bestCount) {
+					best = t;
+					bestConnected = connected;
+					bestCount = count;
+				}
+			}
+			remaining.remove(best);
+			result.add(best);
+			addVariables(best, bound);
+		}
+		return result;
+	}
+
+	private static boolean isConnected(Triple t, Set<Var> bound) {
+		for (Node node: new Node[]{t.getSubject(), t.getPredicate(), t.getObject()}) {
+			if (node.isVariable() && bound.contains(Var.alloc(node))) return true;
+		}
+		return false;
+	}
+
+	private static void addVariables(Triple t, Set<Var> bound) {
+		for (Node node: new Node[]{t.getSubject(), t.getPredicate(), t.getObject()}) {
+			if (node.isVariable()) {
+				bound.add(Var.alloc(node));
+			}
+		}
+	}
+}
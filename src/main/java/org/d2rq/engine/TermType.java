@@ -0,0 +1,137 @@
+package org.d2rq.engine;
+
+import org.d2rq.db.expr.Expression;
+import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.types.DataType;
+import org.d2rq.nodes.NodeSetFilter;
+import org.d2rq.nodes.TypedNodeMaker;
+import org.d2rq.values.BlankNodeIDValueMaker;
+import org.d2rq.values.ColumnValueMaker;
+import org.d2rq.values.DecoratingValueMaker;
+import org.d2rq.values.TemplateValueMaker;
+import org.d2rq.values.Translator;
+import org.d2rq.values.ValueMaker;
+
+import com.hp.hpl.jena.datatypes.RDFDatatype;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.expr.E_IsBlank;
+import com.hp.hpl.jena.sparql.expr.E_IsIRI;
+import com.hp.hpl.jena.sparql.expr.E_IsLiteral;
+import com.hp.hpl.jena.sparql.expr.E_Lang;
+import com.hp.hpl.jena.sparql.expr.ExprFunction1;
+import com.hp.hpl.jena.sparql.expr.NodeValue;
+
+/**
+ * Records the kind of nodes produced by a {@link TypedNodeMaker}:
+ * URIs, blank nodes, or literals with a given language or datatype.
+ */
+class TermType implements NodeSetFilter {
+
+	static TermType of(TypedNodeMaker nodeMaker) {
+		TermType result = new TermType();
+		nodeMaker.getNodeType().matchConstraint(result);
+		return result;
+	}
+
+	/**
+	 * @return The column whose value is the node maker's value, if it
+	 * 		has one of the given types in the op; <code>null</code> otherwise
+	 */
+	static ColumnName valueColumn(TypedNodeMaker nodeMaker, DatabaseOp op, Class<?>... types) {
+		ValueMaker valueMaker = baseValueMaker(nodeMaker);
+		if (!(valueMaker instanceof ColumnValueMaker)) return null;
+		ColumnName column = ((ColumnValueMaker) valueMaker).getColumn();
+		DataType dataType = op.getColumnType(column);
+		for (Class<?> type: types) {
+			if (type.isInstance(dataType)) return column;
+		}
+		return null;
+	}
+
+	/**
+	 * @return The node maker's value maker, without any decorators
+	 * 		that don't change the values
+	 */
+	static ValueMaker baseValueMaker(TypedNodeMaker nodeMaker) {
+		ValueMaker valueMaker = nodeMaker.getValueMaker();
+		while (valueMaker instanceof DecoratingValueMaker
+				&& ((DecoratingValueMaker) valueMaker).getTranslator() == Translator.IDENTITY) {
+			valueMaker = ((DecoratingValueMaker) valueMaker).getBaseValueMaker();
+		}
+		return valueMaker;
+	}
+
+	private final static RDFDatatype[] NUMERIC_TYPES = {
+		XSDDatatype.XSDinteger, XSDDatatype.XSDdecimal, XSDDatatype.XSDdouble,
+		XSDDatatype.XSDfloat, XSDDatatype.XSDlong, XSDDatatype.XSDint,
+		XSDDatatype.XSDshort, XSDDatatype.XSDbyte
+	};
+
+	private boolean uri = false;
+	private boolean blank = false;
+	private boolean literal = false;
+	private String language = null;
+	private RDFDatatype datatype = null;
+
+	boolean isURI() {
+		return uri;
+	}
+
+	boolean isResource() {
+		return uri || blank;
+	}
+
+	boolean isStringLike() {
+		return literal && (datatype == null || datatype.equals(XSDDatatype.XSDstring));
+	}
+
+	boolean isNumeric() {
+		if (!literal || datatype == null) return false;
+		for (RDFDatatype numeric: NUMERIC_TYPES) {
+			if (numeric.equals(datatype)) return true;
+		}
+		return false;
+	}
+
+	boolean is(RDFDatatype type) {
+		return literal && type.equals(datatype);
+	}
+
+	/**
+	 * Evaluates functions that depend only on the kind of node
+	 */
+	NodeValue eval(ExprFunction1 f) {
+		if (f instanceof E_IsIRI) return NodeValue.makeBoolean(uri);
+		if (f instanceof E_IsBlank) return NodeValue.makeBoolean(blank);
+		if (f instanceof E_IsLiteral) return NodeValue.makeBoolean(literal);
+		if (!literal) return null;
+		if (f instanceof E_Lang) {
+			return NodeValue.makeString(language == null ? "" : language);
+		}
+		if (datatype != null) {
+			return NodeValue.makeNode(Node.createURI(datatype.getURI()));
+		}
+		if (language == null || "".equals(language)) {
+			return NodeValue.makeNode(Node.createURI(XSDDatatype.XSDstring.getURI()));
+		}
+		return null;
+	}
+
+	public void limitToURIs() { uri = true; }
+	public void limitToBlankNodes() { blank = true; }
+	public void limitToLiterals(String language, RDFDatatype datatype) {
+		literal = true;
+		this.language = language;
+		this.datatype = datatype;
+	}
+	public void limitToEmptySet() {}
+	public void limitTo(Node node) {}
+	public void limitValues(String constant) {}
+	public void limitValuesToColumn(ColumnName column) {}
+	public void limitValuesToPattern(TemplateValueMaker pattern) {}
+	public void limitValuesToBlankNodeID(BlankNodeIDValueMaker id) {}
+	public void limitValuesToExpression(Expression expression) {}
+	public void setUsesTranslator(Translator translator) {}
+}
@@ -0,0 +1,139 @@
+package org.d2rq.find;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.algebra.TripleRelation;
+import org.d2rq.db.SQLConnection;
+import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.op.DistinctOp;
+import org.d2rq.db.op.LimitOp;
+import org.d2rq.db.op.ProjectOp;
+import org.d2rq.db.op.util.OpUtil;
+import org.d2rq.db.op.util.ScanKey;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.nodes.BindingMaker;
+
+
+/**
+ * An execution plan for retrieving all triples of a collection of
+ * {@link TripleRelation}s, as needed when dumping a mapped database.
+ *
+ * Relations that differ only in the columns they project, such as the
+ * property bridges of a class map or the predicate-object maps of a
+ * triples map, are combined into a single {@link Scan} that selects
+ * all of their columns from the common base {@link DatabaseOp}. Each
+ * row of the scan produces one binding per relation. Relations with a
+ * limit or <code>DISTINCT</code>, and relations whose base has
+ * additional joins or conditions (e.g., referencing object maps),
+ * end up in scans of their own.
+ */
+public class DumpPlan {
+	private final static Log log = LogFactory.getLog(DumpPlan.class);
+
+	/**
+	 * A single SQL query, and the {@link BindingMaker}s to be applied
+	 * to each of its result rows.
+	 */
+	public static class Scan {
+		private final SQLConnection sqlConnection;
+		private final DatabaseOp op;
+		private final List<BindingMaker> bindingMakers;
+		Scan(SQLConnection sqlConnection, DatabaseOp op, List<BindingMaker> bindingMakers) {
+			this.sqlConnection = sqlConnection;
+			this.op = op;
+			this.bindingMakers = bindingMakers;
+		}
+		public SQLConnection getSQLConnection() {
+			return sqlConnection;
+		}
+		public DatabaseOp getDatabaseOp() {
+			return op;
+		}
+		public List<BindingMaker> getBindingMakers() {
+			return bindingMakers;
+		}
+	}
+
+	private final List<Scan> scans = new ArrayList<Scan>();
+
+	public DumpPlan(Collection<? extends NodeRelation> relations) {
+		Map<Object,Group> groups = new LinkedHashMap<Object,Group>();
+		for (NodeRelation relation: relations) {
+			DatabaseOp core = ScanKey.stripProjections(relation.getBaseTabular());
+			if (!isMergeable(core)) {
+				// Keyed by the relation itself, so it gets a scan of its own
+				groups.put(relation, new Group(relation, core));
+				continue;
+			}
+			ScanKey key = new ScanKey(relation.getSQLConnection(), core);
+			Group group = groups.get(key);
+			if (group == null) {
+				groups.put(key, new Group(relation, core));
+			} else {
+				group.add(relation);
+			}
+		}
+		for (Group group: groups.values()) {
+			scans.add(group.toScan());
+		}
+		log.debug("Dumping " + relations.size() + " relations in " + scans.size() + " scans");
+	}
+
+	public List<Scan> getScans() {
+		return scans;
+	}
+
+	/**
+	 * Widening the projection on top of <code>DISTINCT</code> or a limit
+	 * would change the result, and empty or trivial relations don't
+	 * need a scan in the first place.
+	 */
+	private static boolean isMergeable(DatabaseOp core) {
+		return !(core instanceof DistinctOp || core instanceof LimitOp)
+				&& !OpUtil.isEmpty(core) && !OpUtil.isTrivial(core);
+	}
+
+	private static class Group {
+		private final List<NodeRelation> relations = new ArrayList<NodeRelation>();
+		private final DatabaseOp core;
+		private final Set<ColumnName> columns = new LinkedHashSet<ColumnName>();
+		private boolean allColumns = false;
+		Group(NodeRelation first, DatabaseOp core) {
+			this.core = core;
+			add(first);
+		}
+		void add(NodeRelation relation) {
+			relations.add(relation);
+			Collection<ColumnName> projection = ScanKey.getProjection(relation.getBaseTabular());
+			if (projection == null) {
+				allColumns = true;
+			} else {
+				columns.addAll(projection);
+			}
+		}
+		Scan toScan() {
+			NodeRelation first = relations.get(0);
+			if (relations.size() == 1) {
+				return new Scan(first.getSQLConnection(), first.getBaseTabular(),
+						Collections.singletonList(first.getBindingMaker()));
+			}
+			List<BindingMaker> bindingMakers = new ArrayList<BindingMaker>();
+			for (NodeRelation relation: relations) {
+				bindingMakers.add(relation.getBindingMaker());
+			}
+			DatabaseOp op = allColumns ? core
+					: ProjectOp.project(core, new ArrayList<ColumnName>(columns));
+			return new Scan(first.getSQLConnection(), op, bindingMakers);
+		}
+	}
+}
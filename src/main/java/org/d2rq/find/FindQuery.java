@@ -2,11 +2,15 @@ package org.d2rq.find;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.d2rq.D2RQOptions;
 import org.d2rq.algebra.TripleRelation;
 import org.d2rq.db.op.LimitOp;
+import org.d2rq.db.op.util.OpUtil;
+import org.d2rq.db.schema.TableName;
 import org.d2rq.engine.QueryIterTableSQL;
 import org.d2rq.find.URIMakerRule.URIMakerRuleChecker;
 import org.d2rq.tmp.CompatibleRelationGroup;
@@ -23,7 +27,9 @@ import com.hp.hpl.jena.sparql.engine.iterator.QueryIterConcat;
  * A find query on a collection of {@link TripleRelation}s. Results are 
  * delivered as a {@link QueryIter} over three-variable s/p/o bindings.
  * Will combine queries on multiple
- * relations into one SQL statement where possible.
+ * relations into one SQL statement where possible. A find query
+ * for all triples uses a {@link DumpPlan}, which scans each base
+ * table only once.
  * An option for limiting the number of triples returned from each
  * {@link TripleRelation} is available.
  * 
@@ -34,6 +40,7 @@ public class FindQuery {
 	private final Collection<TripleRelation> tripleRelations;
 	private final int limitPerRelation;
 	private final ExecutionContext context;
+	private List<TripleRelation> selectedTripleRelations = null;
 	
 	public FindQuery(Triple triplePattern, Collection<TripleRelation> tripleRelations,
 			ExecutionContext context) {
@@ -48,7 +55,18 @@ public class FindQuery {
 		this.context = context;
 	}	
 
+	/**
+	 * @return The relations that can produce matching triples, computed
+	 * 		once and shared by the methods of this query
+	 */
 	private List<TripleRelation> selectedTripleRelations() {
+		if (selectedTripleRelations == null) {
+			selectedTripleRelations = selectTripleRelations();
+		}
+		return selectedTripleRelations;
+	}
+
+	private List<TripleRelation> selectTripleRelations() {
 		URIMakerRule rule = new URIMakerRule();
 		List<TripleRelation> sortedTripleRelations = rule.sortRDFRelations(tripleRelations);
 		URIMakerRuleChecker subjectChecker = rule.createRuleChecker(triplePattern.getSubject());
@@ -76,11 +94,49 @@ public class FindQuery {
 		return result;
 	}
 	
+	/**
+	 * @return A plan for retrieving the results with as few table scans as possible
+	 */
+	public DumpPlan getDumpPlan() {
+		return new DumpPlan(selectedTripleRelations());
+	}
+	
+	/**
+	 * @return The base tables that the query reads, or <code>null</code>
+	 * 		if it contains SQL queries that could read any table
+	 */
+	public Set<TableName> getTableNames() {
+		Set<TableName> result = new HashSet<TableName>();
+		for (TripleRelation relation: selectedTripleRelations()) {
+			if (OpUtil.isEmpty(relation.getBaseTabular())) continue;
+			Set<TableName> tables = OpUtil.getTableNames(relation.getBaseTabular());
+			if (tables == null) return null;
+			result.addAll(tables);
+		}
+		return result;
+	}
+	
+	/**
+	 * @return <code>true</code> if the query asks for all triples
+	 */
+	private boolean isFullScan() {
+		return limitPerRelation == LimitOp.NO_LIMIT
+				&& !triplePattern.getSubject().isConcrete()
+				&& !triplePattern.getPredicate().isConcrete()
+				&& !triplePattern.getObject().isConcrete();
+	}
+	
 	public QueryIter iterator() {
 		QueryIterConcat qIter = new QueryIterConcat(context);
-		if ("true".equals(context.getContext().getAsString(D2RQOptions.MULTIPLEX_QUERIES, "false"))) {
+		if (isFullScan()) {
+			for (DumpPlan.Scan scan: getDumpPlan().getScans()) {
+				qIter.add(QueryIterTableSQL.create(scan.getSQLConnection(),
+						scan.getDatabaseOp(), scan.getBindingMakers(), context));
+			}
+		} else if ("true".equals(context.getContext().getAsString(D2RQOptions.MULTIPLEX_QUERIES, "false"))) {
 			for (CompatibleRelationGroup group: 
-				CompatibleRelationGroup.groupNodeRelations(selectedTripleRelations())) {
+				CompatibleRelationGroup.unionGroups(
+						CompatibleRelationGroup.groupNodeRelations(selectedTripleRelations()))) {
 				qIter.add(QueryIterTableSQL.create(group.getSQLConnection(),
 						group.baseRelation(), group.bindingMakers(), context));
 			}
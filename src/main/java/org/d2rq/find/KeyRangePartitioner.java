@@ -0,0 +1,195 @@
+package org.d2rq.find;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.d2rq.db.ResultRow;
+import org.d2rq.db.SQLConnection;
+import org.d2rq.db.SQLIterator;
+import org.d2rq.db.expr.ColumnExpr;
+import org.d2rq.db.expr.Conjunction;
+import org.d2rq.db.expr.Constant;
+import org.d2rq.db.expr.Expression;
+import org.d2rq.db.expr.GreaterThanOrEqual;
+import org.d2rq.db.expr.LessThan;
+import org.d2rq.db.op.AliasOp;
+import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.op.DistinctOp;
+import org.d2rq.db.op.EmptyOp;
+import org.d2rq.db.op.GroupOp;
+import org.d2rq.db.op.InnerJoinOp;
+import org.d2rq.db.op.LeftJoinOp;
+import org.d2rq.db.op.LimitOp;
+import org.d2rq.db.op.OpVisitor;
+import org.d2rq.db.op.SQLOp;
+import org.d2rq.db.op.SelectOp;
+import org.d2rq.db.op.TableOp;
+import org.d2rq.db.op.UnionOp;
+import org.d2rq.db.op.util.OpMutator;
+import org.d2rq.db.schema.ColumnList;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.schema.IdentifierList;
+import org.d2rq.db.types.DataType;
+
+import com.hp.hpl.jena.vocabulary.XSD;
+
+
+/**
+ * Splits a {@link DumpPlan.Scan} of a single table into several scans
+ * over disjoint ranges of the table's primary key, so that they can
+ * be executed concurrently. Only tables with a single-column integer
+ * primary key are split. The range boundaries are evenly spaced
+ * between the key's <code>MIN</code> and <code>MAX</code> values.
+ * The first and last range are open-ended, so rows inserted while
+ * the dump is in progress are not lost.
+ */
+public class KeyRangePartitioner {
+	private final static Log log = LogFactory.getLog(KeyRangePartitioner.class);
+
+	private final static ColumnName MIN_KEY = ColumnName.parse("MIN_KEY");
+	private final static ColumnName MAX_KEY = ColumnName.parse("MAX_KEY");
+
+	private final long minKeysPerPartition;
+
+	/**
+	 * @param minKeysPerPartition Tables whose key span is less than twice
+	 * 		this value are not split
+	 */
+	public KeyRangePartitioner(long minKeysPerPartition) {
+		this.minKeysPerPartition = Math.max(1, minKeysPerPartition);
+	}
+
+	/**
+	 * @param scan A scan to be split
+	 * @param maxPartitions Maximum number of key ranges
+	 * @return Scans over disjoint key ranges that together produce the same
+	 * 		results as the original, or just the original if it cannot be split
+	 */
+	public List<DumpPlan.Scan> partition(DumpPlan.Scan scan, int maxPartitions) {
+		if (maxPartitions < 2) return Collections.singletonList(scan);
+		TableOp table = findSingleTable(scan.getDatabaseOp());
+		if (table == null) return Collections.singletonList(scan);
+		IdentifierList primaryKey = table.getTableDefinition().getPrimaryKey();
+		if (primaryKey == null || primaryKey.size() != 1) return Collections.singletonList(scan);
+		ColumnName key = ColumnName.create(table.getTableName(), primaryKey.get(0));
+		DataType keyType = table.getColumnType(key);
+		if (keyType == null || !XSD.integer.getURI().equals(keyType.rdfType())) {
+			return Collections.singletonList(scan);
+		}
+		long[] range = getKeyRange(scan.getSQLConnection(), table, key);
+		if (range == null) return Collections.singletonList(scan);
+		long span = range[1] - range[0] + 1;
+		if (span <= 0) return Collections.singletonList(scan);	// Overflow
+		int partitions = (int) Math.min(maxPartitions, span / minKeysPerPartition);
+		if (partitions < 2) return Collections.singletonList(scan);
+		log.info("Splitting scan of " + table.getTableName() + " into " +
+				partitions + " key ranges");
+		List<DumpPlan.Scan> result = new ArrayList<DumpPlan.Scan>(partitions);
+		long step = span / partitions;
+		for (int i = 0; i < partitions; i++) {
+			Expression lower = (i == 0) ? Expression.TRUE :
+				new GreaterThanOrEqual(new ColumnExpr(key),
+						Constant.create(Long.toString(range[0] + i * step), keyType));
+			Expression upper = (i == partitions - 1) ? Expression.TRUE :
+				new LessThan(new ColumnExpr(key),
+						Constant.create(Long.toString(range[0] + (i + 1) * step), keyType));
+			result.add(new DumpPlan.Scan(scan.getSQLConnection(),
+					restrict(scan.getDatabaseOp(), table, Conjunction.create(lower, upper)),
+					scan.getBindingMakers()));
+		}
+		return result;
+	}
+
+	/**
+	 * @return The only base table of the op, or <code>null</code> if it has
+	 * 		several, or if it has operators that don't commute with a selection
+	 */
+	private TableOp findSingleTable(DatabaseOp op) {
+		final List<TableOp> tables = new ArrayList<TableOp>();
+		final boolean[] splittable = {true};
+		op.accept(new OpVisitor.Default(true) {
+			@Override
+			public boolean visitEnter(InnerJoinOp table) {
+				if (table.getTables().size() > 1) splittable[0] = false;
+				return splittable[0];
+			}
+			@Override
+			public boolean visitEnter(LeftJoinOp table) {
+				splittable[0] = false;
+				return false;
+			}
+			@Override
+			public boolean visitEnter(AliasOp table) {
+				splittable[0] = false;
+				return false;
+			}
+			@Override
+			public boolean visitEnter(LimitOp table) {
+				splittable[0] = false;
+				return false;
+			}
+			@Override
+			public boolean visitEnter(DistinctOp table) {
+				splittable[0] = false;
+				return false;
+			}
+			@Override
+			public boolean visitEnter(GroupOp table) {
+				splittable[0] = false;
+				return false;
+			}
+			@Override
+			public boolean visitEnter(UnionOp table) {
+				splittable[0] = false;
+				return false;
+			}
+			@Override
+			public boolean visitEnter(EmptyOp table) {
+				splittable[0] = false;
+				return false;
+			}
+			@Override
+			public void visit(SQLOp table) {
+				splittable[0] = false;
+			}
+			@Override
+			public void visit(TableOp table) {
+				tables.add(table);
+			}
+		});
+		return splittable[0] && tables.size() == 1 ? tables.get(0) : null;
+	}
+
+	private DatabaseOp restrict(DatabaseOp op, final TableOp table, final Expression condition) {
+		return new OpMutator(op) {
+			@Override
+			public DatabaseOp visit(TableOp original) {
+				return original == table ? SelectOp.select(original, condition) : original;
+			}
+		}.getResult();
+	}
+
+	/**
+	 * @return Minimum and maximum key value, or <code>null</code> if the table is empty
+	 */
+	private long[] getKeyRange(SQLConnection connection, TableOp table, ColumnName key) {
+		String column = connection.vendor().toString(key);
+		String sql = "SELECT MIN(" + column + "), MAX(" + column + ") FROM " +
+				connection.vendor().toString(table.getTableName());
+		SQLIterator it = new SQLIterator(sql, ColumnList.create(MIN_KEY, MAX_KEY), connection);
+		try {
+			if (!it.hasNext()) return null;
+			ResultRow row = it.next();
+			if (row.get(MIN_KEY) == null || row.get(MAX_KEY) == null) return null;
+			return new long[]{Long.parseLong(row.get(MIN_KEY)), Long.parseLong(row.get(MAX_KEY))};
+		} catch (NumberFormatException ex) {
+			log.debug("Non-integer key range, not splitting: " + ex.getMessage());
+			return null;
+		} finally {
+			it.close();
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package org.d2rq.find;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.d2rq.CompiledMapping;
+import org.d2rq.D2RQException;
+import org.d2rq.db.SQLConnection;
+import org.d2rq.engine.QueryIterTableSQL;
+import org.d2rq.jena.GraphD2RQ;
+import org.d2rq.writer.NTriplesWriter;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterConcat;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+
+/**
+ * Writes all triples of a {@link GraphD2RQ} as N-Triples, running the
+ * scans of a {@link DumpPlan} concurrently on a fixed number of worker
+ * threads. Each scan encodes its triples into a buffer of its own,
+ * which is handed over to the output stream in chunks that end on a
+ * triple boundary. The order of triples in the output is unspecified.
+ *
+ * Scans of large tables with an integer primary key are split into
+ * key ranges by a {@link KeyRangePartitioner}, so that a single table
+ * can be read over several connections at once.
+ *
+ * The number of scans running concurrently against one database is
+ * also limited by the size of its connection pool, so that workers
+ * wait for each other rather than for a pooled connection.
+ */
+public class ParallelDump {
+	private final static Log log = LogFactory.getLog(ParallelDump.class);
+
+	/**
+	 * Minimum number of bytes handed over to the output at a time
+	 */
+	public final static int CHUNK_SIZE = NTriplesWriter.BUFFER_SIZE;
+
+	public final static long DEFAULT_MIN_KEYS_PER_PARTITION = 100000;
+
+	private final GraphD2RQ graph;
+	private final int threads;
+	private long minKeysPerPartition = DEFAULT_MIN_KEYS_PER_PARTITION;
+
+	/**
+	 * @param graph The graph to be dumped
+	 * @param threads Number of worker threads
+	 */
+	public ParallelDump(GraphD2RQ graph, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + threads);
+		}
+		this.graph = graph;
+		this.threads = threads;
+	}
+
+	/**
+	 * @param minKeys Tables are split into key ranges of at least this
+	 * 		many primary key values; 0 disables splitting
+	 */
+	public void setMinKeysPerPartition(long minKeys) {
+		this.minKeysPerPartition = minKeys;
+	}
+
+	/**
+	 * Writes the graph, and flushes but does not close the stream.
+	 * @return The number of triples written
+	 */
+	public long writeNTriples(final OutputStream out) throws IOException {
+		CompiledMapping mapping = graph.getMapping();
+		mapping.connect();
+		final ExecutionContext context = new ExecutionContext(
+				mapping.getContext(), graph, null, null);
+		DumpPlan plan = new FindQuery(Triple.ANY, mapping.getTripleRelations(),
+				context).getDumpPlan();
+		final Map<SQLConnection,Semaphore> permits = new HashMap<SQLConnection,Semaphore>();
+		for (SQLConnection connection: mapping.getSQLConnections()) {
+			permits.put(connection, new Semaphore(connection.pool().getMaxSize()));
+		}
+		List<DumpPlan.Scan> scans = new ArrayList<DumpPlan.Scan>();
+		if (minKeysPerPartition > 0 && threads > 1) {
+			KeyRangePartitioner partitioner = new KeyRangePartitioner(minKeysPerPartition);
+			for (DumpPlan.Scan scan: plan.getScans()) {
+				scans.addAll(partitioner.partition(scan, threads));
+			}
+		} else {
+			scans.addAll(plan.getScans());
+		}
+		log.info("Dumping " + scans.size() + " scans on " + threads + " threads");
+
+		// Triples that don't come from the database go first
+		long count = 0;
+		ExtendedIterator<Triple> additional = 
+				mapping.getAdditionalTriples().find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			count += new NTriplesWriter(out).write(additional);
+		} finally {
+			additional.close();
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread result = new Thread(r, "d2rq-dump-" + counter.incrementAndGet());
+				result.setDaemon(true);
+				return result;
+			}
+		});
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		try {
+			for (final DumpPlan.Scan scan: scans) {
+				results.add(executor.submit(new Callable<Long>() {
+					public Long call() throws IOException {
+						Semaphore semaphore = permits.get(scan.getSQLConnection());
+						try {
+							semaphore.acquire();
+						} catch (InterruptedException ex) {
+							throw new InterruptedIOException();
+						}
+						try {
+							return writeScan(scan, context, out);
+						} finally {
+							semaphore.release();
+						}
+					}
+				}));
+			}
+			for (Future<Long> result: results) {
+				count += result.get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new D2RQException(cause);
+		} finally {
+			executor.shutdownNow();
+		}
+		out.flush();
+		return count;
+	}
+
+	private long writeScan(DumpPlan.Scan scan, ExecutionContext context,
+			OutputStream out) throws IOException {
+		QueryIterConcat bindings = new QueryIterConcat(context);
+		bindings.add(QueryIterTableSQL.create(scan.getSQLConnection(),
+				scan.getDatabaseOp(), scan.getBindingMakers(), context));
+		ExtendedIterator<Triple> triples = TripleQueryIter.create(bindings);
+		ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_SIZE * 2);
+		NTriplesWriter writer = new NTriplesWriter(chunk);
+		try {
+			while (triples.hasNext()) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedIOException();
+				}
+				writer.write(triples.next());
+				// The chunk fills up whenever the writer's buffer overflows;
+				// complete the current triple and hand over the chunk
+				if (chunk.size() >= CHUNK_SIZE) {
+					writer.flush();
+					emit(chunk, out);
+				}
+			}
+			writer.flush();
+			emit(chunk, out);
+			return writer.getTripleCount();
+		} finally {
+			triples.close();
+		}
+	}
+
+	private void emit(ByteArrayOutputStream chunk, OutputStream out) throws IOException {
+		synchronized (out) {
+			chunk.writeTo(out);
+		}
+		chunk.reset();
+	}
+}
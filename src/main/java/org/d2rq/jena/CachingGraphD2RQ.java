@@ -1,11 +1,11 @@
 package org.d2rq.jena;
 
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.d2rq.CompiledMapping;
 import org.d2rq.D2RQException;
+import org.d2rq.db.ChangeDetector;
+import org.d2rq.find.FindQuery;
 
 import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.graph.TripleMatch;
@@ -18,25 +18,52 @@ import com.hp.hpl.jena.util.iterator.WrappedIterator;
  * A GraphD2RQ that caches the results of the most recently performed
  * queries on an LRU basis.
  * 
+ * The cache is bounded by the estimated memory size of the cached
+ * triples rather than by the number of queries, and results are
+ * streamed to the caller while they are recorded for the cache.
+ * A pattern is also answered from the cached result of a more general
+ * pattern, so that <code>find(s, p, ANY)</code> after
+ * <code>find(s, ANY, ANY)</code> doesn't go to the database.
+ * See {@link TripleCache} for the limits and statistics.
+ * 
+ * With a {@link ChangeDetector}, results computed from tables that
+ * have changed are dropped before each find; results from other
+ * tables stay in the cache.
+ * 
  * @author Holger Knublauch (holger@topquadrant.com)
  */
 public class CachingGraphD2RQ extends GraphD2RQ {
 
 	/**
 	 * Cache of recently queried triple matches
-	 * (TripleMatch -> List<Triple>) 
 	 */
-	private Map<TripleMatch,List<Triple>> queryCache = 
-		new LinkedHashMap<TripleMatch,List<Triple>>(100, 0.75f, true) {
-		private static final int MAX_ENTRIES = 10000;
-		@Override
-	    protected boolean removeEldestEntry(Map.Entry<TripleMatch,List<Triple>> eldest) {
-	        return size() > MAX_ENTRIES;
-	    }
-	};
+	private final TripleCache queryCache;
+	
+	private ChangeDetector changeDetector = null;
 	
 	public CachingGraphD2RQ(CompiledMapping mapping) throws D2RQException {
+		this(mapping, new TripleCache());
+	}
+	
+	public CachingGraphD2RQ(CompiledMapping mapping, TripleCache cache) 
+	throws D2RQException {
 		super(mapping);
+		this.queryCache = cache;
+	}
+	
+	/**
+	 * @return The cache, for its statistics
+	 */
+	public TripleCache getCache() {
+		return queryCache;
+	}
+	
+	/**
+	 * @param detector Finds the tables whose cached results must be
+	 * 		dropped, or <code>null</code> to only clear the cache by hand
+	 */
+	public void setChangeDetector(ChangeDetector detector) {
+		this.changeDetector = detector;
 	}
 	
 	/**
@@ -53,13 +80,16 @@ public class CachingGraphD2RQ extends GraphD2RQ {
 	 */
 	@Override
 	public ExtendedIterator<Triple> graphBaseFind(TripleMatch m) {
-		List<Triple> cached = queryCache.get(m);
+		Triple pattern = m.asTriple();
+		if (changeDetector != null) {
+			queryCache.invalidate(changeDetector.getChangedTables());
+		}
+		List<Triple> cached = queryCache.get(pattern);
 		if (cached != null) {
             return WrappedIterator.create(cached.iterator());
 		}
-		ExtendedIterator<Triple> it = super.graphBaseFind(m);
-		final List<Triple> list = it.toList();
-		queryCache.put(m, list);
-		return WrappedIterator.create(list.iterator());
+		checkOpen();
+		FindQuery query = createFindQuery(pattern);
+		return queryCache.tee(pattern, find(pattern, query), query.getTableNames());
 	}
 }
@@ -0,0 +1,84 @@
+package org.d2rq.jena;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.d2rq.CompiledMapping;
+import org.d2rq.algebra.TripleRelation;
+import org.d2rq.db.op.util.CardinalityEstimator;
+import org.d2rq.db.op.util.OpUtil;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.nodes.NodeMaker;
+
+import com.hp.hpl.jena.graph.GraphStatisticsHandler;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.Var;
+
+
+/**
+ * Estimates the number of triples matching a triple pattern in a
+ * {@link GraphD2RQ}, from the table statistics of the database.
+ * Each {@link TripleRelation} that can produce matching triples
+ * contributes the estimated row count of its SQL query, as computed
+ * by a {@link CardinalityEstimator}.
+ */
+public class D2RQStatisticsHandler implements GraphStatisticsHandler {
+	private final CompiledMapping mapping;
+
+	public D2RQStatisticsHandler(CompiledMapping mapping) {
+		this.mapping = mapping;
+	}
+
+	/**
+	 * Variables and blank nodes in the pattern are treated as
+	 * wildcards.
+	 */
+	public long getStatistic(Node s, Node p, Node o) {
+		return getStatistic(Triple.create(s, p, o), Collections.<Var>emptySet());
+	}
+
+	/**
+	 * Estimates the number of matching triples for each combination
+	 * of values of some variables of the pattern, which will be bound
+	 * when the pattern is evaluated.
+	 */
+	public long getStatistic(Triple pattern, Set<Var> boundVariables) {
+		Triple t = Triple.create(concrete(pattern.getSubject()), 
+				concrete(pattern.getPredicate()), concrete(pattern.getObject()));
+		double result = 0;
+		for (TripleRelation relation: mapping.getTripleRelations()) {
+			TripleRelation selected = relation.selectTriple(t);
+			if (selected == null || OpUtil.isEmpty(selected.getBaseTabular())) continue;
+			CardinalityEstimator estimator = 
+				new CardinalityEstimator(selected.getSQLConnection());
+			double rows = estimator.getRowCount(selected.getBaseTabular());
+			rows /= distinctValues(estimator, selected, TripleRelation.SUBJECT,
+					pattern.getSubject(), boundVariables);
+			rows /= distinctValues(estimator, selected, TripleRelation.PREDICATE,
+					pattern.getPredicate(), boundVariables);
+			rows /= distinctValues(estimator, selected, TripleRelation.OBJECT,
+					pattern.getObject(), boundVariables);
+			result += rows;
+		}
+		result += mapping.getAdditionalTriples().find(t).toList().size();
+		return Math.round(Math.ceil(result));
+	}
+
+	private double distinctValues(CardinalityEstimator estimator, 
+			TripleRelation relation, Var position, Node node, Set<Var> bound) {
+		if (!node.isVariable() || !bound.contains(Var.alloc(node))) return 1;
+		NodeMaker nodeMaker = relation.nodeMaker(position);
+		if (nodeMaker == null) return 1;
+		double result = 1;
+		for (ColumnName column: nodeMaker.getRequiredColumns()) {
+			result = Math.max(result, 
+					estimator.getDistinctValues(relation.getBaseTabular(), column));
+		}
+		return result;
+	}
+
+	private Node concrete(Node node) {
+		return node.isConcrete() ? node : Node.ANY;
+	}
+}
@@ -10,6 +10,7 @@ import org.d2rq.tmp.QueryEngineD2RQ;
 
 import com.hp.hpl.jena.graph.Capabilities;
 import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphStatisticsHandler;
 import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.graph.TripleMatch;
 import com.hp.hpl.jena.graph.impl.GraphBase;
@@ -51,12 +52,25 @@ public class GraphD2RQ extends GraphBase implements Graph {
 		if (log.isDebugEnabled()) {
 			log.debug("Find: " + PrettyPrinter.toString(t, getPrefixMapping()));
 		}
-		FindQuery query = new FindQuery(t, mapping.getTripleRelations(), 
+		return find(t, createFindQuery(t));
+    }
+
+	/**
+	 * @return A query for the triples of the mapping that match the pattern
+	 */
+	protected FindQuery createFindQuery(Triple pattern) {
+		return new FindQuery(pattern, mapping.getTripleRelations(), 
 				new ExecutionContext(mapping.getContext(), this, null, null));
+	}
+
+	/**
+	 * @return The results of the query, followed by the matching
+	 * 		additional triples of the mapping
+	 */
+	protected ExtendedIterator<Triple> find(Triple pattern, FindQuery query) {
 		ExtendedIterator<Triple> result = TripleQueryIter.create(query.iterator());
-		result = result.andThen(mapping.getAdditionalTriples().find(t));
-		return result;
-    }
+		return result.andThen(mapping.getAdditionalTriples().find(pattern));
+	}
 
 	@Override
 	protected synchronized void checkOpen() {
@@ -72,6 +86,12 @@ public class GraphD2RQ extends GraphBase implements Graph {
 		super.close();
 	}
 
+	@Override
+	protected GraphStatisticsHandler createStatisticsHandler() {
+		checkOpen();
+		return new D2RQStatisticsHandler(mapping);
+	}
+
 	@Override
 	public QueryHandler queryHandler() {
 		checkOpen();
@@ -0,0 +1,414 @@
+package org.d2rq.jena;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.d2rq.db.schema.TableName;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.NiceIterator;
+
+
+/**
+ * A thread-safe cache of the results of triple pattern queries,
+ * bounded by the estimated memory size of the cached triples.
+ * The least recently used results are evicted first.
+ *
+ * Results enter the cache through {@link #tee(Triple, ExtendedIterator)},
+ * which hands out the triples as they come while recording them. Only
+ * results that are read to the end are cached. Results larger than the
+ * per-entry limit are not cached at all, so a huge result never has to
+ * be held in memory.
+ *
+ * Entries can have a time to live, after which they count as misses.
+ * Entries also record the tables their results were computed from, so
+ * that {@link #invalidate(Collection)} can drop just the entries that
+ * are affected by changes to some tables.
+ * Results that are still being recorded when the cache is cleared or
+ * invalidated are not added afterwards.
+ */
+public class TripleCache {
+	private final static Log log = LogFactory.getLog(TripleCache.class);
+
+	public final static long DEFAULT_MAX_WEIGHT = 64 * 1024 * 1024;
+	public final static long DEFAULT_MAX_ENTRY_WEIGHT = 4 * 1024 * 1024;
+	public final static long NO_TTL = 0;
+
+	/**
+	 * Rough per-object overheads, in bytes, for estimating the
+	 * memory used by triples
+	 */
+	private final static int TRIPLE_OVERHEAD = 32;
+	private final static int NODE_OVERHEAD = 48;
+
+	private final long maxWeight;
+	private final long maxEntryWeight;
+	private final long ttlMillis;
+	private final LinkedHashMap<Triple,Entry> entries =
+			new LinkedHashMap<Triple,Entry>(16, 0.75f, true);
+	private long weight = 0;
+	private long generation = 0;
+	private long hits = 0;
+	private long containmentHits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+	private long abandoned = 0;
+
+	public TripleCache() {
+		this(DEFAULT_MAX_WEIGHT, DEFAULT_MAX_ENTRY_WEIGHT, NO_TTL);
+	}
+
+	/**
+	 * @param maxWeight Estimated maximum size of all cached triples, in bytes
+	 * @param maxEntryWeight Estimated maximum size of a single result, in bytes
+	 * @param ttlMillis Time to live of an entry, or {@link #NO_TTL}
+	 */
+	public TripleCache(long maxWeight, long maxEntryWeight, long ttlMillis) {
+		this.maxWeight = maxWeight;
+		this.maxEntryWeight = Math.min(maxEntryWeight, maxWeight);
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Answers from the cached result of the pattern itself or, failing that,
+	 * of a more general pattern that has {@link Node#ANY} in place of some
+	 * of the pattern's nodes. The result of the more general pattern is
+	 * complete, so filtering it yields the complete result of the pattern.
+	 * 
+	 * @return The cached result for the pattern, or <code>null</code>
+	 */
+	public List<Triple> get(Triple pattern) {
+		Entry entry;
+		Triple general = null;
+		synchronized (this) {
+			entry = lookup(pattern);
+			if (entry == null) {
+				for (Triple candidate: generalizations(pattern)) {
+					entry = lookup(candidate);
+					if (entry != null) {
+						general = candidate;
+						break;
+					}
+				}
+			}
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			if (general != null) {
+				containmentHits++;
+			}
+		}
+		if (general == null) return entry.triples;
+		List<Triple> result = new ArrayList<Triple>();
+		for (Triple t: entry.triples) {
+			if (matches(pattern.getSubject(), t.getSubject())
+					&& matches(pattern.getPredicate(), t.getPredicate())
+					&& matches(pattern.getObject(), t.getObject())) {
+				result.add(t);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Wraps the result of a query so that it is added to the cache
+	 * once it has been read completely. The result is invalidated by
+	 * changes to any table.
+	 */
+	public ExtendedIterator<Triple> tee(Triple pattern, ExtendedIterator<Triple> result) {
+		return tee(pattern, result, null);
+	}
+
+	/**
+	 * Wraps the result of a query so that it is added to the cache
+	 * once it has been read completely.
+	 * 
+	 * @param tables The tables the result is computed from, or
+	 * 		<code>null</code> if unknown
+	 */
+	public ExtendedIterator<Triple> tee(Triple pattern, ExtendedIterator<Triple> result,
+			Set<TableName> tables) {
+		return new TeeIterator(pattern, result, tables, currentGeneration());
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0;
+		generation++;
+	}
+
+	/**
+	 * Removes the entries computed from any of the tables.
+	 * 
+	 * @param tables Changed tables, or <code>null</code> to remove all entries
+	 */
+	public synchronized void invalidate(Collection<TableName> tables) {
+		if (tables == null) {
+			clear();
+			return;
+		}
+		if (tables.isEmpty()) return;
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.tables == null || !Collections.disjoint(entry.tables, tables)) {
+				weight -= entry.weight;
+				it.remove();
+				invalidations++;
+			}
+		}
+		generation++;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return Estimated size of all cached triples, in bytes
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * @return Number of hits answered from the result of a more general pattern
+	 */
+	public synchronized long getContainmentHitCount() {
+		return containmentHits;
+	}
+
+	/**
+	 * @return Number of entries removed because of size limits or their age
+	 */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * @return Number of entries removed because their tables changed
+	 */
+	public synchronized long getInvalidationCount() {
+		return invalidations;
+	}
+
+	/**
+	 * @return Number of results not cached because they were too large
+	 */
+	public synchronized long getAbandonedCount() {
+		return abandoned;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "TripleCache(entries=" + entries.size() + ", weight=" + weight +
+				", hits=" + hits + ", containmentHits=" + containmentHits +
+				", misses=" + misses +
+				", evictions=" + evictions + ", invalidations=" + invalidations +
+				", abandoned=" + abandoned + ")";
+	}
+
+	private synchronized long currentGeneration() {
+		return generation;
+	}
+
+	private synchronized void put(Triple pattern, List<Triple> triples,
+			long entryWeight, Set<TableName> tables, long entryGeneration) {
+		if (entryGeneration != generation) return;
+		remove(pattern);
+		entries.put(pattern, new Entry(Collections.unmodifiableList(triples),
+				entryWeight, tables, System.currentTimeMillis()));
+		weight += entryWeight;
+		Iterator<Map.Entry<Triple,Entry>> it = entries.entrySet().iterator();
+		while (weight > maxWeight && it.hasNext()) {
+			Map.Entry<Triple,Entry> eldest = it.next();
+			weight -= eldest.getValue().weight;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	private synchronized void abandon(Triple pattern) {
+		abandoned++;
+		log.debug("Result too large to cache: " + pattern);
+	}
+
+	/**
+	 * @return The live entry for exactly this pattern, or <code>null</code>
+	 */
+	private Entry lookup(Triple pattern) {
+		Entry entry = entries.get(pattern);
+		if (entry != null && isExpired(entry)) {
+			remove(pattern);
+			evictions++;
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * The patterns that match a superset of the pattern's triples,
+	 * because some of its concrete nodes are replaced with
+	 * {@link Node#ANY}. The least general come first, as their
+	 * results need the least filtering. The index of cached patterns
+	 * by subject, predicate and object is the cache map itself,
+	 * probed with each of these patterns.
+	 */
+	private static List<Triple> generalizations(Triple pattern) {
+		Node[] nodes = {pattern.getSubject(), pattern.getPredicate(), pattern.getObject()};
+		List<Triple> result = new ArrayList<Triple>();
+		for (int wildcards = 1; wildcards <= 3; wildcards++) {
+			for (int mask = 1; mask < 8; mask++) {
+				if (Integer.bitCount(mask) != wildcards) continue;
+				Node[] general = new Node[3];
+				boolean changed = true;
+				for (int i = 0; i < 3; i++) {
+					if ((mask & (1 << i)) == 0) {
+						general[i] = nodes[i];
+					} else if (nodes[i].isConcrete()) {
+						general[i] = Node.ANY;
+					} else {
+						// Already a wildcard; covered by a mask with fewer bits
+						changed = false;
+					}
+				}
+				if (changed) {
+					result.add(Triple.create(general[0], general[1], general[2]));
+				}
+			}
+		}
+		return result;
+	}
+
+	private static boolean matches(Node patternNode, Node node) {
+		return !patternNode.isConcrete() || patternNode.equals(node);
+	}
+
+	private void remove(Triple pattern) {
+		Entry old = entries.remove(pattern);
+		if (old != null) {
+			weight -= old.weight;
+		}
+	}
+
+	private boolean isExpired(Entry entry) {
+		return ttlMillis != NO_TTL &&
+				System.currentTimeMillis() - entry.created > ttlMillis;
+	}
+
+	/**
+	 * @return Estimated memory size of a triple, in bytes
+	 */
+	public static long estimateWeight(Triple t) {
+		return TRIPLE_OVERHEAD + estimateWeight(t.getSubject()) +
+				estimateWeight(t.getPredicate()) + estimateWeight(t.getObject());
+	}
+
+	private static long estimateWeight(Node node) {
+		if (node.isURI()) {
+			return NODE_OVERHEAD + 2 * node.getURI().length();
+		}
+		if (node.isLiteral()) {
+			long result = NODE_OVERHEAD + 2 * node.getLiteralLexicalForm().length();
+			if (node.getLiteralDatatypeURI() != null) {
+				result += 2 * node.getLiteralDatatypeURI().length();
+			}
+			return result + 2 * node.getLiteralLanguage().length();
+		}
+		return NODE_OVERHEAD + 2 * node.toString().length();
+	}
+
+	private static class Entry {
+		private final List<Triple> triples;
+		private final long weight;
+		private final Set<TableName> tables;
+		private final long created;
+		Entry(List<Triple> triples, long weight, Set<TableName> tables, long created) {
+			this.triples = triples;
+			this.weight = weight;
+			this.tables = tables;
+			this.created = created;
+		}
+	}
+
+	/**
+	 * Passes triples through from a query result, keeping a copy
+	 * until the result is exhausted or too large.
+	 */
+	private class TeeIterator extends NiceIterator<Triple> {
+		private final Triple pattern;
+		private final ExtendedIterator<Triple> wrapped;
+		private final Set<TableName> tables;
+		private final long entryGeneration;
+		private List<Triple> recorded = new ArrayList<Triple>();
+		private long recordedWeight = 0;
+		private boolean done = false;
+
+		TeeIterator(Triple pattern, ExtendedIterator<Triple> wrapped, 
+				Set<TableName> tables, long entryGeneration) {
+			this.pattern = pattern;
+			this.wrapped = wrapped;
+			this.tables = tables;
+			this.entryGeneration = entryGeneration;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (done) return false;
+			if (wrapped.hasNext()) return true;
+			done = true;
+			if (recorded != null) {
+				put(pattern, recorded, recordedWeight, tables, entryGeneration);
+				recorded = null;
+			}
+			return false;
+		}
+
+		@Override
+		public Triple next() {
+			ensureHasNext();
+			Triple result = wrapped.next();
+			if (recorded != null) {
+				recordedWeight += estimateWeight(result);
+				if (recordedWeight > maxEntryWeight) {
+					recorded = null;
+					abandon(pattern);
+				} else {
+					recorded.add(result);
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public void close() {
+			done = true;
+			recorded = null;
+			wrapped.close();
+		}
+	}
+}
@@ -1,10 +1,12 @@
 package org.d2rq.nodes;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
 import org.d2rq.db.ResultRow;
+import org.d2rq.db.op.UnionOp;
 import org.d2rq.db.renamer.Renamer;
 import org.d2rq.db.schema.ColumnName;
 
@@ -21,23 +23,50 @@ import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
  * that must be true in the {@link ResultRow} or no binding will be produced
  * from the row.
  * 
+ * Variables can be guarded by a column, typically a column from the
+ * optional side of a left outer join. If the guard column is
+ * <code>NULL</code> in a row, then the variable is left unbound
+ * instead of rejecting the entire row.
+ * 
+ * Instead of being true, the condition column can be required to
+ * have a specific value, such as the branch number of a row in a
+ * {@link UnionOp}.
+ * 
  * @author Richard Cyganiak (richard@cyganiak.de)
  */
 public class BindingMaker {
 	private final Map<Var,NodeMaker> nodeMakers;
 	private final ColumnName conditionColumn;
+	private final Map<Var,ColumnName> guards;
+	private final String conditionValue;
 
 	public BindingMaker(Map<Var,NodeMaker> nodeMakers) {
 		this(nodeMakers, null);
 	}
 	
 	public BindingMaker(Map<Var,NodeMaker> nodeMakers, ColumnName conditionColumn) {
+		this(nodeMakers, conditionColumn, Collections.<Var,ColumnName>emptyMap());
+	}
+	
+	public BindingMaker(Map<Var,NodeMaker> nodeMakers, ColumnName conditionColumn,
+			Map<Var,ColumnName> guards) {
+		this(nodeMakers, conditionColumn, guards, null);
+	}
+	
+	private BindingMaker(Map<Var,NodeMaker> nodeMakers, ColumnName conditionColumn,
+			Map<Var,ColumnName> guards, String conditionValue) {
 		this.nodeMakers = nodeMakers;
 		this.conditionColumn = conditionColumn;
+		this.guards = guards;
+		this.conditionValue = conditionValue;
 	}
 
 	public Binding makeBinding(ResultRow row) {
-		if (conditionColumn != null) {
+		if (conditionValue != null) {
+			if (!conditionValue.equals(row.get(conditionColumn))) {
+				return null;
+			}
+		} else if (conditionColumn != null) {
 			String value = row.get(conditionColumn);
 			if (value == null || "false".equals(value) || "0".equals(value) || "".equals(value)) {
 				return null;
@@ -45,6 +74,10 @@ public class BindingMaker {
 		}
 		BindingMap result = new BindingHashMap();
 		for (Var variableName: nodeMakers.keySet()) {
+			if (guards.containsKey(variableName) && 
+					row.get(guards.get(variableName)) == null) {
+				continue;
+			}
 			Node node = nodeMakers.get(variableName).makeNode(row);
 			if (node == null) {
 				return null;
@@ -78,6 +111,28 @@ public class BindingMaker {
 		return conditionColumn;
 	}
 	
+	/**
+	 * @return The value that the condition column must have, or
+	 * 		<code>null</code> if it must merely be true
+	 */
+	public String getConditionValue() {
+		return conditionValue;
+	}
+	
+	/**
+	 * @return Map from guarded variables to their guard columns
+	 */
+	public Map<Var,ColumnName> getGuards() {
+		return guards;
+	}
+	
+	/**
+	 * @return <code>true</code> if the variable may be unbound in some bindings
+	 */
+	public boolean isGuarded(Var variable) {
+		return guards.containsKey(variable);
+	}
+	
 	@Override
 	public String toString() {
 		StringBuffer result = new StringBuffer("BindingMaker(\n");
@@ -86,12 +141,22 @@ public class BindingMaker {
 			result.append(variable);
 			result.append(" => ");
 			result.append(nodeMakers.get(variable));
+			if (guards.containsKey(variable)) {
+				result.append(" IF ");
+				result.append(guards.get(variable));
+				result.append(" NOT NULL");
+			}
 			result.append("\n");
 		}
 		result.append(")");
 		if (conditionColumn != null) {
 			result.append(" WHERE ");
 			result.append(conditionColumn);
+			if (conditionValue != null) {
+				result.append(" = '");
+				result.append(conditionValue);
+				result.append("'");
+			}
 		}
 		return result.toString();
 	}
@@ -101,11 +166,24 @@ public class BindingMaker {
 		for (Var var: nodeMakers.keySet()) {
 			renamedNodeMakers.put(var, renamer.applyTo(nodeMakers.get(var)));
 		}
+		Map<Var,ColumnName> renamedGuards = new HashMap<Var,ColumnName>();
+		for (Var var: guards.keySet()) {
+			renamedGuards.put(var, renamer.applyTo(guards.get(var)));
+		}
 		return new BindingMaker(renamedNodeMakers, 
-				conditionColumn == null ? null : renamer.applyTo(conditionColumn));
+				conditionColumn == null ? null : renamer.applyTo(conditionColumn),
+				renamedGuards, conditionValue);
 	}
 	
 	public BindingMaker makeConditional(ColumnName conditionColumn) {
-		return new BindingMaker(nodeMakers, conditionColumn);
+		return new BindingMaker(nodeMakers, conditionColumn, guards);
+	}
+	
+	/**
+	 * @return A binding maker that produces bindings only from rows
+	 * 		where the column has the given value
+	 */
+	public BindingMaker makeConditional(ColumnName conditionColumn, String value) {
+		return new BindingMaker(nodeMakers, conditionColumn, guards, value);
 	}
 }
@@ -1,40 +1,414 @@
 package org.d2rq.tmp;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.d2rq.algebra.NodeRelation;
 import org.d2rq.db.SQLConnection;
+import org.d2rq.db.expr.BooleanToIntegerCaseExpression;
+import org.d2rq.db.expr.Conjunction;
+import org.d2rq.db.expr.Disjunction;
+import org.d2rq.db.expr.Expression;
+import org.d2rq.db.op.AliasOp;
+import org.d2rq.db.op.AssertUniqueKeyOp;
 import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.op.DistinctOp;
+import org.d2rq.db.op.ExtendOp;
+import org.d2rq.db.op.GroupOp;
+import org.d2rq.db.op.LeftJoinOp;
+import org.d2rq.db.op.LimitOp;
+import org.d2rq.db.op.OpVisitor;
+import org.d2rq.db.op.OrderOp;
+import org.d2rq.db.op.ProjectOp;
+import org.d2rq.db.op.SelectOp;
+import org.d2rq.db.op.UnionOp;
+import org.d2rq.db.op.util.OpUtil;
+import org.d2rq.db.op.util.ScanKey;
+import org.d2rq.db.renamer.ColumnRenamer;
+import org.d2rq.db.renamer.Renamer;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.schema.Identifier;
+import org.d2rq.db.types.DataType;
 import org.d2rq.nodes.BindingMaker;
 
+import com.hp.hpl.jena.sparql.core.Var;
+
+/**
+ * A group of {@link NodeRelation}s that can be retrieved with a single
+ * SQL query. Relations are compatible if their base {@link DatabaseOp}s
+ * differ only in the projected columns, in computed columns, and in
+ * the selection condition. The group's query selects the union of all
+ * columns, under the disjunction of all conditions. Where a relation's
+ * condition is stricter than that, the condition is added to the query
+ * as a 0/1 column, and the relation's {@link BindingMaker} is made
+ * conditional on that column.
+ *
+ * Relations with a limit, <code>DISTINCT</code> or ordering, and
+ * relations that are already conditional, end up in groups of their own.
+ * 
+ * Groups that still require separate queries can be sent to the
+ * database together, as a single <code>UNION ALL</code> query,
+ * using {@link #unionGroups(Collection)}.
+ */
 public class CompatibleRelationGroup {
 
 	public static Collection<CompatibleRelationGroup> groupNodeRelations(List<? extends NodeRelation> relations) {
+		Map<ScanKey,List<CompatibleRelationGroup>> groups =
+				new LinkedHashMap<ScanKey,List<CompatibleRelationGroup>>();
 		Collection<CompatibleRelationGroup> result = new ArrayList<CompatibleRelationGroup>();
 		for (NodeRelation relation: relations) {
-			result.add(new CompatibleRelationGroup(relation));
+			Member member = Member.create(relation);
+			if (member == null) {
+				result.add(new CompatibleRelationGroup(relation));
+				continue;
+			}
+			ScanKey key = new ScanKey(relation.getSQLConnection(), member.core);
+			List<CompatibleRelationGroup> candidates = groups.get(key);
+			if (candidates == null) {
+				candidates = new ArrayList<CompatibleRelationGroup>();
+				groups.put(key, candidates);
+			}
+			boolean added = false;
+			for (CompatibleRelationGroup group: candidates) {
+				if (group.isCompatible(member)) {
+					group.add(member);
+					added = true;
+					break;
+				}
+			}
+			if (!added) {
+				CompatibleRelationGroup group = new CompatibleRelationGroup(member);
+				candidates.add(group);
+				result.add(group);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Combines groups on the same connection into a single group whose
+	 * query is a {@link UnionOp} of the groups' queries. Each group's
+	 * columns are mapped to union columns of the same datatype, and
+	 * its {@link BindingMaker}s are made conditional on the union's
+	 * branch column. Binding makers that are already conditional keep
+	 * their condition column, which gets a union column of its own and
+	 * is <code>NULL</code> in the other branches. Groups whose query
+	 * is ordered, sliced, <code>DISTINCT</code> or grouped are left alone.
+	 */
+	public static Collection<CompatibleRelationGroup> unionGroups(
+			Collection<CompatibleRelationGroup> groups) {
+		Map<SQLConnection,List<CompatibleRelationGroup>> candidates =
+				new LinkedHashMap<SQLConnection,List<CompatibleRelationGroup>>();
+		Collection<CompatibleRelationGroup> result = new ArrayList<CompatibleRelationGroup>();
+		for (CompatibleRelationGroup group: groups) {
+			if (!group.isUnionable()) {
+				result.add(group);
+				continue;
+			}
+			if (!candidates.containsKey(group.getSQLConnection())) {
+				candidates.put(group.getSQLConnection(), 
+						new ArrayList<CompatibleRelationGroup>());
+			}
+			candidates.get(group.getSQLConnection()).add(group);
+		}
+		for (List<CompatibleRelationGroup> branches: candidates.values()) {
+			if (branches.size() == 1) {
+				result.add(branches.get(0));
+			} else {
+				result.add(union(branches));
+			}
 		}
 		return result;
 	}
-	
-	private final NodeRelation relation;
-	
+
+	private static CompatibleRelationGroup union(List<CompatibleRelationGroup> groups) {
+		SQLConnection sqlConnection = groups.get(0).getSQLConnection();
+		// Union columns are identified by datatype, and a counter for
+		// several columns of the same datatype in one branch
+		List<String> slots = new ArrayList<String>();
+		List<Map<String,ColumnName>> branchSlots = new ArrayList<Map<String,ColumnName>>();
+		for (CompatibleRelationGroup group: groups) {
+			Map<String,ColumnName> columns = new LinkedHashMap<String,ColumnName>();
+			Map<String,Integer> counts = new HashMap<String,Integer>();
+			for (ColumnName column: group.requiredColumns()) {
+				String type = group.baseRelation().getColumnType(column).toString();
+				int count = counts.containsKey(type) ? counts.get(type) + 1 : 1;
+				counts.put(type, count);
+				String slot = type + "#" + count;
+				columns.put(slot, column);
+				if (!slots.contains(slot)) {
+					slots.add(slot);
+				}
+			}
+			for (BindingMaker maker: group.bindingMakers()) {
+				ColumnName column = maker.getConditionColumn();
+				if (column == null || columns.containsValue(column)) continue;
+				String slot = "condition#" + branchSlots.size() + "#" + column;
+				columns.put(slot, column);
+				slots.add(slot);
+			}
+			branchSlots.add(columns);
+		}
+		List<DatabaseOp> branches = new ArrayList<DatabaseOp>();
+		List<List<ColumnName>> branchColumns = new ArrayList<List<ColumnName>>();
+		for (int i = 0; i < groups.size(); i++) {
+			branches.add(groups.get(i).baseRelation());
+			List<ColumnName> columns = new ArrayList<ColumnName>();
+			for (String slot: slots) {
+				columns.add(branchSlots.get(i).get(slot));
+			}
+			branchColumns.add(columns);
+		}
+		UnionOp union = UnionOp.union(branches, branchColumns, sqlConnection.vendor());
+		List<BindingMaker> makers = new ArrayList<BindingMaker>();
+		for (int i = 0; i < groups.size(); i++) {
+			Map<ColumnName,ColumnName> renames = new HashMap<ColumnName,ColumnName>();
+			for (ColumnName column: branchSlots.get(i).values()) {
+				renames.put(column, union.getColumn(i, column));
+			}
+			Renamer renamer = new ColumnRenamer(renames);
+			for (BindingMaker maker: groups.get(i).bindingMakers()) {
+				maker = maker.rename(renamer);
+				if (maker.getConditionColumn() == null) {
+					maker = maker.makeConditional(
+							UnionOp.BRANCH_COLUMN, Integer.toString(i + 1));
+				}
+				makers.add(maker);
+			}
+		}
+		return new CompatibleRelationGroup(sqlConnection, union, makers);
+	}
+
+	private final SQLConnection sqlConnection;
+	private final List<Member> members = new ArrayList<Member>();
+	private final Map<Identifier,Expression> extensions = new LinkedHashMap<Identifier,Expression>();
+	private DatabaseOp baseRelation = null;
+	private Collection<BindingMaker> bindingMakers = null;
+
 	public CompatibleRelationGroup(NodeRelation relation) {
-		this.relation = relation;
+		this.sqlConnection = relation.getSQLConnection();
+		this.baseRelation = relation.getBaseTabular();
+		this.bindingMakers = Collections.singleton(relation.getBindingMaker());
+	}
+
+	private CompatibleRelationGroup(SQLConnection sqlConnection, 
+			DatabaseOp baseRelation, Collection<BindingMaker> bindingMakers) {
+		this.sqlConnection = sqlConnection;
+		this.baseRelation = baseRelation;
+		this.bindingMakers = bindingMakers;
+	}
+
+	private CompatibleRelationGroup(Member first) {
+		this.sqlConnection = first.relation.getSQLConnection();
+		add(first);
+	}
+
+	private boolean isCompatible(Member member) {
+		for (Identifier column: member.extensions.keySet()) {
+			Expression existing = extensions.get(column);
+			if (existing != null && !existing.equals(member.extensions.get(column))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void add(Member member) {
+		members.add(member);
+		extensions.putAll(member.extensions);
+		baseRelation = null;
+		bindingMakers = null;
 	}
-	
+
 	public SQLConnection getSQLConnection() {
-		return relation.getSQLConnection();
+		return sqlConnection;
 	}
-	
+
 	public DatabaseOp baseRelation() {
-		return relation.getBaseTabular();
+		if (baseRelation == null) build();
+		return baseRelation;
 	}
-	
+
 	public Collection<BindingMaker> bindingMakers() {
-		return Collections.singleton(relation.getBindingMaker());
+		if (bindingMakers == null) build();
+		return bindingMakers;
+	}
+
+	private boolean isUnionable() {
+		DatabaseOp op = baseRelation();
+		if (OpUtil.isEmpty(op) || OpUtil.isTrivial(op)) return false;
+		Set<ColumnName> columns = new HashSet<ColumnName>(requiredColumns());
+		for (BindingMaker maker: bindingMakers()) {
+			if (maker.getConditionValue() != null) return false;
+			if (maker.getConditionColumn() != null) {
+				columns.add(maker.getConditionColumn());
+			}
+		}
+		for (ColumnName column: columns) {
+			DataType type = op.getColumnType(column);
+			if (type == null || type.isUnsupported()) return false;
+		}
+		final boolean[] result = {true};
+		op.accept(new OpVisitor.Default(true) {
+			@Override
+			public boolean visitEnter(AliasOp table) {
+				return false;
+			}
+			@Override
+			public boolean visitEnter(OrderOp table) {
+				result[0] = false;
+				return false;
+			}
+			@Override
+			public boolean visitEnter(LimitOp table) {
+				result[0] = false;
+				return false;
+			}
+			@Override
+			public boolean visitEnter(DistinctOp table) {
+				result[0] = false;
+				return false;
+			}
+			@Override
+			public boolean visitEnter(GroupOp table) {
+				result[0] = false;
+				return false;
+			}
+			@Override
+			public boolean visitEnter(UnionOp table) {
+				result[0] = false;
+				return false;
+			}
+		});
+		return result[0];
+	}
+
+	/**
+	 * @return The columns needed by the binding makers, in a stable order
+	 */
+	private Collection<ColumnName> requiredColumns() {
+		Set<ColumnName> result = new LinkedHashSet<ColumnName>();
+		for (BindingMaker maker: bindingMakers()) {
+			for (Var var: maker.variableNames()) {
+				result.addAll(maker.get(var).getRequiredColumns());
+			}
+			result.addAll(maker.getGuards().values());
+		}
+		return result;
+	}
+
+	private void build() {
+		if (members.size() == 1) {
+			NodeRelation relation = members.get(0).relation;
+			baseRelation = relation.getBaseTabular();
+			bindingMakers = Collections.singleton(relation.getBindingMaker());
+			return;
+		}
+		// Conjuncts shared by all members go into the WHERE clause
+		Set<Expression> shared = new HashSet<Expression>(members.get(0).conjuncts);
+		for (Member member: members) {
+			shared.retainAll(member.conjuncts);
+		}
+		List<Expression> residuals = new ArrayList<Expression>();
+		for (Member member: members) {
+			Set<Expression> residual = new HashSet<Expression>(member.conjuncts);
+			residual.removeAll(shared);
+			residuals.add(Conjunction.create(residual));
+		}
+		List<Expression> where = new ArrayList<Expression>(shared);
+		where.add(Disjunction.create(residuals));
+		DatabaseOp op = SelectOp.select(members.get(0).core, Conjunction.create(where));
+		op = ExtendOp.extend(op, extensions, sqlConnection.vendor());
+
+		// Members with additional conditions get a condition column each
+		Set<ColumnName> columns = new LinkedHashSet<ColumnName>();
+		boolean allColumns = false;
+		List<BindingMaker> makers = new ArrayList<BindingMaker>();
+		for (int i = 0; i < members.size(); i++) {
+			Member member = members.get(i);
+			if (member.projection == null) {
+				allColumns = true;
+			} else {
+				columns.addAll(member.projection);
+			}
+			BindingMaker maker = member.relation.getBindingMaker();
+			Expression residual = residuals.get(i);
+			if (!residual.isTrue()) {
+				Expression flag = new BooleanToIntegerCaseExpression(residual);
+				Identifier flagColumn = ExtendOp.createUniqueIdentifierFor(flag);
+				if (!op.getColumns().contains(ColumnName.create(flagColumn))) {
+					op = ExtendOp.extend(op, flagColumn, flag, sqlConnection.vendor());
+				}
+				columns.add(ColumnName.create(flagColumn));
+				maker = maker.makeConditional(ColumnName.create(flagColumn));
+			}
+			makers.add(maker);
+		}
+		if (!allColumns) {
+			op = ProjectOp.project(op, new ArrayList<ColumnName>(columns));
+		}
+		baseRelation = op;
+		bindingMakers = makers;
+	}
+
+	/**
+	 * A relation whose base has been taken apart into projection,
+	 * extensions, selection condition, and the remaining core.
+	 */
+	private static class Member {
+		static Member create(NodeRelation relation) {
+			if (relation.getBindingMaker().getConditionColumn() != null) return null;
+			if (!relation.getBindingMaker().getGuards().isEmpty()) return null;
+			Collection<ColumnName> projection = ScanKey.getProjection(relation.getBaseTabular());
+			DatabaseOp op = ScanKey.stripProjections(relation.getBaseTabular());
+			Map<Identifier,Expression> extensions = new LinkedHashMap<Identifier,Expression>();
+			while (op instanceof ExtendOp) {
+				ExtendOp extend = (ExtendOp) op;
+				extensions.put(extend.getNewColumn(), extend.getExpression());
+				op = extend.getWrapped();
+			}
+			Set<Expression> conjuncts = new HashSet<Expression>();
+			while (op instanceof SelectOp) {
+				Expression condition = ((SelectOp) op).getCondition();
+				if (condition instanceof Conjunction) {
+					conjuncts.addAll(Arrays.asList(((Conjunction) condition).getOperands()));
+				} else {
+					conjuncts.add(condition);
+				}
+				op = ((SelectOp) op).getWrapped();
+			}
+			if (op instanceof OrderOp || op instanceof LimitOp
+					|| op instanceof DistinctOp || op instanceof AssertUniqueKeyOp
+					|| op instanceof ProjectOp || op instanceof ExtendOp
+					|| op instanceof LeftJoinOp || op instanceof GroupOp
+					|| op instanceof UnionOp
+					|| OpUtil.isEmpty(op) || OpUtil.isTrivial(op)) {
+				return null;
+			}
+			return new Member(relation, projection, extensions, conjuncts, op);
+		}
+		final NodeRelation relation;
+		final Collection<ColumnName> projection;
+		final Map<Identifier,Expression> extensions;
+		final Collection<Expression> conjuncts;
+		final DatabaseOp core;
+		Member(NodeRelation relation, Collection<ColumnName> projection,
+				Map<Identifier,Expression> extensions,
+				Collection<Expression> conjuncts, DatabaseOp core) {
+			this.relation = relation;
+			this.projection = projection;
+			this.extensions = extensions;
+			this.conjuncts = conjuncts;
+			this.core = core;
+		}
 	}
 }
@@ -1,7 +1,293 @@
 package org.d2rq.tmp;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.d2rq.algebra.NodeRelation;
+import org.d2rq.db.SQLConnection;
+import org.d2rq.db.expr.ColumnExpr;
+import org.d2rq.db.expr.ColumnListEquality;
+import org.d2rq.db.expr.Conjunction;
+import org.d2rq.db.expr.Expression;
+import org.d2rq.db.expr.NotNull;
+import org.d2rq.db.op.AliasOp;
+import org.d2rq.db.op.AssertUniqueKeyOp;
+import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.op.ExtendOp;
+import org.d2rq.db.op.GroupOp;
+import org.d2rq.db.op.InnerJoinOp;
+import org.d2rq.db.op.LeftJoinOp;
+import org.d2rq.db.op.NamedOp;
+import org.d2rq.db.op.OpVisitor;
+import org.d2rq.db.op.OrderOp;
+import org.d2rq.db.op.OrderOp.OrderSpec;
+import org.d2rq.db.op.ProjectOp;
+import org.d2rq.db.op.SelectOp;
+import org.d2rq.db.op.TableOp;
+import org.d2rq.db.op.UnionOp;
+import org.d2rq.db.op.util.OpMutator;
+import org.d2rq.db.op.util.OpRenamer;
+import org.d2rq.db.renamer.ColumnRenamer;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.schema.ForeignKey;
+import org.d2rq.db.schema.Identifier;
+import org.d2rq.db.schema.IdentifierList;
+import org.d2rq.db.schema.TableDef;
+import org.d2rq.db.schema.TableName;
+import org.d2rq.nodes.BindingMaker;
+import org.d2rq.nodes.NodeMaker;
+
+import com.hp.hpl.jena.sparql.core.Var;
 
+/**
+ * Removes unnecessary tables from the joins of a {@link NodeRelation}.
+ *
+ * A table B can be removed from a join with A on A.fk = B.key if:
+ *
+ * <ul>
+ * <li>A.fk is a foreign key referencing B.key, so every row of A
+ *     with non-NULL A.fk has a match in B;</li>
+ * <li>B.key is a unique key of B, so no row of A has more than one
+ *     match;</li>
+ * <li>A.fk and B.key have compatible formats, so node makers produce
+ *     the same values from either;</li>
+ * <li>no columns of B other than B.key are used, neither by the node
+ *     makers nor by selections, projections or other joins.</li>
+ * </ul>
+ *
+ * All uses of B.key are then replaced with A.fk. If A.fk is nullable,
+ * an <code>IS NOT NULL</code> condition takes the place of the join.
+ * Tables inside of aliases are left alone.
+ */
 public class JoinOptimizer {
-	public static NodeRelation optimize(NodeRelation r) { return r; }
+	private final static Log log = LogFactory.getLog(JoinOptimizer.class);
+
+	public static NodeRelation optimize(NodeRelation r) {
+		NodeRelation result = r;
+		NodeRelation reduced;
+		while ((reduced = new JoinOptimizer(result).removeOneTable()) != null) {
+			result = reduced;
+		}
+		return result;
+	}
+
+	private final NodeRelation relation;
+
+	private JoinOptimizer(NodeRelation relation) {
+		this.relation = relation;
+	}
+
+	/**
+	 * @return A relation with one table fewer, or <code>null</code> if
+	 * 		no table can be removed
+	 */
+	private NodeRelation removeOneTable() {
+		for (InnerJoinOp join: findJoins()) {
+			for (ColumnListEquality condition: join.getJoinConditions()) {
+				NodeRelation result = tryRemove(join, condition,
+						condition.getTableName1(), condition.getColumns1(),
+						condition.getTableName2(), condition.getColumns2());
+				if (result != null) return result;
+				result = tryRemove(join, condition,
+						condition.getTableName2(), condition.getColumns2(),
+						condition.getTableName1(), condition.getColumns1());
+				if (result != null) return result;
+			}
+		}
+		return null;
+	}
+
+	private Collection<InnerJoinOp> findJoins() {
+		final Collection<InnerJoinOp> result = new ArrayList<InnerJoinOp>();
+		relation.getBaseTabular().accept(new OpVisitor.Default(true) {
+			@Override
+			public boolean visitEnter(InnerJoinOp table) {
+				result.add(table);
+				return false;
+			}
+			@Override
+			public boolean visitEnter(LeftJoinOp table) {
+				return false;
+			}
+			@Override
+			public boolean visitEnter(GroupOp table) {
+				return false;
+			}
+			@Override
+			public boolean visitEnter(UnionOp table) {
+				return false;
+			}
+			@Override
+			public boolean visitEnter(AliasOp table) {
+				return false;
+			}
+		});
+		return result;
+	}
+
+	private NodeRelation tryRemove(final InnerJoinOp join,
+			final ColumnListEquality condition,
+			TableName localName, IdentifierList localColumns,
+			TableName referencedName, IdentifierList referencedColumns) {
+		if (!(join.getTable(localName) instanceof TableOp)) return null;
+		if (!(join.getTable(referencedName) instanceof TableOp)) return null;
+		TableOp local = (TableOp) join.getTable(localName);
+		final TableOp referenced = (TableOp) join.getTable(referencedName);
+		if (!isForeignKey(local.getTableDefinition(), localColumns,
+				referenced.getTableDefinition(), referencedColumns)) return null;
+		if (!isUniqueKey(referenced.getTableDefinition(), referencedColumns)) return null;
+		SQLConnection connection = relation.getSQLConnection();
+		Map<ColumnName,ColumnName> replacements = new HashMap<ColumnName,ColumnName>();
+		final List<Expression> notNulls = new ArrayList<Expression>();
+		for (int i = 0; i < localColumns.size(); i++) {
+			ColumnName localColumn = ColumnName.create(localName, localColumns.get(i));
+			ColumnName referencedColumn = ColumnName.create(referencedName, referencedColumns.get(i));
+			if (!connection.areCompatibleFormats(
+					local, localColumn, referenced, referencedColumn)) return null;
+			replacements.put(referencedColumn, localColumn);
+			if (local.isNullable(localColumn)) {
+				notNulls.add(NotNull.create(new ColumnExpr(localColumn)));
+			}
+		}
+		DatabaseOp reduced = new OpMutator(relation.getBaseTabular()) {
+			@Override
+			public boolean visitEnter(InnerJoinOp original) {
+				return false;
+			}
+			@Override
+			public DatabaseOp visitLeave(InnerJoinOp original, Collection<NamedOp> newChildren) {
+				if (original != join) return original;
+				Collection<NamedOp> tables = new ArrayList<NamedOp>(original.getTables());
+				tables.remove(referenced);
+				Set<ColumnListEquality> conditions =
+						new HashSet<ColumnListEquality>(original.getJoinConditions());
+				conditions.remove(condition);
+				return SelectOp.select(InnerJoinOp.join(tables, conditions),
+						Conjunction.create(notNulls));
+			}
+			@Override
+			public boolean visitEnter(AliasOp original) {
+				return false;
+			}
+			@Override
+			public DatabaseOp visitLeave(AliasOp original, DatabaseOp child) {
+				return original;
+			}
+		}.getResult();
+		ColumnRenamer renamer = new ColumnRenamer(replacements);
+		reduced = new OpRenamer(reduced, renamer).getResult();
+		BindingMaker bindingMaker = relation.getBindingMaker().rename(renamer);
+		if (usesTable(reduced, bindingMaker, referenced)) return null;
+		log.debug("Removed " + referencedName + " from join: " + condition);
+		return new NodeRelation(connection, reduced, bindingMaker);
+	}
+
+	private boolean isForeignKey(TableDef local, IdentifierList localColumns,
+			TableDef referenced, IdentifierList referencedColumns) {
+		Map<Identifier,Identifier> pairs = pairs(localColumns, referencedColumns);
+		for (ForeignKey fk: local.getForeignKeys()) {
+			if (!fk.getReferencedTable().equals(referenced.getName())) continue;
+			if (pairs.equals(pairs(fk.getLocalColumns(), fk.getReferencedColumns()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Map<Identifier,Identifier> pairs(IdentifierList keys, IdentifierList values) {
+		Map<Identifier,Identifier> result = new HashMap<Identifier,Identifier>();
+		for (int i = 0; i < keys.size(); i++) {
+			result.put(keys.get(i), values.get(i));
+		}
+		return result;
+	}
+
+	private boolean isUniqueKey(TableDef table, IdentifierList columns) {
+		Set<Identifier> key = new HashSet<Identifier>(columns.getColumns());
+		if (table.getPrimaryKey() != null && 
+				key.equals(new HashSet<Identifier>(table.getPrimaryKey().getColumns()))) {
+			return true;
+		}
+		for (IdentifierList uniqueKey: table.getUniqueKeys()) {
+			if (key.equals(new HashSet<Identifier>(uniqueKey.getColumns()))) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return <code>true</code> if any column of the table is still used
+	 */
+	private boolean usesTable(DatabaseOp op, BindingMaker bindingMaker, final TableOp table) {
+		final Set<ColumnName> columns = new HashSet<ColumnName>();
+		for (Var var: bindingMaker.variableNames()) {
+			NodeMaker nodeMaker = bindingMaker.get(var);
+			columns.addAll(nodeMaker.getRequiredColumns());
+		}
+		if (bindingMaker.getConditionColumn() != null) {
+			columns.add(bindingMaker.getConditionColumn());
+		}
+		columns.addAll(bindingMaker.getGuards().values());
+		final boolean[] containsTable = {false};
+		op.accept(new OpVisitor.Default(true) {
+			@Override
+			public boolean visitEnter(InnerJoinOp join) {
+				for (ColumnListEquality condition: join.getJoinConditions()) {
+					columns.addAll(condition.getColumns());
+				}
+				return true;
+			}
+			@Override
+			public boolean visitEnter(LeftJoinOp join) {
+				columns.addAll(join.getCondition().getColumns());
+				return true;
+			}
+			@Override
+			public boolean visitEnter(SelectOp select) {
+				columns.addAll(select.getCondition().getColumns());
+				return true;
+			}
+			@Override
+			public boolean visitEnter(ProjectOp project) {
+				columns.addAll(project.getColumns().asList());
+				return true;
+			}
+			@Override
+			public boolean visitEnter(ExtendOp extend) {
+				columns.addAll(extend.getExpression().getColumns());
+				return true;
+			}
+			@Override
+			public boolean visitEnter(OrderOp order) {
+				for (OrderSpec spec: order.getOrderBy()) {
+					columns.addAll(spec.getExpression().getColumns());
+				}
+				return true;
+			}
+			@Override
+			public boolean visitEnter(AssertUniqueKeyOp assertion) {
+				columns.addAll(assertion.getKey().asList());
+				return true;
+			}
+			@Override
+			public boolean visitEnter(AliasOp alias) {
+				return false;
+			}
+			@Override
+			public void visit(TableOp visited) {
+				if (visited == table) containsTable[0] = true;
+			}
+		});
+		if (containsTable[0]) return true;
+		for (ColumnName column: columns) {
+			if (table.hasColumn(column)) return true;
+		}
+		return false;
+	}
 }
@@ -1,11 +1,459 @@
 package org.d2rq.tmp;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.d2rq.CompiledMapping;
+import org.d2rq.D2RQOptions;
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.algebra.NodeRelationUtil;
+import org.d2rq.db.expr.Expression;
+import org.d2rq.db.op.LimitOp;
+import org.d2rq.db.op.util.OpUtil;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.engine.AggregateTranslator;
+import org.d2rq.engine.BGPTranslator;
+import org.d2rq.engine.FilterTranslator;
+import org.d2rq.engine.LeftJoinTranslator;
+import org.d2rq.engine.OpTableSQL;
+import org.d2rq.engine.SolutionModifierTranslator;
+import org.d2rq.engine.StageGeneratorD2RQ;
+import org.d2rq.jena.GraphD2RQ;
+import org.d2rq.nodes.BindingMaker;
+import org.d2rq.nodes.NodeMaker;
+
+import com.hp.hpl.jena.query.ARQ;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.SortCondition;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.TransformCopy;
+import com.hp.hpl.jena.sparql.algebra.Transformer;
+import com.hp.hpl.jena.sparql.algebra.op.OpBGP;
+import com.hp.hpl.jena.sparql.algebra.op.OpConditional;
+import com.hp.hpl.jena.sparql.algebra.op.OpDistinct;
+import com.hp.hpl.jena.sparql.algebra.op.OpExtend;
+import com.hp.hpl.jena.sparql.algebra.op.OpFilter;
+import com.hp.hpl.jena.sparql.algebra.op.OpGroup;
+import com.hp.hpl.jena.sparql.algebra.op.OpLeftJoin;
+import com.hp.hpl.jena.sparql.algebra.op.OpOrder;
+import com.hp.hpl.jena.sparql.algebra.op.OpProject;
+import com.hp.hpl.jena.sparql.algebra.op.OpReduced;
+import com.hp.hpl.jena.sparql.algebra.op.OpSlice;
+import com.hp.hpl.jena.sparql.algebra.op.OpTopN;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.core.VarExprList;
+import com.hp.hpl.jena.sparql.engine.Plan;
 import com.hp.hpl.jena.sparql.engine.QueryEngineFactory;
+import com.hp.hpl.jena.sparql.engine.QueryEngineRegistry;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
 import com.hp.hpl.jena.sparql.engine.main.QueryEngineMain;
+import com.hp.hpl.jena.sparql.engine.main.StageBuilder;
+import com.hp.hpl.jena.sparql.engine.main.StageGenerator;
+import com.hp.hpl.jena.sparql.expr.Expr;
+import com.hp.hpl.jena.sparql.expr.ExprList;
+import com.hp.hpl.jena.sparql.util.Context;
+
+/**
+ * An ARQ query engine for {@link GraphD2RQ}s. Basic graph patterns
+ * with more than one triple pattern are translated into SQL joins by
+ * a {@link BGPTranslator}, and evaluated in the database as
+ * {@link OpTableSQL}. Everything else, including patterns that cannot
+ * be translated, is evaluated by ARQ as usual.
+ *
+ * If {@link D2RQOptions#FILTER_TO_SQL} is set, then filters on
+ * basic graph patterns are translated by a {@link FilterTranslator}
+ * and added to the SQL queries where possible. ARQ's filter placement
+ * is switched off in that case, as it would split the patterns.
+ *
+ * <code>OPTIONAL</code>s whose both sides can be translated are
+ * evaluated as SQL left outer joins by a {@link LeftJoinTranslator},
+ * as long as the optional side is a single relation.
+ *
+ * Solution modifiers (<code>ORDER BY</code>, <code>LIMIT</code>,
+ * <code>OFFSET</code>, <code>DISTINCT</code>, <code>REDUCED</code>)
+ * directly on top of such a pattern are added to the SQL queries by
+ * a {@link SolutionModifierTranslator} where this doesn't change the
+ * results. Sorting and duplicate removal are only moved to the database
+ * if the pattern is a single relation; results of several relations
+ * are still sorted by ARQ, but each relation is limited to the number
+ * of rows needed for the slice.
+ *
+ * <code>GROUP BY</code> with aggregates on a single relation is
+ * translated into a SQL <code>GROUP BY</code> query by an
+ * {@link AggregateTranslator}. Filters, ordering and slicing of the
+ * aggregated results can then be added to that query as well.
+ *
+ * Basic graph patterns that are left to ARQ are evaluated by a
+ * {@link StageGeneratorD2RQ}, which orders their triple patterns by
+ * the number of matches estimated from the database's table statistics.
+ */
+public class QueryEngineD2RQ extends QueryEngineMain {
+	private final static QueryEngineFactory factory = new QueryEngineFactory() {
+		public boolean accept(Query query, DatasetGraph dataset, Context context) {
+			return dataset.getDefaultGraph() instanceof GraphD2RQ;
+		}
+		public Plan create(Query query, DatasetGraph dataset, Binding inputBinding, Context context) {
+			return new QueryEngineD2RQ((GraphD2RQ) dataset.getDefaultGraph(),
+					query, dataset, inputBinding, context).getPlan();
+		}
+		public boolean accept(Op op, DatasetGraph dataset, Context context) {
+			return dataset.getDefaultGraph() instanceof GraphD2RQ;
+		}
+		public Plan create(Op op, DatasetGraph dataset, Binding inputBinding, Context context) {
+			return new QueryEngineD2RQ((GraphD2RQ) dataset.getDefaultGraph(),
+					op, dataset, inputBinding, context).getPlan();
+		}
+	};
 
-public class QueryEngineD2RQ {
-	public static void register() {}
 	public static QueryEngineFactory getFactory() {
-		return QueryEngineMain.getFactory();
+		return factory;
+	}
+
+	public static void register() {
+		if (QueryEngineRegistry.containsFactory(factory)) return;
+		QueryEngineRegistry.addFactory(factory);
+	}
+
+	public static void unregister() {
+		QueryEngineRegistry.removeFactory(factory);
+	}
+
+	private final GraphD2RQ graph;
+
+	public QueryEngineD2RQ(GraphD2RQ graph, Query query, DatasetGraph dataset,
+			Binding input, Context context) {
+		super(query, dataset, input, context);
+		this.graph = graph;
+		init();
+	}
+
+	public QueryEngineD2RQ(GraphD2RQ graph, Op op, DatasetGraph dataset,
+			Binding input, Context context) {
+		super(op, dataset, input, context);
+		this.graph = graph;
+		init();
+	}
+
+	private void init() {
+		if (filterToSQL()) {
+			context.set(ARQ.optFilterPlacement, false);
+		}
+		StageGenerator generator = StageBuilder.getGenerator(context);
+		if (!(generator instanceof StageGeneratorD2RQ)) {
+			StageBuilder.setGenerator(context, new StageGeneratorD2RQ(
+					generator == null ? StageBuilder.standardGenerator() : generator));
+		}
+	}
+
+	private boolean filterToSQL() {
+		return "true".equals(graph.getMapping().getContext().getAsString(
+				D2RQOptions.FILTER_TO_SQL, "false"));
+	}
+
+	@Override
+	protected Op modifyOp(Op op) {
+		return Transformer.transform(new TransformCopy() {
+			@Override
+			public Op transform(OpBGP opBGP) {
+				// Single triple patterns are better served by GraphD2RQ.find()
+				if (opBGP.getPattern().size() < 2) return opBGP;
+				return translate(opBGP);
+			}
+			@Override
+			public Op transform(OpFilter opFilter, Op subOp) {
+				if (!filterToSQL()) return super.transform(opFilter, subOp);
+				Op translated = subOp instanceof OpBGP ? translate((OpBGP) subOp) : subOp;
+				if (translated instanceof OpTableSQL) {
+					Op result = translate(opFilter.getExprs(), (OpTableSQL) translated);
+					if (result != null) return result;
+				}
+				return super.transform(opFilter, subOp);
+			}
+			@Override
+			public Op transform(OpLeftJoin opLeftJoin, Op left, Op right) {
+				Op result = leftJoin(left, right, opLeftJoin.getExprs());
+				return result == null ? super.transform(opLeftJoin, left, right) : result;
+			}
+			@Override
+			public Op transform(OpConditional opCondition, Op left, Op right) {
+				Op result = leftJoin(left, right, null);
+				return result == null ? super.transform(opCondition, left, right) : result;
+			}
+			@Override
+			public Op transform(OpGroup opGroup, Op subOp) {
+				Op result = group(opGroup, subOp);
+				return result == null ? super.transform(opGroup, subOp) : result;
+			}
+			@Override
+			public Op transform(OpExtend opExtend, Op subOp) {
+				Op result = extend(opExtend, subOp);
+				return result == null ? super.transform(opExtend, subOp) : result;
+			}
+			@Override
+			public Op transform(OpOrder opOrder, Op subOp) {
+				Op result = order(opOrder.getConditions(), subOp);
+				return result == null ? super.transform(opOrder, subOp) : result;
+			}
+			@Override
+			public Op transform(OpTopN opTop, Op subOp) {
+				Op result = topN(opTop, subOp);
+				return result == null ? super.transform(opTop, subOp) : result;
+			}
+			@Override
+			public Op transform(OpSlice opSlice, Op subOp) {
+				Op result = slice(opSlice, subOp);
+				return result == null ? super.transform(opSlice, subOp) : result;
+			}
+			@Override
+			public Op transform(OpDistinct opDistinct, Op subOp) {
+				Op result = distinct(subOp, false);
+				return result == null ? super.transform(opDistinct, subOp) : result;
+			}
+			@Override
+			public Op transform(OpReduced opReduced, Op subOp) {
+				Op result = distinct(subOp, true);
+				return result == null ? super.transform(opReduced, subOp) : result;
+			}
+		}, super.modifyOp(op));
+	}
+
+	/**
+	 * @return The op as an {@link OpTableSQL}, translating basic graph
+	 * 		patterns of any size; <code>null</code> if not possible
+	 */
+	private OpTableSQL asTable(Op op) {
+		if (op instanceof OpBGP) {
+			op = translate((OpBGP) op);
+		}
+		return op instanceof OpTableSQL ? (OpTableSQL) op : null;
+	}
+
+	private OpTableSQL modified(Op original, List<NodeRelation> tables) {
+		return new OpTableSQL(original, graph, tables, 
+				graph.getMapping().getContext(), true);
+	}
+
+	/**
+	 * @param exprs Filter of the <code>OPTIONAL</code>, or <code>null</code>
+	 */
+	private Op leftJoin(Op left, Op right, ExprList exprs) {
+		if (exprs != null && !exprs.isEmpty() && !filterToSQL()) return null;
+		OpTableSQL leftTable = asTable(left);
+		OpTableSQL rightTable = asTable(right);
+		if (leftTable == null || rightTable == null) return null;
+		if (leftTable.isModified() || rightTable.isModified()) return null;
+		Op original = OpLeftJoin.create(leftTable.effectiveOp(), rightTable.effectiveOp(), exprs);
+		if (rightTable.getTables().isEmpty()) {
+			return new OpTableSQL(original, graph, leftTable.getTables(), 
+					graph.getMapping().getContext());
+		}
+		// Left joins distribute over unions on the left side only
+		if (rightTable.getTables().size() != 1) return null;
+		List<NodeRelation> tables = new ArrayList<NodeRelation>();
+		for (NodeRelation relation: leftTable.getTables()) {
+			NodeRelation joined = new LeftJoinTranslator(relation).leftJoin(
+					rightTable.getTables().get(0), exprs);
+			if (joined == null) return null;
+			tables.add(joined);
+		}
+		return new OpTableSQL(original, graph, tables, graph.getMapping().getContext());
+	}
+
+	private Op group(OpGroup opGroup, Op subOp) {
+		OpTableSQL table = asTable(subOp);
+		// Groups of a union are not the union of the groups
+		if (table == null || table.getTables().size() != 1) return null;
+		NodeRelation grouped = new AggregateTranslator(table.getTables().get(0)).group(
+				opGroup.getGroupVars(), opGroup.getAggregators());
+		if (grouped == null) return null;
+		return modified(opGroup.copy(table.effectiveOp()), Collections.singletonList(grouped));
+	}
+
+	/**
+	 * Variables that are just copies of other variables, such as
+	 * the result variables of aggregates, are added to the relations.
+	 */
+	private Op extend(OpExtend opExtend, Op subOp) {
+		OpTableSQL table = asTable(subOp);
+		if (table == null) return null;
+		VarExprList exprs = opExtend.getVarExprList();
+		List<NodeRelation> tables = new ArrayList<NodeRelation>();
+		for (NodeRelation relation: table.getTables()) {
+			BindingMaker bindingMaker = relation.getBindingMaker();
+			Map<Var,NodeMaker> nodeMakers = new HashMap<Var,NodeMaker>(
+					bindingMaker.getNodeMakers());
+			Map<Var,ColumnName> guards = new HashMap<Var,ColumnName>(bindingMaker.getGuards());
+			for (Var var: exprs.getVars()) {
+				Expr expr = exprs.getExpr(var);
+				if (expr == null || !expr.isVariable()) return null;
+				if (bindingMaker.has(var)) return null;
+				Var source = expr.asVar();
+				if (!bindingMaker.has(source)) continue;
+				nodeMakers.put(var, bindingMaker.get(source));
+				if (bindingMaker.isGuarded(source)) {
+					guards.put(var, bindingMaker.getGuards().get(source));
+				}
+			}
+			tables.add(new NodeRelation(relation.getSQLConnection(), relation.getBaseTabular(),
+					new BindingMaker(nodeMakers, bindingMaker.getConditionColumn(), guards)));
+		}
+		return new OpTableSQL(opExtend.copy(table.effectiveOp()), graph, tables,
+				graph.getMapping().getContext(), table.isModified());
+	}
+
+	private Op order(List<SortCondition> conditions, Op subOp) {
+		// Filters left for ARQ keep the order of their input
+		if (subOp instanceof OpFilter) {
+			OpFilter opFilter = (OpFilter) subOp;
+			Op result = order(conditions, opFilter.getSubOp());
+			return result == null ? null : OpFilter.filter(opFilter.getExprs(), result);
+		}
+		OpTableSQL table = asTable(subOp);
+		if (table == null || table.getTables().size() != 1) return null;
+		NodeRelation ordered = new SolutionModifierTranslator(
+				table.getTables().get(0)).order(conditions);
+		if (ordered == null) return null;
+		return modified(new OpOrder(table.effectiveOp(), conditions),
+				Collections.singletonList(ordered));
+	}
+
+	private Op topN(OpTopN opTop, Op subOp) {
+		OpTableSQL table = asTable(subOp);
+		if (table == null) return null;
+		List<NodeRelation> tables = new ArrayList<NodeRelation>();
+		for (NodeRelation relation: table.getTables()) {
+			NodeRelation ordered = new SolutionModifierTranslator(
+					relation).order(opTop.getConditions());
+			if (ordered == null) return null;
+			NodeRelation limited = new SolutionModifierTranslator(
+					ordered).slice(0, opTop.getLimit());
+			if (limited == null) return null;
+			tables.add(limited);
+		}
+		Op result = modified(new OpTopN(table.effectiveOp(), 
+				opTop.getLimit(), opTop.getConditions()), tables);
+		if (tables.size() == 1) return result;
+		// The concatenation of several sorted relations is not sorted
+		return new OpTopN(result, opTop.getLimit(), opTop.getConditions());
+	}
+
+	private Op slice(OpSlice opSlice, Op subOp) {
+		OpProject opProject = null;
+		if (subOp instanceof OpProject) {
+			opProject = (OpProject) subOp;
+			subOp = opProject.getSubOp();
+		}
+		OpTableSQL table = asTable(subOp);
+		if (table == null) return null;
+		long start = opSlice.getStart() == Query.NOLIMIT ? 0 : opSlice.getStart();
+		long length = opSlice.getLength();
+		if (length != Query.NOLIMIT && start + length > Integer.MAX_VALUE) return null;
+		if (start > Integer.MAX_VALUE) return null;
+		Op original = new OpSlice(table.effectiveOp(), opSlice.getStart(), length);
+		if (table.getTables().size() == 1) {
+			NodeRelation sliced = new SolutionModifierTranslator(table.getTables().get(0)).slice(
+					(int) start, length == Query.NOLIMIT ? LimitOp.NO_LIMIT : (int) length);
+			if (sliced != null) {
+				Op result = modified(original, Collections.singletonList(sliced));
+				return opProject == null ? result : opProject.copy(result);
+			}
+		}
+		if (length == Query.NOLIMIT) return null;
+		// Fetch only as many rows as needed from each relation, and slice in ARQ
+		List<NodeRelation> tables = new ArrayList<NodeRelation>();
+		for (NodeRelation relation: table.getTables()) {
+			NodeRelation limited = new SolutionModifierTranslator(
+					relation).slice(0, (int) (start + length));
+			if (limited == null) return null;
+			tables.add(limited);
+		}
+		Op result = modified(new OpSlice(table.effectiveOp(), 0, start + length), tables);
+		if (opProject != null) {
+			result = opProject.copy(result);
+		}
+		return opSlice.copy(result);
+	}
+
+	/**
+	 * @param reduced Can duplicates be left in the result?
+	 */
+	private Op distinct(Op subOp, boolean reduced) {
+		OpProject opProject = null;
+		if (subOp instanceof OpProject) {
+			opProject = (OpProject) subOp;
+			subOp = opProject.getSubOp();
+		}
+		OpTableSQL table = asTable(subOp);
+		if (table == null || table.getTables().size() != 1) return null;
+		NodeRelation relation = table.getTables().get(0);
+		Set<Var> vars = opProject == null 
+				? relation.getBindingMaker().variableNames()
+				: new HashSet<Var>(opProject.getVars());
+		SolutionModifierTranslator translator = new SolutionModifierTranslator(relation);
+		NodeRelation distinct = translator.distinct(vars);
+		if (distinct == null) return null;
+		Op original = opProject == null ? table.effectiveOp() : opProject.copy(table.effectiveOp());
+		original = reduced ? OpReduced.create(original) : OpDistinct.create(original);
+		Op result = modified(original, Collections.singletonList(distinct));
+		if (opProject != null) {
+			result = opProject.copy(result);
+		}
+		if (reduced || translator.isExact()) return result;
+		return OpDistinct.create(result);
+	}
+
+	private Op translate(OpBGP opBGP) {
+		CompiledMapping mapping = graph.getMapping();
+		if (!mapping.getAdditionalTriples().isEmpty()) return opBGP;
+		List<NodeRelation> tables = new BGPTranslator(opBGP.getPattern().getList(),
+				mapping.getTripleRelations(), mapping.getContext()).translate();
+		if (tables == null) return opBGP;
+		return new OpTableSQL(opBGP, graph, tables, mapping.getContext());
+	}
+
+	/**
+	 * Adds each conjunct of the filter to the SQL queries. Conjuncts
+	 * that cannot be translated for every relation, or only
+	 * approximately, are also kept in an ARQ filter.
+	 * Filters over a slice are left to ARQ, because in SQL they
+	 * would be applied before the <code>LIMIT</code>.
+	 * 
+	 * @return <code>null</code> if nothing could be translated
+	 */
+	private Op translate(ExprList exprs, OpTableSQL opTable) {
+		for (NodeRelation relation: opTable.getTables()) {
+			if (OpUtil.hasLimit(relation.getBaseTabular())) return null;
+		}
+		List<NodeRelation> tables = new ArrayList<NodeRelation>(opTable.getTables());
+		ExprList remaining = new ExprList();
+		boolean changed = false;
+		for (Expr expr: ExprList.splitConjunction(exprs)) {
+			boolean translatedAll = true;
+			for (int i = 0; i < tables.size(); i++) {
+				FilterTranslator translator = new FilterTranslator(tables.get(i));
+				Expression translated = translator.translate(expr);
+				if (translated == null) {
+					translatedAll = false;
+					continue;
+				}
+				tables.set(i, NodeRelationUtil.select(tables.get(i), translated));
+				translatedAll &= translator.isExact();
+				changed = true;
+			}
+			if (!translatedAll) {
+				remaining.add(expr);
+			}
+		}
+		if (!changed) return null;
+		Op original = OpFilter.filter(exprs, opTable.effectiveOp());
+		Op result = new OpTableSQL(original, graph, tables,
+				graph.getMapping().getContext(), opTable.isModified());
+		return remaining.isEmpty() ? result : OpFilter.filter(remaining, result);
 	}
 }
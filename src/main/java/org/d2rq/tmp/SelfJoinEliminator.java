@@ -0,0 +1,308 @@
+package org.d2rq.tmp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.db.expr.ColumnExpr;
+import org.d2rq.db.expr.ColumnListEquality;
+import org.d2rq.db.expr.Conjunction;
+import org.d2rq.db.expr.Equality;
+import org.d2rq.db.expr.Expression;
+import org.d2rq.db.expr.NotNull;
+import org.d2rq.db.op.AliasOp;
+import org.d2rq.db.op.AssertUniqueKeyOp;
+import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.op.ExtendOp;
+import org.d2rq.db.op.InnerJoinOp;
+import org.d2rq.db.op.LeftJoinOp;
+import org.d2rq.db.op.NamedOp;
+import org.d2rq.db.op.OrderOp;
+import org.d2rq.db.op.ProjectOp;
+import org.d2rq.db.op.SelectOp;
+import org.d2rq.db.op.TableOp;
+import org.d2rq.db.op.util.OpMutator;
+import org.d2rq.db.op.util.OpRenamer;
+import org.d2rq.db.renamer.ColumnRenamer;
+import org.d2rq.db.schema.ColumnList;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.nodes.BindingMaker;
+
+/**
+ * Removes self-joins from the joins of a {@link NodeRelation}.
+ *
+ * Two tables A1 and A2 in a join can be merged into one if:
+ *
+ * <ul>
+ * <li>both are the same base table, or aliases of it;</li>
+ * <li>they are joined on all columns of a unique key, either by the
+ *     join conditions or by column equalities in selections directly
+ *     on top of the join.</li>
+ * </ul>
+ *
+ * Each row of A1 then matches the very same row of A2, so A2 can be
+ * dropped and all uses of its columns replaced with those of A1. If
+ * the key is nullable, an <code>IS NOT NULL</code> condition takes
+ * the place of the join. This is what star-shaped basic graph
+ * patterns on a single class map look like, where every triple
+ * pattern joins another alias of the same table on the subject.
+ *
+ * Tables inside of aliases are left alone.
+ */
+public class SelfJoinEliminator {
+	private final static Log log = LogFactory.getLog(SelfJoinEliminator.class);
+
+	public static NodeRelation optimize(NodeRelation r) {
+		NodeRelation result = r;
+		NodeRelation reduced;
+		while ((reduced = new SelfJoinEliminator(result).removeOneTable()) != null) {
+			result = reduced;
+		}
+		return result;
+	}
+
+	private final NodeRelation relation;
+
+	private SelfJoinEliminator(NodeRelation relation) {
+		this.relation = relation;
+	}
+
+	/**
+	 * @return A relation with one table fewer, or <code>null</code> if
+	 * 		no table can be removed
+	 */
+	private NodeRelation removeOneTable() {
+		List<Site> sites = new ArrayList<Site>();
+		findJoins(relation.getBaseTabular(), new ArrayList<SelectOp>(), sites);
+		for (Site site: sites) {
+			List<NamedOp> tables = new ArrayList<NamedOp>(site.join.getTables());
+			for (int i = 0; i < tables.size(); i++) {
+				for (int j = 0; j < tables.size(); j++) {
+					if (i == j) continue;
+					if (!isSameTable(tables.get(i), tables.get(j))) continue;
+					if (!isJoinedOnUniqueKey(site, tables.get(i), tables.get(j))) continue;
+					return remove(site, tables.get(i), tables.get(j));
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * An inner join, with the selections that are evaluated directly
+	 * on its result
+	 */
+	private static class Site {
+		private final InnerJoinOp join;
+		private final List<SelectOp> selects;
+		private final Map<ColumnName,Set<ColumnName>> equalColumns =
+				new HashMap<ColumnName,Set<ColumnName>>();
+		Site(InnerJoinOp join, List<SelectOp> selects) {
+			this.join = join;
+			this.selects = selects;
+			for (ColumnListEquality condition: join.getJoinConditions()) {
+				for (int i = 0; i < condition.getColumns1().size(); i++) {
+					addEqual(condition.getTableName1().qualifyIdentifier(condition.getColumns1().get(i)),
+							condition.getTableName2().qualifyIdentifier(condition.getColumns2().get(i)));
+				}
+			}
+			for (SelectOp select: selects) {
+				for (Expression conjunct: conjuncts(select.getCondition())) {
+					ColumnName[] columns = asColumnEquality(conjunct);
+					if (columns == null) continue;
+					addEqual(columns[0], columns[1]);
+				}
+			}
+		}
+		private void addEqual(ColumnName column1, ColumnName column2) {
+			if (!equalColumns.containsKey(column1)) {
+				equalColumns.put(column1, new HashSet<ColumnName>());
+			}
+			if (!equalColumns.containsKey(column2)) {
+				equalColumns.put(column2, new HashSet<ColumnName>());
+			}
+			equalColumns.get(column1).add(column2);
+			equalColumns.get(column2).add(column1);
+		}
+		boolean areEqual(ColumnName column1, ColumnName column2) {
+			return equalColumns.containsKey(column1)
+					&& equalColumns.get(column1).contains(column2);
+		}
+	}
+
+	/**
+	 * Descends through operators that don't change the rows of a join,
+	 * collecting the selections on the way.
+	 */
+	private void findJoins(DatabaseOp op, List<SelectOp> selects, List<Site> result) {
+		if (op instanceof SelectOp) {
+			List<SelectOp> extended = new ArrayList<SelectOp>(selects);
+			extended.add((SelectOp) op);
+			findJoins(((SelectOp) op).getWrapped(), extended, result);
+		} else if (op instanceof ExtendOp || op instanceof ProjectOp
+				|| op instanceof OrderOp || op instanceof AssertUniqueKeyOp) {
+			findJoins(((DatabaseOp.Wrapper) op).getWrapped(), selects, result);
+		} else if (op instanceof DatabaseOp.Wrapper) {
+			// Limits, DISTINCT, GROUP BY: selections above don't apply to the join
+			findJoins(((DatabaseOp.Wrapper) op).getWrapped(), new ArrayList<SelectOp>(), result);
+		} else if (op instanceof LeftJoinOp) {
+			findJoins(((LeftJoinOp) op).getLeft(), new ArrayList<SelectOp>(), result);
+		} else if (op instanceof InnerJoinOp) {
+			result.add(new Site((InnerJoinOp) op, selects));
+		}
+	}
+
+	private boolean isSameTable(NamedOp table1, NamedOp table2) {
+		DatabaseOp base = baseTable(table1);
+		return base != null && base.equals(baseTable(table2));
+	}
+
+	/**
+	 * @return The base table or asserted table behind an alias, or
+	 * 		<code>null</code> if it's something else
+	 */
+	private DatabaseOp baseTable(NamedOp table) {
+		DatabaseOp result = table instanceof AliasOp ? ((AliasOp) table).getOriginal() : table;
+		DatabaseOp op = result;
+		while (op instanceof AssertUniqueKeyOp) {
+			op = ((AssertUniqueKeyOp) op).getWrapped();
+		}
+		return op instanceof TableOp ? result : null;
+	}
+
+	private boolean isJoinedOnUniqueKey(Site site, NamedOp kept, NamedOp removed) {
+		for (ColumnList key: kept.getUniqueKeys()) {
+			boolean joined = true;
+			for (ColumnName column: key) {
+				if (!site.areEqual(column, removed.getTableName().qualifyColumn(column))) {
+					joined = false;
+					break;
+				}
+			}
+			if (joined) return true;
+		}
+		return false;
+	}
+
+	private NodeRelation remove(final Site site, final NamedOp kept, final NamedOp removed) {
+		Map<ColumnName,ColumnName> replacements = new HashMap<ColumnName,ColumnName>();
+		for (ColumnName column: removed.getColumns()) {
+			replacements.put(column, kept.getTableName().qualifyColumn(column));
+		}
+		DatabaseOp reduced = new OpMutator(relation.getBaseTabular()) {
+			@Override
+			public boolean visitEnter(InnerJoinOp original) {
+				return false;
+			}
+			@Override
+			public DatabaseOp visitLeave(InnerJoinOp original, Collection<NamedOp> newChildren) {
+				if (original != site.join) return original;
+				Collection<NamedOp> tables = new ArrayList<NamedOp>(original.getTables());
+				tables.remove(removed);
+				Set<ColumnListEquality> conditions = new HashSet<ColumnListEquality>();
+				List<Expression> selections = new ArrayList<Expression>();
+				for (ColumnListEquality condition: original.getJoinConditions()) {
+					if (!condition.getTableName1().equals(removed.getTableName())
+							&& !condition.getTableName2().equals(removed.getTableName())) {
+						conditions.add(condition);
+						continue;
+					}
+					if (!condition.getTableName1().equals(kept.getTableName())
+							&& !condition.getTableName2().equals(kept.getTableName())) {
+						conditions.add(condition);
+						continue;
+					}
+					for (int i = 0; i < condition.getColumns1().size(); i++) {
+						selections.add(mergedEquality(
+								condition.getTableName1().qualifyIdentifier(condition.getColumns1().get(i)),
+								condition.getTableName2().qualifyIdentifier(condition.getColumns2().get(i)),
+								kept, removed));
+					}
+				}
+				return SelectOp.select(InnerJoinOp.join(tables, conditions),
+						Conjunction.create(selections));
+			}
+			@Override
+			public DatabaseOp visitLeave(SelectOp original, DatabaseOp child) {
+				if (!site.selects.contains(original)) return super.visitLeave(original, child);
+				List<Expression> conditions = new ArrayList<Expression>();
+				for (Expression conjunct: conjuncts(original.getCondition())) {
+					ColumnName[] columns = asColumnEquality(conjunct);
+					conditions.add(columns == null ? conjunct
+							: mergedEquality(columns[0], columns[1], kept, removed));
+				}
+				return SelectOp.select(child, Conjunction.create(conditions));
+			}
+			@Override
+			public boolean visitEnter(AliasOp original) {
+				return false;
+			}
+			@Override
+			public DatabaseOp visitLeave(AliasOp original, DatabaseOp child) {
+				return original;
+			}
+		}.getResult();
+		final ColumnRenamer renamer = new ColumnRenamer(replacements);
+		reduced = new OpRenamer(reduced, renamer) {
+			@Override
+			public DatabaseOp visitLeave(ProjectOp table, DatabaseOp child) {
+				// Columns of both tables are now the same
+				return ProjectOp.project(child, new ArrayList<ColumnName>(
+						new LinkedHashSet<ColumnName>(
+								renamer.applyToColumns(table.getColumns().asList()))));
+			}
+		}.getResult();
+		BindingMaker bindingMaker = relation.getBindingMaker().rename(renamer);
+		log.debug("Merged " + removed.getTableName() + " into " + kept.getTableName());
+		return new NodeRelation(relation.getSQLConnection(), reduced, bindingMaker);
+	}
+
+	/**
+	 * The condition that replaces an equality between columns of the two
+	 * merged tables. A column is always equal to itself, unless NULL.
+	 */
+	private Expression mergedEquality(ColumnName column1, ColumnName column2,
+			NamedOp kept, NamedOp removed) {
+		boolean between = (kept.hasColumn(column1) && removed.hasColumn(column2))
+				|| (kept.hasColumn(column2) && removed.hasColumn(column1));
+		if (!between) return Equality.createColumnEquality(column1, column2);
+		if (!column1.getColumn().equals(column2.getColumn())) {
+			return Equality.createColumnEquality(column1, column2);
+		}
+		ColumnName keptColumn = kept.hasColumn(column1) ? column1 : column2;
+		return kept.isNullable(keptColumn)
+				? NotNull.create(new ColumnExpr(keptColumn)) : Expression.TRUE;
+	}
+
+	private static List<Expression> conjuncts(Expression condition) {
+		List<Expression> result = new ArrayList<Expression>();
+		if (condition instanceof Conjunction) {
+			for (Expression operand: ((Conjunction) condition).getOperands()) {
+				result.add(operand);
+			}
+		} else {
+			result.add(condition);
+		}
+		return result;
+	}
+
+	/**
+	 * @return The two columns if the expression is an equality between
+	 * 		columns, <code>null</code> otherwise
+	 */
+	private static ColumnName[] asColumnEquality(Expression expression) {
+		if (!(expression instanceof Equality)) return null;
+		if (expression.getColumns().size() != 2) return null;
+		ColumnName[] columns = expression.getColumns().toArray(new ColumnName[2]);
+		if (!Equality.createColumnEquality(columns[0], columns[1]).equals(expression)) return null;
+		return columns;
+	}
+}
@@ -31,6 +31,14 @@ public class BaseIRIValueMaker implements ValueMaker {
 		this.wrapped = wrapped;
 	}
 
+	public String getBaseIRI() {
+		return baseIRI;
+	}
+	
+	public ValueMaker getWrapped() {
+		return wrapped;
+	}
+
 	public boolean matches(String value) {
 		if (value.startsWith(baseIRI)) {
 			return wrapped.matches(value.substring(baseIRI.length()));
@@ -61,6 +61,10 @@ public class BlankNodeIDValueMaker implements ValueMaker {
 		return id;
 	}
 	
+	public List<ColumnName> getColumns() {
+		return columns;
+	}
+	
 	public void describeSelf(NodeSetFilter c) {
 		c.limitValuesToBlankNodeID(this);
 	}
@@ -29,6 +29,10 @@ public class ColumnValueMaker implements ValueMaker {
 		this.column = column;
 	}
 	
+	public ColumnName getColumn() {
+		return column;
+	}
+	
 	public String makeValue(ResultRow row) {
 		return row.get(column);
 	}
@@ -65,6 +65,14 @@ public class DecoratingValueMaker implements ValueMaker {
 		this.translator = translator;
 	}
 	
+	public ValueMaker getBaseValueMaker() {
+		return base;
+	}
+	
+	public Translator getTranslator() {
+		return translator;
+	}
+	
 	public String makeValue(ResultRow row) {
 		return this.translator.toRDFValue(this.base.makeValue(row));
 	}
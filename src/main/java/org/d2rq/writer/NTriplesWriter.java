@@ -0,0 +1,260 @@
+package org.d2rq.writer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+
+/**
+ * Writes triples as N-Triples directly to a UTF-8 byte stream, without
+ * going through a Jena model. Output is buffered but not otherwise held
+ * in memory, so arbitrarily large graphs can be written in constant
+ * space.
+ *
+ * The encoded forms of nodes that tend to recur in every triple of a
+ * dump, that is, predicates, datatypes and class IRIs, are cached as
+ * byte arrays. The cache is bounded; once full, further nodes are
+ * encoded afresh every time.
+ */
+public class NTriplesWriter {
+	public final static int BUFFER_SIZE = 64 * 1024;
+	public final static int MAX_CACHED_NODES = 4096;
+
+	private final static byte[] HEX = "0123456789ABCDEF".getBytes();
+
+	private final OutputStream out;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0;
+	private final Map<Node,byte[]> cache = new HashMap<Node,byte[]>();
+	private long tripleCount = 0;
+	private long bufferFlushes = 0;
+
+	public NTriplesWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Writes all triples, and flushes the output.
+	 * @return The number of triples written
+	 */
+	public long write(Iterator<Triple> triples) throws IOException {
+		long before = tripleCount;
+		while (triples.hasNext()) {
+			write(triples.next());
+		}
+		flush();
+		return tripleCount - before;
+	}
+
+	public void write(Triple triple) throws IOException {
+		writeNode(triple.getSubject(), false);
+		writeByte(' ');
+		writeNode(triple.getPredicate(), true);
+		writeByte(' ');
+		writeNode(triple.getObject(),
+				RDF.Nodes.type.equals(triple.getPredicate()));
+		writeByte(' ');
+		writeByte('.');
+		writeByte('\n');
+		tripleCount++;
+	}
+
+	/**
+	 * @return Number of triples written so far
+	 */
+	public long getTripleCount() {
+		return tripleCount;
+	}
+
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	private void writeNode(Node node, boolean cacheable) throws IOException {
+		if (cacheable) {
+			byte[] encoded = cache.get(node);
+			if (encoded != null) {
+				writeBytes(encoded);
+				return;
+			}
+			if (cache.size() < MAX_CACHED_NODES) {
+				// Encode into the buffer, then copy out what we've written
+				int start = position;
+				long flushesBefore = bufferFlushes;
+				writeNode(node, false);
+				if (bufferFlushes == flushesBefore) {
+					byte[] copy = new byte[position - start];
+					System.arraycopy(buffer, start, copy, 0, copy.length);
+					cache.put(node, copy);
+				}
+				return;
+			}
+		}
+		if (node.isURI()) {
+			writeIRI(node.getURI());
+		} else if (node.isBlank()) {
+			writeBlankNode(node.getBlankNodeLabel());
+		} else if (node.isLiteral()) {
+			writeLiteral(node);
+		} else {
+			throw new IllegalArgumentException("Cannot write as N-Triples: " + node);
+		}
+	}
+
+	private void writeIRI(String iri) throws IOException {
+		writeByte('<');
+		for (int i = 0; i < iri.length(); i++) {
+			char c = iri.charAt(i);
+			if (c <= 0x20 || c == '<' || c == '>' || c == '"' || c == '{' ||
+					c == '}' || c == '|' || c == '^' || c == '`' || c == '\\') {
+				writeUnicodeEscape(c);
+			} else {
+				i += writeChar(iri, i, c) - 1;
+			}
+		}
+		writeByte('>');
+	}
+
+	/**
+	 * Blank node labels are restricted to ASCII letters and digits;
+	 * anything else, including 'x', is written as x<i>hex</i>x.
+	 */
+	private void writeBlankNode(String label) throws IOException {
+		writeByte('_');
+		writeByte(':');
+		writeByte('b');
+		for (int i = 0; i < label.length(); i++) {
+			char c = label.charAt(i);
+			if ((c >= 'a' && c <= 'z' && c != 'x') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+				writeByte(c);
+			} else {
+				writeByte('x');
+				writeHex(c);
+				writeByte('x');
+			}
+		}
+	}
+
+	private void writeLiteral(Node node) throws IOException {
+		String lexicalForm = node.getLiteralLexicalForm();
+		writeByte('"');
+		for (int i = 0; i < lexicalForm.length(); i++) {
+			char c = lexicalForm.charAt(i);
+			switch (c) {
+			case '"': writeByte('\\'); writeByte('"'); break;
+			case '\\': writeByte('\\'); writeByte('\\'); break;
+			case '\n': writeByte('\\'); writeByte('n'); break;
+			case '\r': writeByte('\\'); writeByte('r'); break;
+			case '\t': writeByte('\\'); writeByte('t'); break;
+			default:
+				if (c < 0x20) {
+					writeUnicodeEscape(c);
+				} else {
+					i += writeChar(lexicalForm, i, c) - 1;
+				}
+			}
+		}
+		writeByte('"');
+		String language = node.getLiteralLanguage();
+		String datatype = node.getLiteralDatatypeURI();
+		if (language != null && !"".equals(language)) {
+			writeByte('@');
+			writeASCII(language);
+		} else if (datatype != null) {
+			writeByte('^');
+			writeByte('^');
+			writeNode(Node.createURI(datatype), true);
+		}
+	}
+
+	/**
+	 * Writes a character as UTF-8. Consumes two chars for surrogate pairs.
+	 * An unpaired surrogate has no UTF-8 encoding and is written as
+	 * U+FFFD REPLACEMENT CHARACTER.
+	 * @return The number of chars consumed
+	 */
+	private int writeChar(String s, int index, char c) throws IOException {
+		int codePoint = c;
+		int consumed = 1;
+		if (Character.isHighSurrogate(c) && index + 1 < s.length()
+				&& Character.isLowSurrogate(s.charAt(index + 1))) {
+			codePoint = Character.toCodePoint(c, s.charAt(index + 1));
+			consumed = 2;
+		} else if (Character.isSurrogate(c)) {
+			codePoint = 0xFFFD;
+		}
+		if (codePoint < 0x80) {
+			writeByte(codePoint);
+		} else if (codePoint < 0x800) {
+			writeByte(0xC0 | (codePoint >> 6));
+			writeByte(0x80 | (codePoint & 0x3F));
+		} else if (codePoint < 0x10000) {
+			writeByte(0xE0 | (codePoint >> 12));
+			writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+			writeByte(0x80 | (codePoint & 0x3F));
+		} else {
+			writeByte(0xF0 | (codePoint >> 18));
+			writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+			writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+			writeByte(0x80 | (codePoint & 0x3F));
+		}
+		return consumed;
+	}
+
+	private void writeUnicodeEscape(char c) throws IOException {
+		writeByte('\\');
+		writeByte('u');
+		writeByte(HEX[(c >> 12) & 0xF]);
+		writeByte(HEX[(c >> 8) & 0xF]);
+		writeByte(HEX[(c >> 4) & 0xF]);
+		writeByte(HEX[c & 0xF]);
+	}
+
+	private void writeHex(char c) throws IOException {
+		boolean started = false;
+		for (int shift = 12; shift >= 0; shift -= 4) {
+			int digit = (c >> shift) & 0xF;
+			if (digit == 0 && !started && shift > 0) continue;
+			started = true;
+			writeByte(HEX[digit]);
+		}
+	}
+
+	private void writeASCII(String s) throws IOException {
+		for (int i = 0; i < s.length(); i++) {
+			writeByte(s.charAt(i));
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		out.write(buffer, 0, position);
+		position = 0;
+		bufferFlushes++;
+	}
+
+	private void writeBytes(byte[] bytes) throws IOException {
+		if (bytes.length > BUFFER_SIZE - position) {
+			flushBuffer();
+			if (bytes.length > BUFFER_SIZE) {
+				out.write(bytes);
+				return;
+			}
+		}
+		System.arraycopy(bytes, 0, buffer, position, bytes.length);
+		position += bytes.length;
+	}
+
+	private void writeByte(int b) throws IOException {
+		if (position == BUFFER_SIZE) {
+			flushBuffer();
+		}
+		buffer[position++] = (byte) b;
+	}
+}
@@ -0,0 +1,241 @@
+package org.d2rq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.db.SQLConnection;
+import org.d2rq.engine.BGPTranslator;
+import org.d2rq.jena.GraphD2RQ;
+import org.d2rq.lang.CompiledD2RQMapping;
+import org.d2rq.lang.Mapping;
+import org.d2rq.mapgen.D2RQMappingStyle;
+import org.d2rq.mapgen.D2RQTarget;
+import org.d2rq.tmp.QueryEngineD2RQ;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.core.DatasetGraphFactory;
+import com.hp.hpl.jena.sparql.util.Context;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.XSD;
+
+
+/**
+ * A HSQL in-memory database together with the D2RQ mapping generated
+ * from its tables, for tests that run queries against the mapping.
+ * Resources are named below {@link #EX}, and properties below
+ * {@link #VOCAB}, for example <code>vocab:PERSON_NAME</code>.
+ *
+ * The mapping is generated when it is first needed, so all tables
+ * must have been created by then. Compiled mappings and connections
+ * handed out by the fixture are closed by {@link #close()}.
+ *
+ * The assertions compare query results as multisets: a row returned
+ * twice is different from a row returned once, and the order of rows
+ * only matters if the query has an <code>ORDER BY</code>.
+ */
+public class HSQLMappingFixture {
+	public final static String EX = "http://example.org/";
+	public final static String VOCAB = EX + "vocab/";
+	public final static String PREFIXES =
+		"PREFIX rdf: <" + RDF.getURI() + "> " +
+		"PREFIX xsd: <" + XSD.getURI() + "> " +
+		"PREFIX vocab: <" + VOCAB + "> " +
+		"PREFIX ex: <" + EX + "> ";
+
+	private final HSQLDatabase db;
+	private final List<SQLConnection> connections = new ArrayList<SQLConnection>();
+	private final List<CompiledD2RQMapping> compiled = new ArrayList<CompiledD2RQMapping>();
+	private Mapping mapping = null;
+
+	public HSQLMappingFixture(String databaseName) {
+		db = new HSQLDatabase(databaseName);
+	}
+
+	public HSQLDatabase getDatabase() {
+		return db;
+	}
+
+	public void executeSQL(String sql) {
+		db.executeSQL(sql);
+	}
+
+	public SQLConnection connect() {
+		return connect(new Properties());
+	}
+
+	/**
+	 * @param properties Connection properties, as in <code>jdbc:</code> mapping terms
+	 */
+	public SQLConnection connect(Properties properties) {
+		SQLConnection result = new SQLConnection(db.getJdbcURL(),
+				HSQLDatabase.DRIVER_CLASS, db.getUser(), db.getPassword(), properties);
+		connections.add(result);
+		return result;
+	}
+
+	/**
+	 * @return The mapping generated from the database, without vocabulary
+	 * 		triples. Changes to it affect later calls to {@link #compile(boolean)}.
+	 */
+	public Mapping getMapping() {
+		if (mapping == null) {
+			D2RQTarget target = new D2RQTarget();
+			new D2RQMappingStyle(connect(), EX).getMappingGenerator().generate(target);
+			mapping = target.getMapping();
+			mapping.configuration().setServeVocabulary(false);
+		}
+		return mapping;
+	}
+
+	public CompiledD2RQMapping compile(boolean fastMode) {
+		CompiledD2RQMapping result = getMapping().compile();
+		result.setFastMode(fastMode);
+		compiled.add(result);
+		return result;
+	}
+
+	/**
+	 * Closes everything handed out by the fixture, and drops all tables.
+	 */
+	public void close() {
+		for (CompiledD2RQMapping m: compiled) {
+			m.close();
+		}
+		for (SQLConnection connection: connections) {
+			connection.close();
+		}
+		db.close(true);
+	}
+
+	public static Node property(String name) {
+		return Node.createURI(VOCAB + name);
+	}
+
+	/**
+	 * @param path Table and key, for example <code>PERSON/1</code>
+	 */
+	public static Node resource(String path) {
+		return Node.createURI(EX + path);
+	}
+
+	/**
+	 * The relation for a single triple pattern <code>?p vocab:property ?var</code>,
+	 * which must be produced by just one property bridge.
+	 */
+	public static NodeRelation relation(CompiledD2RQMapping compiled,
+			String property, String var) {
+		List<NodeRelation> relations = new BGPTranslator(Collections.singletonList(
+				Triple.create(Node.createVariable("p"), property(property),
+						Node.createVariable(var))),
+				compiled.getTripleRelations(), new Context()).translate();
+		assertEquals(1, relations.size());
+		return relations.get(0);
+	}
+
+	/**
+	 * @return The query as it is rewritten for execution against the graph
+	 */
+	public static Op translate(GraphD2RQ graph, String query) {
+		Op op = Algebra.compile(QueryFactory.create(PREFIXES + query));
+		class Engine extends QueryEngineD2RQ {
+			Engine(GraphD2RQ graph, Op op) {
+				super(graph, op, DatasetGraphFactory.createOneGraph(graph), null, null);
+			}
+			Op translated() {
+				return modifyOp(getOp());
+			}
+		}
+		return new Engine(graph, op).translated();
+	}
+
+	/**
+	 * @return One string per solution of a <code>SELECT</code> query,
+	 * 		in the order of the result
+	 */
+	public static List<String> results(Model model, String query) {
+		List<String> result = new ArrayList<String>();
+		QueryExecution qe = QueryExecutionFactory.create(PREFIXES + query, model);
+		try {
+			ResultSet rs = qe.execSelect();
+			while (rs.hasNext()) {
+				QuerySolution solution = rs.next();
+				Set<String> values = new TreeSet<String>();
+				for (Iterator<String> it = solution.varNames(); it.hasNext();) {
+					String var = it.next();
+					values.add(var + "=" + solution.get(var));
+				}
+				result.add(values.toString());
+			}
+		} finally {
+			qe.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Checks that a query has the same results on the graph as on an
+	 * in-memory copy of the graph's triples, where none of the
+	 * translation to SQL happens.
+	 */
+	public static void assertSameResults(Graph graph, String query) {
+		Model d2rq = ModelFactory.createModelForGraph(graph);
+		Model memory = ModelFactory.createDefaultModel();
+		memory.add(d2rq);
+		assertSameResults(memory, d2rq, query);
+	}
+
+	/**
+	 * Checks that a query has the same, non-empty results on two models.
+	 */
+	public static void assertSameResults(Model expectedModel, Model actualModel, String query) {
+		List<String> expected = results(expectedModel, query);
+		assertFalse(query, expected.isEmpty());
+		List<String> actual = results(actualModel, query);
+		if (!query.contains("ORDER BY")) {
+			Collections.sort(expected);
+			Collections.sort(actual);
+		}
+		assertEquals(query, expected, actual);
+	}
+
+	/**
+	 * Checks that two collections have the same elements, each
+	 * the same number of times, in any order.
+	 */
+	public static void assertSameMultiset(Collection<?> expected, Collection<?> actual) {
+		assertEquals("expected " + expected + ", was " + actual,
+				counts(expected), counts(actual));
+	}
+
+	private static Map<Object,Integer> counts(Collection<?> elements) {
+		Map<Object,Integer> result = new HashMap<Object,Integer>();
+		for (Object element: elements) {
+			Integer count = result.get(element);
+			result.put(element, count == null ? 1 : count + 1);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,295 @@
+package org.d2rq.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.d2rq.D2RQException;
+import org.d2rq.HSQLDatabase;
+import org.d2rq.db.expr.Equality;
+import org.d2rq.db.op.SelectOp;
+import org.d2rq.db.op.TableOp;
+import org.d2rq.db.schema.ColumnList;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.schema.TableName;
+import org.d2rq.jena.ModelD2RQ;
+import org.d2rq.lang.CompiledD2RQMapping;
+import org.d2rq.lang.Database;
+import org.d2rq.lang.Mapping;
+import org.d2rq.mapgen.D2RQMappingStyle;
+import org.d2rq.mapgen.D2RQTarget;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.ResultSet;
+
+public class ConnectionPoolTest {
+	private final static ColumnList ID = ColumnList.create(ColumnName.parse("T.ID"));
+	private HSQLDatabase db;
+	private SQLConnection sqlConnection;
+
+	@Before
+	public void setUp() {
+		db = new HSQLDatabase("pooltest");
+		db.executeSQL("CREATE TABLE T (ID INT PRIMARY KEY)");
+		db.executeSQL("INSERT INTO T VALUES (1)");
+		db.executeSQL("INSERT INTO T VALUES (2)");
+	}
+
+	@After
+	public void tearDown() {
+		if (sqlConnection != null) sqlConnection.close();
+		db.close(true);
+	}
+
+	private SQLConnection connect(String maxSize) {
+		return connect(maxSize, new Properties());
+	}
+
+	private SQLConnection connect(String maxSize, Properties props) {
+		props.setProperty(SQLConnection.POOL_MAX_SIZE_PROPERTY, maxSize);
+		props.setProperty(SQLConnection.POOL_MAX_WAIT_PROPERTY, "0");
+		sqlConnection = new SQLConnection(db.getJdbcURL(), HSQLDatabase.DRIVER_CLASS,
+				db.getUser(), db.getPassword(), props);
+		return sqlConnection;
+	}
+
+	@Test
+	public void testConcurrentIteratorsUseSeparateConnections() {
+		connect("2");
+		SQLIterator it1 = new SQLIterator("SELECT ID FROM T", ID, sqlConnection);
+		SQLIterator it2 = new SQLIterator("SELECT ID FROM T", ID, sqlConnection);
+		assertTrue(it1.hasNext());
+		assertTrue(it2.hasNext());
+		assertEquals(2, sqlConnection.pool().leasedCount());
+		it1.close();
+		it2.close();
+		assertEquals(0, sqlConnection.pool().leasedCount());
+		assertEquals(2, sqlConnection.pool().idleCount());
+	}
+
+	@Test
+	public void testExhaustedIteratorReleasesConnection() {
+		connect("1");
+		SQLIterator it = new SQLIterator("SELECT ID FROM T", ID, sqlConnection);
+		assertEquals("1", it.next().get(ColumnName.parse("T.ID")));
+		assertEquals(1, sqlConnection.pool().leasedCount());
+		assertEquals("2", it.next().get(ColumnName.parse("T.ID")));
+		assertFalse(it.hasNext());
+		assertEquals(0, sqlConnection.pool().leasedCount());
+	}
+
+	@Test
+	public void testReleasedConnectionIsReused() {
+		connect("1");
+		Connection c1 = sqlConnection.borrowConnection();
+		sqlConnection.releaseConnection(c1);
+		Connection c2 = sqlConnection.borrowConnection();
+		assertSame(c1, c2);
+		assertNotSame(sqlConnection.connection(), c2);
+		sqlConnection.releaseConnection(c2);
+		assertEquals(1, sqlConnection.pool().size());
+	}
+
+	@Test
+	public void testPoolExhausted() {
+		connect("1");
+		SQLIterator it = new SQLIterator("SELECT ID FROM T", ID, sqlConnection);
+		assertTrue(it.hasNext());
+		try {
+			sqlConnection.borrowConnection();
+			fail("Expected pool to be exhausted");
+		} catch (D2RQException ex) {
+			assertEquals(D2RQException.DATABASE_POOL_EXHAUSTED, ex.errorCode());
+		}
+		it.close();
+	}
+
+	@Test
+	public void testInvalidatedConnectionIsClosed() throws Exception {
+		connect("1");
+		Connection c = sqlConnection.borrowConnection();
+		sqlConnection.invalidateConnection(c);
+		assertTrue(c.isClosed());
+		assertEquals(0, sqlConnection.pool().size());
+	}
+
+	@Test
+	public void testCachedPreparedStatementIsReused() {
+		Properties props = new Properties();
+		props.setProperty(SQLConnection.STATEMENT_CACHE_SIZE_PROPERTY, "4");
+		connect("1", props);
+		assertTrue(sqlConnection.usePreparedStatements());
+		TableOp table = sqlConnection.getTable(TableName.parse("T"));
+		for (String id: new String[]{"1", "2"}) {
+			SelectStatementBuilder builder = new SelectStatementBuilder(
+					SelectOp.select(table, Equality.createColumnValue(ColumnName.parse("T.ID"), id, 
+							table.getColumnType(ColumnName.parse("T.ID")))),
+					sqlConnection.vendor(), true);
+			SQLIterator it = new SQLIterator(builder.getSQL(), builder.getParameters(), 
+					builder.getColumns(), sqlConnection);
+			assertEquals(id, it.next().get(ColumnName.parse("T.ID")));
+			assertFalse(it.hasNext());
+		}
+		Connection c = sqlConnection.borrowConnection();
+		StatementCache cache = sqlConnection.getStatementCache(c);
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.hits());
+		sqlConnection.releaseConnection(c);
+	}
+
+	@Test
+	public void testNestedIteratorsReclaimConnectionsWhenPoolIsExhausted() {
+		connect("2");
+		List<SQLIterator> open = new ArrayList<SQLIterator>();
+		for (int i = 0; i < 5; i++) {
+			SQLIterator it = new SQLIterator("SELECT ID FROM T", ID, sqlConnection);
+			assertEquals("1", it.next().get(ColumnName.parse("T.ID")));
+			open.add(it);
+		}
+		assertEquals(2, sqlConnection.pool().size());
+		// The first and the most recent iterator still hold their connections
+		assertEquals(2, sqlConnection.pool().leasedCount());
+		for (SQLIterator it: open) {
+			assertEquals("2", it.next().get(ColumnName.parse("T.ID")));
+			assertFalse(it.hasNext());
+		}
+		assertEquals(0, sqlConnection.pool().leasedCount());
+		assertEquals(2, sqlConnection.pool().idleCount());
+	}
+
+	@Test
+	public void testNestedIteratorsDontShareCachedStatement() {
+		Properties props = new Properties();
+		props.setProperty(SQLConnection.STATEMENT_CACHE_SIZE_PROPERTY, "4");
+		connect("1", props);
+		SQLIterator outer = new SQLIterator("SELECT ID FROM T", ID, sqlConnection);
+		assertEquals("1", outer.next().get(ColumnName.parse("T.ID")));
+		SQLIterator inner = new SQLIterator("SELECT ID FROM T", ID, sqlConnection);
+		assertEquals("1", inner.next().get(ColumnName.parse("T.ID")));
+		assertEquals("2", inner.next().get(ColumnName.parse("T.ID")));
+		assertFalse(inner.hasNext());
+		assertEquals("2", outer.next().get(ColumnName.parse("T.ID")));
+		assertFalse(outer.hasNext());
+		assertEquals(0, sqlConnection.pool().leasedCount());
+	}
+
+	@Test
+	public void testReclaimedIteratorWithPrefetching() {
+		Properties props = new Properties();
+		props.setProperty(SQLConnection.PREFETCH_BATCH_SIZE_PROPERTY, "1");
+		connect("1", props);
+		SQLIterator outer = new SQLIterator("SELECT ID FROM T", ID, sqlConnection);
+		assertEquals("1", outer.next().get(ColumnName.parse("T.ID")));
+		SQLIterator inner = new SQLIterator("SELECT ID FROM T", ID, sqlConnection);
+		assertEquals("1", inner.next().get(ColumnName.parse("T.ID")));
+		assertEquals(1, sqlConnection.pool().leasedCount());
+		assertEquals("2", outer.next().get(ColumnName.parse("T.ID")));
+		assertFalse(outer.hasNext());
+		assertEquals("2", inner.next().get(ColumnName.parse("T.ID")));
+		assertFalse(inner.hasNext());
+		assertEquals(0, sqlConnection.pool().leasedCount());
+	}
+
+	@Test
+	public void testOtherThreadsDontReclaimConnections() throws Exception {
+		connect("1");
+		SQLIterator it = new SQLIterator("SELECT ID FROM T", ID, sqlConnection);
+		assertTrue(it.hasNext());
+		final D2RQException[] error = {null};
+		Thread other = new Thread() {
+			public void run() {
+				try {
+					new SQLIterator("SELECT ID FROM T", ID, sqlConnection).hasNext();
+				} catch (D2RQException ex) {
+					error[0] = ex;
+				}
+			}
+		};
+		other.start();
+		other.join();
+		assertEquals(D2RQException.DATABASE_POOL_EXHAUSTED, error[0].errorCode());
+		assertEquals(1, sqlConnection.pool().leasedCount());
+		it.close();
+	}
+
+	@Test
+	public void testKeepAlivePingsOneIdleConnectionAtATime() {
+		final ConnectionPool[] pool = {null};
+		final List<Integer> idleDuringPing = new ArrayList<Integer>();
+		pool[0] = new ConnectionPool(new ConnectionPool.ConnectionFactory() {
+			public Connection open() {
+				try {
+					return DriverManager.getConnection(db.getJdbcURL(), db.getUser(), db.getPassword());
+				} catch (SQLException ex) {
+					throw new D2RQException(ex);
+				}
+			}
+			public void keepAlive(Connection connection) {
+				idleDuringPing.add(pool[0].idleCount());
+			}
+		}, 0, 3, 0, 0, true);
+		List<Connection> connections = new ArrayList<Connection>();
+		for (int i = 0; i < 3; i++) {
+			connections.add(pool[0].borrow());
+		}
+		for (Connection c: connections) {
+			pool[0].release(c);
+		}
+		pool[0].maintain();
+		assertEquals(Arrays.asList(2, 2, 2), idleDuringPing);
+		assertEquals(3, pool[0].idleCount());
+		pool[0].close();
+	}
+
+	@Test
+	public void testOptionalsNestedDeeperThanPoolSize() {
+		db.executeSQL("CREATE TABLE PERSON (ID INT PRIMARY KEY, NAME VARCHAR(50), AGE INT)");
+		db.executeSQL("INSERT INTO PERSON VALUES (1, 'Alice', 30)");
+		db.executeSQL("INSERT INTO PERSON VALUES (2, 'Bob', NULL)");
+		SQLConnection generator = connect("2");
+		D2RQTarget target = new D2RQTarget();
+		new D2RQMappingStyle(generator, "http://example.org/").getMappingGenerator().generate(target);
+		Mapping mapping = target.getMapping();
+		mapping.configuration().setServeVocabulary(false);
+		for (Database database: mapping.databases()) {
+			database.setConnectionProperty(SQLConnection.POOL_MAX_SIZE_PROPERTY, "2");
+			database.setConnectionProperty(SQLConnection.POOL_MAX_WAIT_PROPERTY, "5");
+		}
+		CompiledD2RQMapping compiled = mapping.compile();
+		compiled.setFastMode(false);
+		StringBuilder query = new StringBuilder("SELECT * { ?x <http://example.org/vocab/PERSON_NAME> ?n ");
+		for (int i = 0; i < 6; i++) {
+			query.append("OPTIONAL { ?x ?p" + i + " ?o" + i + " FILTER(?o" + i + " = 30) } ");
+		}
+		query.append("}");
+		ModelD2RQ model = new ModelD2RQ(compiled);
+		QueryExecution qe = QueryExecutionFactory.create(query.toString(), model);
+		try {
+			ResultSet rs = qe.execSelect();
+			int count = 0;
+			while (rs.hasNext()) {
+				rs.next();
+				count++;
+			}
+			assertEquals(2, count);
+		} finally {
+			qe.close();
+			model.close();
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package org.d2rq.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.d2rq.db.schema.TableName;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OffHeapResultStoreTest {
+	private final static Set<TableName> T1 = Collections.singleton(TableName.parse("T1"));
+	private final static Set<TableName> T2 = Collections.singleton(TableName.parse("T2"));
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private List<String[]> rows(int count) {
+		List<String[]> result = new ArrayList<String[]>();
+		for (int i = 0; i < count; i++) {
+			result.add(new String[]{"http://example.org/Class" + (i % 3), 
+					Integer.toString(i), i % 5 == 0 ? null : "ä" + i});
+		}
+		return result;
+	}
+
+	private List<String> read(Iterator<String[]> it) {
+		List<String> result = new ArrayList<String>();
+		while (it.hasNext()) {
+			result.add(Arrays.asList(it.next()).toString());
+		}
+		return result;
+	}
+
+	private OffHeapResultStore.Encoder encode(OffHeapResultStore store, List<String[]> rows) {
+		OffHeapResultStore.Encoder result = store.encoder();
+		for (String[] row: rows) {
+			assertTrue(result.add(row));
+		}
+		return result;
+	}
+
+	private long encodedSize(List<String[]> rows) {
+		OffHeapResultStore store = new OffHeapResultStore(Long.MAX_VALUE, Long.MAX_VALUE, null);
+		put(store, "q", rows, null);
+		return store.getBytes();
+	}
+
+	private void put(OffHeapResultStore store, String key, List<String[]> rows, Set<TableName> tables) {
+		store.put(key, encode(store, rows), tables, System.currentTimeMillis());
+	}
+
+	@Test
+	public void testRoundTripInDirectBuffer() {
+		OffHeapResultStore store = new OffHeapResultStore(1000000, 1000000, null);
+		put(store, "q", rows(2500), T1);
+		assertEquals(read(rows(2500).iterator()), read(store.get("q")));
+		assertEquals(read(rows(2500).iterator()), read(store.get("q")));
+	}
+
+	@Test
+	public void testLargeResultSpansSeveralChunks() {
+		OffHeapResultStore store = new OffHeapResultStore(Long.MAX_VALUE, Long.MAX_VALUE, null);
+		put(store, "q", rows(50000), T1);
+		assertTrue(store.getBytes() > 1024 * 1024);
+		assertEquals(read(rows(50000).iterator()), read(store.get("q")));
+	}
+
+	@Test
+	public void testLargeResultInMappedFile() throws Exception {
+		File directory = folder.newFolder();
+		OffHeapResultStore store = new OffHeapResultStore(Long.MAX_VALUE, Long.MAX_VALUE, directory);
+		put(store, "q", rows(5000), T1);
+		assertEquals(store.getBytes(), new File(directory, directory.list()[0]).length());
+		assertEquals(read(rows(5000).iterator()), read(store.get("q")));
+	}
+
+	@Test
+	public void testMappedFileLargerThanOneRegion() throws Exception {
+		File directory = folder.newFolder();
+		OffHeapResultStore store = new OffHeapResultStore(Long.MAX_VALUE, Long.MAX_VALUE, directory, 100000);
+		put(store, "q", rows(10000), T1);
+		assertTrue(store.getBytes() > 2 * 100000);
+		assertEquals(read(rows(10000).iterator()), read(store.get("q")));
+	}
+
+	@Test
+	public void testDiscardedEncoderDeletesFile() throws Exception {
+		File directory = folder.newFolder();
+		OffHeapResultStore store = new OffHeapResultStore(1000000, 1000000, directory);
+		OffHeapResultStore.Encoder encoder = encode(store, rows(3000));
+		assertEquals(1, directory.list().length);
+		encoder.discard();
+		assertEquals(0, directory.list().length);
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	public void testRoundTripInMappedFile() throws Exception {
+		File directory = folder.newFolder();
+		OffHeapResultStore store = new OffHeapResultStore(1000000, 1000000, directory);
+		put(store, "q", rows(10), T1);
+		assertEquals(1, directory.list().length);
+		assertEquals(read(rows(10).iterator()), read(store.get("q")));
+		store.clear();
+		assertEquals(0, directory.list().length);
+		assertNull(store.get("q"));
+	}
+
+	@Test
+	public void testEmptyResult() {
+		OffHeapResultStore store = new OffHeapResultStore(1000, 1000, null);
+		put(store, "q", rows(0), T1);
+		assertFalse(store.get("q").hasNext());
+	}
+
+	@Test
+	public void testRepeatedValuesAreStoredOnce() {
+		List<String[]> same = new ArrayList<String[]>();
+		List<String[]> different = new ArrayList<String[]>();
+		for (int i = 0; i < 100; i++) {
+			same.add(new String[]{"http://example.org/some/long/value"});
+			different.add(new String[]{"http://example.org/some/long/value" + i});
+		}
+		assertTrue(encodedSize(same) * 4 < encodedSize(different));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsDropped() {
+		long size = encodedSize(rows(30));
+		OffHeapResultStore store = new OffHeapResultStore(size * 5 / 2, size, null);
+		put(store, "a", rows(30), T1);
+		put(store, "b", rows(30), T1);
+		store.get("a");
+		put(store, "c", rows(30), T1);
+		assertEquals(2 * size, store.getBytes());
+		assertTrue(store.get("a") != null);
+		assertNull(store.get("b"));
+	}
+
+	@Test
+	public void testTooLargeResultIsIgnored() throws Exception {
+		OffHeapResultStore store = new OffHeapResultStore(100000, 100, null);
+		put(store, "q", rows(30), T1);
+		assertEquals(0, store.size());
+		File directory = folder.newFolder();
+		store = new OffHeapResultStore(100000, 100, directory);
+		put(store, "q", rows(30), T1);
+		assertEquals(0, store.size());
+		assertEquals(0, directory.list().length);
+	}
+
+	@Test
+	public void testInvalidateByTable() {
+		OffHeapResultStore store = new OffHeapResultStore(100000, 100000, null);
+		put(store, "a", rows(3), T1);
+		put(store, "b", rows(3), T2);
+		put(store, "c", rows(3), null);
+		store.invalidate(T1);
+		assertNull(store.get("a"));
+		assertTrue(store.get("b") != null);
+		assertNull(store.get("c"));
+	}
+}
@@ -1,12 +1,20 @@
 package org.d2rq.db;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.d2rq.HSQLDatabase;
+import org.d2rq.db.schema.ColumnList;
 import org.d2rq.db.schema.ColumnName;
 import org.junit.Test;
 
@@ -16,6 +24,9 @@ import org.junit.Test;
 public class ResultRowTest {
 	private static final ColumnName col1 = ColumnName.parse("foo.col1");
 	private static final ColumnName col2 = ColumnName.parse("foo.col2");
+	private static final ColumnName id = ColumnName.parse("T.ID");
+	private static final ColumnName name = ColumnName.parse("T.NAME");
+	private static final ColumnName note = ColumnName.parse("T.NOTE");
 	
 	@Test
 	public void testGetUndefinedReturnsNull() {
@@ -46,4 +57,56 @@ public class ResultRowTest {
 		// columns sorted alphabetically
 		assertEquals("{foo.col1 => 'value1', foo.col2 => 'value2'}", new ResultRow(m).toString());
 	}
+	
+	@Test
+	public void testNullValue() {
+		Map<ColumnName,String> m = new HashMap<ColumnName,String>();
+		m.put(col1, null);
+		ResultRow r = new ResultRow(m);
+		assertNull(r.get(col1));
+		assertEquals("{foo.col1 => 'null'}", r.toString());
+	}
+	
+	@Test
+	public void testReaderReadsRowsInColumnOrder() throws SQLException {
+		HSQLDatabase db = new HSQLDatabase("resultrowtest");
+		SQLConnection sqlConnection = new SQLConnection(
+				db.getJdbcURL(), HSQLDatabase.DRIVER_CLASS, db.getUser(), null);
+		try {
+			db.executeSQL("CREATE TABLE T (ID INT PRIMARY KEY, NAME VARCHAR(50), NOTE VARCHAR(50))");
+			db.executeSQL("INSERT INTO T VALUES (1, 'Alice', NULL)");
+			db.executeSQL("INSERT INTO T VALUES (2, 'Bob', 'pet owner')");
+			// Select list order differs from the table's column order
+			ResultRow.Reader reader = new ResultRow.Reader(
+					ColumnList.create(note, id, name), sqlConnection);
+			Statement stmt = db.getConnection().createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT NOTE, ID, NAME FROM T ORDER BY ID");
+			assertTrue(rs.next());
+			ResultRow first = reader.read(rs);
+			assertTrue(rs.next());
+			ResultRow second = reader.read(rs);
+			assertFalse(rs.next());
+			rs.close();
+			stmt.close();
+
+			assertEquals("1", first.get(id));
+			assertEquals("Alice", first.get(name));
+			assertNull(first.get(note));
+			assertNull(first.get(col1));
+			assertArrayEquals(new String[]{null, "1", "Alice"}, first.getValues());
+			assertArrayEquals(new String[]{"pet owner", "2", "Bob"}, second.getValues());
+			assertEquals("{T.ID => '2', T.NAME => 'Bob', T.NOTE => 'pet owner'}",
+					second.toString());
+
+			ResultRow wrapped = reader.wrap(second.getValues());
+			assertEquals("2", wrapped.get(id));
+			assertEquals("pet owner", wrapped.get(note));
+			assertNull(wrapped.get(col1));
+			assertEquals(second.toString(), wrapped.toString());
+			assertEquals("Carol", reader.wrap(new String[]{null, "3", "Carol"}).get(name));
+		} finally {
+			sqlConnection.close();
+			db.close(true);
+		}
+	}
 }
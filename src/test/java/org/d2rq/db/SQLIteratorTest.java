@@ -0,0 +1,245 @@
+package org.d2rq.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.d2rq.D2RQException;
+import org.d2rq.HSQLMappingFixture;
+import org.d2rq.db.schema.ColumnList;
+import org.d2rq.db.SelectStatementBuilder.Parameter;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.schema.TableName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SQLIteratorTest {
+	private final static ColumnName ID = ColumnName.parse("T.ID");
+	private HSQLMappingFixture fixture;
+	private SQLConnection sqlConnection;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setUp() {
+		fixture = new HSQLMappingFixture("iteratortest");
+		fixture.executeSQL("CREATE TABLE T (ID INT PRIMARY KEY)");
+		for (int i = 1; i <= 7; i++) {
+			fixture.executeSQL("INSERT INTO T VALUES (" + i + ")");
+		}
+	}
+
+	@After
+	public void tearDown() {
+		fixture.close();
+	}
+
+	private void connect(String batchSize, String queueSize) {
+		Properties props = new Properties();
+		props.setProperty(SQLConnection.PREFETCH_BATCH_SIZE_PROPERTY, batchSize);
+		props.setProperty(SQLConnection.PREFETCH_QUEUE_SIZE_PROPERTY, queueSize);
+		sqlConnection = fixture.connect(props);
+	}
+
+	private SQLIterator query(String sql) {
+		return new SQLIterator(sql, ColumnList.create(ID), sqlConnection);
+	}
+
+	private ResultCache connectWithCache(String batchSize) {
+		Properties props = new Properties();
+		props.setProperty(SQLConnection.PREFETCH_BATCH_SIZE_PROPERTY, batchSize);
+		props.setProperty(SQLConnection.RESULT_CACHE_SIZE_PROPERTY, "64");
+		sqlConnection = fixture.connect(props);
+		return sqlConnection.getResultCache();
+	}
+
+	private List<String> readAll(SQLIterator it) {
+		List<String> result = new ArrayList<String>();
+		while (it.hasNext()) {
+			result.add(it.next().get(ID));
+		}
+		return result;
+	}
+
+	private SQLIterator queryTable(String sql) {
+		return new SQLIterator(sql, Collections.<Parameter>emptyList(), 
+				ColumnList.create(ID), sqlConnection, 
+				Collections.singleton(TableName.parse("T")));
+	}
+
+	@Test
+	public void testPrefetchDeliversAllRowsInOrder() {
+		connect("2", "1");
+		List<String> ids = new ArrayList<String>();
+		SQLIterator it = query("SELECT ID FROM T ORDER BY ID");
+		while (it.hasNext()) {
+			ids.add(it.next().get(ID));
+		}
+		assertEquals("[1, 2, 3, 4, 5, 6, 7]", ids.toString());
+		assertEquals(0, sqlConnection.pool().leasedCount());
+	}
+
+	@Test
+	public void testPrefetchEmptyResult() {
+		connect("2", "1");
+		SQLIterator it = query("SELECT ID FROM T WHERE ID > 100");
+		assertFalse(it.hasNext());
+		assertEquals(0, sqlConnection.pool().leasedCount());
+	}
+
+	@Test
+	public void testCloseWhilePrefetchingReleasesConnection() {
+		connect("1", "1");
+		SQLIterator it = query("SELECT ID FROM T ORDER BY ID");
+		assertTrue(it.hasNext());
+		assertEquals("1", it.next().get(ID));
+		it.close();
+		assertFalse(it.hasNext());
+		assertEquals(0, sqlConnection.pool().leasedCount());
+		assertEquals(1, sqlConnection.pool().idleCount());
+	}
+
+	@Test
+	public void testPrefetchPropagatesErrors() {
+		connect("2", "1");
+		// Depending on the driver, division by zero may only fail on reading the row
+		SQLIterator it = query("SELECT 10 / (ID - 4) FROM T ORDER BY ID");
+		try {
+			while (it.hasNext()) it.next();
+			fail("Expected error from background thread to be propagated");
+		} catch (D2RQException ex) {
+			// expected
+		}
+		assertEquals(0, sqlConnection.pool().leasedCount());
+	}
+
+	@Test
+	public void testNoResultCacheByDefault() {
+		connect("0", "1");
+		assertEquals(null, sqlConnection.getResultCache());
+	}
+
+	@Test
+	public void testCachedResultIsServedWithoutDatabase() {
+		ResultCache cache = connectWithCache("0");
+		assertEquals(7, readAll(query("SELECT ID FROM T ORDER BY ID")).size());
+		assertEquals(1, cache.size());
+		fixture.executeSQL("DROP TABLE T");
+		assertEquals("[1, 2, 3, 4, 5, 6, 7]", readAll(query("SELECT ID FROM T ORDER BY ID")).toString());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(0, sqlConnection.pool().leasedCount());
+	}
+
+	@Test
+	public void testPrefetchedResultIsCached() {
+		ResultCache cache = connectWithCache("2");
+		readAll(query("SELECT ID FROM T ORDER BY ID"));
+		assertEquals(7, readAll(query("SELECT ID FROM T ORDER BY ID")).size());
+		assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void testUnfinishedResultIsNotCached() {
+		ResultCache cache = connectWithCache("0");
+		SQLIterator it = query("SELECT ID FROM T ORDER BY ID");
+		it.next();
+		it.close();
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testLargeResultIsAbandoned() {
+		connect("0", "1");
+		ResultCache cache = new ResultCache(100000, 200, ResultCache.NO_TTL);
+		sqlConnection.setResultCache(cache);
+		assertEquals(7, readAll(query("SELECT ID FROM T")).size());
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getAbandonedCount());
+	}
+
+	@Test
+	public void testInvalidationByTable() {
+		ResultCache cache = connectWithCache("0");
+		ChangeNotifier notifier = new ChangeNotifier();
+		cache.setChangeDetector(notifier);
+		readAll(queryTable("SELECT ID FROM T"));
+		notifier.tableChanged(TableName.parse("OTHER"));
+		readAll(queryTable("SELECT ID FROM T"));
+		assertEquals(1, cache.getHitCount());
+		fixture.executeSQL("INSERT INTO T VALUES (8)");
+		notifier.tableChanged(TableName.parse("T"));
+		assertEquals(8, readAll(queryTable("SELECT ID FROM T")).size());
+		assertEquals(1, cache.getInvalidationCount());
+	}
+
+	@Test
+	public void testEvictedResultIsServedFromSpillStore() {
+		connect("0", "1");
+		ResultCache cache = new ResultCache(400, 400, ResultCache.NO_TTL);
+		cache.setSpillStore(new OffHeapResultStore(100000, 100000, null));
+		sqlConnection.setResultCache(cache);
+		readAll(query("SELECT ID FROM T WHERE ID < 5"));
+		readAll(query("SELECT ID FROM T WHERE ID > 2"));
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getSpilledCount());
+		fixture.executeSQL("DROP TABLE T");
+		assertEquals("[1, 2, 3, 4]", readAll(query("SELECT ID FROM T WHERE ID < 5")).toString());
+		assertEquals(1, cache.getSpillHitCount());
+	}
+
+	@Test
+	public void testLargeResultGoesToSpillStore() {
+		connect("2", "1");
+		ResultCache cache = new ResultCache(100000, 200, ResultCache.NO_TTL);
+		cache.setSpillStore(new OffHeapResultStore(100000, 100000, null));
+		sqlConnection.setResultCache(cache);
+		readAll(query("SELECT ID FROM T ORDER BY ID"));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getAbandonedCount());
+		assertEquals("[1, 2, 3, 4, 5, 6, 7]", readAll(query("SELECT ID FROM T ORDER BY ID")).toString());
+		assertEquals(1, cache.getSpillHitCount());
+	}
+
+	@Test
+	public void testUnfinishedResultLeavesNoSpillFile() throws Exception {
+		for (int i = 8; i <= 1500; i++) {
+			fixture.executeSQL("INSERT INTO T VALUES (" + i + ")");
+		}
+		connect("0", "1");
+		File directory = folder.newFolder();
+		ResultCache cache = new ResultCache(100000, 200, ResultCache.NO_TTL);
+		cache.setSpillStore(new OffHeapResultStore(1000000, 1000000, directory));
+		sqlConnection.setResultCache(cache);
+		SQLIterator it = query("SELECT ID FROM T ORDER BY ID");
+		for (int i = 0; i < 1200; i++) {
+			it.next();
+		}
+		assertEquals(1, directory.list().length);
+		it.close();
+		assertEquals(0, directory.list().length);
+		assertEquals(0, cache.getSpillStore().size());
+		assertEquals(1500, readAll(query("SELECT ID FROM T ORDER BY ID")).size());
+		assertEquals(1, directory.list().length);
+		assertEquals(1, cache.getSpillStore().size());
+	}
+
+	@Test
+	public void testSpillStoreFromProperties() {
+		Properties props = new Properties();
+		props.setProperty(SQLConnection.RESULT_CACHE_SIZE_PROPERTY, "64");
+		props.setProperty(SQLConnection.RESULT_CACHE_SPILL_SIZE_PROPERTY, "1024");
+		sqlConnection = fixture.connect(props);
+		assertTrue(sqlConnection.getResultCache().getSpillStore() != null);
+	}
+}
@@ -16,6 +16,7 @@ import org.d2rq.db.op.DistinctOp;
 import org.d2rq.db.op.EmptyOp;
 import org.d2rq.db.op.ExtendOp;
 import org.d2rq.db.op.InnerJoinOp;
+import org.d2rq.db.op.LeftJoinOp;
 import org.d2rq.db.op.LimitOp;
 import org.d2rq.db.op.NamedOp;
 import org.d2rq.db.op.OrderOp;
@@ -23,10 +24,15 @@ import org.d2rq.db.op.OrderOp.OrderSpec;
 import org.d2rq.db.op.ProjectOp;
 import org.d2rq.db.op.SQLOp;
 import org.d2rq.db.op.SelectOp;
+import org.d2rq.db.op.TableOp;
 import org.d2rq.db.schema.ColumnDef;
 import org.d2rq.db.schema.ColumnList;
 import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.schema.ForeignKey;
 import org.d2rq.db.schema.Identifier;
+import org.d2rq.db.schema.IdentifierList;
+import org.d2rq.db.schema.TableDef;
+import org.d2rq.db.schema.TableName;
 import org.d2rq.db.types.DataType.GenericType;
 import org.d2rq.db.vendor.Vendor;
 import org.d2rq.lang.Microsyntax;
@@ -120,6 +126,19 @@ public class SelectStatementBuilderTest {
 				new SelectStatementBuilder(new DistinctOp(table1), db.vendor()).getSQL());
 	}
 	
+	@Test
+	public void testNoDistinctOnNonNullableKey() {
+		Identifier id = Identifier.createUndelimited("ID");
+		TableOp table = new TableOp(new TableDef(TableName.parse("T"),
+				Collections.singletonList(new ColumnDef(id, 
+						GenericType.NUMERIC.dataTypeFor(db.vendor()), false)),
+				IdentifierList.create(id), 
+				Collections.singleton(IdentifierList.create(id)),
+				Collections.<ForeignKey>emptySet()));
+		assertEquals("SELECT T.ID FROM T",
+				new SelectStatementBuilder(new DistinctOp(table), db.vendor()).getSQL());
+	}
+	
 	@Test
 	public void testCondition() {
 		assertEquals("SELECT table1.foo FROM table1 WHERE table1.foo=1",
@@ -136,6 +155,28 @@ public class SelectStatementBuilderTest {
 						table1), db.vendor()).getSQL());
 	}
 	
+	@Test
+	public void testOrderedLimitOracleUsesSubquery() {
+		db.setVendor(Vendor.Oracle);
+		DatabaseOp ordered = new OrderOp(
+				Collections.singletonList(new OrderSpec(new ColumnExpr(table1Foo))), table1);
+		AliasOp alias = AliasOp.create(ordered, TableName.parse("ORDERED"));
+		assertEquals("SELECT ORDERED.foo FROM (SELECT table1.foo FROM table1 ORDER BY table1.foo) ORDERED " +
+				"WHERE (ROWNUM <= 100)",
+				new SelectStatementBuilder(LimitOp.limit(alias, 100, LimitOp.NO_LIMIT),
+						db.vendor()).getSQL());
+	}
+
+	@Test
+	public void testOrderedLimitOracleSortsInSubquery() {
+		db.setVendor(Vendor.Oracle);
+		assertEquals("SELECT C1 FROM (SELECT table1.foo C1 FROM table1 ORDER BY table1.foo) " +
+				"WHERE (ROWNUM <= 100)",
+				new SelectStatementBuilder(LimitOp.limit(new OrderOp(
+						Collections.singletonList(new OrderSpec(new ColumnExpr(table1Foo))), table1),
+						100, LimitOp.NO_LIMIT), db.vendor()).getSQL());
+	}
+
 	@Test
 	public void testRawSelect() {
 		assertEquals("SELECT table.foo FROM table",
@@ -201,4 +242,69 @@ public class SelectStatementBuilderTest {
 		assertEquals("SELECT table1.foo, 'bar' AS EXPR FROM table1",
 				new SelectStatementBuilder(projection, db.vendor()).getSQL());
 	}
+
+	@Test
+	public void testConditionWithBindParameter() {
+		SelectStatementBuilder builder = new SelectStatementBuilder(
+				SelectOp.select(table1, Equality.createColumnValue(table1Foo, "1", 
+						GenericType.NUMERIC.dataTypeFor(db.vendor()))), db.vendor(), true);
+		assertEquals("SELECT table1.foo FROM table1 WHERE table1.foo=?", builder.getSQL());
+		assertEquals(1, builder.getParameters().size());
+		assertEquals("1", builder.getParameters().get(0).getValue());
+	}
+	
+	@Test
+	public void testBindParametersInTextualOrder() {
+		// Sub-query is built first, but comes first in the SQL string
+		AliasOp rightSide = AliasOp.create(SelectOp.select(table2, 
+				Equality.createColumnValue(table2Bar, "inner", 
+						GenericType.CHARACTER.dataTypeFor(db.vendor()))), "table4");
+		DatabaseOp join = SelectOp.select(InnerJoinOp.join(
+				Arrays.asList(new NamedOp[]{table1, rightSide}),
+				Collections.<ColumnListEquality>emptySet()),
+				Equality.createColumnValue(table1Foo, "outer", 
+						GenericType.CHARACTER.dataTypeFor(db.vendor())));
+		SelectStatementBuilder builder = new SelectStatementBuilder(join, db.vendor(), true);
+		assertEquals("SELECT table1.foo, table4.bar FROM table1, (SELECT table2.bar FROM table2 WHERE table2.bar=?) AS table4 WHERE table1.foo=?",
+				builder.getSQL());
+		assertEquals("inner", builder.getParameters().get(0).getValue());
+		assertEquals("outer", builder.getParameters().get(1).getValue());
+	}
+	
+	@Test
+	public void testUnbindableConstantIsInlined() {
+		SelectStatementBuilder builder = new SelectStatementBuilder(
+				SelectOp.select(table1, Equality.createColumnValue(table1Foo, "2012-01-01", 
+						GenericType.DATE.dataTypeFor(db.vendor()))), db.vendor(), true);
+		assertEquals("SELECT table1.foo FROM table1 WHERE table1.foo=DATE '2012-01-01'", 
+				builder.getSQL());
+		assertEquals(Collections.emptyList(), builder.getParameters());
+	}
+	
+	@Test
+	public void testLeftJoin() {
+		DatabaseOp join = LeftJoinOp.join(LeftJoinOp.join(table1, table2, 
+				Equality.createColumnEquality(table1Foo, table2Bar)), table3, Expression.TRUE);
+		assertEquals("SELECT table1.foo, table2.bar, table3.foo FROM table1 " +
+				"LEFT OUTER JOIN table2 ON table1.foo=table2.bar " +
+				"LEFT OUTER JOIN table3 ON 1=1",
+				new SelectStatementBuilder(join, db.vendor()).getSQL());
+	}
+	
+	@Test
+	public void testLeftJoinWithSubQueryAndSelection() {
+		AliasOp rightSide = AliasOp.create(new DistinctOp(table2), "table4");
+		DatabaseOp join = SelectOp.select(LeftJoinOp.join(table1, rightSide, 
+				Equality.createColumnValue(ColumnName.parse("table4.bar"), "x", 
+						GenericType.CHARACTER.dataTypeFor(db.vendor()))),
+				Equality.createColumnValue(table1Foo, "y", 
+						GenericType.CHARACTER.dataTypeFor(db.vendor())));
+		SelectStatementBuilder builder = new SelectStatementBuilder(join, db.vendor(), true);
+		assertEquals("SELECT table1.foo, table4.bar FROM table1 " +
+				"LEFT OUTER JOIN (SELECT DISTINCT table2.bar FROM table2) AS table4 " +
+				"ON table4.bar=? WHERE table1.foo=?",
+				builder.getSQL());
+		assertEquals("x", builder.getParameters().get(0).getValue());
+		assertEquals("y", builder.getParameters().get(1).getValue());
+	}
 }
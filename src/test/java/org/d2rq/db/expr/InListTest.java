@@ -0,0 +1,53 @@
+package org.d2rq.db.expr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.types.DataType.GenericType;
+import org.d2rq.db.vendor.Vendor;
+import org.junit.Test;
+
+public class InListTest {
+	private final static ColumnExpr column = new ColumnExpr(ColumnName.parse("T.ID"));
+	private final static Expression one = Constant.create("1", GenericType.NUMERIC);
+	private final static Expression two = Constant.create("2", GenericType.NUMERIC);
+
+	@Test
+	public void testEmptyListIsFalse() {
+		assertEquals(Expression.FALSE,
+				InList.create(column, Collections.<Expression>emptyList()));
+	}
+
+	@Test
+	public void testSingleValueIsEquality() {
+		assertEquals(Equality.create(column, one),
+				InList.create(column, Arrays.asList(one, one)));
+	}
+
+	@Test
+	public void testToSQL() {
+		assertEquals("(T.ID IN (1, 2))", InList.create(column, Arrays.asList(one, two))
+				.toSQL(DatabaseOp.TRUE, Vendor.SQL92));
+	}
+
+	@Test
+	public void testEqualitiesOnSameColumnBecomeInList() {
+		Expression result = InList.createFromDisjuncts(Arrays.asList(
+				Equality.create(column, one), Equality.create(column, two)));
+		assertEquals(InList.create(column, Arrays.asList(one, two)), result);
+	}
+
+	@Test
+	public void testOtherDisjunctsStayDisjunction() {
+		Expression other = Equality.create(
+				new ColumnExpr(ColumnName.parse("T.NAME")), two);
+		Expression result = InList.createFromDisjuncts(Arrays.asList(
+				Equality.create(column, one), other));
+		assertTrue(result instanceof Disjunction);
+	}
+}
@@ -1,6 +1,7 @@
 package org.d2rq.db.op;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Arrays;
 import java.util.Collections;
@@ -11,6 +12,8 @@ import org.d2rq.db.op.InnerJoinOp;
 import org.d2rq.db.op.NamedOp;
 import org.d2rq.db.op.TableOp;
 import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.schema.ColumnList;
+import org.d2rq.db.schema.ColumnName;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -38,4 +41,40 @@ public class InnerJoinOpTest {
 		DatabaseOp j2 = InnerJoinOp.join(Arrays.asList(new NamedOp[]{t2, t1}), Collections.<ColumnListEquality>emptySet());
 		assertEquals("InnerJoin([Table(t1), Table(t2)])", j2.toString());
 	}
+
+	@Test
+	public void testKeyOfTableJoinedToOtherTablesKey() {
+		DummyDB.DummyTable person = db.table("person", "id", "name");
+		person.setUniqueKey("id");
+		DummyDB.DummyTable pet = db.table("pet", "id", "owner");
+		pet.setUniqueKey("id");
+		DatabaseOp join = InnerJoinOp.join(Arrays.asList(new NamedOp[]{person, pet}), 
+				Collections.singleton(ColumnListEquality.create(
+						ColumnName.parse("pet.owner"), ColumnName.parse("person.id"))));
+		assertEquals(Collections.singletonList(ColumnList.create(ColumnName.parse("pet.id"))),
+				join.getUniqueKeys());
+	}
+
+	@Test
+	public void testCombinedKeyOfCrossProduct() {
+		DummyDB.DummyTable a = db.table("a", "id");
+		a.setUniqueKey("id");
+		DummyDB.DummyTable b = db.table("b", "id");
+		b.setUniqueKey("id");
+		DatabaseOp join = InnerJoinOp.join(Arrays.asList(new NamedOp[]{a, b}), 
+				Collections.<ColumnListEquality>emptySet());
+		assertEquals(Collections.singletonList(ColumnList.create(
+				ColumnName.parse("a.id"), ColumnName.parse("b.id"))), join.getUniqueKeys());
+	}
+
+	@Test
+	public void testNoKeyWithoutKeysOfAllTables() {
+		DummyDB.DummyTable a = db.table("a", "id");
+		a.setUniqueKey("id");
+		DummyDB.DummyTable b = db.table("b", "x");
+		DatabaseOp join = InnerJoinOp.join(Arrays.asList(new NamedOp[]{a, b}), 
+				Collections.singleton(ColumnListEquality.create(
+						ColumnName.parse("a.id"), ColumnName.parse("b.x"))));
+		assertTrue(join.getUniqueKeys().isEmpty());
+	}
 }
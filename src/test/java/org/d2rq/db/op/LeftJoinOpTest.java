@@ -0,0 +1,59 @@
+package org.d2rq.db.op;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.d2rq.db.DummyDB;
+import org.d2rq.db.expr.Equality;
+import org.d2rq.db.expr.Expression;
+import org.d2rq.db.schema.ColumnList;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.types.DataType.GenericType;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class LeftJoinOpTest {
+	private DummyDB db;
+	private DummyDB.DummyTable pet, person;
+
+	@Before
+	public void setUp() {
+		db = new DummyDB();
+		pet = db.table("pet", "id", "owner");
+		pet.setUniqueKey("id");
+		person = db.table("person", "id", "name");
+		person.setUniqueKey("id");
+	}
+
+	@Test
+	public void testKeepsLeftKeysIfConditionCoversRightKey() {
+		DatabaseOp join = LeftJoinOp.join(pet, person, Equality.createColumnEquality(
+				ColumnName.parse("pet.owner"), ColumnName.parse("person.id")));
+		assertEquals(Collections.singleton(ColumnList.create(ColumnName.parse("pet.id"))),
+				join.getUniqueKeys());
+	}
+
+	@Test
+	public void testKeepsLeftKeysIfRightKeyIsConstant() {
+		DatabaseOp join = LeftJoinOp.join(pet, person, Equality.createColumnValue(
+				ColumnName.parse("person.id"), "1", GenericType.NUMERIC.dataTypeFor(db.vendor())));
+		assertEquals(Collections.singleton(ColumnList.create(ColumnName.parse("pet.id"))),
+				join.getUniqueKeys());
+	}
+
+	@Test
+	public void testNoKeysIfConditionDoesNotCoverRightKey() {
+		DatabaseOp join = LeftJoinOp.join(pet, person, Equality.createColumnEquality(
+				ColumnName.parse("pet.owner"), ColumnName.parse("person.name")));
+		assertTrue(join.getUniqueKeys().isEmpty());
+	}
+
+	@Test
+	public void testNoKeysForCrossProduct() {
+		DatabaseOp join = LeftJoinOp.join(pet, person, Expression.TRUE);
+		assertTrue(join.getUniqueKeys().isEmpty());
+	}
+}
@@ -1,10 +1,15 @@
 package org.d2rq.db.op;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.d2rq.db.DummyDB;
+import org.d2rq.db.expr.Equality;
 import org.d2rq.db.expr.Expression;
+import org.d2rq.db.schema.ColumnList;
 import org.d2rq.db.schema.ColumnName;
+import org.d2rq.db.types.DataType.GenericType;
+import org.d2rq.db.vendor.Vendor;
 import org.junit.Test;
 
 public class SelectOpTest {
@@ -21,4 +26,15 @@ public class SelectOpTest {
 		table = ProjectOp.project(table, new ColumnName[]{});
 		assertEquals(EmptyOp.NO_COLUMNS, SelectOp.select(table, Expression.FALSE));
 	}
+
+	@Test
+	public void testConstantColumnIsDroppedFromKey() {
+		DummyDB.DummyTable table = DummyDB.createTable("foo", "a", "b");
+		table.setUniqueKey("a", "b");
+		DatabaseOp selected = SelectOp.select(table, Equality.createColumnValue(
+				ColumnName.parse("foo.a"), "1", GenericType.NUMERIC.dataTypeFor(Vendor.SQL92)));
+		assertTrue(selected.getUniqueKeys().contains(
+				ColumnList.create(ColumnName.parse("foo.b"))));
+		assertTrue(selected.getUniqueKeys().containsAll(table.getUniqueKeys()));
+	}
 }
@@ -77,4 +77,23 @@ public class InspectorTest {
 		assertEquals(t1, fk.getReferencedTable());
 		assertEquals(IdentifierList.create(col1), fk.getReferencedColumns());
 	}
+
+	@Test
+	public void testTableStatisticsRowCount() {
+		db.executeSQL("CREATE TABLE T1 (COL1 INT PRIMARY KEY, COL2 INT)");
+		db.executeSQL("INSERT INTO T1 VALUES (1, 1)");
+		db.executeSQL("INSERT INTO T1 VALUES (2, 1)");
+		db.executeSQL("INSERT INTO T1 VALUES (3, 2)");
+		assertEquals(TableStatistics.UNKNOWN, inspector.getTableStatistics(t1).getRowCount());
+		inspector.setCountRows(true);
+		assertEquals(3, inspector.getTableStatistics(t1).getRowCount());
+	}
+
+	@Test
+	public void testTableStatisticsIndexedColumns() {
+		db.executeSQL("CREATE TABLE T1 (COL1 INT PRIMARY KEY, COL2 INT)");
+		TableStatistics stats = inspector.getTableStatistics(t1);
+		assertTrue(stats.isIndexed(col1));
+		assertFalse(stats.isIndexed(col2));
+	}
 }
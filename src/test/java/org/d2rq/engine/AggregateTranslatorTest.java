@@ -0,0 +1,178 @@
+package org.d2rq.engine;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.d2rq.D2RQOptions;
+import org.d2rq.HSQLMappingFixture;
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.db.SelectStatementBuilder;
+import org.d2rq.db.vendor.Vendor;
+import org.d2rq.jena.GraphD2RQ;
+import org.d2rq.lang.CompiledD2RQMapping;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.OpVisitorBase;
+import com.hp.hpl.jena.sparql.algebra.OpWalker;
+import com.hp.hpl.jena.sparql.algebra.op.OpExt;
+import com.hp.hpl.jena.sparql.algebra.op.OpFilter;
+import com.hp.hpl.jena.sparql.algebra.op.OpGroup;
+import com.hp.hpl.jena.sparql.algebra.op.OpOrder;
+import com.hp.hpl.jena.sparql.algebra.op.OpSlice;
+import com.hp.hpl.jena.sparql.algebra.op.OpTopN;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.core.VarExprList;
+import com.hp.hpl.jena.sparql.expr.ExprAggregator;
+import com.hp.hpl.jena.sparql.expr.ExprVar;
+import com.hp.hpl.jena.sparql.expr.aggregate.AggAvg;
+import com.hp.hpl.jena.sparql.expr.aggregate.AggCount;
+import com.hp.hpl.jena.sparql.expr.aggregate.AggCountVarDistinct;
+
+public class AggregateTranslatorTest {
+	private HSQLMappingFixture fixture;
+	private CompiledD2RQMapping compiled;
+
+	@Before
+	public void setUp() {
+		fixture = new HSQLMappingFixture("aggregatetest");
+		fixture.executeSQL("CREATE TABLE PRODUCT (ID INT PRIMARY KEY, NAME VARCHAR(50), " +
+				"CATEGORY VARCHAR(20) NOT NULL, STOCK INT, PRICE DECIMAL(10,2), RELEASED DATE)");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (1, 'apple', 'fruit', 10, 9.99, '2012-01-15')");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (2, 'banana', 'fruit', 0, 25.00, '2012-06-01')");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (3, 'carrot', 'vegetable', 3, 30.50, NULL)");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (4, 'apple', 'fruit', NULL, 5.00, '2011-12-31')");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (5, NULL, 'vegetable', 7, NULL, '2013-02-28')");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (6, 'date', 'fruit', 3, 12.00, '2012-03-03')");
+		compiled = fixture.compile(true);
+	}
+
+	@After
+	public void tearDown() {
+		fixture.close();
+	}
+
+	@Test
+	public void testCountIsGroupedInSQL() {
+		NodeRelation grouped = new AggregateTranslator(relation("PRODUCT_CATEGORY", "c")).group(
+				new VarExprList(Collections.singletonList(Var.alloc("c"))),
+				Collections.singletonList(new ExprAggregator(Var.alloc("n"), new AggCount())));
+		assertNotNull(grouped);
+		assertTrue(grouped.getBindingMaker().has(Var.alloc("n")));
+		assertFalse(grouped.getBindingMaker().has(Var.alloc("p")));
+		String sql = new SelectStatementBuilder(grouped.getBaseTabular(),
+				grouped.getSQLConnection().vendor()).getSQL();
+		assertTrue(sql, sql.contains("COUNT(*)"));
+		assertTrue(sql, sql.contains("GROUP BY"));
+	}
+
+	@Test
+	public void testCharacterColumnsAreComparedInBinaryCollation() {
+		NodeRelation grouped = new AggregateTranslator(relation("PRODUCT_CATEGORY", "c")).group(
+				new VarExprList(Collections.singletonList(Var.alloc("c"))),
+				Collections.singletonList(new ExprAggregator(Var.alloc("n"),
+						new AggCountVarDistinct(new ExprVar("c")))));
+		assertNotNull(grouped);
+		String sql = new SelectStatementBuilder(grouped.getBaseTabular(), Vendor.MySQL).getSQL();
+		assertTrue(sql, sql.contains("COUNT(DISTINCT BINARY `T0_PRODUCT`.`CATEGORY`)"));
+		assertTrue(sql, sql.matches(".* GROUP BY BINARY `T0_PRODUCT`.`CATEGORY`.*"));
+	}
+
+	@Test
+	public void testNoAverage() {
+		assertNull(new AggregateTranslator(relation("PRODUCT_STOCK", "s")).group(
+				new VarExprList(), Collections.singletonList(
+						new ExprAggregator(Var.alloc("a"), new AggAvg(new ExprVar("s"))))));
+	}
+
+	@Test
+	public void testCount() {
+		assertSameResults("SELECT (COUNT(*) AS ?n) { ?p vocab:PRODUCT_NAME ?name }");
+		assertSameResults("SELECT (COUNT(?name) AS ?n) { ?p vocab:PRODUCT_NAME ?name }");
+		assertSameResults("SELECT (COUNT(DISTINCT ?name) AS ?n) { ?p vocab:PRODUCT_NAME ?name }");
+		assertSameResults("SELECT (COUNT(*) AS ?n) { ?p vocab:PRODUCT_NAME ?name FILTER (?name = 'none') }");
+	}
+
+	@Test
+	public void testGroupBy() {
+		assertSameResults("SELECT ?c (COUNT(*) AS ?n) (SUM(?s) AS ?sum) (MIN(?s) AS ?min) " +
+				"(MAX(?s) AS ?max) { ?p vocab:PRODUCT_CATEGORY ?c; vocab:PRODUCT_STOCK ?s } GROUP BY ?c");
+		assertSameResults("SELECT ?c (MIN(?d) AS ?first) (MAX(?price) AS ?max) " +
+				"{ ?p vocab:PRODUCT_CATEGORY ?c; vocab:PRODUCT_RELEASED ?d; vocab:PRODUCT_PRICE ?price } " +
+				"GROUP BY ?c");
+		assertSameResults("SELECT ?name (COUNT(?p) AS ?n) { ?p vocab:PRODUCT_NAME ?name } GROUP BY ?name");
+		assertSameResults("SELECT ?p (COUNT(*) AS ?n) { ?p vocab:PRODUCT_NAME ?name } GROUP BY ?p");
+	}
+
+	@Test
+	public void testHavingAndOrder() {
+		assertSameResults("SELECT ?c (COUNT(*) AS ?n) { ?p vocab:PRODUCT_CATEGORY ?c } " +
+				"GROUP BY ?c HAVING (COUNT(*) > 2)");
+		assertSameResults("SELECT ?name (COUNT(*) AS ?n) { ?p vocab:PRODUCT_NAME ?name } " +
+				"GROUP BY ?name ORDER BY DESC(?n) ?name LIMIT 2");
+	}
+
+	@Test
+	public void testHavingInSQL() {
+		compiled.getContext().set(D2RQOptions.FILTER_TO_SQL, "true");
+		String query = "SELECT ?c (COUNT(*) AS ?n) { ?p vocab:PRODUCT_CATEGORY ?c } " +
+				"GROUP BY ?c HAVING (COUNT(*) > 2)";
+		assertSameResults(query);
+		final boolean[] found = {false};
+		OpWalker.walk(translate(query), new OpVisitorBase() {
+			@Override
+			public void visit(OpFilter op) {
+				found[0] = true;
+			}
+		});
+		assertFalse(found[0]);
+	}
+
+	@Test
+	public void testQueryEngineGroupsInSQL() {
+		final boolean[] found = {false, false};
+		OpWalker.walk(translate("SELECT ?c (COUNT(*) AS ?n) { ?p vocab:PRODUCT_CATEGORY ?c } " +
+				"GROUP BY ?c ORDER BY DESC(?n) LIMIT 1"), new OpVisitorBase() {
+			@Override
+			public void visit(OpGroup op) {
+				found[0] = true;
+			}
+			@Override
+			public void visit(OpOrder op) {
+				found[0] = true;
+			}
+			@Override
+			public void visit(OpTopN op) {
+				found[0] = true;
+			}
+			@Override
+			public void visit(OpSlice op) {
+				found[0] = true;
+			}
+			@Override
+			public void visit(OpExt op) {
+				found[1] |= op instanceof OpTableSQL;
+			}
+		});
+		assertFalse(found[0]);
+		assertTrue(found[1]);
+	}
+
+	private NodeRelation relation(String property, String var) {
+		return HSQLMappingFixture.relation(compiled, property, var);
+	}
+
+	private Op translate(String query) {
+		return HSQLMappingFixture.translate(new GraphD2RQ(compiled), query);
+	}
+
+	private void assertSameResults(String query) {
+		HSQLMappingFixture.assertSameResults(new GraphD2RQ(compiled), query);
+	}
+}
@@ -0,0 +1,129 @@
+package org.d2rq.engine;
+
+import static org.d2rq.HSQLMappingFixture.property;
+import static org.d2rq.HSQLMappingFixture.translate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.d2rq.HSQLMappingFixture;
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.jena.GraphD2RQ;
+import org.d2rq.lang.ClassMap;
+import org.d2rq.lang.Join;
+import org.d2rq.lang.Join.Direction;
+import org.d2rq.lang.Mapping;
+import org.d2rq.lang.PropertyBridge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.sparql.algebra.OpVisitorBase;
+import com.hp.hpl.jena.sparql.algebra.OpWalker;
+import com.hp.hpl.jena.sparql.algebra.op.OpExt;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.util.Context;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+public class BGPTranslatorTest {
+	private HSQLMappingFixture fixture;
+
+	@Before
+	public void setUp() {
+		fixture = new HSQLMappingFixture("bgptranslatortest");
+		fixture.executeSQL("CREATE TABLE PERSON (ID INT PRIMARY KEY, NAME VARCHAR(50))");
+		fixture.executeSQL("CREATE TABLE PET (ID INT PRIMARY KEY, NAME VARCHAR(50), OWNER INT REFERENCES PERSON(ID))");
+		fixture.executeSQL("INSERT INTO PERSON VALUES (1, 'Alice')");
+		fixture.executeSQL("INSERT INTO PERSON VALUES (2, 'Bob')");
+		fixture.executeSQL("INSERT INTO PERSON VALUES (3, 'Carol')");
+		fixture.executeSQL("INSERT INTO PET VALUES (1, 'Rex', 1)");
+		fixture.executeSQL("INSERT INTO PET VALUES (2, 'Tom', 1)");
+		fixture.executeSQL("INSERT INTO PET VALUES (3, 'Bob', 2)");
+		fixture.executeSQL("INSERT INTO PET VALUES (4, 'Stray', NULL)");
+		Mapping mapping = fixture.getMapping();
+		ClassMap pets = mapping.classMap(
+				ResourceFactory.createResource(HSQLMappingFixture.EX + "#PET"));
+		PropertyBridge bridge = PropertyBridge.create(null,
+				ResourceFactory.createProperty(HSQLMappingFixture.EX + "ownerName"), pets);
+		bridge.setColumn(ColumnName.parse("PERSON.NAME"));
+		bridge.addJoin(new Join(ColumnName.parse("PET.OWNER"),
+				ColumnName.parse("PERSON.ID"), Direction.RIGHT));
+	}
+
+	@After
+	public void tearDown() {
+		fixture.close();
+	}
+
+	@Test
+	public void testSharedSubjectBecomesSingleQuery() {
+		Node x = Node.createVariable("x");
+		List<NodeRelation> relations = new BGPTranslator(Arrays.asList(
+				Triple.create(x, RDF.Nodes.type, property("PERSON")),
+				Triple.create(x, property("PERSON_NAME"), Node.createVariable("name"))),
+				fixture.compile(false).getTripleRelations(), new Context()).translate();
+		assertEquals(1, relations.size());
+		assertTrue(relations.get(0).getBindingMaker().has(Var.alloc("name")));
+	}
+
+	@Test
+	public void testNoCombinationsGivesNoRelations() {
+		Node x = Node.createVariable("x");
+		List<NodeRelation> relations = new BGPTranslator(Arrays.asList(
+				Triple.create(x, RDF.Nodes.type, property("PERSON")),
+				Triple.create(x, property("PET_NAME"), Node.createVariable("name"))),
+				fixture.compile(false).getTripleRelations(), new Context()).translate();
+		assertTrue(relations.isEmpty());
+	}
+
+	@Test
+	public void testJoinsOnSubjectAndObject() {
+		assertSameResults(
+				"SELECT ?pet ?petName ?ownerName { " +
+				"?pet vocab:PET_OWNER ?owner . ?pet vocab:PET_NAME ?petName . " +
+				"?owner vocab:PERSON_NAME ?ownerName }");
+	}
+
+	@Test
+	public void testJoinsOnLiterals() {
+		assertSameResults(
+				"SELECT ?person ?pet { " +
+				"?person vocab:PERSON_NAME ?name . ?pet vocab:PET_NAME ?name }");
+	}
+
+	@Test
+	public void testVariablePredicates() {
+		assertSameResults(
+				"SELECT * { ?s ?p ?o . ?s rdf:type vocab:PET . ?s ex:ownerName ?n }");
+	}
+
+	@Test
+	public void testFixedAndVariableInOnePattern() {
+		assertSameResults(
+				"SELECT * { ?s vocab:PET_OWNER ?o . ?o ?p ?name . ?x ?p 'Bob' }");
+	}
+
+	@Test
+	public void testQueryEngineUsesSQLJoins() {
+		final boolean[] found = {false};
+		OpWalker.walk(translate(new GraphD2RQ(fixture.compile(false)),
+				"SELECT * { ?pet vocab:PET_NAME ?name . ?pet vocab:PET_OWNER ?owner }"),
+				new OpVisitorBase() {
+			@Override
+			public void visit(OpExt op) {
+				found[0] |= op instanceof OpTableSQL;
+			}
+		});
+		assertTrue(found[0]);
+	}
+
+	private void assertSameResults(String query) {
+		HSQLMappingFixture.assertSameResults(new GraphD2RQ(fixture.compile(false)), query);
+	}
+}
@@ -0,0 +1,146 @@
+package org.d2rq.engine;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.d2rq.HSQLMappingFixture;
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.jena.GraphD2RQ;
+import org.d2rq.lang.CompiledD2RQMapping;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.OpVisitorBase;
+import com.hp.hpl.jena.sparql.algebra.OpWalker;
+import com.hp.hpl.jena.sparql.algebra.op.OpExt;
+import com.hp.hpl.jena.sparql.algebra.op.OpFilter;
+import com.hp.hpl.jena.sparql.util.ExprUtils;
+
+public class FilterTranslatorTest {
+	private HSQLMappingFixture fixture;
+	private CompiledD2RQMapping compiled;
+
+	@Before
+	public void setUp() {
+		fixture = new HSQLMappingFixture("filtertranslatortest");
+		fixture.executeSQL("CREATE TABLE PRODUCT (ID INT PRIMARY KEY, NAME VARCHAR(50), " +
+				"PRICE DECIMAL(10,2), STOCK INT, RELEASED DATE)");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (1, 'Widget', 9.99, 10, '2012-01-15')");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (2, 'Gadget', 25.00, 0, '2012-06-01')");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (3, 'Widget XL', 30.50, 3, '2013-02-28')");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (4, '50% off_sale', 5.00, 7, '2011-12-31')");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (5, '\u00DCn\u00EFcode', 1.00, 1, '2014-03-01')");
+		compiled = fixture.compile(true);
+	}
+
+	@After
+	public void tearDown() {
+		fixture.close();
+	}
+
+	@Test
+	public void testNumericRangeIsExact() {
+		FilterTranslator translator = new FilterTranslator(relation("PRODUCT_PRICE", "price"));
+		assertNotNull(translator.translate(ExprUtils.parse("?price < 10")));
+		assertTrue(translator.isExact());
+	}
+
+	@Test
+	public void testStringMatchIsApproximate() {
+		FilterTranslator translator = new FilterTranslator(relation("PRODUCT_NAME", "name"));
+		assertNotNull(translator.translate(ExprUtils.parse("regex(?name, '^Wid')")));
+		assertFalse(translator.isExact());
+	}
+
+	@Test
+	public void testApproximationIsNotNegated() {
+		FilterTranslator translator = new FilterTranslator(relation("PRODUCT_NAME", "name"));
+		assertNull(translator.translate(ExprUtils.parse("!CONTAINS(?name, 'x')")));
+	}
+
+	@Test
+	public void testUnsupportedFunctionIsNotTranslated() {
+		FilterTranslator translator = new FilterTranslator(relation("PRODUCT_NAME", "name"));
+		assertNull(translator.translate(ExprUtils.parse("UCASE(?name) = 'WIDGET'")));
+	}
+
+	@Test
+	public void testUnknownVariableIsNotTranslated() {
+		FilterTranslator translator = new FilterTranslator(relation("PRODUCT_NAME", "name"));
+		assertNull(translator.translate(ExprUtils.parse("?other > 3")));
+	}
+
+	@Test
+	public void testNumericRanges() {
+		assertSameResults("SELECT ?p { ?p vocab:PRODUCT_PRICE ?price FILTER (?price < 10) }");
+		assertSameResults("SELECT ?p { ?p vocab:PRODUCT_PRICE ?price FILTER (25 <= ?price) }");
+		assertSameResults("SELECT ?p { ?p vocab:PRODUCT_PRICE ?price FILTER (?price = 25) }");
+		assertSameResults("SELECT ?p { ?p vocab:PRODUCT_STOCK ?s FILTER (?s > 2.5e0 && ?s != 10) }");
+	}
+
+	@Test
+	public void testDateRanges() {
+		assertSameResults("SELECT ?p { ?p vocab:PRODUCT_RELEASED ?d " +
+				"FILTER (?d >= '2012-01-01'^^xsd:date && ?d < '2013-01-01'^^xsd:date) }");
+	}
+
+	@Test
+	public void testStringFunctions() {
+		assertSameResults("SELECT ?p { ?p vocab:PRODUCT_NAME ?n FILTER (STRSTARTS(?n, 'Widget')) }");
+		assertSameResults("SELECT ?p { ?p vocab:PRODUCT_NAME ?n FILTER (CONTAINS(?n, '%')) }");
+		assertSameResults("SELECT ?p { ?p vocab:PRODUCT_NAME ?n FILTER (regex(?n, 'XL$')) }");
+		assertSameResults("SELECT ?p { ?p vocab:PRODUCT_NAME ?n FILTER (regex(?n, 'g.dg', 'i')) }");
+		assertSameResults("SELECT ?p { ?p vocab:PRODUCT_NAME ?n FILTER (regex(?n, '\u00FC', 'i')) }");
+		assertSameResults("SELECT ?p { ?p vocab:PRODUCT_NAME ?n FILTER (str(?n) = 'Gadget') }");
+	}
+
+	@Test
+	public void testLogicalOperators() {
+		assertSameResults("SELECT ?p { ?p vocab:PRODUCT_PRICE ?price; vocab:PRODUCT_STOCK ?s " +
+				"FILTER (?price > 20 || !(?s > 5)) }");
+		assertSameResults("SELECT ?p { ?p vocab:PRODUCT_PRICE ?price " +
+				"FILTER (bound(?price) && lang(?price) = '' && isLiteral(?price)) }");
+		assertSameResults("SELECT ?p { ?p vocab:PRODUCT_PRICE ?price " +
+				"FILTER (datatype(?price) = xsd:decimal && ?price > 9) }");
+	}
+
+	@Test
+	public void testMismatchedTypes() {
+		assertSameResults("SELECT ?p ?o { ?p vocab:PRODUCT_NAME ?o FILTER (?o != ?p) }");
+		assertSameResults("SELECT ?p { ?p vocab:PRODUCT_NAME ?n FILTER (?p != 'Widget') }");
+	}
+
+	@Test
+	public void testQueryEngineAddsFilterToSQL() {
+		final boolean[] found = {false, false};
+		OpWalker.walk(translate("SELECT ?p { ?p vocab:PRODUCT_PRICE ?price FILTER (?price < 10) }"),
+				new OpVisitorBase() {
+			@Override
+			public void visit(OpFilter op) {
+				found[0] = true;
+			}
+			@Override
+			public void visit(OpExt op) {
+				found[1] |= op instanceof OpTableSQL;
+			}
+		});
+		assertFalse(found[0]);
+		assertTrue(found[1]);
+	}
+
+	private NodeRelation relation(String property, String var) {
+		return HSQLMappingFixture.relation(compiled, property, var);
+	}
+
+	private Op translate(String query) {
+		return HSQLMappingFixture.translate(new GraphD2RQ(compiled), query);
+	}
+
+	private void assertSameResults(String query) {
+		HSQLMappingFixture.assertSameResults(new GraphD2RQ(compiled), query);
+	}
+}
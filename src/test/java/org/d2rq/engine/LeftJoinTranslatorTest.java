@@ -0,0 +1,166 @@
+package org.d2rq.engine;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.d2rq.HSQLMappingFixture;
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.jena.GraphD2RQ;
+import org.d2rq.lang.CompiledD2RQMapping;
+import org.d2rq.nodes.BindingMaker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.OpVisitorBase;
+import com.hp.hpl.jena.sparql.algebra.OpWalker;
+import com.hp.hpl.jena.sparql.algebra.op.OpConditional;
+import com.hp.hpl.jena.sparql.algebra.op.OpExt;
+import com.hp.hpl.jena.sparql.algebra.op.OpLeftJoin;
+import com.hp.hpl.jena.sparql.core.Var;
+
+public class LeftJoinTranslatorTest {
+	private HSQLMappingFixture fixture;
+	private CompiledD2RQMapping compiled;
+
+	@Before
+	public void setUp() {
+		fixture = new HSQLMappingFixture("leftjointest");
+		fixture.executeSQL("CREATE TABLE PRODUCT (ID INT PRIMARY KEY, NAME VARCHAR(50), " +
+				"PRICE DECIMAL(10,2) NOT NULL, STOCK INT)");
+		fixture.executeSQL("CREATE TABLE REVIEW (ID INT PRIMARY KEY, " +
+				"PRODUCT INT NOT NULL REFERENCES PRODUCT(ID), RATING INT)");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (1, 'Widget', 9.99, 10)");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (2, NULL, 25.00, 0)");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (3, 'Gizmo', 30.50, NULL)");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (4, NULL, 5.00, NULL)");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (5, 'Widget', 12.00, 10)");
+		fixture.executeSQL("INSERT INTO REVIEW VALUES (1, 1, 5)");
+		fixture.executeSQL("INSERT INTO REVIEW VALUES (2, 1, 3)");
+		fixture.executeSQL("INSERT INTO REVIEW VALUES (3, 3, NULL)");
+		fixture.executeSQL("INSERT INTO REVIEW VALUES (4, 5, 5)");
+		compiled = fixture.compile(true);
+	}
+
+	@After
+	public void tearDown() {
+		fixture.close();
+	}
+
+	@Test
+	public void testOptionalVariableIsGuarded() {
+		NodeRelation joined = new LeftJoinTranslator(relation("PRODUCT_PRICE", "price")).leftJoin(
+				relation("PRODUCT_NAME", "name"), null);
+		assertNotNull(joined);
+		BindingMaker bindingMaker = joined.getBindingMaker();
+		assertTrue(bindingMaker.isGuarded(Var.alloc("name")));
+		assertFalse(bindingMaker.isGuarded(Var.alloc("price")));
+		assertFalse(bindingMaker.isGuarded(Var.alloc("p")));
+	}
+
+	@Test
+	public void testNoMatchesGivesRequiredSide() {
+		NodeRelation left = relation("PRODUCT_PRICE", "price");
+		NodeRelation right = relation("PRODUCT_NAME", "name");
+		NodeRelation empty = NodeRelation.createEmpty(right);
+		assertSame(left, new LeftJoinTranslator(left).leftJoin(empty, null));
+	}
+
+	@Test
+	public void testOptional() {
+		assertSameResults("SELECT * { ?p vocab:PRODUCT_PRICE ?price " +
+				"OPTIONAL { ?p vocab:PRODUCT_NAME ?n } }");
+		assertSameResults("SELECT * { ?p vocab:PRODUCT_PRICE ?price " +
+				"OPTIONAL { ?p vocab:PRODUCT_NAME ?n } OPTIONAL { ?p vocab:PRODUCT_STOCK ?s } }");
+		assertSameResults("SELECT * { ?p vocab:PRODUCT_NAME ?n; vocab:PRODUCT_PRICE ?price " +
+				"OPTIONAL { ?p vocab:PRODUCT_STOCK ?s } }");
+	}
+
+	@Test
+	public void testOptionalWithSeveralMatches() {
+		assertSameResults("SELECT * { ?p vocab:PRODUCT_PRICE ?price " +
+				"OPTIONAL { ?r vocab:REVIEW_PRODUCT ?p } }");
+		assertSameResults("SELECT * { ?p vocab:PRODUCT_PRICE ?price " +
+				"OPTIONAL { ?r vocab:REVIEW_PRODUCT ?p; vocab:REVIEW_RATING ?rating } }");
+	}
+
+	@Test
+	public void testOptionalWithFilter() {
+		assertSameResults("SELECT * { ?p vocab:PRODUCT_PRICE ?price " +
+				"OPTIONAL { ?p vocab:PRODUCT_STOCK ?s FILTER (?s > 5) } }");
+		assertSameResults("SELECT * { ?p vocab:PRODUCT_PRICE ?price " +
+				"OPTIONAL { ?p vocab:PRODUCT_STOCK ?s FILTER (?price < 20) } }");
+	}
+
+	@Test
+	public void testFilterOnOptionalVariable() {
+		assertSameResults("SELECT ?p { ?p vocab:PRODUCT_PRICE ?price " +
+				"OPTIONAL { ?p vocab:PRODUCT_NAME ?n } FILTER (!bound(?n)) }");
+		assertSameResults("SELECT * { ?p vocab:PRODUCT_PRICE ?price " +
+				"OPTIONAL { ?p vocab:PRODUCT_STOCK ?s } FILTER (?s > 5 || ?price > 20) }");
+	}
+
+	@Test
+	public void testOptionalWithSolutionModifiers() {
+		assertSameResults("SELECT * { ?p vocab:PRODUCT_PRICE ?price " +
+				"OPTIONAL { ?p vocab:PRODUCT_NAME ?n } } ORDER BY ?price LIMIT 3");
+		assertSameResults("SELECT DISTINCT ?n { ?p vocab:PRODUCT_PRICE ?price " +
+				"OPTIONAL { ?p vocab:PRODUCT_NAME ?n } }");
+		assertSameResults("SELECT DISTINCT ?s { ?p vocab:PRODUCT_PRICE ?price " +
+				"OPTIONAL { ?p vocab:PRODUCT_STOCK ?s } }");
+		assertSameResults("SELECT DISTINCT ?rating { ?p vocab:PRODUCT_PRICE ?price " +
+				"OPTIONAL { ?r vocab:REVIEW_PRODUCT ?p; vocab:REVIEW_RATING ?rating } }");
+		assertSameResults("SELECT DISTINCT ?t { ?p vocab:PRODUCT_PRICE ?price " +
+				"OPTIONAL { ?r vocab:REVIEW_PRODUCT ?p; a ?t } }");
+		assertSameResults("SELECT (COUNT(*) AS ?c) { SELECT DISTINCT ?n { " +
+				"?p vocab:PRODUCT_PRICE ?price OPTIONAL { ?p vocab:PRODUCT_NAME ?n } } }");
+	}
+
+	@Test
+	public void testGuardIsOwnColumnOfOptionalVariable() {
+		NodeRelation joined = new LeftJoinTranslator(relation("PRODUCT_PRICE", "price")).leftJoin(
+				relation("PRODUCT_STOCK", "s"), null);
+		assertNotNull(joined);
+		Var s = Var.alloc("s");
+		assertTrue(joined.nodeMaker(s).getRequiredColumns().contains(
+				joined.getBindingMaker().getGuards().get(s)));
+	}
+
+	@Test
+	public void testQueryEngineUsesLeftJoin() {
+		final boolean[] found = {false, false};
+		OpWalker.walk(translate("SELECT * { ?p vocab:PRODUCT_PRICE ?price " +
+				"OPTIONAL { ?p vocab:PRODUCT_NAME ?n } OPTIONAL { ?p vocab:PRODUCT_STOCK ?s } }"),
+				new OpVisitorBase() {
+			@Override
+			public void visit(OpLeftJoin op) {
+				found[0] = true;
+			}
+			@Override
+			public void visit(OpConditional op) {
+				found[0] = true;
+			}
+			@Override
+			public void visit(OpExt op) {
+				found[1] |= op instanceof OpTableSQL;
+			}
+		});
+		assertFalse(found[0]);
+		assertTrue(found[1]);
+	}
+
+	private NodeRelation relation(String property, String var) {
+		return HSQLMappingFixture.relation(compiled, property, var);
+	}
+
+	private Op translate(String query) {
+		return HSQLMappingFixture.translate(new GraphD2RQ(compiled), query);
+	}
+
+	private void assertSameResults(String query) {
+		HSQLMappingFixture.assertSameResults(new GraphD2RQ(compiled), query);
+	}
+}
@@ -0,0 +1,115 @@
+package org.d2rq.engine;
+
+import static org.d2rq.HSQLMappingFixture.property;
+import static org.d2rq.HSQLMappingFixture.resource;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.d2rq.D2RQOptions;
+import org.d2rq.HSQLMappingFixture;
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.algebra.NodeRelationUtil;
+import org.d2rq.jena.GraphD2RQ;
+import org.d2rq.lang.CompiledD2RQMapping;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.algebra.op.OpBGP;
+import com.hp.hpl.jena.sparql.core.BasicPattern;
+import com.hp.hpl.jena.sparql.core.DatasetGraphFactory;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingHashMap;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import com.hp.hpl.jena.sparql.util.Context;
+
+public class OpTableSQLTest {
+	private final static Var p = Var.alloc("p");
+	private final static Var x = Var.alloc("x");
+	private HSQLMappingFixture fixture;
+	private CompiledD2RQMapping compiled;
+	private GraphD2RQ graph;
+
+	@Before
+	public void setUp() {
+		fixture = new HSQLMappingFixture("optablesqltest");
+		fixture.executeSQL("CREATE TABLE PRODUCT (ID INT PRIMARY KEY, NAME VARCHAR(50), STOCK INT)");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (1, 'Widget', 10)");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (2, NULL, 0)");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (3, 'Gizmo', NULL)");
+		compiled = fixture.compile(true);
+		graph = new GraphD2RQ(compiled);
+	}
+
+	@After
+	public void tearDown() {
+		graph.close();
+		fixture.close();
+	}
+
+	@Test
+	public void testSelectCompatibleUsesInList() {
+		List<NodeRelation> relations = relations(Var.alloc("n"), "PRODUCT_NAME");
+		NodeRelation selected = NodeRelationUtil.selectCompatible(relations.get(0),
+				Arrays.asList(binding(p, "PRODUCT/1"), binding(p, "PRODUCT/3")));
+		assertTrue(selected.getBaseTabular().toString(),
+				selected.getBaseTabular().toString().contains("InList"));
+	}
+
+	@Test
+	public void testBlockJoinGivesSameResultsInSameOrder() {
+		List<Binding> input = new ArrayList<Binding>();
+		input.add(binding(p, "PRODUCT/3"));
+		input.add(binding(p, "PRODUCT/2"));
+		input.add(binding(p, "PRODUCT/1"));
+		input.add(binding(p, "PRODUCT/99"));
+		input.add(binding(p, "PRODUCT/3"));
+		BindingHashMap withExtraVar = new BindingHashMap();
+		withExtraVar.add(p, resource("PRODUCT/1"));
+		withExtraVar.add(x, Node.createLiteral("extra"));
+		input.add(withExtraVar);
+		input.add(BindingFactory.root());
+		List<NodeRelation> name = relations(Var.alloc("n"), "PRODUCT_NAME");
+		List<NodeRelation> stock = relations(Var.alloc("s"), "PRODUCT_STOCK");
+		for (List<NodeRelation> tables: Arrays.asList(name, stock)) {
+			List<Binding> expected = eval(tables, input, 1);
+			assertTrue(expected.size() > 3);
+			assertEquals(expected, eval(tables, input, 100));
+			assertEquals(expected, eval(tables, input, 2));
+		}
+	}
+
+	private List<Binding> eval(List<NodeRelation> tables, List<Binding> input, int blockSize) {
+		Context options = compiled.getContext();
+		options.set(D2RQOptions.BIND_JOIN_BLOCK_SIZE, Integer.toString(blockSize));
+		OpTableSQL op = new OpTableSQL(new OpBGP(new BasicPattern()), graph, tables, options);
+		ExecutionContext execCxt = new ExecutionContext(options, graph,
+				DatasetGraphFactory.createOneGraph(graph), null);
+		QueryIterator it = op.eval(new QueryIterPlainWrapper(input.iterator(), execCxt), execCxt);
+		List<Binding> result = new ArrayList<Binding>();
+		while (it.hasNext()) {
+			result.add(it.nextBinding());
+		}
+		it.close();
+		return result;
+	}
+
+	private List<NodeRelation> relations(Var object, String property) {
+		return new BGPTranslator(Arrays.asList(Triple.create(p, property(property), object)),
+				compiled.getTripleRelations(), new Context()).translate();
+	}
+
+	private Binding binding(Var var, String uri) {
+		return BindingFactory.binding(var, resource(uri));
+	}
+}
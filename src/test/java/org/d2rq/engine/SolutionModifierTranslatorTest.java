@@ -0,0 +1,149 @@
+package org.d2rq.engine;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.d2rq.HSQLMappingFixture;
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.jena.GraphD2RQ;
+import org.d2rq.lang.CompiledD2RQMapping;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.SortCondition;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.OpVisitorBase;
+import com.hp.hpl.jena.sparql.algebra.OpWalker;
+import com.hp.hpl.jena.sparql.algebra.op.OpExt;
+import com.hp.hpl.jena.sparql.algebra.op.OpOrder;
+import com.hp.hpl.jena.sparql.algebra.op.OpSlice;
+import com.hp.hpl.jena.sparql.algebra.op.OpTopN;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.expr.E_Str;
+import com.hp.hpl.jena.sparql.expr.ExprVar;
+
+public class SolutionModifierTranslatorTest {
+	private HSQLMappingFixture fixture;
+	private CompiledD2RQMapping compiled;
+
+	@Before
+	public void setUp() {
+		fixture = new HSQLMappingFixture("solutionmodifiertest");
+		fixture.executeSQL("CREATE TABLE PRODUCT (ID INT PRIMARY KEY, NAME VARCHAR(50), " +
+				"PRICE DECIMAL(10,2), STOCK INT, RELEASED DATE)");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (1, 'apple', 9.99, 10, '2012-01-15')");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (2, 'Banana', 25.00, 0, '2012-06-01')");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (3, 'cherry', 30.50, 3, '2013-02-28')");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (4, 'Date', 5.00, 10, '2011-12-31')");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (5, NULL, 7.25, 3, NULL)");
+		fixture.executeSQL("INSERT INTO PRODUCT VALUES (6, 'elderberry', 12.00, 0, '2012-03-03')");
+		compiled = fixture.compile(true);
+	}
+
+	@After
+	public void tearDown() {
+		fixture.close();
+	}
+
+	@Test
+	public void testOrderByColumnValue() {
+		assertNotNull(new SolutionModifierTranslator(relation("PRODUCT_PRICE", "price")).order(
+				Collections.singletonList(new SortCondition(new ExprVar("price"), Query.ORDER_DEFAULT))));
+	}
+
+	@Test
+	public void testNoOrderByExpression() {
+		assertNull(new SolutionModifierTranslator(relation("PRODUCT_NAME", "name")).order(
+				Collections.singletonList(new SortCondition(new E_Str(new ExprVar("name")), Query.ORDER_DEFAULT))));
+	}
+
+	@Test
+	public void testNoOrderByURITemplate() {
+		assertNull(new SolutionModifierTranslator(relation("PRODUCT_NAME", "name")).order(
+				Collections.singletonList(new SortCondition(new ExprVar("p"), Query.ORDER_DEFAULT))));
+	}
+
+	@Test
+	public void testDistinctOnColumnValueIsExact() {
+		SolutionModifierTranslator translator =
+				new SolutionModifierTranslator(relation("PRODUCT_STOCK", "stock"));
+		assertNotNull(translator.distinct(Collections.singleton(Var.alloc("stock"))));
+		assertTrue(translator.isExact());
+	}
+
+	@Test
+	public void testOrderAndSlice() {
+		assertSameResults("SELECT ?n { ?p vocab:PRODUCT_NAME ?n } ORDER BY ?n");
+		assertSameResults("SELECT ?n { ?p vocab:PRODUCT_NAME ?n } ORDER BY DESC(?n) LIMIT 2");
+		assertSameResults("SELECT ?n { ?p vocab:PRODUCT_NAME ?n } ORDER BY ?n LIMIT 2 OFFSET 1");
+		assertSameResults("SELECT ?p ?price { ?p vocab:PRODUCT_PRICE ?price } ORDER BY DESC(?price) OFFSET 2");
+		assertSameResults("SELECT ?d { ?p vocab:PRODUCT_RELEASED ?d } ORDER BY ?d LIMIT 3");
+		assertSameResults("SELECT ?n ?s { ?p vocab:PRODUCT_NAME ?n; vocab:PRODUCT_STOCK ?s } " +
+				"ORDER BY DESC(?s) ?n LIMIT 3 OFFSET 1");
+	}
+
+	@Test
+	public void testDistinct() {
+		assertSameResults("SELECT DISTINCT ?s { ?p vocab:PRODUCT_STOCK ?s } ORDER BY ?s");
+		assertSameResults("SELECT DISTINCT ?s { ?p vocab:PRODUCT_STOCK ?s; vocab:PRODUCT_NAME ?n } " +
+				"ORDER BY ?s LIMIT 2");
+	}
+
+	@Test
+	public void testSeveralRelations() {
+		assertSameResults("SELECT ?p ?prop ?v { ?p ?prop ?v } ORDER BY ?v ?p ?prop LIMIT 4");
+		assertSameResults("SELECT ?p ?prop ?v { ?p ?prop ?v } ORDER BY ?v ?p ?prop LIMIT 4 OFFSET 3");
+	}
+
+	@Test
+	public void testFilterAboveSlice() {
+		assertSameResults("SELECT * { { SELECT * { ?p vocab:PRODUCT_PRICE ?price ; " +
+				"vocab:PRODUCT_STOCK ?s } ORDER BY ?price LIMIT 2 } FILTER(?price > 6) }");
+		assertSameResults("SELECT * { { SELECT * { ?p vocab:PRODUCT_PRICE ?price ; " +
+				"vocab:PRODUCT_STOCK ?s } ORDER BY DESC(?price) LIMIT 3 OFFSET 1 } FILTER(?s = 0) }");
+	}
+
+	@Test
+	public void testQueryEngineSlicesInSQL() {
+		final boolean[] found = {false, false};
+		OpWalker.walk(translate("SELECT ?p { ?p vocab:PRODUCT_NAME ?n } ORDER BY ?n LIMIT 2 OFFSET 1"),
+				new OpVisitorBase() {
+			@Override
+			public void visit(OpOrder op) {
+				found[0] = true;
+			}
+			@Override
+			public void visit(OpTopN op) {
+				found[0] = true;
+			}
+			@Override
+			public void visit(OpSlice op) {
+				found[0] = true;
+			}
+			@Override
+			public void visit(OpExt op) {
+				found[1] |= op instanceof OpTableSQL;
+			}
+		});
+		assertFalse(found[0]);
+		assertTrue(found[1]);
+	}
+
+	private NodeRelation relation(String property, String var) {
+		return HSQLMappingFixture.relation(compiled, property, var);
+	}
+
+	private Op translate(String query) {
+		return HSQLMappingFixture.translate(new GraphD2RQ(compiled), query);
+	}
+
+	private void assertSameResults(String query) {
+		HSQLMappingFixture.assertSameResults(new GraphD2RQ(compiled), query);
+	}
+}
@@ -0,0 +1,115 @@
+package org.d2rq.engine;
+
+import static org.d2rq.HSQLMappingFixture.assertSameMultiset;
+import static org.d2rq.HSQLMappingFixture.property;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.d2rq.HSQLMappingFixture;
+import org.d2rq.db.SQLConnection;
+import org.d2rq.jena.D2RQStatisticsHandler;
+import org.d2rq.jena.GraphD2RQ;
+import org.d2rq.lang.Database;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.BasicPattern;
+import com.hp.hpl.jena.sparql.core.DatasetGraphFactory;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterRoot;
+import com.hp.hpl.jena.sparql.engine.main.StageBuilder;
+import com.hp.hpl.jena.sparql.engine.main.StageGenerator;
+
+public class StageGeneratorD2RQTest {
+	private final static Var a = Var.alloc("a");
+	private final static Var b = Var.alloc("b");
+	private final static Var n = Var.alloc("n");
+	private HSQLMappingFixture fixture;
+	private GraphD2RQ graph;
+	private D2RQStatisticsHandler statistics;
+
+	@Before
+	public void setUp() {
+		fixture = new HSQLMappingFixture("stagegeneratortest");
+		fixture.executeSQL("CREATE TABLE BIG (ID INT PRIMARY KEY, NAME VARCHAR(50))");
+		fixture.executeSQL("CREATE TABLE SMALL (ID INT PRIMARY KEY, NAME VARCHAR(50))");
+		for (int i = 1; i <= 50; i++) {
+			fixture.executeSQL("INSERT INTO BIG VALUES (" + i + ", 'Name" + (i % 10) + "')");
+		}
+		fixture.executeSQL("INSERT INTO SMALL VALUES (1, 'Name1')");
+		fixture.executeSQL("INSERT INTO SMALL VALUES (2, 'Name2')");
+		// HSQLDB reports no index statistics, so the estimates need counted rows
+		for (Database database: fixture.getMapping().databases()) {
+			database.setConnectionProperty(SQLConnection.COUNT_ROWS_PROPERTY, "1");
+		}
+		graph = new GraphD2RQ(fixture.compile(false));
+		statistics = (D2RQStatisticsHandler) graph.getStatisticsHandler();
+	}
+
+	@After
+	public void tearDown() {
+		graph.close();
+		fixture.close();
+	}
+
+	@Test
+	public void testEstimateIsTableSize() {
+		assertEquals(50, statistics.getStatistic(Node.ANY, property("BIG_NAME"), Node.ANY));
+		assertEquals(2, statistics.getStatistic(Node.ANY, property("SMALL_NAME"), Node.ANY));
+	}
+
+	@Test
+	public void testBoundSubjectIsMoreSelective() {
+		Triple t = Triple.create(a, property("BIG_NAME"), n);
+		Set<Var> bound = new HashSet<Var>();
+		bound.add(a);
+		assertTrue(statistics.getStatistic(t, bound) < 
+				statistics.getStatistic(t, new HashSet<Var>()));
+	}
+
+	@Test
+	public void testSmallerPatternFirst() {
+		BasicPattern pattern = new BasicPattern();
+		pattern.add(Triple.create(a, property("BIG_NAME"), n));
+		pattern.add(Triple.create(b, property("SMALL_NAME"), n));
+		BasicPattern reordered = StageGeneratorD2RQ.reorder(pattern, statistics);
+		assertEquals(pattern.get(1), reordered.get(0));
+		assertEquals(pattern.get(0), reordered.get(1));
+	}
+
+	@Test
+	public void testSameResultsAsStandardGenerator() {
+		BasicPattern pattern = new BasicPattern();
+		pattern.add(Triple.create(a, property("BIG_NAME"), n));
+		pattern.add(Triple.create(b, property("SMALL_NAME"), n));
+		StageGenerator standard = StageBuilder.standardGenerator();
+		List<Binding> expected = eval(standard, pattern);
+		assertEquals(10, expected.size());
+		assertSameMultiset(expected, eval(new StageGeneratorD2RQ(standard), pattern));
+	}
+
+	private List<Binding> eval(StageGenerator generator, BasicPattern pattern) {
+		ExecutionContext execCxt = new ExecutionContext(
+				graph.getMapping().getContext(), graph,
+				DatasetGraphFactory.createOneGraph(graph), null);
+		QueryIterator it = generator.execute(pattern, 
+				QueryIterRoot.create(execCxt), execCxt);
+		List<Binding> result = new ArrayList<Binding>();
+		while (it.hasNext()) {
+			result.add(it.nextBinding());
+		}
+		it.close();
+		return result;
+	}
+}
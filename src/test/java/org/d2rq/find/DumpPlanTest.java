@@ -0,0 +1,71 @@
+package org.d2rq.find;
+
+import static org.d2rq.HSQLMappingFixture.resource;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.d2rq.CompiledMapping;
+import org.d2rq.HSQLMappingFixture;
+import org.d2rq.jena.GraphD2RQ;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+public class DumpPlanTest {
+	private HSQLMappingFixture fixture;
+	private CompiledMapping mapping;
+
+	@Before
+	public void setUp() {
+		fixture = new HSQLMappingFixture("dumptest");
+		fixture.executeSQL("CREATE TABLE PERSON (ID INT PRIMARY KEY, NAME VARCHAR(50), EMAIL VARCHAR(50))");
+		fixture.executeSQL("CREATE TABLE PET (ID INT PRIMARY KEY, NAME VARCHAR(50), OWNER INT REFERENCES PERSON(ID))");
+		fixture.executeSQL("INSERT INTO PERSON VALUES (1, 'Alice', 'alice@example.org')");
+		fixture.executeSQL("INSERT INTO PERSON VALUES (2, 'Bob', NULL)");
+		fixture.executeSQL("INSERT INTO PET VALUES (1, 'Rex', 1)");
+		mapping = fixture.compile(false);
+	}
+
+	@After
+	public void tearDown() {
+		fixture.close();
+	}
+
+	@Test
+	public void testOneScanPerTableAndOnePerJoin() {
+		DumpPlan plan = new DumpPlan(mapping.getTripleRelations());
+		// PERSON, PET, and the PET.OWNER => PERSON join
+		assertEquals(3, plan.getScans().size());
+		assertEquals(mapping.getTripleRelations().size(),
+				plan.getScans().get(0).getBindingMakers().size() +
+				plan.getScans().get(1).getBindingMakers().size() +
+				plan.getScans().get(2).getBindingMakers().size());
+	}
+
+	@Test
+	public void testFullScanReturnsAllTriples() {
+		GraphD2RQ graph = new GraphD2RQ(mapping);
+		int count = 0;
+		ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+		while (it.hasNext()) {
+			Triple t = it.next();
+			assertTrue(graph.contains(t));
+			count++;
+		}
+		// Sum of triples found with more specific patterns
+		int expected = 0;
+		for (Node subject: new Node[]{
+				resource("PERSON/1"), resource("PERSON/2"),
+				resource("PET/1")}) {
+			expected += graph.find(subject, Node.ANY, Node.ANY).toList().size();
+		}
+		assertEquals(expected, count);
+		// Bob has no EMAIL, so one triple fewer than Alice
+		assertEquals(graph.find(resource("PERSON/1"), Node.ANY, Node.ANY).toList().size() - 1,
+				graph.find(resource("PERSON/2"), Node.ANY, Node.ANY).toList().size());
+	}
+}
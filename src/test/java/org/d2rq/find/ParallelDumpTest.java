@@ -0,0 +1,89 @@
+package org.d2rq.find;
+
+import static org.d2rq.ModelAssert.assertIsomorphic;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.d2rq.HSQLMappingFixture;
+import org.d2rq.jena.GraphD2RQ;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+
+public class ParallelDumpTest {
+	private HSQLMappingFixture fixture;
+	private GraphD2RQ graph;
+
+	@Before
+	public void setUp() {
+		fixture = new HSQLMappingFixture("paralleldumptest");
+		fixture.executeSQL("CREATE TABLE PERSON (ID INT PRIMARY KEY, NAME VARCHAR(50))");
+		fixture.executeSQL("CREATE TABLE PET (ID INT PRIMARY KEY, NAME VARCHAR(50), OWNER INT REFERENCES PERSON(ID))");
+		for (int i = 1; i <= 500; i++) {
+			fixture.executeSQL("INSERT INTO PERSON VALUES (" + i + ", 'Person number " + i + "')");
+			fixture.executeSQL("INSERT INTO PET VALUES (" + i + ", 'Pet " + i + "', " + i + ")");
+		}
+		graph = new GraphD2RQ(fixture.compile(false));
+	}
+
+	@After
+	public void tearDown() {
+		graph.close();
+		fixture.close();
+	}
+
+	@Test
+	public void testSameTriplesAsSequentialFind() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long count = new ParallelDump(graph, 3).writeNTriples(out);
+		Model dumped = ModelFactory.createDefaultModel();
+		dumped.read(new ByteArrayInputStream(out.toByteArray()), null, "N-TRIPLE");
+		Model expected = ModelFactory.createModelForGraph(graph);
+		assertEquals(expected.size(), count);
+		assertIsomorphic(expected, dumped);
+	}
+
+	@Test
+	public void testSameTriplesWithKeyRanges() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ParallelDump dump = new ParallelDump(graph, 3);
+		dump.setMinKeysPerPartition(100);
+		long count = dump.writeNTriples(out);
+		Model dumped = ModelFactory.createDefaultModel();
+		dumped.read(new ByteArrayInputStream(out.toByteArray()), null, "N-TRIPLE");
+		Model expected = ModelFactory.createModelForGraph(graph);
+		assertEquals(expected.size(), count);
+		assertIsomorphic(expected, dumped);
+	}
+
+	@Test
+	public void testSplitsScansIntoKeyRanges() {
+		graph.getMapping().connect();
+		ExecutionContext context = new ExecutionContext(
+				graph.getMapping().getContext(), graph, null, null);
+		DumpPlan plan = new FindQuery(Triple.ANY, 
+				graph.getMapping().getTripleRelations(), context).getDumpPlan();
+		KeyRangePartitioner partitioner = new KeyRangePartitioner(100);
+		int scans = 0;
+		for (DumpPlan.Scan scan: plan.getScans()) {
+			List<DumpPlan.Scan> ranges = partitioner.partition(scan, 4);
+			assertTrue(ranges.size() == 1 || ranges.size() == 4);
+			scans += ranges.size();
+		}
+		assertTrue(scans > plan.getScans().size());
+		// Tables smaller than two partitions are left alone
+		for (DumpPlan.Scan scan: plan.getScans()) {
+			assertEquals(1, new KeyRangePartitioner(1000).partition(scan, 4).size());
+		}
+	}
+}
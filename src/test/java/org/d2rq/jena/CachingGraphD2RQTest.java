@@ -0,0 +1,218 @@
+package org.d2rq.jena;
+
+import static org.d2rq.HSQLMappingFixture.property;
+import static org.d2rq.HSQLMappingFixture.resource;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.d2rq.HSQLMappingFixture;
+import org.d2rq.db.ChangeNotifier;
+import org.d2rq.db.SQLConnection;
+import org.d2rq.db.WatermarkChangeDetector;
+import org.d2rq.db.schema.Identifier;
+import org.d2rq.db.schema.TableName;
+import org.d2rq.find.FindQuery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+public class CachingGraphD2RQTest {
+	private HSQLMappingFixture fixture;
+	private SQLConnection sqlConnection;
+	private CachingGraphD2RQ graph;
+
+	@Before
+	public void setUp() {
+		fixture = new HSQLMappingFixture("cachinggraphtest");
+		fixture.executeSQL("CREATE TABLE PEOPLE (ID INT PRIMARY KEY, NAME VARCHAR(50))");
+		for (int i = 1; i <= 20; i++) {
+			fixture.executeSQL("INSERT INTO PEOPLE VALUES (" + i + ", 'Person " + i + "')");
+		}
+		fixture.executeSQL("CREATE TABLE CITIES (ID INT PRIMARY KEY, NAME VARCHAR(50))");
+		fixture.executeSQL("INSERT INTO CITIES VALUES (1, 'Berlin')");
+		sqlConnection = fixture.connect();
+	}
+
+	@After
+	public void tearDown() {
+		if (graph != null) graph.close();
+		fixture.close();
+	}
+
+	@Test
+	public void testSecondFindIsCached() {
+		graph = new CachingGraphD2RQ(fixture.compile(false));
+		assertEquals(20, count(graph.find(names())));
+		assertEquals(1, graph.getCache().size());
+		assertEquals(0, graph.getCache().getHitCount());
+		assertEquals(20, count(graph.find(names())));
+		assertEquals(1, graph.getCache().getHitCount());
+		assertEquals(1, graph.getCache().getMissCount());
+	}
+
+	@Test
+	public void testMissBuildsOneFindQuery() {
+		final int[] queries = {0};
+		graph = new CachingGraphD2RQ(fixture.compile(false)) {
+			@Override
+			protected FindQuery createFindQuery(Triple pattern) {
+				queries[0]++;
+				return super.createFindQuery(pattern);
+			}
+		};
+		assertEquals(20, count(graph.find(names())));
+		assertEquals(1, queries[0]);
+		assertEquals(20, count(graph.find(names())));
+		assertEquals(1, queries[0]);
+	}
+
+	@Test
+	public void testSpecificPatternIsAnsweredFromGeneralOne() {
+		graph = new CachingGraphD2RQ(fixture.compile(false));
+		int all = count(graph.find(person(3), Node.ANY, Node.ANY));
+		assertTrue(all > 1);
+		ExtendedIterator<Triple> it = graph.find(person(3), name(), Node.ANY);
+		assertEquals(Node.createLiteral("Person 3"), it.next().getObject());
+		assertFalse(it.hasNext());
+		assertEquals(1, graph.getCache().getContainmentHitCount());
+		assertEquals(0, count(graph.find(person(3), name(), Node.createLiteral("Person 4"))));
+		assertEquals(2, graph.getCache().getContainmentHitCount());
+		assertEquals(1, graph.getCache().size());
+	}
+
+	@Test
+	public void testGeneralPatternIsNotAnsweredFromSpecificOne() {
+		graph = new CachingGraphD2RQ(fixture.compile(false));
+		count(graph.find(person(3), name(), Node.ANY));
+		assertEquals(20, count(graph.find(Node.ANY, name(), Node.ANY)));
+		assertEquals(0, graph.getCache().getHitCount());
+	}
+
+	@Test
+	public void testUnfinishedResultIsNotCached() {
+		graph = new CachingGraphD2RQ(fixture.compile(false));
+		ExtendedIterator<Triple> it = graph.find(names());
+		it.next();
+		it.close();
+		assertEquals(0, graph.getCache().size());
+	}
+
+	@Test
+	public void testLargeResultIsAbandoned() {
+		graph = new CachingGraphD2RQ(fixture.compile(false), new TripleCache(100000, 1000, TripleCache.NO_TTL));
+		assertEquals(20, count(graph.find(names())));
+		assertEquals(0, graph.getCache().size());
+		assertEquals(1, graph.getCache().getAbandonedCount());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() {
+		graph = new CachingGraphD2RQ(fixture.compile(false), new TripleCache(1000, 1000, TripleCache.NO_TTL));
+		for (int i = 1; i <= 20; i++) {
+			assertEquals(1, count(graph.find(person(i), name(), Node.ANY)));
+		}
+		assertTrue(graph.getCache().getEvictionCount() > 0);
+		assertTrue(graph.getCache().getWeight() <= 1000);
+		assertTrue(graph.getCache().size() < 20);
+	}
+
+	@Test
+	public void testExpiredEntryIsMiss() throws InterruptedException {
+		graph = new CachingGraphD2RQ(fixture.compile(false), 
+				new TripleCache(TripleCache.DEFAULT_MAX_WEIGHT, TripleCache.DEFAULT_MAX_ENTRY_WEIGHT, 1));
+		count(graph.find(names()));
+		Thread.sleep(10);
+		count(graph.find(names()));
+		assertEquals(0, graph.getCache().getHitCount());
+		assertEquals(2, graph.getCache().getMissCount());
+	}
+
+	@Test
+	public void testClearDuringIterationDoesNotCache() {
+		graph = new CachingGraphD2RQ(fixture.compile(false));
+		ExtendedIterator<Triple> it = graph.find(names());
+		graph.clearCache();
+		assertEquals(20, count(it));
+		assertEquals(0, graph.getCache().size());
+	}
+
+	@Test
+	public void testOnlyChangedTablesAreInvalidated() {
+		graph = new CachingGraphD2RQ(fixture.compile(false));
+		ChangeNotifier notifier = new ChangeNotifier();
+		graph.setChangeDetector(notifier);
+		count(graph.find(names()));
+		count(graph.find(cityNames()));
+		assertEquals(2, graph.getCache().size());
+		notifier.tableChanged(table("CITIES"));
+		assertEquals(20, count(graph.find(names())));
+		assertEquals(1, graph.getCache().getHitCount());
+		assertEquals(1, graph.getCache().getInvalidationCount());
+		assertEquals(1, graph.getCache().size());
+	}
+
+	@Test
+	public void testAllTablesChanged() {
+		graph = new CachingGraphD2RQ(fixture.compile(false));
+		ChangeNotifier notifier = new ChangeNotifier();
+		graph.setChangeDetector(notifier);
+		count(graph.find(names()));
+		notifier.allTablesChanged();
+		count(graph.find(cityNames()));
+		assertEquals(0, graph.getCache().getHitCount());
+		assertEquals(1, graph.getCache().size());
+	}
+
+	@Test
+	public void testWatermarkDetectsInsert() {
+		graph = new CachingGraphD2RQ(fixture.compile(false));
+		WatermarkChangeDetector detector = new WatermarkChangeDetector(sqlConnection, 0);
+		detector.watch(table("PEOPLE"));
+		detector.watch(table("CITIES"), Identifier.createUndelimited("ID"));
+		graph.setChangeDetector(detector);
+		assertEquals(20, count(graph.find(names())));
+		assertEquals(1, count(graph.find(cityNames())));
+		fixture.executeSQL("INSERT INTO CITIES VALUES (2, 'Paris')");
+		assertEquals(2, count(graph.find(cityNames())));
+		assertEquals(20, count(graph.find(names())));
+		assertEquals(1, graph.getCache().getHitCount());
+		assertEquals(1, graph.getCache().getInvalidationCount());
+	}
+
+	private TableName table(String name) {
+		for (TableName table: sqlConnection.getTableNames(null)) {
+			if (table.getTable().getName().equals(name)) return table;
+		}
+		throw new IllegalArgumentException(name);
+	}
+
+	private Triple cityNames() {
+		return Triple.create(Node.ANY, property("CITIES_NAME"), Node.ANY);
+	}
+
+	private Triple names() {
+		return Triple.create(Node.ANY, name(), Node.ANY);
+	}
+
+	private Node name() {
+		return property("PEOPLE_NAME");
+	}
+
+	private Node person(int id) {
+		return resource("PEOPLE/" + id);
+	}
+
+	private int count(ExtendedIterator<Triple> it) {
+		int result = 0;
+		while (it.hasNext()) {
+			it.next();
+			result++;
+		}
+		return result;
+	}
+}
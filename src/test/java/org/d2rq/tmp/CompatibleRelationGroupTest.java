@@ -0,0 +1,128 @@
+package org.d2rq.tmp;
+
+import static org.d2rq.HSQLMappingFixture.assertSameMultiset;
+import static org.d2rq.HSQLMappingFixture.resource;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.d2rq.HSQLMappingFixture;
+import org.d2rq.algebra.TripleRelation;
+import org.d2rq.db.SelectStatementBuilder;
+import org.d2rq.db.op.UnionOp;
+import org.d2rq.db.op.util.OpUtil;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.jena.GraphD2RQ;
+import org.d2rq.lang.ClassMap;
+import org.d2rq.lang.CompiledD2RQMapping;
+import org.d2rq.lang.Mapping;
+import org.d2rq.lang.PropertyBridge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+
+public class CompatibleRelationGroupTest {
+	private final static Node alice = resource("PERSON/1");
+	private final static Node bob = resource("PERSON/2");
+	private final static Node senior = resource("senior");
+	private HSQLMappingFixture fixture;
+
+	@Before
+	public void setUp() {
+		fixture = new HSQLMappingFixture("compatiblerelationgrouptest");
+		fixture.executeSQL("CREATE TABLE PERSON (ID INT PRIMARY KEY, NAME VARCHAR(50), EMAIL VARCHAR(50), AGE INT)");
+		fixture.executeSQL("INSERT INTO PERSON VALUES (1, 'Alice', 'alice@example.org', 40)");
+		fixture.executeSQL("INSERT INTO PERSON VALUES (2, 'Bob', NULL, 20)");
+		fixture.executeSQL("CREATE TABLE PET (ID INT PRIMARY KEY, NAME VARCHAR(50), OWNER INT)");
+		fixture.executeSQL("INSERT INTO PET VALUES (1, 'Bob', 1)");
+		fixture.executeSQL("INSERT INTO PET VALUES (2, 'Rex', 2)");
+		Mapping mapping = fixture.getMapping();
+		ClassMap persons = mapping.classMap(mapping.classMapResources().iterator().next());
+		PropertyBridge bridge = PropertyBridge.create(null,
+				ResourceFactory.createProperty(senior.getURI()), persons);
+		bridge.setColumn(ColumnName.parse("PERSON.NAME"));
+		bridge.addCondition("PERSON.AGE > 30");
+	}
+
+	@After
+	public void tearDown() {
+		fixture.close();
+	}
+
+	private List<TripleRelation> select(CompiledD2RQMapping compiled, Triple pattern) {
+		List<TripleRelation> result = new ArrayList<TripleRelation>();
+		for (TripleRelation relation: compiled.getTripleRelations()) {
+			TripleRelation selected = relation.selectTriple(pattern);
+			if (selected == null || OpUtil.isEmpty(selected.getBaseTabular())) continue;
+			result.add(selected);
+		}
+		return result;
+	}
+
+	@Test
+	public void testAllPropertyBridgesOfSubjectInOneGroup() {
+		List<TripleRelation> relations = select(fixture.compile(false),
+				Triple.create(alice, Node.ANY, Node.ANY));
+		assertTrue(relations.size() > 3);
+		Collection<CompatibleRelationGroup> groups =
+				CompatibleRelationGroup.groupNodeRelations(relations);
+		assertEquals(1, groups.size());
+		assertEquals(relations.size(), groups.iterator().next().bindingMakers().size());
+	}
+
+	@Test
+	public void testMultiplexedFindReturnsSameTriples() {
+		for (Node subject: new Node[]{alice, bob}) {
+			List<Triple> expected = find(false, subject);
+			List<Triple> multiplexed = find(true, subject);
+			assertSameMultiset(expected, multiplexed);
+			assertEquals(subject == alice,
+					multiplexed.contains(Triple.create(subject, senior, Node.createLiteral("Alice"))));
+		}
+		assertFalse(find(true, bob).isEmpty());
+	}
+
+	@Test
+	public void testGroupsOnSameConnectionInOneUnion() {
+		List<TripleRelation> relations = select(fixture.compile(false), 
+				Triple.create(Node.ANY, Node.ANY, Node.createLiteral("Bob")));
+		Collection<CompatibleRelationGroup> groups =
+				CompatibleRelationGroup.groupNodeRelations(relations);
+		assertEquals(2, groups.size());
+		Collection<CompatibleRelationGroup> union = 
+				CompatibleRelationGroup.unionGroups(groups);
+		assertEquals(1, union.size());
+		CompatibleRelationGroup group = union.iterator().next();
+		assertTrue(group.baseRelation() instanceof UnionOp);
+		assertEquals(relations.size(), group.bindingMakers().size());
+		String sql = new SelectStatementBuilder(group.baseRelation(), 
+				group.getSQLConnection().vendor()).getSQL();
+		assertTrue(sql, sql.contains(" UNION ALL "));
+	}
+
+	@Test
+	public void testUnionFindReturnsSameTriples() {
+		Node bobLiteral = Node.createLiteral("Bob");
+		List<Triple> expected = find(false, Node.ANY, bobLiteral);
+		assertEquals(2, expected.size());
+		assertSameMultiset(expected, find(true, Node.ANY, bobLiteral));
+		Node pet = resource("PET/1");
+		assertSameMultiset(find(false, pet, Node.ANY), find(true, pet, Node.ANY));
+	}
+
+	private List<Triple> find(boolean fastMode, Node subject) {
+		return find(fastMode, subject, Node.ANY);
+	}
+
+	private List<Triple> find(boolean fastMode, Node subject, Node object) {
+		return new GraphD2RQ(fixture.compile(fastMode)).find(subject, Node.ANY, object).toList();
+	}
+}
@@ -0,0 +1,115 @@
+package org.d2rq.tmp;
+
+import static org.d2rq.HSQLMappingFixture.assertSameMultiset;
+import static org.d2rq.HSQLMappingFixture.property;
+import static org.d2rq.HSQLMappingFixture.resource;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.d2rq.HSQLMappingFixture;
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.algebra.TripleRelation;
+import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.op.InnerJoinOp;
+import org.d2rq.db.op.OpVisitor;
+import org.d2rq.db.schema.ColumnName;
+import org.d2rq.jena.GraphD2RQ;
+import org.d2rq.lang.ClassMap;
+import org.d2rq.lang.CompiledD2RQMapping;
+import org.d2rq.lang.Join;
+import org.d2rq.lang.Join.Direction;
+import org.d2rq.lang.Mapping;
+import org.d2rq.lang.PropertyBridge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+
+public class JoinOptimizerTest {
+	private final static Node owner = property("PET_OWNER");
+	private final static Node ownerName = resource("ownerName");
+	private HSQLMappingFixture fixture;
+
+	@Before
+	public void setUp() {
+		fixture = new HSQLMappingFixture("joinoptimizertest");
+		fixture.executeSQL("CREATE TABLE PERSON (ID INT PRIMARY KEY, NAME VARCHAR(50))");
+		fixture.executeSQL("CREATE TABLE PET (ID INT PRIMARY KEY, NAME VARCHAR(50), OWNER INT REFERENCES PERSON(ID))");
+		fixture.executeSQL("INSERT INTO PERSON VALUES (1, 'Alice')");
+		fixture.executeSQL("INSERT INTO PERSON VALUES (2, 'Bob')");
+		fixture.executeSQL("INSERT INTO PET VALUES (1, 'Rex', 1)");
+		fixture.executeSQL("INSERT INTO PET VALUES (2, 'Tom', 1)");
+		fixture.executeSQL("INSERT INTO PET VALUES (3, 'Stray', NULL)");
+		Mapping mapping = fixture.getMapping();
+		ClassMap pets = mapping.classMap(
+				ResourceFactory.createResource(HSQLMappingFixture.EX + "#PET"));
+		assertNotNull(pets);
+		PropertyBridge bridge = PropertyBridge.create(null,
+				ResourceFactory.createProperty(ownerName.getURI()), pets);
+		bridge.setColumn(ColumnName.parse("PERSON.NAME"));
+		bridge.addJoin(new Join(ColumnName.parse("PET.OWNER"),
+				ColumnName.parse("PERSON.ID"), Direction.RIGHT));
+	}
+
+	@After
+	public void tearDown() {
+		fixture.close();
+	}
+
+	@Test
+	public void testRemovesReferencedTableWhenOnlyKeyIsUsed() {
+		NodeRelation relation = relationFor(fixture.compile(false), owner);
+		assertTrue(hasJoin(relation.getBaseTabular()));
+		NodeRelation optimized = JoinOptimizer.optimize(relation);
+		assertFalse(hasJoin(optimized.getBaseTabular()));
+		assertTrue(optimized.getBaseTabular().toString().contains("NotNull"));
+	}
+
+	@Test
+	public void testKeepsJoinWhenOtherColumnsAreUsed() {
+		NodeRelation relation = relationFor(fixture.compile(false), ownerName);
+		assertEquals(relation, JoinOptimizer.optimize(relation));
+	}
+
+	@Test
+	public void testSameTriplesWithTrimmedJoins() {
+		for (Node property: new Node[]{owner, ownerName}) {
+			List<Triple> expected = find(false, property);
+			assertEquals(2, expected.size());
+			assertSameMultiset(expected, find(true, property));
+		}
+	}
+
+	private NodeRelation relationFor(CompiledD2RQMapping compiled, Node property) {
+		for (TripleRelation relation: compiled.getTripleRelations()) {
+			if (relation.selectTriple(Triple.create(Node.ANY, property, Node.ANY)) != null
+					&& relation.nodeMaker(TripleRelation.PREDICATE).toString().contains(property.getURI())) {
+				return relation;
+			}
+		}
+		throw new IllegalStateException("No relation for " + property);
+	}
+
+	private boolean hasJoin(DatabaseOp op) {
+		final boolean[] result = {false};
+		op.accept(new OpVisitor.Default(true) {
+			@Override
+			public boolean visitEnter(InnerJoinOp table) {
+				result[0] = true;
+				return false;
+			}
+		});
+		return result[0];
+	}
+
+	private List<Triple> find(boolean fastMode, Node property) {
+		return new GraphD2RQ(fixture.compile(fastMode)).find(Node.ANY, property, Node.ANY).toList();
+	}
+}
@@ -0,0 +1,107 @@
+package org.d2rq.tmp;
+
+import static org.d2rq.HSQLMappingFixture.assertSameResults;
+import static org.d2rq.HSQLMappingFixture.property;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.d2rq.D2RQOptions;
+import org.d2rq.HSQLMappingFixture;
+import org.d2rq.algebra.NodeRelation;
+import org.d2rq.db.op.DatabaseOp;
+import org.d2rq.db.op.OpVisitor;
+import org.d2rq.db.op.TableOp;
+import org.d2rq.engine.BGPTranslator;
+import org.d2rq.jena.ModelD2RQ;
+import org.d2rq.lang.CompiledD2RQMapping;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.util.Context;
+
+public class SelfJoinEliminatorTest {
+	private final static Var x = Var.alloc("x");
+	private final static Var y = Var.alloc("y");
+	private HSQLMappingFixture fixture;
+
+	@Before
+	public void setUp() {
+		fixture = new HSQLMappingFixture("selfjoineliminatortest");
+		fixture.executeSQL("CREATE TABLE EMP (ID INT PRIMARY KEY, NAME VARCHAR(50), EMAIL VARCHAR(50), DEPT INT)");
+		fixture.executeSQL("INSERT INTO EMP VALUES (1, 'Alice', 'alice@example.org', 10)");
+		fixture.executeSQL("INSERT INTO EMP VALUES (2, 'Bob', NULL, 10)");
+		fixture.executeSQL("INSERT INTO EMP VALUES (3, 'Carol', 'carol@example.org', NULL)");
+		fixture.executeSQL("INSERT INTO EMP VALUES (4, 'Alice', 'alice2@example.org', 20)");
+	}
+
+	@After
+	public void tearDown() {
+		fixture.close();
+	}
+
+	@Test
+	public void testStarPatternUsesOneTable() {
+		List<NodeRelation> relations = translate(true,
+				Triple.create(x, property("EMP_NAME"), Var.alloc("n")),
+				Triple.create(x, property("EMP_EMAIL"), Var.alloc("e")),
+				Triple.create(x, property("EMP_DEPT"), Var.alloc("d")));
+		assertEquals(1, relations.size());
+		assertEquals(1, countTables(relations.get(0).getBaseTabular()));
+	}
+
+	@Test
+	public void testStarPatternWithoutOptionKeepsJoin() {
+		List<NodeRelation> relations = translate(false,
+				Triple.create(x, property("EMP_NAME"), Var.alloc("n")),
+				Triple.create(x, property("EMP_EMAIL"), Var.alloc("e")));
+		assertEquals(2, countTables(relations.get(0).getBaseTabular()));
+	}
+
+	@Test
+	public void testJoinOnNonKeyColumnIsKept() {
+		List<NodeRelation> relations = translate(true,
+				Triple.create(x, property("EMP_NAME"), Var.alloc("n")),
+				Triple.create(y, property("EMP_NAME"), Var.alloc("n")));
+		assertEquals(2, countTables(relations.get(0).getBaseTabular()));
+	}
+
+	@Test
+	public void testSameResults() {
+		for (String query: Arrays.asList(
+				"SELECT * { ?x vocab:EMP_NAME ?n; vocab:EMP_EMAIL ?e; vocab:EMP_DEPT ?d }",
+				"SELECT * { ?x vocab:EMP_NAME ?n; vocab:EMP_EMAIL ?e }",
+				"SELECT * { ?x vocab:EMP_NAME ?n . ?y vocab:EMP_NAME ?n; vocab:EMP_DEPT ?d }",
+				"SELECT * { ?x vocab:EMP_NAME 'Alice'; vocab:EMP_DEPT ?d; vocab:EMP_ID ?id }")) {
+			assertSameResults(new ModelD2RQ(fixture.compile(false)),
+					new ModelD2RQ(fixture.compile(true)), query);
+		}
+	}
+
+	private List<NodeRelation> translate(boolean avoidSelfJoins, Triple... pattern) {
+		CompiledD2RQMapping compiled = fixture.compile(false);
+		compiled.connect();
+		Context options = new Context();
+		options.set(D2RQOptions.AVOID_SELF_JOINS, Boolean.toString(avoidSelfJoins));
+		List<NodeRelation> result = new BGPTranslator(Arrays.asList(pattern),
+				compiled.getTripleRelations(), options).translate();
+		assertTrue(result != null && !result.isEmpty());
+		return result;
+	}
+
+	private int countTables(DatabaseOp op) {
+		final int[] result = {0};
+		op.accept(new OpVisitor.Default(true) {
+			@Override
+			public void visit(TableOp table) {
+				result[0]++;
+			}
+		});
+		return result[0];
+	}
+}
@@ -0,0 +1,88 @@
+package org.d2rq.writer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+public class NTriplesWriterTest {
+	private final static Node s = Node.createURI("http://example.org/s");
+	private final static Node p = Node.createURI("http://example.org/p");
+
+	private String write(Triple... triples) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new NTriplesWriter(out).write(Arrays.asList(triples).iterator());
+		return new String(out.toByteArray(), "utf-8");
+	}
+
+	@Test
+	public void testURIs() throws IOException {
+		assertEquals("<http://example.org/s> <http://example.org/p> <http://example.org/o> .\n",
+				write(new Triple(s, p, Node.createURI("http://example.org/o"))));
+	}
+
+	@Test
+	public void testLiterals() throws IOException {
+		assertEquals(
+				"<http://example.org/s> <http://example.org/p> \"a\\\"b\\\\c\\nd\" .\n" +
+				"<http://example.org/s> <http://example.org/p> \"chat\"@fr .\n" +
+				"<http://example.org/s> <http://example.org/p> \"1\"^^<http://www.w3.org/2001/XMLSchema#int> .\n",
+				write(new Triple(s, p, Node.createLiteral("a\"b\\c\nd")),
+						new Triple(s, p, Node.createLiteral("chat", "fr", false)),
+						new Triple(s, p, Node.createLiteral("1", null, XSDDatatype.XSDint))));
+	}
+
+	@Test
+	public void testNonASCIIIsWrittenAsUTF8() throws IOException {
+		assertEquals("<http://example.org/s> <http://example.org/p> \"é€😀\" .\n",
+				write(new Triple(s, p, Node.createLiteral("é€😀"))));
+	}
+
+	@Test
+	public void testUnpairedSurrogatesAreReplaced() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new NTriplesWriter(out).write(Arrays.asList(
+				new Triple(s, p, Node.createLiteral("a\uD800b\uDC00")),
+				new Triple(s, p, Node.createURI("http://example.org/\uD83D"))).iterator());
+		assertArrayEquals((
+				"<http://example.org/s> <http://example.org/p> \"a\uFFFDb\uFFFD\" .\n" +
+				"<http://example.org/s> <http://example.org/p> <http://example.org/\uFFFD> .\n"
+				).getBytes("utf-8"), out.toByteArray());
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		List<Triple> triples = Arrays.asList(
+				new Triple(s, RDF.Nodes.type, Node.createURI("http://example.org/Class")),
+				new Triple(s, p, Node.createAnon()),
+				new Triple(Node.createAnon(), p, Node.createLiteral("x\tyé", "en", false)),
+				new Triple(s, p, Node.createURI("http://example.org/a%20b")));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NTriplesWriter writer = new NTriplesWriter(out);
+		// Write twice to exercise cached predicates
+		writer.write(triples.iterator());
+		assertEquals(4, writer.write(triples.iterator()));
+		Model m = ModelFactory.createDefaultModel();
+		m.read(new ByteArrayInputStream(out.toByteArray()), null, "N-TRIPLE");
+		Graph g = m.getGraph();
+		// Same blank node labels both times, so duplicates collapse
+		assertEquals(4, g.size());
+		assertTrue(g.contains(triples.get(0)));
+		assertTrue(g.contains(triples.get(3)));
+	}
+}